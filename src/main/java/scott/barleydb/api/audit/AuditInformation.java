@@ -74,6 +74,13 @@ public class AuditInformation implements Serializable {
         return record;
     }
 
+    public void remove(Entity entity) {
+        AuditRecord record = recordsLookup.remove(new AuditKey(entity));
+        if (record != null) {
+            records.remove(record);
+        }
+    }
+
     public List<AuditRecord> getRecords() {
         return Collections.unmodifiableList(records);
     }
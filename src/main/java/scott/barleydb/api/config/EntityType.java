@@ -26,9 +26,11 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import scott.barleydb.api.core.util.EnvironmentAccessor;
@@ -71,6 +73,8 @@ public class EntityType implements Serializable {
 
     private Map<String,NodeType> nodeTypes = new LinkedHashMap<>();
 
+    private List<NodeType> indexedNodeTypes = new ArrayList<>();
+
     public static EntityType create(Definitions definitions, EntitySpec entityTypeSpec) {
 //        System.out.println("Creating entity type: " + entityTypeSpec.getClassName());
         if (entityTypeSpec.getTableName() == null) {
@@ -113,7 +117,15 @@ public class EntityType implements Serializable {
         }
         for (NodeSpec nodeTypeSpec: entityTypeSpec.getNodeSpecs()) {
             NodeType nt = NodeType.create(entityType, nodeTypeSpec);
-            entityType.nodeTypes.put(nt.getName(), nt);
+            NodeType overridden = entityType.nodeTypes.put(nt.getName(), nt);
+            if (overridden != null) {
+                nt.setIndex(overridden.getIndex());
+                entityType.indexedNodeTypes.set(nt.getIndex(), nt);
+            }
+            else {
+                nt.setIndex(entityType.indexedNodeTypes.size());
+                entityType.indexedNodeTypes.add(nt);
+            }
         }
     }
 
@@ -202,6 +214,14 @@ public class EntityType implements Serializable {
         return nt;
     }
 
+    /**
+     * @param index the index of the node type
+     * @return the node type at the given index.
+     */
+    public NodeType getNodeType(int index) {
+        return indexedNodeTypes.get(index);
+    }
+
     public void write(ObjectOutputStream out) throws IOException {
         out.writeUTF(definitions.getNamespace());
         out.writeUTF(interfaceName);
@@ -72,6 +72,11 @@ public class NodeType implements Serializable, Cloneable {
 
     private Object fixedValue;
 
+    /**
+     * the position of the node type within it's entity type.
+     */
+    private int index;
+
     public static NodeType create(EntityType entityType, NodeSpec nodeSpec) {
         NodeType nodeType = new NodeType(entityType);
         nodeType.name = nodeSpec.getName();
@@ -207,6 +212,17 @@ public class NodeType implements Serializable, Cloneable {
         return name;
     }
 
+    /**
+     * @return the position of the node type within it's entity type, parent entity nodes come first.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
     public Object getFixedValue() {
         return fixedValue;
     }
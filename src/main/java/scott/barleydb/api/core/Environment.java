@@ -31,12 +31,15 @@ import scott.barleydb.api.config.Definitions;
 import scott.barleydb.api.config.DefinitionsSet;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.entity.EntityIdentityGenerator;
+import scott.barleydb.api.core.entity.RandomEntityIdentityGenerator;
 import scott.barleydb.api.core.proxy.ProxyFactory;
 import scott.barleydb.api.exception.execution.SortServiceProviderException;
 import scott.barleydb.api.exception.model.ProxyCreationException;
 import scott.barleydb.api.persist.AccessRightsChecker;
 import scott.barleydb.api.persist.Auditor;
 import scott.barleydb.api.persist.LoggingAuditor;
+import scott.barleydb.api.persist.PersistMetrics;
 import scott.barleydb.api.persist.NoopAccessRightsChecker;
 import scott.barleydb.api.query.QueryObject;
 import scott.barleydb.api.query.RuntimeProperties;
@@ -67,6 +70,10 @@ public final class Environment {
 
     private Auditor auditor = new LoggingAuditor();
 
+    private PersistMetrics persistMetrics = report -> {};
+
+    private EntityIdentityGenerator entityIdentityGenerator = new RandomEntityIdentityGenerator();
+
     public Environment(IEntityContextServices entityContextServices) {
         this.entityContextServices = entityContextServices;
         this.definitionsSet = new DefinitionsSet();
@@ -115,6 +122,25 @@ public final class Environment {
       this.auditor = auditor;
     }
 
+    public PersistMetrics getPersistMetrics() {
+      return persistMetrics;
+    }
+
+    public void setPersistMetrics(PersistMetrics persistMetrics) {
+      this.persistMetrics = persistMetrics;
+    }
+
+    public EntityIdentityGenerator getEntityIdentityGenerator() {
+      return entityIdentityGenerator;
+    }
+
+    /**
+     * Sets the generator of the uuids which identify entities, by default random uuids are generated.
+     */
+    public void setEntityIdentityGenerator(EntityIdentityGenerator entityIdentityGenerator) {
+      this.entityIdentityGenerator = entityIdentityGenerator;
+    }
+
     public IEntityContextServices getEntityContextServices() {
         return entityContextServices;
     }
@@ -30,6 +30,7 @@ import scott.barleydb.api.exception.execution.SortServiceProviderException;
 import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
 import scott.barleydb.api.exception.execution.persist.SortPersistException;
 import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
+import scott.barleydb.api.persist.BulkResult;
 import scott.barleydb.api.persist.PersistAnalyser;
 import scott.barleydb.api.persist.PersistRequest;
 import scott.barleydb.api.query.QueryObject;
@@ -38,6 +39,8 @@ import scott.barleydb.api.stream.QueryEntityDataInputStream;
 import scott.barleydb.server.jdbc.query.QueryResult;
 import scott.barleydb.api.core.QueryBatcher;
 
+import java.util.Map;
+
 /**
  * Interface for performing queries and persisting entities
  * @author scott
@@ -165,6 +168,37 @@ public interface IEntityContextServices {
      */
     PersistAnalyser execute(PersistRequest persistRequest, RuntimeProperties props) throws SortServiceProviderException, SortPersistException;
 
+    /**
+     * Deletes the rows matching the query with set based statements, including the rows of owned relations.<br/>
+     * If the entity context has no transaction then the statements are executed in their own transaction.
+     *
+     * @param entityContext
+     * @param query
+     * @param props
+     * @return the number of deleted rows per entity type
+     * @throws SortServiceProviderException
+     * @throws SortPersistException
+     */
+    default BulkResult deleteWhere(EntityContext entityContext, QueryObject<?> query, RuntimeProperties props) throws SortServiceProviderException, SortPersistException {
+        throw new UnsupportedOperationException("deleteWhere is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Updates the rows matching the query with a single set based statement.<br/>
+     * If the entity context has no transaction then the statement is executed in it's own transaction.
+     *
+     * @param entityContext
+     * @param query
+     * @param assignments the new values keyed by property name
+     * @param props
+     * @return the number of updated rows
+     * @throws SortServiceProviderException
+     * @throws SortPersistException
+     */
+    default BulkResult updateWhere(EntityContext entityContext, QueryObject<?> query, Map<String, Object> assignments, RuntimeProperties props) throws SortServiceProviderException, SortPersistException {
+        throw new UnsupportedOperationException("updateWhere is not supported by " + getClass().getName());
+    }
+
 
 	String debugQueryString(QueryObject<Object> query, String namespace);
 
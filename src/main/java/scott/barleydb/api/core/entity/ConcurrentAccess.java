@@ -0,0 +1,131 @@
+package scott.barleydb.api.core.entity;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates the threads which share an entity context in concurrent mode.<br/>
+ * <br/>
+ * Reading the entity context is lock free, loading data into it is performed by one thread at a time.
+ * A lazy fetch of an entity or a to many relation which is already in progress is awaited, instead of being
+ * performed again.<br/>
+ * <br/>
+ * Each thread has it's own {@link EntityContextState}, so one thread loading in internal mode does not
+ * prevent the lazy loading of another.
+ *
+ * @author scott
+ *
+ */
+final class ConcurrentAccess {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentAccess.class);
+
+    private final ReentrantLock loadLock = new ReentrantLock();
+
+    /**
+     * the fetches in progress keyed by the entity or to many node being fetched.
+     */
+    private final ConcurrentHashMap<Object, CompletableFuture<Void>> pendingFetches = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<EntityContextState> contextState;
+
+    public ConcurrentAccess(final EntityContextState initialState) {
+        this.contextState = ThreadLocal.withInitial(() -> initialState);
+    }
+
+    public EntityContextState getContextState() {
+        return contextState.get();
+    }
+
+    public void setContextState(EntityContextState state) {
+        contextState.set(state);
+    }
+
+    /**
+     * Performs the fetch for the key, unless another thread is already fetching it, in which case we wait for that fetch to complete.
+     */
+    public void fetchOnce(Object key, Runnable fetch) {
+        if (loadLock.isHeldByCurrentThread()) {
+            //a nested fetch while loading, the pending fetch could be our own.
+            fetch.run();
+            return;
+        }
+        CompletableFuture<Void> fetching = new CompletableFuture<>();
+        CompletableFuture<Void> pending = pendingFetches.putIfAbsent(key, fetching);
+        if (pending != null) {
+            LOG.debug("Waiting for the pending fetch of {}", key);
+            await(pending);
+            return;
+        }
+        try {
+            lock();
+            try {
+                fetch.run();
+            }
+            finally {
+                unlock();
+            }
+            fetching.complete(null);
+        }
+        catch(RuntimeException | Error x) {
+            fetching.completeExceptionally(x);
+            throw x;
+        }
+        finally {
+            pendingFetches.remove(key, fetching);
+        }
+    }
+
+    /**
+     * Locks the entity context for loading data into it, reentrant.
+     */
+    public void lock() {
+        loadLock.lock();
+    }
+
+    public void unlock() {
+        loadLock.unlock();
+    }
+
+    private static void await(CompletableFuture<Void> pending) {
+        try {
+            pending.join();
+        }
+        catch(CompletionException x) {
+            if (x.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)x.getCause();
+            }
+            if (x.getCause() instanceof Error) {
+                throw (Error)x.getCause();
+            }
+            throw x;
+        }
+    }
+}
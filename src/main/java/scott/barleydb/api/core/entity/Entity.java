@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -62,6 +63,20 @@ public class Entity implements Serializable {
     private EntityState entityState;
     private UUID uuid;
 
+    /**
+     * The nodes which the user modified since the entity was loaded from or persisted to the database,
+     * indexed by NodeType.getIndex().
+     * null when it is not known if the entity matches the database, then every node must be considered dirty.
+     */
+    private BitSet dirtyNodes;
+
+    /**
+     * Set when a value or reference of the entity is read, used to keep frequently read entities
+     * when the entity context is over it's entity budget. Not locked, a lost update only affects
+     * which entity is evicted.
+     */
+    private transient volatile boolean accessed;
+
     /**
      * Copy constructor, a new version of the entity in a different context with the same uuid
      * @param context
@@ -72,19 +87,19 @@ public class Entity implements Serializable {
     }
 
     public Entity(EntityContext context, EntityType entityType) {
-        this(context, EntityState.NOTLOADED, entityType, null, UUID.randomUUID(), null);
+        this(context, EntityState.NOTLOADED, entityType, null, context.newUuid(), null);
     }
 
     public Entity(EntityContext context, EntityState entityState, EntityType entityType) {
-        this(context, entityState, entityType, null, UUID.randomUUID(), null);
+        this(context, entityState, entityType, null, context.newUuid(), null);
     }
 
     public Entity(EntityContext context, EntityType entityType, Object key) {
-        this(context, EntityState.NOTLOADED, entityType, key, UUID.randomUUID(), EntityConstraint.noConstraints());
+        this(context, EntityState.NOTLOADED, entityType, key, context.newUuid(), EntityConstraint.noConstraints());
     }
 
     public Entity(EntityContext context, EntityType entityType, Object key, EntityConstraint constraints) {
-        this(context, EntityState.NOTLOADED, entityType, key, UUID.randomUUID(), constraints);
+        this(context, EntityState.NOTLOADED, entityType, key, context.newUuid(), constraints);
     }
 
     public Entity(EntityContext context, EntityType entityType, Object key, UUID uuid, EntityConstraint constraints) {
@@ -178,6 +193,98 @@ public class Entity implements Serializable {
         }
     }
 
+    /**
+     * Starts tracking modifications from a clean state.
+     * Called when the entity's nodes match the database.
+     */
+    public void startDirtyTracking() {
+        if (dirtyNodes == null) {
+            dirtyNodes = new BitSet();
+        }
+        else {
+            dirtyNodes.clear();
+        }
+    }
+
+    /**
+     * Stops tracking modifications, all nodes are then considered dirty.
+     */
+    public void stopDirtyTracking() {
+        dirtyNodes = null;
+    }
+
+    public boolean isDirtyTracked() {
+        return dirtyNodes != null;
+    }
+
+    /**
+     * @return the indexes of the dirty nodes or null if the entity is not dirty tracked.
+     */
+    BitSet getDirtyNodes() {
+        return dirtyNodes;
+    }
+
+    void setDirtyNodes(BitSet dirtyNodes) {
+        this.dirtyNodes = dirtyNodes;
+    }
+
+    /**
+     * Copies the dirty tracking state of an entity in another context.
+     * @param from
+     */
+    public void copyDirtyTracking(Entity from) {
+        dirtyNodes = from.dirtyNodes != null ? (BitSet)from.dirtyNodes.clone() : null;
+    }
+
+    /**
+     * Marks the node as modified, only user modifications are tracked.
+     * @param node
+     */
+    void markDirty(Node node) {
+        if (dirtyNodes != null && entityContext.isUser()) {
+            dirtyNodes.set(node.getNodeType().getIndex());
+        }
+    }
+
+    /**
+     * Marks the node as matching the database.
+     * @param node
+     */
+    void clearDirty(Node node) {
+        if (dirtyNodes != null) {
+            dirtyNodes.clear(node.getNodeType().getIndex());
+        }
+    }
+
+    /**
+     * @return true if any node may have been modified.
+     */
+    public boolean isDirty() {
+        return dirtyNodes == null || !dirtyNodes.isEmpty();
+    }
+
+    /**
+     * @param node
+     * @return true if the node may have been modified.
+     */
+    public boolean isDirty(Node node) {
+        return dirtyNodes == null || dirtyNodes.get(node.getNodeType().getIndex());
+    }
+
+    /**
+     * @return the nodes which may have been modified, all nodes if modifications are not tracked.
+     */
+    public Iterable<Node> getDirtyChildren() {
+        if (dirtyNodes == null) {
+            return getChildren();
+        }
+        List<Node> result = new LinkedList<Node>();
+        for (int i = dirtyNodes.nextSetBit(0); i >= 0; i = dirtyNodes.nextSetBit(i + 1)) {
+            result.add(children.get(entityType.getNodeType(i).getName()));
+        }
+        return result;
+    }
+
     public UUID getUuid() {
         return uuid;
     }
@@ -318,7 +425,11 @@ public class Entity implements Serializable {
     }
 
     public void setEntityState(EntityState entityState) {
+        boolean loaded = entityState == EntityState.LOADED && this.entityState != EntityState.LOADED;
         this.entityState = entityState;
+        if (loaded) {
+            entityContext.entityLoaded(this);
+        }
     }
 
     public void handleKeySet(Object oldKey) {
@@ -382,6 +493,9 @@ public class Entity implements Serializable {
 
 
     public void fetchIfRequiredAndAllowed() {
+        if (!accessed) {
+            accessed = true;
+        }
         if (constraints.isNeverFetch()) {
             return;
         }
@@ -399,6 +513,18 @@ public class Entity implements Serializable {
         }
     }
 
+    /**
+     * Clears the accessed flag which is set when a value or reference of the entity is read.
+     * @return true if the entity was read since the flag was last cleared.
+     */
+    public boolean clearAccessed() {
+        if (!accessed) {
+            return false;
+        }
+        accessed = false;
+        return true;
+    }
+
     private Node newChild(NodeType nd) {
         if (nd.getRelationInterfaceName() != null && nd.getColumnName() != null) {
             //1:1 relationship
@@ -453,9 +579,26 @@ public class Entity implements Serializable {
             }
         }
         setEntityState(EntityState.NOTLOADED);
+        stopDirtyTracking();
         clear();
     }
 
+    /**
+     * Unloads the values of the entity so that they can be garbage collected, the
+     * entity is fetched again when a value is next accessed.<br/>
+     * <br/>
+     * The references and to many relations are kept as they are.
+     */
+    void evict() {
+        for (ValueNode node : getChildren(ValueNode.class)) {
+            if (node != getKey()) {
+                node.setValueNoEvent(NotLoaded.VALUE);
+            }
+        }
+        setEntityState(EntityState.NOTLOADED);
+        stopDirtyTracking();
+    }
+
     private void writeObject(ObjectOutputStream oos) throws IOException {
         LOG.trace("Serializing entity {}", this);
         oos.writeObject(entityContext);
@@ -465,6 +608,7 @@ public class Entity implements Serializable {
         oos.writeObject(uuid);
         oos.writeObject(getKey().getValue());
         oos.writeObject(children);
+        oos.writeObject(dirtyNodes);
     }
 
     @SuppressWarnings("unchecked")
@@ -517,6 +661,7 @@ public class Entity implements Serializable {
                     ours.copyFrom(fromStream);
                 }
             }
+            dirtyNodes = (BitSet)ois.readObject();
             //trace at end once object is constructed
             LOG.trace("Deserializing entity {}", this);
         }
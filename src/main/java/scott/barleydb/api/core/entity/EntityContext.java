@@ -39,6 +39,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -62,6 +64,7 @@ import org.w3c.dom.Element;
 import scott.barleydb.api.audit.AuditInformation;
 import scott.barleydb.api.config.Definitions;
 import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
 import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.QueryBatcher;
 import scott.barleydb.api.core.QueryRegistry;
@@ -69,6 +72,7 @@ import scott.barleydb.api.core.entity.FetchHelper.EntityPath;
 import scott.barleydb.api.core.entity.context.Entities;
 import scott.barleydb.api.core.entity.context.EntityInfo;
 import scott.barleydb.api.core.proxy.ProxyList;
+import scott.barleydb.api.core.util.CollectionUtil;
 import scott.barleydb.api.core.util.EnvironmentAccessor;
 import scott.barleydb.api.dependency.diagram.DependencyDiagram;
 import scott.barleydb.api.dependency.diagram.Link;
@@ -81,9 +85,12 @@ import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
 import scott.barleydb.api.exception.execution.query.ForUpdateNotSupportedException;
 import scott.barleydb.api.exception.execution.query.IllegalQueryStateException;
 import scott.barleydb.api.exception.model.ProxyCreationException;
+import scott.barleydb.api.persist.BulkResult;
 import scott.barleydb.api.persist.OperationType;
 import scott.barleydb.api.persist.PersistAnalyser;
+import scott.barleydb.api.persist.PersistReport;
 import scott.barleydb.api.persist.PersistRequest;
+import scott.barleydb.api.query.QProperty;
 import scott.barleydb.api.query.QueryObject;
 import scott.barleydb.api.query.RuntimeProperties;
 import scott.barleydb.api.stream.EntityData;
@@ -139,6 +146,16 @@ public class EntityContext implements Serializable, AutoCloseable {
 
     private Statistics statistics = new Statistics();
 
+    /**
+     * set when the entity context is shared by threads, the context is not concurrent after serialization.
+     */
+    private transient volatile ConcurrentAccess concurrentAccess;
+
+    /**
+     * the snapshot which entities are copied from instead of loading them from the database.
+     */
+    private transient EntitySnapshot baseSnapshot;
+
 
     public EntityContext(Environment env, String namespace) {
         this.env = env;
@@ -172,6 +189,208 @@ public class EntityContext implements Serializable, AutoCloseable {
         return entities.isAllowGarbageCollection();
     }
 
+    /**
+     * Bounds the number of entities which the context keeps in memory.<br/>
+     * <br/>
+     * Before loading data, the least recently used entities over the budget which are loaded and
+     * unmodified are evicted, their values are unloaded and they are fetched again on demand.
+     * Entities are ordered by when they were loaded, an entity whose values or references were read
+     * since gets a second chance and is moved to the end instead of being evicted.
+     * New and modified entities are never evicted. Evicted entities which are no longer referenced
+     * are garbage collected.<br/>
+     * <br/>
+     * The number of evictions and refetches are counted in the {@link Statistics}.
+     *
+     * @param entityBudget the maximum number of entities to keep, 0 for unbounded.
+     */
+    public void setEntityBudget(int entityBudget) {
+        entities.setEntityBudget(entityBudget);
+    }
+
+    public int getEntityBudget() {
+        return entities.getEntityBudget();
+    }
+
+    /**
+     * @return the number of entities kept in memory by the context.
+     */
+    public int getRetainedSize() {
+        return entities.getRetainedSize();
+    }
+
+    /**
+     * Called when an entity of this context becomes loaded.
+     */
+    void entityLoaded(Entity entity) {
+        if (entities.getEntityBudget() > 0 && entities.loaded(entity)) {
+            statistics.addNumberOfRefetches(1);
+        }
+    }
+
+    /**
+     * Evicts the entities over the entity budget, only called before loading in user mode
+     * so that no entity is evicted in the middle of an operation.
+     */
+    private void evictOverBudget() {
+        if (entities.getEntityBudget() == 0 || concurrentAccess != null || !isUser()) {
+            return;
+        }
+        List<Entity> evicted = entities.evictOverBudget();
+        for (Entity entity : evicted) {
+            entity.evict();
+        }
+        if (!evicted.isEmpty()) {
+            statistics.addNumberOfEvictions(evicted.size());
+            LOG.debug("Evicted {} entities, {} entities retained", evicted.size(), entities.getRetainedSize());
+        }
+    }
+
+    /**
+     * Switches the entity context to a read-only mode which many threads can use at the same time.<br/>
+     * <br/>
+     * The lookups can be read without locking and lazy loading is supported, loading data into the context
+     * is performed by one thread at a time and threads needing the same entity or relation to be fetched
+     * wait for the fetch already in progress.<br/>
+     * <br/>
+     * Persisting from a concurrent entity context is not supported and the entities should not be modified.
+     *
+     * @param concurrent
+     */
+    public void setConcurrent(boolean concurrent) {
+        if (concurrent == isConcurrent()) {
+            return;
+        }
+        if (concurrent) {
+            entities.setConcurrent(true);
+            concurrentAccess = new ConcurrentAccess(entityContextState);
+        }
+        else {
+            entityContextState = concurrentAccess.getContextState();
+            concurrentAccess = null;
+            entities.setConcurrent(false);
+        }
+    }
+
+    public boolean isConcurrent() {
+        return concurrentAccess != null;
+    }
+
+    private void checkNotConcurrent(String operation) {
+        if (concurrentAccess != null) {
+            throw new IllegalStateException("The entity context is concurrent and read-only, " + operation + " is not supported.");
+        }
+    }
+
+    /**
+     * Locks the context for loading when concurrent.
+     * @return the concurrent access to unlock or null.
+     */
+    private ConcurrentAccess lockForLoading() {
+        ConcurrentAccess ca = concurrentAccess;
+        if (ca != null) {
+            ca.lock();
+        }
+        return ca;
+    }
+
+    private static void unlockAfterLoading(ConcurrentAccess ca) {
+        if (ca != null) {
+            ca.unlock();
+        }
+    }
+
+    /**
+     * Takes an immutable snapshot of the loaded and unmodified entities in the context.<br/>
+     * <br/>
+     * The snapshot can be shared by any number of threads and is used as the base of
+     * child entity contexts, see {@link EntitySnapshot#newChildContext()}.
+     *
+     * @return the snapshot
+     */
+    public EntitySnapshot freeze() {
+        ConcurrentAccess ca = lockForLoading();
+        EntityContextState prev = switchToInternalMode();
+        try {
+            return new EntitySnapshot(this);
+        }
+        finally {
+            switchToMode(prev);
+            unlockAfterLoading(ca);
+        }
+    }
+
+    /**
+     * Sets the snapshot which entities are copied from when they are not in the context,
+     * instead of loading them from the database.
+     */
+    public void setBaseSnapshot(EntitySnapshot baseSnapshot) {
+        if (baseSnapshot != null && !baseSnapshot.getNamespace().equals(namespace)) {
+            throw new IllegalArgumentException("Snapshot namespace '" + baseSnapshot.getNamespace() + "' does not match '" + namespace + "'");
+        }
+        this.baseSnapshot = baseSnapshot;
+    }
+
+    public EntitySnapshot getBaseSnapshot() {
+        return baseSnapshot;
+    }
+
+    /**
+     * Copies the entity from the base snapshot into the context.
+     * @return the entity or null if it is not in the snapshot.
+     */
+    private Entity copyFromSnapshot(EntityType entityType, Object key) {
+        EntitySnapshot snapshot = baseSnapshot;
+        if (snapshot == null || key == null) {
+            return null;
+        }
+        EntityData entityData = snapshot.getEntityData(entityType, key);
+        if (entityData == null) {
+            return null;
+        }
+        ConcurrentAccess ca = lockForLoading();
+        EntityContextState prev = switchToInternalMode();
+        try {
+            return addEntityLoadedFromDB(entityData, null);
+        }
+        finally {
+            switchToMode(prev);
+            unlockAfterLoading(ca);
+        }
+    }
+
+    /**
+     * Copies the entities of the to many relation from the base snapshot into the context.
+     * @return true if the relation was in the snapshot.
+     */
+    private boolean copyFromSnapshot(ToManyNode toManyNode) {
+        EntitySnapshot snapshot = baseSnapshot;
+        Entity parent = toManyNode.getParent();
+        if (snapshot == null || parent.getKey().getValue() == null) {
+            return false;
+        }
+        Object keys[] = snapshot.getToManyKeys(parent.getEntityType(), parent.getKey().getValue(), toManyNode.getName());
+        if (keys == null) {
+            return false;
+        }
+        ConcurrentAccess ca = lockForLoading();
+        EntityContextState prev = switchToInternalMode();
+        try {
+            for (Object key : keys) {
+                Entity entity = getEntity(toManyNode.getEntityType(), key, false);
+                if (entity == null || entity.getEntityState() == EntityState.NOTLOADED) {
+                    addEntityLoadedFromDB(snapshot.getEntityData(toManyNode.getEntityType(), key), null);
+                }
+            }
+            toManyNode.setFetched(true);
+            toManyNode.refresh();
+            return true;
+        }
+        finally {
+            switchToMode(prev);
+            unlockAfterLoading(ca);
+        }
+    }
+
     public Statistics getStatistics() {
       return statistics;
     }
@@ -238,6 +457,13 @@ public class EntityContext implements Serializable, AutoCloseable {
         return env;
     }
 
+    /**
+     * @return a new uuid to identify an entity, created by the entity identity generator of the environment.
+     */
+    public UUID newUuid() {
+        return env.getEntityIdentityGenerator().newUuid();
+    }
+
     /**
      *
      * @return the number of entities in the context.
@@ -261,12 +487,13 @@ public class EntityContext implements Serializable, AutoCloseable {
 
     public void clear() {
         entities.clear();
-        proxies.clear();
+        synchronized(proxies) {
+            proxies.clear();
+        }
     }
 
     public Element toXml(Document doc) {
-        EntityContextState prev = entityContextState;
-        entityContextState = EntityContextState.INTERNAL;
+        EntityContextState prev = switchToInternalMode();
         try {
             Element element = doc.createElement("entityContext");
             List<Entity> entitiesList = new ArrayList<>(entities.safe());
@@ -295,7 +522,7 @@ public class EntityContext implements Serializable, AutoCloseable {
             }
             return element;
         } finally {
-            entityContextState = prev;
+            switchToMode(prev);
         }
     }
 
@@ -308,54 +535,62 @@ public class EntityContext implements Serializable, AutoCloseable {
      */
     @SuppressWarnings("unchecked")
     public <T> T getProxy(Entity entity) {
-        WeakReference<Object> p = proxies.get(entity.getUuid());
-        if (p == null || p.get() == null ) {
-            try {
-                Object o = env.generateProxy(entity);
-                proxies.put(entity.getUuid(), new WeakReference<>(o));
-                return (T)o;
-            } catch (Exception x) {
-                throw new IllegalStateException("Could not generated proxy", x);
+        synchronized(proxies) {
+            WeakReference<Object> p = proxies.get(entity.getUuid());
+            Object o = p != null ? p.get() : null;
+            if (o == null) {
+                try {
+                    o = env.generateProxy(entity);
+                    proxies.put(entity.getUuid(), new WeakReference<>(o));
+                } catch (Exception x) {
+                    throw new IllegalStateException("Could not generated proxy", x);
+                }
             }
+            return (T)o;
         }
-        return (T)p.get();
     }
 
     public Definitions getDefinitions() {
         return definitions;
     }
 
+    /**
+     * @return the state for the current thread when concurrent.
+     */
     public EntityContextState getEntityContextState() {
-        return entityContextState;
+        ConcurrentAccess ca = concurrentAccess;
+        return ca != null ? ca.getContextState() : entityContextState;
     }
 
     public void setEntityContextState(EntityContextState entityContextState) {
-        this.entityContextState = entityContextState;
+        ConcurrentAccess ca = concurrentAccess;
+        if (ca != null) {
+            ca.setContextState(entityContextState);
+        }
+        else {
+            this.entityContextState = entityContextState;
+        }
     }
 
     public boolean isUser() {
-        return entityContextState == EntityContextState.USER;
+        return getEntityContextState() == EntityContextState.USER;
     }
 
     public boolean isInternal() {
-        return entityContextState == EntityContextState.INTERNAL;
+        return getEntityContextState() == EntityContextState.INTERNAL;
     }
 
     public EntityContextState switchToInternalMode() {
-        EntityContextState old = this.entityContextState;
-        this.entityContextState = EntityContextState.INTERNAL;
-        return old;
+        return switchToMode(EntityContextState.INTERNAL);
     }
 
     public EntityContextState switchToExternalMode() {
-        EntityContextState old = this.entityContextState;
-        this.entityContextState = EntityContextState.USER;
-        return old;
+        return switchToMode(EntityContextState.USER);
     }
 
     public EntityContextState switchToMode(EntityContextState mode) {
-        EntityContextState old = this.entityContextState;
-        this.entityContextState = mode;
+        EntityContextState old = getEntityContextState();
+        setEntityContextState(mode);
         return old;
     }
 
@@ -439,6 +674,10 @@ public class EntityContext implements Serializable, AutoCloseable {
         if (entity != null) {
             return entity;
         }
+        entity = copyFromSnapshot(entityType, key);
+        if (entity != null) {
+            return entity;
+        }
         /*
          * capture the must exist constraint so we can apply it to the entity
          * before we fetch.
@@ -531,7 +770,8 @@ public class EntityContext implements Serializable, AutoCloseable {
             entity.getConstraints().set( entityData.getConstraints() );
             entity.getEntityContext().setAssociatedQuery(entity, optionalQuery);
         }
-        if (entity.getEntityState() == EntityState.NOTLOADED) {
+        final boolean wasNotLoaded = entity.getEntityState() == EntityState.NOTLOADED;
+        if (wasNotLoaded) {
             for (Node child: entity.getChildren()) {
                 if (entity.getKey() == child) {
                     continue;
@@ -581,6 +821,13 @@ public class EntityContext implements Serializable, AutoCloseable {
                     refNode.setReference(null);
                 }
             }
+            if (node != null) {
+                //the node now matches the database
+                entity.clearDirty(node);
+            }
+        }
+        if (wasNotLoaded) {
+            entity.startDirtyTracking();
         }
         entity.setEntityState( entityData.getEntityState() );
         LOG.debug("--------------------------------------------------------");
@@ -619,6 +866,16 @@ public class EntityContext implements Serializable, AutoCloseable {
      *            return the new entity
      */
     public Entity copyInto(Entity entity) {
+        ConcurrentAccess ca = lockForLoading();
+        try {
+            return copyIntoUnlocked(entity);
+        }
+        finally {
+            unlockAfterLoading(ca);
+        }
+    }
+
+    private Entity copyIntoUnlocked(Entity entity) {
         EntityContextState ecs1 = switchToInternalMode();
         EntityContextState ecs2 = entity.getEntityContext().switchToInternalMode();
         try {
@@ -651,6 +908,7 @@ public class EntityContext implements Serializable, AutoCloseable {
                     ours.getChild(refNode.getName(), RefNode.class).setReference( ourRefEntity );
                 }
             }
+            ours.copyDirtyTracking(entity);
             return ours;
         } finally {
             entity.getEntityContext().switchToMode(ecs2);
@@ -744,16 +1002,15 @@ public class EntityContext implements Serializable, AutoCloseable {
      */
 
     public void handleKeySet(Entity entity, Object originalKey, Object newKey) {
-         EntityContextState prev = entityContextState;
+         EntityContextState prev = switchToInternalMode();
          try {
-             entityContextState = EntityContextState.INTERNAL;
              final EntityInfo entityInfo = entities.keyChanged(entity, originalKey);
              if (entityInfo == null) {
                  throw new IllegalStateException("Could not find entity, to change the key: " + entity.getUuid());
              }
          }
          finally {
-             entityContextState = prev;
+             switchToMode(prev);
          }
     }
 
@@ -771,13 +1028,20 @@ public class EntityContext implements Serializable, AutoCloseable {
          */
 
         runtimeProperties = env.overrideProps( runtimeProperties  );
-        EntityContext opContext = getOperationContext(this, runtimeProperties);
+        evictOverBudget();
+        ConcurrentAccess ca = lockForLoading();
+        try {
+            EntityContext opContext = getOperationContext(this, runtimeProperties);
 
-        QueryBatcher result = env.services().execute(opContext, queryBatcher, runtimeProperties);
-        /*
-         * Copy the result into the original query batcher if required.
-         */
-        result.copyTo(this, queryBatcher);
+            QueryBatcher result = env.services().execute(opContext, queryBatcher, runtimeProperties);
+            /*
+             * Copy the result into the original query batcher if required.
+             */
+            result.copyTo(this, queryBatcher);
+        }
+        finally {
+            unlockAfterLoading(ca);
+        }
     }
 
     public <T> ObjectInputStream<T> streamObjectQuery(QueryObject<T> queryObject) throws SortServiceProviderException, BarleyDBQueryException {
@@ -799,6 +1063,7 @@ public class EntityContext implements Serializable, AutoCloseable {
          */
 
         runtimeProperties = env.overrideProps( runtimeProperties  );
+        evictOverBudget();
         EntityContext opContext = getOperationContext(this, runtimeProperties);
 
         return  new ObjectInputStream<T>( new QueryEntityInputStream(
@@ -830,12 +1095,7 @@ public class EntityContext implements Serializable, AutoCloseable {
             Entity entity;
             int count = 1;
             while ( (entity = ein.read()) != null) {
-                switch (operationType) {
-                    case INSERT: request.insert( entity ); break;
-                    case UPDATE: request.update( entity ); break;
-                    case SAVE: request.save( entity ); break;
-                    default: throw new SortPersistException("Unknown operation type " + operationType);
-                }
+                addToPersistRequest(request, entity, operationType);
                 if (count % batchSize == 0) {
                     /*
                      * persist all of the entities in the request in one transaction.
@@ -867,6 +1127,26 @@ public class EntityContext implements Serializable, AutoCloseable {
         }
     }
 
+    static void addToPersistRequest(PersistRequest request, Entity entity, OperationType operationType) throws SortPersistException {
+        switch (operationType) {
+            case INSERT: request.insert( entity ); break;
+            case UPDATE: request.update( entity ); break;
+            case SAVE: request.save( entity ); break;
+            case UPSERT: request.upsert( entity ); break;
+            default: throw new SortPersistException("Unknown operation type " + operationType);
+        }
+    }
+
+    /**
+     * Creates a persister which saves stream data in batches with reading and writing overlapping.<br/>
+     * None of the entities are added to this EntityContext
+     *
+     * @return the persister to configure.
+     */
+    public PipelinedBatchPersister pipelinedBatchPersister() {
+        return new PipelinedBatchPersister(this);
+    }
+
     public QueryEntityDataInputStream streamQueryEntityData(QueryObject<?> queryObject, RuntimeProperties runtimeProperties) throws SortServiceProviderException, BarleyDBQueryException {
         /*
          * We can perform the query in a fresh context which is copied back to us
@@ -899,10 +1179,17 @@ public class EntityContext implements Serializable, AutoCloseable {
          */
 
         runtimeProperties = env.overrideProps( runtimeProperties  );
-        EntityContext opContext = getOperationContext(this, runtimeProperties);
+        evictOverBudget();
+        ConcurrentAccess ca = lockForLoading();
+        try {
+            EntityContext opContext = getOperationContext(this, runtimeProperties);
 
-        QueryResult<T> queryResult = env.services().execute(opContext, queryObject, runtimeProperties);
-        return queryResult.copyResultTo(this);
+            QueryResult<T> queryResult = env.services().execute(opContext, queryObject, runtimeProperties);
+            return queryResult.copyResultTo(this);
+        }
+        finally {
+            unlockAfterLoading(ca);
+        }
     }
 
     public AuditInformation comapreWithDatabase(ProxyController ...models) throws SortServiceProviderException, SortPersistException  {
@@ -925,10 +1212,25 @@ public class EntityContext implements Serializable, AutoCloseable {
     }
 
     public void persist(PersistRequest persistRequest) throws SortServiceProviderException, SortPersistException  {
-        persist(persistRequest, null);
+        persistWithReport(persistRequest, null);
     }
+
     public void persist(PersistRequest persistRequest, RuntimeProperties runtimeProperties) throws SortServiceProviderException, SortPersistException  {
-        if (persistRequest.isEmpty()) return;
+        persistWithReport(persistRequest, runtimeProperties);
+    }
+
+    public PersistReport persistWithReport(PersistRequest persistRequest) throws SortServiceProviderException, SortPersistException  {
+        return persistWithReport(persistRequest, null);
+    }
+
+    /**
+     * Persists the request.
+     *
+     * @return the timings and entity counts of the persist.
+     */
+    public PersistReport persistWithReport(PersistRequest persistRequest, RuntimeProperties runtimeProperties) throws SortServiceProviderException, SortPersistException  {
+        checkNotConcurrent("persist");
+        if (persistRequest.isEmpty()) return new PersistReport();
         EntityContextState prev = switchToInternalMode();
         runtimeProperties = env.overrideProps( runtimeProperties );
         try {
@@ -937,16 +1239,170 @@ public class EntityContext implements Serializable, AutoCloseable {
                 if (analyser.getEntityContext() != this) {
                     analyser.applyChanges(this);
                 }
-                LOG.debug("Persist completed successfully");
+                LOG.debug("Persist completed successfully {}", analyser.getReport());
+                return analyser.getReport();
             }
             catch (OptimisticLockMismatchException x) {
                 x.switchEntitiesAndThrow(this);
+                throw x;
             }
         } finally {
             switchToMode( prev );
         }
     }
 
+    public BulkResult deleteWhere(QueryObject<?> query) throws SortServiceProviderException, SortPersistException {
+        return deleteWhere(query, null);
+    }
+
+    /**
+     * Deletes the rows matching the query with set based statements, without loading them.<br/>
+     * The rows of owned relations are deleted too.<br/>
+     * <br/>
+     * Entities in this context which no longer exist in the database are removed from it afterwards.
+     *
+     * @param query
+     * @param runtimeProperties
+     * @return the number of deleted rows per entity type
+     */
+    public BulkResult deleteWhere(QueryObject<?> query, RuntimeProperties runtimeProperties) throws SortServiceProviderException, SortPersistException {
+        checkNotConcurrent("deleteWhere");
+        runtimeProperties = env.overrideProps( runtimeProperties );
+        BulkResult result = env.services().deleteWhere(this, query, runtimeProperties);
+        LOG.debug("Deleted {}", result);
+        try {
+            removeDeletedEntities(result);
+        }
+        catch (BarleyDBQueryException x) {
+            throw new SortPersistException("Could not check which entities were deleted", x);
+        }
+        return result;
+    }
+
+    public BulkResult updateWhere(QueryObject<?> query, Map<QProperty<?>, Object> assignments) throws SortServiceProviderException, SortPersistException {
+        return updateWhere(query, assignments, null);
+    }
+
+    /**
+     * Updates the rows matching the query with a single set based statement, without loading them.<br/>
+     * <br/>
+     * Entities of the query type in this context are refreshed from the database afterwards.
+     *
+     * @param query
+     * @param assignments the new values for properties of the query, references can be set to an entity or a key.
+     * @param runtimeProperties
+     * @return the number of updated rows
+     */
+    public BulkResult updateWhere(QueryObject<?> query, Map<QProperty<?>, Object> assignments, RuntimeProperties runtimeProperties) throws SortServiceProviderException, SortPersistException {
+        checkNotConcurrent("updateWhere");
+        Map<String, Object> byName = new LinkedHashMap<>();
+        for (Map.Entry<QProperty<?>, Object> assignment : assignments.entrySet()) {
+            if (assignment.getKey().getQueryObject() != query) {
+                throw new IllegalArgumentException("Property " + assignment.getKey().getName() + " is not a property of the query");
+            }
+            Object value = assignment.getValue();
+            if (value instanceof ProxyController) {
+                value = ((ProxyController)value).getEntity().getKey().getValue();
+            }
+            else if (value instanceof Entity) {
+                value = ((Entity)value).getKey().getValue();
+            }
+            byName.put(assignment.getKey().getName(), value);
+        }
+        runtimeProperties = env.overrideProps( runtimeProperties );
+        BulkResult result = env.services().updateWhere(this, query, byName, runtimeProperties);
+        LOG.debug("Updated {}", result);
+        if (result.getRowCount() > 0) {
+            EntityType entityType = definitions.getEntityTypeMatchingInterface(result.getEntityTypeName(), true);
+            try {
+                refreshEntities(entityType);
+            }
+            catch (BarleyDBQueryException x) {
+                throw new SortPersistException("Could not refresh the updated entities", x);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the entities of the deleted types which no longer exist in the database.
+     */
+    private void removeDeletedEntities(BulkResult result) throws SortServiceProviderException, BarleyDBQueryException {
+        boolean removedOne = false;
+        EntityContextState prev = switchToInternalMode();
+        try {
+            for (Map.Entry<String, Integer> rowCount : result.getRowCounts().entrySet()) {
+                if (rowCount.getValue() == 0) {
+                    continue;
+                }
+                EntityType entityType = definitions.getEntityTypeMatchingInterface(rowCount.getKey(), true);
+                List<Entity> candidates = new LinkedList<>();
+                for (Entity entity : getEntitiesByType(entityType)) {
+                    if (entity.getKey().getValue() != null && !entity.isClearlyNotInDatabase()) {
+                        candidates.add(entity);
+                    }
+                }
+                if (candidates.isEmpty()) {
+                    continue;
+                }
+                Set<Object> existingKeys = findExistingKeys(entityType, candidates);
+                for (Entity entity : candidates) {
+                    if (!existingKeys.contains(entity.getKey().getValue())) {
+                        LOG.debug("Removing deleted entity {}", entity);
+                        remove(entity);
+                        removedOne = true;
+                    }
+                }
+            }
+            if (removedOne) {
+                refresh();
+            }
+        }
+        finally {
+            switchToMode(prev);
+        }
+    }
+
+    private Set<Object> findExistingKeys(EntityType entityType, List<Entity> entities) throws SortServiceProviderException, BarleyDBQueryException {
+        EntityContext tmpCtx = newEntityContextSharingTransaction();
+        Set<Object> existingKeys = new HashSet<>();
+        for (Set<Object> keys : toKeyChunks(entities)) {
+            QueryObject<Object> query = new QueryObject<>(entityType.getInterfaceName());
+            QProperty<Object> pk = new QProperty<>(query, entityType.getKeyNodeName());
+            query.select(pk);
+            query.where(pk.in(keys));
+            for (Entity entity : tmpCtx.performQuery(query).getEntityList()) {
+                existingKeys.add(entity.getKey().getValue());
+            }
+        }
+        return existingKeys;
+    }
+
+    /**
+     * Reloads the entities of the given type which are in the database.
+     */
+    private void refreshEntities(EntityType entityType) throws SortServiceProviderException, BarleyDBQueryException {
+        List<Entity> candidates = new LinkedList<>();
+        for (Entity entity : getEntitiesByType(entityType)) {
+            if (entity.getKey().getValue() != null && entity.isClearlyInDatabase()) {
+                candidates.add(entity);
+            }
+        }
+        for (Set<Object> keys : toKeyChunks(candidates)) {
+            QueryObject<Object> query = new QueryObject<>(entityType.getInterfaceName());
+            query.where(new QProperty<>(query, entityType.getKeyNodeName()).in(keys));
+            performQuery(query);
+        }
+    }
+
+    private static List<Set<Object>> toKeyChunks(List<Entity> entities) {
+        List<Object> keys = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            keys.add(entity.getKey().getValue());
+        }
+        return CollectionUtil.toKeyChunks(keys);
+    }
+
     /**
      * Decides on the entity context to use for a query or persist based on the runtime properties.
      * @param entityContext
@@ -1052,28 +1508,122 @@ public class EntityContext implements Serializable, AutoCloseable {
     }
 
     public void batchFetchDescendants(ProxyController pc) {
-        fetchHelper.batchFetchDescendants(pc.getEntity());
+        batchFetchDescendants(pc.getEntity());
     }
 
     public void batchFetchDescendants(Entity entity) {
-        fetchHelper.batchFetchDescendants(entity);
+        ConcurrentAccess ca = lockForLoading();
+        try {
+            fetchHelper.batchFetchDescendants(entity);
+        }
+        finally {
+            unlockAfterLoading(ca);
+        }
     }
 
 	public void batchFetchDescendants(Collection<Entity> entites) {
-		fetchHelper.batchFetchDescendants(entites);
+        ConcurrentAccess ca = lockForLoading();
+        try {
+            fetchHelper.batchFetchDescendants(entites);
+        }
+        finally {
+            unlockAfterLoading(ca);
+        }
 	}
 
+    /**
+     * Fetches the given entities with one query per entity type.<br/>
+     * <br/>
+     * Entities which are already loaded, which have no key or which belong to another context are ignored.<br/>
+     * The query registered for the entity type is used, so the caller can control what is joined in.
+     */
+    public void fetchEntities(Collection<Entity> entities) {
+        Map<EntityType, Set<Entity>> byType = new LinkedHashMap<>();
+        for (Entity entity : entities) {
+            if (entity.getEntityContext() != this || entity.getEntityState() != EntityState.NOTLOADED || entity.getKey().getValue() == null) {
+                continue;
+            }
+            if (copyFromSnapshot(entity.getEntityType(), entity.getKey().getValue()) != null) {
+                continue;
+            }
+            byType.computeIfAbsent(entity.getEntityType(), et -> new LinkedHashSet<>()).add(entity);
+        }
+        if (byType.isEmpty()) {
+            return;
+        }
+        evictOverBudget();
+        ConcurrentAccess ca = lockForLoading();
+        try {
+            for (Set<Entity> set : byType.values()) {
+                fetchHelper.fetchEntities(set, false);
+            }
+        }
+        finally {
+            unlockAfterLoading(ca);
+        }
+    }
+
+    /**
+     * Fetches the given to many nodes with one query per node type.<br/>
+     * <br/>
+     * Nodes which are already fetched or whose parent is clearly not in the database are ignored.
+     */
+    public void fetchToManyNodes(Collection<ToManyNode> toManyNodes) {
+        Map<NodeType, Set<ToManyNode>> byNodeType = new LinkedHashMap<>();
+        for (ToManyNode toManyNode : toManyNodes) {
+            Entity parent = toManyNode.getParent();
+            if (parent.getEntityContext() != this || toManyNode.isFetched() || parent.getKey().getValue() == null || parent.isClearlyNotInDatabase()) {
+                continue;
+            }
+            if (copyFromSnapshot(toManyNode)) {
+                continue;
+            }
+            byNodeType.computeIfAbsent(toManyNode.getNodeType(), nt -> new LinkedHashSet<>()).add(toManyNode);
+        }
+        if (byNodeType.isEmpty()) {
+            return;
+        }
+        evictOverBudget();
+        ConcurrentAccess ca = lockForLoading();
+        try {
+            for (Set<ToManyNode> set : byNodeType.values()) {
+                fetchHelper.fetchToManys(set, false);
+            }
+        }
+        finally {
+            unlockAfterLoading(ca);
+        }
+    }
+
     /**
      *
      * @param toManyNode the node to fetch
      * @param override if we should ignore the node context state
      */
     public void fetch(ToManyNode toManyNode, boolean override) {
-        fetchHelper.fetch(toManyNode, override, false);
+        fetch(toManyNode, override, false);
     }
 
     public void fetchSingle(ToManyNode toManyNode, boolean override) {
-        fetchHelper.fetch(toManyNode, override, true);
+        fetch(toManyNode, override, true);
+    }
+
+    private void fetch(final ToManyNode toManyNode, final boolean override, final boolean fetchInternal) {
+        if (!override && !toManyNode.isFetched() && copyFromSnapshot(toManyNode)) {
+            return;
+        }
+        evictOverBudget();
+        ConcurrentAccess ca = concurrentAccess;
+        if (ca == null) {
+            fetchHelper.fetch(toManyNode, override, fetchInternal);
+            return;
+        }
+        ca.fetchOnce(toManyNode, () -> {
+            //another thread may have completed the fetch since the caller checked
+            if (!toManyNode.isFetched()) {
+                fetchHelper.fetch(toManyNode, override, fetchInternal);
+            }
+        });
     }
 
 
@@ -1084,11 +1634,29 @@ public class EntityContext implements Serializable, AutoCloseable {
      * @param fetchInternal if true we use the internal query registry
      */
     public void fetch(Entity entity, boolean force, boolean fetchInternal) {
-        fetchHelper.fetchEntity(entity, force, fetchInternal, false, null);
+        fetch(entity, force, fetchInternal, false, null);
     }
 
-    void fetch(Entity entity, boolean force, boolean fetchInternal, boolean evenIfLoaded, String singlePropertyName) {
-        fetchHelper.fetchEntity(entity, force, fetchInternal, evenIfLoaded, singlePropertyName);
+    void fetch(final Entity entity, final boolean force, final boolean fetchInternal, final boolean evenIfLoaded, final String singlePropertyName) {
+        if (!evenIfLoaded && entity.getEntityState() == EntityState.NOTLOADED && (force || !isInternal())
+                && copyFromSnapshot(entity.getEntityType(), entity.getKey().getValue()) != null) {
+            return;
+        }
+        if (!evenIfLoaded && singlePropertyName == null) {
+            evictOverBudget();
+        }
+        ConcurrentAccess ca = concurrentAccess;
+        if (ca == null || evenIfLoaded || singlePropertyName != null) {
+            ConcurrentAccess locked = lockForLoading();
+            try {
+                fetchHelper.fetchEntity(entity, force, fetchInternal, evenIfLoaded, singlePropertyName);
+            }
+            finally {
+                unlockAfterLoading(locked);
+            }
+            return;
+        }
+        ca.fetchOnce(entity, () -> fetchHelper.fetchEntity(entity, force, fetchInternal, false, null));
     }
 
     /**
@@ -1168,27 +1736,7 @@ public class EntityContext implements Serializable, AutoCloseable {
      * @return
      */
     public List<Entity> getEntitiesWithReferenceKey(final EntityType entityType, final String nodeName, final EntityType refType, final Object refKey) {
-        final List<Entity> list = new LinkedList<Entity>();
-        /*
-         * lookup the EntityInfo for 'syntax'
-         */
-        EntityInfo entityInfo = entities.getByKey(refType, refKey);
-        if (entityInfo == null) {
-            throw new NullPointerException("No entity info for " + refType + " " + refKey);
-        }
-        /*
-         * list all of the entities which refer to it
-         */
-        for (RefNode refNode : entityInfo.getFkReferences()) {
-            final Entity refEntity = refNode.getParent();
-            /*
-             * filter on the entity which has the required type and refers on the required property
-             */
-            if (refEntity.isOfType(entityType) && refNode.getName().equals(nodeName)) {
-                list.add(refEntity);
-            }
-        }
-        return list;
+        return entities.getReferencingEntities(entityType, nodeName, refType, refKey);
     }
 
     public <T> Collection<T> getByType(Class<T> type) {
@@ -1230,7 +1778,7 @@ public class EntityContext implements Serializable, AutoCloseable {
 
     private void writeObject(java.io.ObjectOutputStream stream) throws IOException {
         stream.writeUTF(namespace);
-        stream.writeObject(entityContextState);
+        stream.writeObject(getEntityContextState());
         stream.writeObject(statistics);
         stream.writeBoolean(entities.isAllowGarbageCollection());
     }
@@ -171,6 +171,7 @@ public class EntityContextHelper {
             }
             e.setEntityState(entity.getEntityState());
             e.copyValueNodesToMe(entity, overwriteOptimisticLocks);
+            e.copyDirtyTracking(entity);
             copiedEntities.add(e);
         }
         return copiedEntities;
@@ -193,6 +194,7 @@ public class EntityContextHelper {
             e.copyValueNodesToMe(entity);
             e.getConstraints().set( entity.getConstraints() );
             e.setEntityState(entity.getEntityState());
+            e.copyDirtyTracking(entity);
             newEntities.add(e);
         }
         return newEntities;
@@ -0,0 +1,357 @@
+package scott.barleydb.api.core.entity;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.core.types.JavaType;
+
+/**
+ * The binary format shared by {@link EntityGraphWriter} and {@link EntityGraphReader}.<br/>
+ * <br/>
+ * Entity types are written once per stream and then referred to by id, nodes are written
+ * in node type index order without names and values are written according to the java type of
+ * their node type, integral values as zigzag varints. Values which do not match the java type
+ * of the node type fall back to java serialization, restricted by {@link #VALUE_FILTER} to the value types of the JDK and enums.
+ *
+ * @author scott
+ *
+ */
+final class EntityGraphCodec {
+
+    static final int MAGIC = 0x42444247;
+    static final int VERSION = 1;
+
+    static final int TAG_END = 0;
+    static final int TAG_ENTITY = 1;
+
+    static final int VALUE_NULL = 0;
+    static final int VALUE_NOT_LOADED = 1;
+    static final int VALUE_NATIVE = 2;
+    static final int VALUE_SERIALIZED = 3;
+
+    private static final EntityState ENTITY_STATES[] = EntityState.values();
+
+    /**
+     * byte arrays longer than this are read in chunks, so that a corrupt length cannot allocate a huge array up front.
+     */
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * the packages whose classes may be deserialized as node values.
+     */
+    private static final String ALLOWED_VALUE_PACKAGES[] = { "java.lang.", "java.math.", "java.util.", "java.sql.", "java.time." };
+
+    private static final int MAX_VALUE_DEPTH = 20;
+
+    /**
+     * Only lets the values of the JDK and enums through, the stream may come from an untrusted source.
+     */
+    static final ObjectInputFilter VALUE_FILTER = info -> {
+        if (info.depth() > MAX_VALUE_DEPTH) {
+            return ObjectInputFilter.Status.REJECTED;
+        }
+        Class<?> type = info.serialClass();
+        if (type == null) {
+            return ObjectInputFilter.Status.UNDECIDED;
+        }
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        if (type.isPrimitive() || Enum.class.isAssignableFrom(type)) {
+            return ObjectInputFilter.Status.ALLOWED;
+        }
+        for (String allowed : ALLOWED_VALUE_PACKAGES) {
+            if (type.getName().startsWith(allowed)) {
+                return ObjectInputFilter.Status.ALLOWED;
+            }
+        }
+        return ObjectInputFilter.Status.REJECTED;
+    };
+
+    private EntityGraphCodec() {}
+
+    /**
+     * The entity state and the constraints packed into a single byte.
+     */
+    static int toFlags(EntityState entityState, EntityConstraint constraints) {
+        int flags = entityState.ordinal() << 4;
+        if (constraints.isMustExistInDatabase()) {
+            flags |= 1;
+        }
+        if (constraints.isMustNotExistInDatabase()) {
+            flags |= 2;
+        }
+        if (constraints.isNeverFetch()) {
+            flags |= 4;
+        }
+        if (constraints.isSaveRequired()) {
+            flags |= 8;
+        }
+        return flags;
+    }
+
+    static EntityState toEntityState(int flags) throws StreamCorruptedException {
+        int ordinal = flags >>> 4;
+        if (ordinal >= ENTITY_STATES.length) {
+            throw new StreamCorruptedException("Invalid entity state " + ordinal);
+        }
+        return ENTITY_STATES[ordinal];
+    }
+
+    static EntityConstraint toConstraints(int flags) {
+        return new EntityConstraint((flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0, (flags & 8) != 0);
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)(value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varlong");
+    }
+
+    static void writeZigZag(DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readZigZag(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeBytes(DataOutput out, byte bytes[]) throws IOException {
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new StreamCorruptedException("Invalid byte array length " + length);
+        }
+        if (length <= READ_CHUNK_SIZE) {
+            byte bytes[] = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+        /*
+         * only allocate as much as the stream really provides
+         */
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(READ_CHUNK_SIZE);
+        byte chunk[] = new byte[READ_CHUNK_SIZE];
+        for (int remaining = length; remaining > 0;) {
+            int n = Math.min(remaining, chunk.length);
+            in.readFully(chunk, 0, n);
+            bout.write(chunk, 0, n);
+            remaining -= n;
+        }
+        return bout.toByteArray();
+    }
+
+    static void writeUuid(DataOutput out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID readUuid(DataInput in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    static void writeValue(DataOutput out, NodeType nodeType, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        }
+        else if (value == NotLoaded.VALUE) {
+            out.writeByte(VALUE_NOT_LOADED);
+        }
+        else if (isNative(nodeType, value)) {
+            out.writeByte(VALUE_NATIVE);
+            writeNative(out, nodeType.getJavaType(), value);
+        }
+        else {
+            out.writeByte(VALUE_SERIALIZED);
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            try (ObjectOutputStream oout = new ObjectOutputStream(bout)) {
+                oout.writeObject(value);
+            }
+            writeBytes(out, bout.toByteArray());
+        }
+    }
+
+    static Object readValue(DataInput in, NodeType nodeType) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_NOT_LOADED:
+                return NotLoaded.VALUE;
+            case VALUE_NATIVE:
+                return readNative(in, nodeType);
+            case VALUE_SERIALIZED:
+                try (ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                    oin.setObjectInputFilter(VALUE_FILTER);
+                    return oin.readObject();
+                }
+                catch (ClassNotFoundException x) {
+                    throw new IOException("Could not deserialize value of node " + nodeType.getName(), x);
+                }
+            default:
+                throw new StreamCorruptedException("Invalid value tag " + tag + " for node " + nodeType.getName());
+        }
+    }
+
+    /**
+     * @return true if the value is exactly of the java type of the node type.
+     */
+    private static boolean isNative(NodeType nodeType, Object value) {
+        JavaType javaType = nodeType.getJavaType();
+        if (javaType == null) {
+            return false;
+        }
+        if (javaType == JavaType.ENUM) {
+            return nodeType.getEnumType() != null && value.getClass() == nodeType.getEnumType();
+        }
+        return value.getClass() == javaType.getJavaTypeClass();
+    }
+
+    private static void writeNative(DataOutput out, JavaType javaType, Object value) throws IOException {
+        switch (javaType) {
+            case INTEGER:
+                writeZigZag(out, (Integer)value);
+                break;
+            case LONG:
+                writeZigZag(out, (Long)value);
+                break;
+            case SHORT:
+                writeZigZag(out, (Short)value);
+                break;
+            case BIGDECIMAL:
+                BigDecimal bd = (BigDecimal)value;
+                writeZigZag(out, bd.scale());
+                writeBytes(out, bd.unscaledValue().toByteArray());
+                break;
+            case STRING:
+                writeBytes(out, ((String)value).getBytes(StandardCharsets.UTF_8));
+                break;
+            case UTIL_DATE:
+            case SQL_DATE:
+                writeZigZag(out, ((java.util.Date)value).getTime());
+                break;
+            case BOOLEAN:
+                out.writeBoolean((Boolean)value);
+                break;
+            case ENUM:
+                writeVarInt(out, ((Enum<?>)value).ordinal());
+                break;
+            case UUID:
+                writeUuid(out, (UUID)value);
+                break;
+            case BYTE_ARRAY:
+                writeBytes(out, (byte[])value);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported java type " + javaType);
+        }
+    }
+
+    private static Object readNative(DataInput in, NodeType nodeType) throws IOException {
+        switch (nodeType.getJavaType()) {
+            case INTEGER:
+                return (int)readZigZag(in);
+            case LONG:
+                return readZigZag(in);
+            case SHORT:
+                return (short)readZigZag(in);
+            case BIGDECIMAL:
+                int scale = (int)readZigZag(in);
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case UTIL_DATE:
+                return new java.util.Date(readZigZag(in));
+            case SQL_DATE:
+                return new java.sql.Date(readZigZag(in));
+            case BOOLEAN:
+                return in.readBoolean();
+            case ENUM:
+                Enum<?> constants[] = nodeType.getEnumType().getEnumConstants();
+                int ordinal = readVarInt(in);
+                if (ordinal < 0 || ordinal >= constants.length) {
+                    throw new StreamCorruptedException("Invalid ordinal " + ordinal + " for node " + nodeType.getName());
+                }
+                return constants[ordinal];
+            case UUID:
+                return readUuid(in);
+            case BYTE_ARRAY:
+                return readBytes(in);
+            default:
+                throw new StreamCorruptedException("Unsupported java type " + nodeType.getJavaType());
+        }
+    }
+
+}
@@ -0,0 +1,234 @@
+package scott.barleydb.api.core.entity;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+import static scott.barleydb.api.core.entity.EntityGraphCodec.*;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
+
+/**
+ * Reads entities written by {@link EntityGraphWriter} into an entity context.<br/>
+ * <br/>
+ * Entities which are already in the entity context (matched by uuid or key) are updated, otherwise they
+ * are created. An entity which is referenced before it is read is added to the context as a place holder which is not loaded
+ * and is completed when it's data arrives.
+ *
+ * @author scott
+ *
+ */
+public class EntityGraphReader implements Closeable {
+
+    private final DataInputStream in;
+    private final EntityContext entityContext;
+    private final List<EntityType> types = new ArrayList<>();
+    private final List<Entity> handles = new ArrayList<>();
+    private boolean ended;
+
+    public EntityGraphReader(InputStream in, EntityContext entityContext) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.entityContext = entityContext;
+        if (this.in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("Not an entity graph stream");
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported entity graph version " + version);
+        }
+        String namespace = this.in.readUTF();
+        if (!namespace.equals(entityContext.getNamespace())) {
+            throw new IllegalStateException("Entity graph namespace '" + namespace + "' does not match entity context namespace '" + entityContext.getNamespace() + "'");
+        }
+    }
+
+    /**
+     * Reads all entities into the entity context.
+     * @return the entities in the order in which they were written.
+     */
+    public static List<Entity> read(EntityContext entityContext, InputStream in) throws IOException {
+        try (EntityGraphReader reader = new EntityGraphReader(in, entityContext)) {
+            List<Entity> result = new ArrayList<>();
+            for (Entity entity = reader.read(); entity != null; entity = reader.read()) {
+                result.add(entity);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return the next entity or null if the end of the stream was reached.
+     */
+    public Entity read() throws IOException {
+        if (ended) {
+            return null;
+        }
+        int tag = in.readUnsignedByte();
+        if (tag == TAG_END) {
+            ended = true;
+            return null;
+        }
+        if (tag != TAG_ENTITY) {
+            throw new StreamCorruptedException("Invalid tag " + tag);
+        }
+        EntityContextState prev = entityContext.switchToInternalMode();
+        try {
+            Entity entity = readReference();
+            if (entity == null) {
+                throw new StreamCorruptedException("Missing entity");
+            }
+            int flags = in.readUnsignedByte();
+            entity.getConstraints().set(toConstraints(flags));
+
+            EntityType entityType = entity.getEntityType();
+            NodeType keyNodeType = entity.getKey().getNodeType();
+            for (int i = 0, n = entityType.getNodeTypes().size(); i < n; i++) {
+                NodeType nodeType = entityType.getNodeType(i);
+                if (nodeType == keyNodeType) {
+                    continue;
+                }
+                Node node = entity.getChild(nodeType.getName());
+                if (node instanceof ValueNode) {
+                    ((ValueNode)node).setValueNoEvent(readValue(in, nodeType));
+                }
+                else if (node instanceof RefNode) {
+                    RefNode refNode = (RefNode)node;
+                    refNode.setLoaded(in.readBoolean());
+                    refNode.setReference(readReference());
+                }
+                else if (node instanceof ToManyNode) {
+                    boolean fetched = in.readBoolean();
+                    List<Entity> entities = readReferences();
+                    List<Entity> newEntities = readReferences();
+                    ((ToManyNode)node).copyFrom(fetched, entities, newEntities);
+                }
+            }
+            entity.setDirtyNodes(readDirtyNodes());
+            //set last, the entity is then complete
+            entity.setEntityState(toEntityState(flags));
+            return entity;
+        }
+        finally {
+            entityContext.switchToMode(prev);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private Entity readReference() throws IOException {
+        int rawHandle = readVarInt(in);
+        if (rawHandle == 0) {
+            return null;
+        }
+        if (rawHandle < 0) {
+            throw new StreamCorruptedException("Invalid entity handle " + rawHandle);
+        }
+        int handle = rawHandle - 1;
+        if (handle < handles.size()) {
+            return handles.get(handle);
+        }
+        if (handle > handles.size()) {
+            throw new StreamCorruptedException("Invalid entity handle " + handle);
+        }
+        EntityType entityType = readType();
+        UUID uuid = readUuid(in);
+        Object key = readValue(in, entityType.getNodeType(entityType.getKeyNodeName(), true));
+        Entity entity = entityContext.getEntityByUuid(uuid, false);
+        if (entity == null && key != null) {
+            entity = entityContext.getEntity(entityType, key, false);
+        }
+        if (entity == null) {
+            entity = new Entity(entityContext, entityType, key, uuid, EntityConstraint.noConstraints());
+            entityContext.add(entity);
+        }
+        handles.add(entity);
+        return entity;
+    }
+
+    private List<Entity> readReferences() throws IOException {
+        int size = readLength();
+        //a corrupt size must not allocate a huge list up front
+        List<Entity> entities = new ArrayList<>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) {
+            entities.add(readReference());
+        }
+        return entities;
+    }
+
+    private EntityType readType() throws IOException {
+        int id = readVarInt(in);
+        if (id < 0) {
+            throw new StreamCorruptedException("Invalid entity type id " + id);
+        }
+        if (id < types.size()) {
+            return types.get(id);
+        }
+        if (id > types.size()) {
+            throw new StreamCorruptedException("Invalid entity type id " + id);
+        }
+        String interfaceName = in.readUTF();
+        int numberOfNodes = readVarInt(in);
+        EntityType entityType = entityContext.getDefinitions().getEntityTypeMatchingInterface(interfaceName, true);
+        if (entityType.getNodeTypes().size() != numberOfNodes) {
+            throw new StreamCorruptedException("Entity type '" + interfaceName + "' has " + entityType.getNodeTypes().size() + " nodes but the stream has " + numberOfNodes);
+        }
+        types.add(entityType);
+        return entityType;
+    }
+
+    private int readLength() throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new StreamCorruptedException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    private BitSet readDirtyNodes() throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int numberOfWords = readLength();
+        if (numberOfWords > 1024) {
+            throw new StreamCorruptedException("Invalid dirty node set of " + numberOfWords + " words");
+        }
+        long words[] = new long[numberOfWords];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = readVarLong(in);
+        }
+        return BitSet.valueOf(words);
+    }
+
+}
@@ -0,0 +1,200 @@
+package scott.barleydb.api.core.entity;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+import static scott.barleydb.api.core.entity.EntityGraphCodec.*;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
+
+/**
+ * Writes entities to a stream in a compact binary format which can be read by {@link EntityGraphReader}.<br/>
+ * <br/>
+ * Entities are written one at a time, so a graph can be streamed as it is produced. Each entity
+ * is given a handle the first time it is written or referenced, further references only write the handle.
+ * An entity which is referenced before it is written is introduced with it's type, uuid and key so that the reader
+ * can create a place holder for it.<br/>
+ * <br/>
+ * The writer never causes any entity to be fetched.
+ *
+ * @author scott
+ *
+ */
+public class EntityGraphWriter implements Closeable {
+
+    private final DataOutputStream out;
+    private final Map<EntityType, Integer> typeIds = new HashMap<>();
+    private final Map<Entity, Integer> handles = new IdentityHashMap<>();
+    private int numberOfEntities;
+    private boolean closed;
+
+    public EntityGraphWriter(OutputStream out, String namespace) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeUTF(namespace);
+    }
+
+    /**
+     * Writes all entities in the entity context.
+     */
+    public static void write(EntityContext entityContext, OutputStream out) throws IOException {
+        try (EntityGraphWriter writer = new EntityGraphWriter(out, entityContext.getNamespace())) {
+            writer.writeAll(entityContext.getEntitiesSafeIterable());
+        }
+    }
+
+    public void writeAll(Iterable<Entity> entities) throws IOException {
+        for (Entity entity : entities) {
+            write(entity);
+        }
+    }
+
+    public void write(Entity entity) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("EntityGraphWriter is closed");
+        }
+        out.writeByte(TAG_ENTITY);
+        writeReference(entity);
+        out.writeByte(toFlags(entity.getEntityState(), entity.getConstraints()));
+
+        EntityType entityType = entity.getEntityType();
+        NodeType keyNodeType = entity.getKey().getNodeType();
+        for (int i = 0, n = entityType.getNodeTypes().size(); i < n; i++) {
+            NodeType nodeType = entityType.getNodeType(i);
+            if (nodeType == keyNodeType) {
+                continue;
+            }
+            Node node = entity.getChild(nodeType.getName());
+            if (node instanceof ValueNode) {
+                writeValue(out, nodeType, ((ValueNode)node).getValueNoFetch());
+            }
+            else if (node instanceof RefNode) {
+                RefNode refNode = (RefNode)node;
+                out.writeBoolean(refNode.isLoaded());
+                writeReference(refNode.getReference(false));
+            }
+            else if (node instanceof ToManyNode) {
+                ToManyNode toManyNode = (ToManyNode)node;
+                out.writeBoolean(toManyNode.isFetched());
+                writeReferences(toManyNode.getList());
+                writeReferences(toManyNode.getNewEntities());
+            }
+        }
+        writeDirtyNodes(entity.getDirtyNodes());
+        numberOfEntities++;
+    }
+
+    /**
+     * @return the number of entities written so far.
+     */
+    public int getNumberOfEntities() {
+        return numberOfEntities;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the end of the stream and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.writeByte(TAG_END);
+        out.close();
+    }
+
+    /**
+     * Writes 0 for null, the handle + 1 for a known entity or the next handle + 1 followed
+     * by the type, uuid and key for an entity which the stream has not seen yet.
+     */
+    private void writeReference(Entity entity) throws IOException {
+        if (entity == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        Integer handle = handles.get(entity);
+        if (handle != null) {
+            writeVarInt(out, handle + 1);
+            return;
+        }
+        handle = handles.size();
+        handles.put(entity, handle);
+        writeVarInt(out, handle + 1);
+        writeType(entity.getEntityType());
+        writeUuid(out, entity.getUuid());
+        writeValue(out, entity.getKey().getNodeType(), entity.getKey().getValueNoFetch());
+    }
+
+    private void writeReferences(List<Entity> entities) throws IOException {
+        writeVarInt(out, entities.size());
+        for (Entity entity : entities) {
+            writeReference(entity);
+        }
+    }
+
+    /**
+     * Writes the type id, a new type is followed by it's interface name and node count.
+     */
+    private void writeType(EntityType entityType) throws IOException {
+        Integer id = typeIds.get(entityType);
+        if (id != null) {
+            writeVarInt(out, id);
+            return;
+        }
+        id = typeIds.size();
+        typeIds.put(entityType, id);
+        writeVarInt(out, id);
+        out.writeUTF(entityType.getInterfaceName());
+        writeVarInt(out, entityType.getNodeTypes().size());
+    }
+
+    private void writeDirtyNodes(BitSet dirtyNodes) throws IOException {
+        if (dirtyNodes == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        long words[] = dirtyNodes.toLongArray();
+        writeVarInt(out, words.length);
+        for (long word : words) {
+            writeVarLong(out, word);
+        }
+    }
+
+}
@@ -218,6 +218,7 @@ public class EntityJuggler {
   private void copyMetaData(Entity e, Entity eDest) {
     eDest.setEntityState( e.getEntityState() );
     eDest.getConstraints().set( e.getConstraints() );
+    eDest.copyDirtyTracking( e );
   }
 
 
@@ -225,7 +226,7 @@ public class EntityJuggler {
     if (refEntity.getKey().getValue() == null) {
       throw new BarleyDBRuntimeException("Cannot setup a equivalent NON-LOADED reference, entity has no PK");
     }
-    UUID uuid = uuidsMatchAcrossContexts ? refEntity.getUuid() : UUID.randomUUID();
+    UUID uuid = uuidsMatchAcrossContexts ? refEntity.getUuid() : destCtx.newUuid();
     Entity destE = destCtx.newEntity(refEntity.getEntityType(), refEntity.getKey().getValue(), refEntity.getConstraints(), uuid);
     destE.setEntityState(EntityState.NOTLOADED);
     return destE;
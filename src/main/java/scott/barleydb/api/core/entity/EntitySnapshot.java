@@ -0,0 +1,249 @@
+package scott.barleydb.api.core.entity;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.core.Environment;
+import scott.barleydb.api.core.entity.context.EntityId;
+import scott.barleydb.api.stream.EntityData;
+
+/**
+ * An immutable snapshot of the loaded entities of an entity context, see {@link EntityContext#freeze()}.<br/>
+ * <br/>
+ * The snapshot only holds the values of the entities, the foreign keys and the keys of the fetched to many relations
+ * in arrays, it can be shared by any number of threads.<br/>
+ * <br/>
+ * It is used as the base of child entity contexts, which copy an entity out of the snapshot the first time it is accessed
+ * instead of loading it from the database. The snapshot itself is never changed by the child contexts.
+ *
+ * @author scott
+ *
+ */
+public final class EntitySnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EntitySnapshot.class);
+
+    /**
+     * the frozen entities of one type.
+     */
+    private static final class TypeSnapshot {
+        private final String nodeNames[];
+        private final Map<Object, Object[]> valuesByKey = new HashMap<>();
+        /**
+         * to many node name to parent key to the keys of the entities in the to many relation.
+         */
+        private final Map<String, Map<Object, Object[]>> toManyKeys = new HashMap<>();
+
+        TypeSnapshot(Entity entity) {
+            List<String> names = new ArrayList<>();
+            for (Node node : entity.getChildren()) {
+                if (node instanceof ValueNode || node instanceof RefNode) {
+                    names.add(node.getName());
+                }
+            }
+            this.nodeNames = names.toArray(new String[names.size()]);
+        }
+    }
+
+    private final Environment env;
+    private final String namespace;
+    private final Map<EntityType, TypeSnapshot> types;
+    private final int size;
+
+    /**
+     * Takes the snapshot, the entity context must be in internal mode.
+     */
+    EntitySnapshot(EntityContext entityContext) {
+        this.env = entityContext.getEnv();
+        this.namespace = entityContext.getNamespace();
+        Map<EntityType, TypeSnapshot> types = new HashMap<>();
+        Set<EntityId> frozen = new HashSet<>();
+        int size = 0;
+        for (Entity entity : entityContext.getEntitiesSafeIterable()) {
+            if (!isCompletelyLoaded(entity)) {
+                continue;
+            }
+            TypeSnapshot typeSnapshot = types.get(entity.getEntityType());
+            if (typeSnapshot == null) {
+                types.put(entity.getEntityType(), typeSnapshot = new TypeSnapshot(entity));
+            }
+            Object values[] = new Object[typeSnapshot.nodeNames.length];
+            for (int i = 0; i < values.length; i++) {
+                Node node = entity.getChild(typeSnapshot.nodeNames[i]);
+                if (node instanceof ValueNode) {
+                    values[i] = copyIfMutable(((ValueNode)node).getValueNoFetch());
+                }
+                else if (node instanceof RefNode) {
+                    values[i] = ((RefNode)node).getEntityKey();
+                }
+            }
+            typeSnapshot.valuesByKey.put(entity.getKey().getValue(), values);
+            frozen.add(new EntityId(entity.getEntityType(), entity.getKey().getValue()));
+            size++;
+        }
+        /*
+         * a to many relation can only be provided if all of it's entities are frozen.
+         */
+        for (Entity entity : entityContext.getEntitiesSafeIterable()) {
+            if (!frozen.contains(new EntityId(entity.getEntityType(), entity.getKey().getValue()))) {
+                continue;
+            }
+            TypeSnapshot typeSnapshot = types.get(entity.getEntityType());
+            for (ToManyNode toManyNode : entity.getChildren(ToManyNode.class)) {
+                if (!toManyNode.isFetched() || !toManyNode.getNewEntities().isEmpty()) {
+                    continue;
+                }
+                List<Entity> list = toManyNode.getList();
+                Object keys[] = new Object[list.size()];
+                for (int i = 0; i < keys.length; i++) {
+                    Entity e = list.get(i);
+                    if (!frozen.contains(new EntityId(e.getEntityType(), e.getKey().getValue()))) {
+                        keys = null;
+                        break;
+                    }
+                    keys[i] = e.getKey().getValue();
+                }
+                if (keys != null) {
+                    Map<Object, Object[]> byParent = typeSnapshot.toManyKeys.get(toManyNode.getName());
+                    if (byParent == null) {
+                        typeSnapshot.toManyKeys.put(toManyNode.getName(), byParent = new HashMap<>());
+                    }
+                    byParent.put(entity.getKey().getValue(), keys);
+                }
+            }
+        }
+        this.types = Collections.unmodifiableMap(types);
+        this.size = size;
+        LOG.debug("Froze {} entities of {} types", size, types.size());
+    }
+
+    /**
+     * Dates and byte arrays can be modified in place, so the snapshot keeps it's own copy
+     * and hands out a new copy to every child context.
+     */
+    private static Object copyIfMutable(Object value) {
+        if (value instanceof Date) {
+            return ((Date)value).clone();
+        }
+        if (value instanceof byte[]) {
+            return ((byte[])value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the entity and all of it's values and references are loaded and unmodified.
+     */
+    private static boolean isCompletelyLoaded(Entity entity) {
+        if (entity.getEntityState() != EntityState.LOADED || entity.getKey().getValue() == null || entity.isDirty()) {
+            return false;
+        }
+        for (ValueNode valueNode : entity.getChildren(ValueNode.class)) {
+            if (!valueNode.isLoaded()) {
+                return false;
+            }
+        }
+        for (RefNode refNode : entity.getChildren(RefNode.class)) {
+            if (!refNode.isLoaded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Environment getEnv() {
+        return env;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @return the number of entities in the snapshot.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(EntityType entityType, Object key) {
+        TypeSnapshot typeSnapshot = types.get(entityType);
+        return typeSnapshot != null && typeSnapshot.valuesByKey.containsKey(key);
+    }
+
+    /**
+     * Creates a new entity context based on this snapshot.
+     */
+    public EntityContext newChildContext() {
+        EntityContext entityContext = new EntityContext(env, namespace);
+        entityContext.setBaseSnapshot(this);
+        return entityContext;
+    }
+
+    /**
+     * @return the data of the entity or null if it is not in the snapshot.
+     */
+    EntityData getEntityData(EntityType entityType, Object key) {
+        TypeSnapshot typeSnapshot = types.get(entityType);
+        if (typeSnapshot == null) {
+            return null;
+        }
+        Object values[] = typeSnapshot.valuesByKey.get(key);
+        if (values == null) {
+            return null;
+        }
+        EntityData entityData = new EntityData();
+        entityData.setNamespace(namespace);
+        entityData.setEntityType(entityType.getInterfaceName());
+        entityData.setEntityState(EntityState.LOADED);
+        entityData.setConstraints(EntityConstraint.mustExistInDatabase());
+        for (int i = 0; i < values.length; i++) {
+            entityData.getData().put(typeSnapshot.nodeNames[i], copyIfMutable(values[i]));
+        }
+        return entityData;
+    }
+
+    /**
+     * @return the keys of the entities of the to many relation or null if the relation is not in the snapshot.
+     */
+    Object[] getToManyKeys(EntityType entityType, Object key, String toManyNodeName) {
+        TypeSnapshot typeSnapshot = types.get(entityType);
+        if (typeSnapshot == null) {
+            return null;
+        }
+        Map<Object, Object[]> byParent = typeSnapshot.toManyKeys.get(toManyNodeName);
+        return byParent != null ? byParent.get(key) : null;
+    }
+}
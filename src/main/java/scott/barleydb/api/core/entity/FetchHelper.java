@@ -484,7 +484,7 @@ public class FetchHelper implements Serializable {
        }
    }
 
-   private void fetchToManys(Collection<ToManyNode> toFetch, boolean fetchInternal) {
+   private void fetchToManyBatch(Collection<ToManyNode> toFetch, boolean fetchInternal) {
        ToManyNode firstToMany = toFetch.iterator().next();
        LOG.debug("BATCH FETCHING TOMANYS: " + toFetch.size() + " " + firstToMany.getNodeType().getEntityType().getTableName() + "." + firstToMany.getNodeType().getName());
        final NodeType toManyDef = firstToMany.getNodeType();
@@ -589,11 +589,18 @@ public class FetchHelper implements Serializable {
         Set<ToManyNode> toFetch = entites.stream()
                 .map(e -> e.getChild(toManyNode.getName(), ToManyNode.class))
                 .collect(Collectors.toSet());
+        fetchToManys(toFetch, fetchInternal);
+        return true;
+    }
+
+    /**
+     * Fetches the to many nodes, which must all be of the same node type, with as few queries as possible.
+     */
+    void fetchToManys(Set<ToManyNode> toFetch, boolean fetchInternal) {
         //TODO:use database specific limit
         for (Collection<ToManyNode> set : batchesOf(toFetch, 1000)) {
-          fetchToManys(set, fetchInternal);
+          fetchToManyBatch(set, fetchInternal);
         }
-        return true;
     }
 
     private <T> Collection<Collection<T>> batchesOf(Set<T> set, int maxSize) {
@@ -0,0 +1,386 @@
+package scott.barleydb.api.core.entity;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scott.barleydb.api.core.entity.EntityContext.BatchPersistProcessor;
+import scott.barleydb.api.exception.execution.SortServiceProviderException;
+import scott.barleydb.api.exception.execution.persist.SortPersistException;
+import scott.barleydb.api.persist.OperationType;
+import scott.barleydb.api.persist.PersistRequest;
+import scott.barleydb.api.stream.EntityStreamException;
+import scott.barleydb.api.stream.QueryEntityDataInputStream;
+import scott.barleydb.api.stream.QueryEntityInputStream;
+import scott.barleydb.api.stream.QueryResultItem;
+
+/**
+ * Persists stream data in batches where reading and writing overlap.<br/>
+ * <br/>
+ * The calling thread reads batches of raw query data from the stream and hands them over a bounded queue
+ * to one or more writer workers. When the queue is full the reader blocks until a worker has taken a batch.<br/>
+ * <br/>
+ * Each worker converts the batch into entities in a fresh entity context without a transaction and persists it,
+ * so every batch uses its own connection and is committed on its own. A failed batch is handed to the
+ * {@link BatchFailurePolicy} which decides if the batch is retried, skipped or if the whole pipeline is aborted.
+ *
+ * @author scott
+ *
+ */
+public class PipelinedBatchPersister {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PipelinedBatchPersister.class);
+
+    public static enum FailureAction {
+        RETRY,
+        SKIP,
+        ABORT
+    }
+
+    public interface BatchFailurePolicy {
+        /**
+         * @param batchNumber the batch which failed, starting at 1
+         * @param attempt the attempt which failed, starting at 1
+         * @param failure the reason for the failure
+         * @return the action to take.
+         */
+        public FailureAction onFailure(int batchNumber, int attempt, Exception failure);
+    }
+
+    /**
+     * The outcome of a pipelined persist.
+     */
+    public static class Result {
+        private final int batchesPersisted;
+        private final int batchesSkipped;
+        private final int entitiesPersisted;
+
+        public Result(int batchesPersisted, int batchesSkipped, int entitiesPersisted) {
+            this.batchesPersisted = batchesPersisted;
+            this.batchesSkipped = batchesSkipped;
+            this.entitiesPersisted = entitiesPersisted;
+        }
+
+        public int getBatchesPersisted() {
+            return batchesPersisted;
+        }
+
+        public int getBatchesSkipped() {
+            return batchesSkipped;
+        }
+
+        public int getEntitiesPersisted() {
+            return entitiesPersisted;
+        }
+
+        @Override
+        public String toString() {
+            return "Result [batchesPersisted=" + batchesPersisted + ", batchesSkipped=" + batchesSkipped + ", entitiesPersisted="
+                    + entitiesPersisted + "]";
+        }
+    }
+
+    private static final class Batch {
+        private final int number;
+        private final List<QueryResultItem> items;
+
+        public Batch(int number, List<QueryResultItem> items) {
+            this.number = number;
+            this.items = items;
+        }
+    }
+
+    /**
+     * signals a worker to stop.
+     */
+    private static final Batch END_OF_STREAM = new Batch(0, null);
+
+    private final EntityContext ctx;
+    private int batchSize = 100;
+    private int workers = 2;
+    private int queueCapacity = 4;
+    private OperationType operationType = OperationType.SAVE;
+    private BatchPersistProcessor processor;
+    private BatchFailurePolicy failurePolicy = retries(0);
+
+    /**
+     * the first failure of the pipeline, an Error which killed a worker is also recorded.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicInteger batchesPersisted = new AtomicInteger();
+    private final AtomicInteger batchesSkipped = new AtomicInteger();
+    private final AtomicInteger entitiesPersisted = new AtomicInteger();
+
+    public PipelinedBatchPersister(EntityContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * A failure policy which retries a batch up to the given number of times and then aborts.
+     */
+    public static BatchFailurePolicy retries(int maxRetries) {
+        return (batchNumber, attempt, failure) -> attempt <= maxRetries ? FailureAction.RETRY : FailureAction.ABORT;
+    }
+
+    public PipelinedBatchPersister batchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public PipelinedBatchPersister workers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least 1 worker is required");
+        }
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * @param queueCapacity the maximum number of batches which have been read but not yet taken by a worker.
+     */
+    public PipelinedBatchPersister queueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public PipelinedBatchPersister operationType(OperationType operationType) {
+        this.operationType = operationType;
+        return this;
+    }
+
+    /**
+     * @param processor called by the worker thread before each batch is persisted.
+     */
+    public PipelinedBatchPersister processor(BatchPersistProcessor processor) {
+        this.processor = processor;
+        return this;
+    }
+
+    public PipelinedBatchPersister failurePolicy(BatchFailurePolicy failurePolicy) {
+        this.failurePolicy = failurePolicy;
+        return this;
+    }
+
+    /**
+     * Persists all of the stream data, the stream is closed when finished.
+     *
+     * @param in
+     * @return the outcome
+     * @throws EntityStreamException
+     * @throws SortServiceProviderException
+     * @throws SortPersistException if a batch failed and the failure policy aborted the pipeline.
+     * @throws Error if a worker died with an Error, the error is rethrown to the caller.
+     */
+    public Result persist(QueryEntityDataInputStream in) throws EntityStreamException, SortServiceProviderException, SortPersistException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueCapacity);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, newThreadFactory());
+        try {
+            for (int i = 0; i < workers; i++) {
+                executor.execute(() -> work(queue));
+            }
+            try (QueryEntityDataInputStream stream = in) {
+                read(stream, queue);
+            }
+            finally {
+                for (int i = 0; i < workers && failure.get() == null; i++) {
+                    put(queue, END_OF_STREAM);
+                }
+                if (failure.get() != null) {
+                    /*
+                     * cancel the pipeline, the pending batches are discarded and the workers interrupted
+                     * as they may never receive the end of stream.
+                     */
+                    queue.clear();
+                    executor.shutdownNow();
+                }
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOG.debug("Waiting for persist workers to finish...");
+            }
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, x);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        Throwable x = failure.get();
+        if (x instanceof Error) {
+            throw (Error)x;
+        }
+        if (x instanceof SortPersistException) {
+            throw (SortPersistException)x;
+        }
+        if (x instanceof SortServiceProviderException) {
+            throw (SortServiceProviderException)x;
+        }
+        if (x != null) {
+            throw new SortPersistException("Pipelined batch persist failed", x);
+        }
+        Result result = new Result(batchesPersisted.get(), batchesSkipped.get(), entitiesPersisted.get());
+        LOG.debug("Pipelined batch persist finished {}", result);
+        return result;
+    }
+
+    private void read(QueryEntityDataInputStream in, BlockingQueue<Batch> queue) throws EntityStreamException, InterruptedException {
+        int batchNumber = 1;
+        List<QueryResultItem> items = new ArrayList<>(batchSize);
+        QueryResultItem item;
+        while (failure.get() == null && (item = in.read()) != null) {
+            items.add(item);
+            if (items.size() == batchSize) {
+                put(queue, new Batch(batchNumber++, items));
+                items = new ArrayList<>(batchSize);
+            }
+        }
+        if (!items.isEmpty()) {
+            put(queue, new Batch(batchNumber, items));
+        }
+    }
+
+    /**
+     * Blocks until the queue accepts the batch, unless the pipeline was aborted.
+     */
+    private void put(BlockingQueue<Batch> queue, Batch batch) throws InterruptedException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null) {
+                return;
+            }
+        }
+    }
+
+    private void work(BlockingQueue<Batch> queue) {
+        try {
+            Batch batch;
+            while ((batch = queue.take()) != END_OF_STREAM) {
+                if (failure.get() == null) {
+                    persistWithRetry(batch);
+                }
+            }
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable t) {
+            /*
+             * the worker is dying, record the failure so that the reader stops instead of waiting on the queue
+             */
+            LOG.error("Persist worker failed", t);
+            failure.compareAndSet(null, t);
+        }
+    }
+
+    private void persistWithRetry(Batch batch) {
+        for (int attempt = 1;; attempt++) {
+            try {
+                int count = persist(batch);
+                batchesPersisted.incrementAndGet();
+                entitiesPersisted.addAndGet(count);
+                return;
+            }
+            catch (Exception x) {
+                FailureAction action = failurePolicy.onFailure(batch.number, attempt, x);
+                LOG.warn("Persisting batch {} failed on attempt {}, action {}", batch.number, attempt, action, x);
+                switch (action) {
+                    case RETRY:
+                        continue;
+                    case SKIP:
+                        batchesSkipped.incrementAndGet();
+                        return;
+                    default:
+                        failure.compareAndSet(null, x);
+                        return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts the batch into entities in a fresh context and persists them.
+     * @return the number of entities persisted.
+     */
+    private int persist(Batch batch) throws EntityStreamException, SortServiceProviderException, SortPersistException {
+        EntityContext batchCtx = ctx.newEntityContext();
+        batchCtx.setAllowGarbageCollection(false);
+
+        PersistRequest request = new PersistRequest();
+        int count = 0;
+        try (QueryEntityInputStream ein = new QueryEntityInputStream(toStream(batch.items), batchCtx, false); ) {
+            Entity entity;
+            while ( (entity = ein.read()) != null) {
+                EntityContext.addToPersistRequest(request, entity, operationType);
+                count++;
+            }
+        }
+        if (processor != null) {
+            processor.beforePersist( batchCtx );
+        }
+        batchCtx.persist( request );
+        return count;
+    }
+
+    private static QueryEntityDataInputStream toStream(List<QueryResultItem> items) {
+        Iterator<QueryResultItem> i = items.iterator();
+        return new QueryEntityDataInputStream() {
+            @Override
+            public QueryResultItem read() {
+                return i.hasNext() ? i.next() : null;
+            }
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static ThreadFactory newThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "barleydb-persist-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -132,6 +132,7 @@ public final class RefNode extends Node {
         if (reference != null) {
             getEntityContext().addReference(this, reference);
         }
+        getParent().markDirty(this);
     }
 
     /**
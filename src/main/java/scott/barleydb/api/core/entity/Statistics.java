@@ -1,6 +1,7 @@
 package scott.barleydb.api.core.entity;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*-
  * #%L
@@ -27,128 +28,161 @@ import java.io.Serializable;
  * #L%
  */
 
+/**
+ * Counts the database work of an entity context, safe to update from multiple threads.
+ */
 public class Statistics implements Serializable {
 
-  private static final long serialVersionUID = 1L;
+  private static final long serialVersionUID = 2L;
 
   /**
    * number of queries made
    */
-  private int numberOfQueries;
+  private final AtomicInteger numberOfQueries = new AtomicInteger();
+
+  private final AtomicInteger numberQueryDatabseCalls = new AtomicInteger();
 
-  private int numberQueryDatabseCalls;
+  private final AtomicInteger numberOfRowsRead = new AtomicInteger();
 
-  private int numberOfRowsRead;
+  private final AtomicInteger numberOfBatchInserts = new AtomicInteger();
 
-  private int numberOfBatchInserts;
+  private final AtomicInteger numberOfBatchUpdates = new AtomicInteger();
 
-  private int numberOfBatchUpdates;
+  private final AtomicInteger numberOfBatchDeletes = new AtomicInteger();
 
-  private int numberOfBatchDeletes;
+  private final AtomicInteger numberOfRecordInserts = new AtomicInteger();
 
-  private int numberOfRecordInserts;
+  private final AtomicInteger numberOfRecordUpdates = new AtomicInteger();
 
-  private int numberOfRecordUpdates;
+  private final AtomicInteger numberOfRecordDeletes = new AtomicInteger();
+
+  /**
+   * number of entities unloaded to keep within the entity budget
+   */
+  private final AtomicInteger numberOfEvictions = new AtomicInteger();
 
-  private int numberOfRecordDeletes;
+  /**
+   * number of evicted entities which were loaded again
+   */
+  private final AtomicInteger numberOfRefetches = new AtomicInteger();
 
   public Statistics(Statistics src) {
-    this.numberOfQueries = src.numberOfQueries;
-    this.numberQueryDatabseCalls = src.numberQueryDatabseCalls;
-    this.numberOfRowsRead = src.numberOfRowsRead;
-    this.numberOfBatchInserts = src.numberOfBatchInserts;
-    this.numberOfBatchUpdates = src.numberOfBatchUpdates;
-    this.numberOfBatchDeletes = src.numberOfBatchDeletes;
-    this.numberOfRecordInserts = src.numberOfRecordInserts;
-    this.numberOfRecordUpdates = src.numberOfRecordUpdates;
-    this.numberOfRecordDeletes = src.numberOfRecordDeletes;
+    this.numberOfQueries.set(src.numberOfQueries.get());
+    this.numberQueryDatabseCalls.set(src.numberQueryDatabseCalls.get());
+    this.numberOfRowsRead.set(src.numberOfRowsRead.get());
+    this.numberOfBatchInserts.set(src.numberOfBatchInserts.get());
+    this.numberOfBatchUpdates.set(src.numberOfBatchUpdates.get());
+    this.numberOfBatchDeletes.set(src.numberOfBatchDeletes.get());
+    this.numberOfRecordInserts.set(src.numberOfRecordInserts.get());
+    this.numberOfRecordUpdates.set(src.numberOfRecordUpdates.get());
+    this.numberOfRecordDeletes.set(src.numberOfRecordDeletes.get());
+    this.numberOfEvictions.set(src.numberOfEvictions.get());
+    this.numberOfRefetches.set(src.numberOfRefetches.get());
   }
 
   public Statistics() {
   }
 
   public int getNumberOfQueries() {
-    return numberOfQueries;
+    return numberOfQueries.get();
   }
 
   public void addNumberOfQueries(int numberOfQueries) {
-    this.numberOfQueries += numberOfQueries;
+    this.numberOfQueries.addAndGet(numberOfQueries);
   }
 
   public int getNumberOfBatchInserts() {
-    return numberOfBatchInserts;
+    return numberOfBatchInserts.get();
   }
 
   public int getNumberOfQueryDatabseCalls() {
-    return numberQueryDatabseCalls;
+    return numberQueryDatabseCalls.get();
   }
 
   public void addNumberOfQueryDatabseCalls(int numberQueryDatabseCalls) {
-    this.numberQueryDatabseCalls += numberQueryDatabseCalls;
+    this.numberQueryDatabseCalls.addAndGet(numberQueryDatabseCalls);
   }
 
   public int getNumberOfRowsRead() {
-    return numberOfRowsRead;
+    return numberOfRowsRead.get();
   }
 
   public void addNumberOfBatchInserts(int numberOfBatchInserts) {
-    this.numberOfBatchInserts += numberOfBatchInserts;
+    this.numberOfBatchInserts.addAndGet(numberOfBatchInserts);
   }
 
   public int getNumberOfBatchUpdates() {
-    return numberOfBatchUpdates;
+    return numberOfBatchUpdates.get();
   }
 
   public void addNumberOfBatchUpdates(int numberOfBatchUpdates) {
-    this.numberOfBatchUpdates += numberOfBatchUpdates;
+    this.numberOfBatchUpdates.addAndGet(numberOfBatchUpdates);
   }
 
   public int getNumberOfBatchDeletes() {
-    return numberOfBatchDeletes;
+    return numberOfBatchDeletes.get();
   }
 
   public void addNumberOfBatchDeletes(int numberOfBatchDeletes) {
-    this.numberOfBatchDeletes += numberOfBatchDeletes;
+    this.numberOfBatchDeletes.addAndGet(numberOfBatchDeletes);
   }
 
   public int getNumberOfRecordInserts() {
-    return numberOfRecordInserts;
+    return numberOfRecordInserts.get();
   }
 
   public void addNumberOfRecordInserts(int numberOfRecordInserts) {
-    this.numberOfRecordInserts += numberOfRecordInserts;
+    this.numberOfRecordInserts.addAndGet(numberOfRecordInserts);
   }
 
   public int getNumberOfRecordUpdates() {
-    return numberOfRecordUpdates;
+    return numberOfRecordUpdates.get();
   }
 
   public void addNumberOfRecordUpdates(int numberOfRecordUpdates) {
-    this.numberOfRecordUpdates += numberOfRecordUpdates;
+    this.numberOfRecordUpdates.addAndGet(numberOfRecordUpdates);
   }
 
   public int getNumberOfRecordDeletes() {
-    return numberOfRecordDeletes;
+    return numberOfRecordDeletes.get();
   }
 
   public void addNumberOfRecordDeletes(int numberOfRecordDeletes) {
-    this.numberOfRecordDeletes += numberOfRecordDeletes;
+    this.numberOfRecordDeletes.addAndGet(numberOfRecordDeletes);
   }
 
   public void addNumberOfRowsRead(int numberOfRowsRead) {
-    this.numberOfRowsRead += numberOfRowsRead;
+    this.numberOfRowsRead.addAndGet(numberOfRowsRead);
+  }
+
+  public int getNumberOfEvictions() {
+    return numberOfEvictions.get();
+  }
+
+  public void addNumberOfEvictions(int numberOfEvictions) {
+    this.numberOfEvictions.addAndGet(numberOfEvictions);
+  }
+
+  public int getNumberOfRefetches() {
+    return numberOfRefetches.get();
+  }
+
+  public void addNumberOfRefetches(int numberOfRefetches) {
+    this.numberOfRefetches.addAndGet(numberOfRefetches);
   }
 
   public void clear() {
-    numberOfBatchDeletes =
-        numberOfBatchInserts =
-        numberOfBatchUpdates =
-        numberOfQueries =
-        numberQueryDatabseCalls =
-        numberOfRowsRead =
-        numberOfRecordDeletes =
-        numberOfRecordInserts =
-        numberOfRecordUpdates = 0;
+    numberOfBatchDeletes.set(0);
+    numberOfBatchInserts.set(0);
+    numberOfBatchUpdates.set(0);
+    numberOfQueries.set(0);
+    numberQueryDatabseCalls.set(0);
+    numberOfRowsRead.set(0);
+    numberOfRecordDeletes.set(0);
+    numberOfRecordInserts.set(0);
+    numberOfRecordUpdates.set(0);
+    numberOfEvictions.set(0);
+    numberOfRefetches.set(0);
   }
 
 }
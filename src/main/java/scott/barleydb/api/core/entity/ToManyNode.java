@@ -25,11 +25,14 @@ package scott.barleydb.api.core.entity;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -67,20 +70,23 @@ public class ToManyNode extends Node {
     private EntityType entityType;
 
     /**
-     * tracks all entities that we reference currently
+     * tracks all entities that we reference currently, kept sorted by refresh.<br/>
+     * <br/>
+     * Loading (refresh and unload) replaces the list instead of modifying it, so that threads reading
+     * a concurrent entity context can iterate the list while another thread is loading.
      */
-    private List<Entity> entities;
+    private volatile List<Entity> entities;
     /**
      * only refers to new entities
      */
-    private List<Entity> newEntities;
+    private volatile List<Entity> newEntities;
 
     private boolean fetched;
 
     public ToManyNode(Entity parent, String name, EntityType entityType) {
         super(parent, name);
         this.entityType = entityType;
-        this.entities = new LinkedList<Entity>();
+        this.entities = new ArrayList<Entity>();
         this.newEntities = new LinkedList<Entity>();
     }
 
@@ -106,8 +112,8 @@ public class ToManyNode extends Node {
     }
 
     public void unloadAndClear() {
-        entities.clear();
-        newEntities.clear();
+        entities = new ArrayList<Entity>();
+        newEntities = new LinkedList<Entity>();
         fetched = false;
     }
 
@@ -124,13 +130,20 @@ public class ToManyNode extends Node {
         /*
          * remove entities from the newEntities list which are no longer new.
          */
+        List<Entity> stillNew = null;
         for (Iterator<Entity> i = newEntities.iterator(); i.hasNext();) {
             Entity e = i.next();
             if (!e.isClearlyNotInDatabase()) {
                 LOG.trace("ToManyNode {} has new entity {} which is now saved, removing from newEntities list", this, e);
-                i.remove();
+                if (stillNew == null) {
+                    stillNew = new LinkedList<Entity>(newEntities);
+                }
+                stillNew.remove(e);
             }
         }
+        if (stillNew != null) {
+            newEntities = stillNew;
+        }
 
         /*
          * do the refresh
@@ -150,20 +163,22 @@ public class ToManyNode extends Node {
              * We only touch the entities list if something has changes, this prevents
              * needless concurrent modification exceptions.
              */
-            List<Entity> refreshedEntities = new LinkedList<>(result);
+            Set<Entity> refreshedEntities = Collections.newSetFromMap(new IdentityHashMap<Entity,Boolean>(result.size() + newEntities.size()));
+            refreshedEntities.addAll(result);
             refreshedEntities.addAll(newEntities);
-            if (entities.size() != refreshedEntities.size() || !entities.containsAll(refreshedEntities)) {
-                entities.clear();
-                entities.addAll(refreshedEntities);
-                if (entities.size() > 0) {
-                    //the list of entities must have a consistent order
-                    //we sort on the sort column or the PL if not specified.
-                    String sortNodeName = getNodeType().getSortNode();
-                    if (sortNodeName == null) {
-                        sortNodeName = entityType.getKeyNodeName();
+            Set<Entity> currentEntities = Collections.newSetFromMap(new IdentityHashMap<Entity,Boolean>(entities.size()));
+            currentEntities.addAll(entities);
+            if (entities.size() != refreshedEntities.size() || !currentEntities.containsAll(refreshedEntities)) {
+                List<Entity> refreshed = new ArrayList<>(entities);
+                refreshed.removeIf(e -> !refreshedEntities.contains(e));
+                List<Entity> added = new ArrayList<>();
+                for (Entity e : refreshedEntities) {
+                    if (!currentEntities.contains(e)) {
+                        added.add(e);
                     }
-                    Collections.sort(entities, new MyComparator(sortNodeName));
                 }
+                insertSorted(refreshed, added);
+                entities = refreshed;
                 if (result.isEmpty()) {
                     LOG.debug("no entities for " + getParent() + "." + getName() + "=" + this);
                 }
@@ -174,6 +189,49 @@ public class ToManyNode extends Node {
         }
     }
 
+    /**
+     * Adds the entities keeping the list sorted.<br/>
+     * <br/>
+     * The list of entities must have a consistent order, we sort on the sort column or the PK if not specified.
+     * If the existing list is sorted, a few new entities are inserted at their position, otherwise the whole list is sorted.
+     */
+    private void insertSorted(List<Entity> entities, List<Entity> added) {
+        String sortNodeName = getNodeType().getSortNode();
+        if (sortNodeName == null) {
+            sortNodeName = entityType.getKeyNodeName();
+        }
+        MyComparator comparator = new MyComparator(sortNodeName);
+        if (added.size() * 8 > entities.size() || !isSorted(entities, comparator)) {
+            entities.addAll(added);
+            if (entities.size() > 0) {
+                Collections.sort(entities, comparator);
+            }
+            return;
+        }
+        for (Entity e : added) {
+            int index = Collections.binarySearch(entities, e, comparator);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            else {
+                //insert after the entities which sort equally
+                while (index < entities.size() && comparator.compare(entities.get(index), e) == 0) {
+                    index++;
+                }
+            }
+            entities.add(index, e);
+        }
+    }
+
+    private static boolean isSorted(List<Entity> entities, Comparator<Entity> comparator) {
+        for (int i = 1; i < entities.size(); i++) {
+            if (comparator.compare(entities.get(i - 1), entities.get(i)) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 
     public boolean contains(Entity entity) {
         return entities.contains(entity);
@@ -286,10 +344,19 @@ public class ToManyNode extends Node {
 
     public void copyFrom(ToManyNode other) {
         this.fetched = other.fetched;
-        this.entities = new LinkedList<Entity>(other.entities);
+        this.entities = new ArrayList<Entity>(other.entities);
         this.newEntities = new LinkedList<Entity>(other.newEntities);
     }
 
+    /**
+     * Replaces the contents of the node, used when decoding an entity graph.
+     */
+    void copyFrom(boolean fetched, List<Entity> entities, List<Entity> newEntities) {
+        this.fetched = fetched;
+        this.entities = new ArrayList<Entity>(entities);
+        this.newEntities = new LinkedList<Entity>(newEntities);
+    }
+
     private void writeObject(ObjectOutputStream oos) throws IOException {
         LOG.trace("Serializing many references {}", this);
         oos.writeUTF(entityType.getInterfaceName());
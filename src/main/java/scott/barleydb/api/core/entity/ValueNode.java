@@ -81,8 +81,11 @@ public class ValueNode extends Node {
       }
       Object origValue = this.value;
       setValueNoEvent(value);
-      if (getParent().getKey() == this && !Objects.equals(origValue, value)) {
-          getParent().handleKeySet(origValue);
+      if (!Objects.equals(origValue, value)) {
+          getParent().markDirty(this);
+          if (getParent().getKey() == this) {
+              getParent().handleKeySet(origValue);
+          }
       }
   }
 
@@ -30,10 +30,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,26 +59,40 @@ public final class Entities implements Iterable<Entity>, Serializable {
     private final ReferenceQueue<Entity> entityReferenceQueue;
 
     /**
-     * A WeakHashMap linking the entity to the entity info.
+     * The entity infos by UUID, every entity in the context has an entry.
      *
-     * The WeakHashMap does not prevent the entity key from being collected.
-     *
-     * EntityInfo has a WeakReference to the entity and also does not prevent the
+     * EntityInfo has a WeakReference to the entity and does not prevent the
      * entity from being collected.
      */
-    private WeakHashMap<Entity, EntityInfo> entityInfos;
-
     private Map<UUID, EntityInfo> entityByUuid;
-    private Map<EntityPkKey,EntityInfo> entityByPk;
-    private Map<EntityType,Set<EntityInfo>> entitiesByType;
+
+    /**
+     * The entity infos of each entity type indexed by primary key, keyed by interface name.
+     */
+    private Map<String, EntityTypeIndex> entitiesByType;
+
+    /**
+     * if true the lookups can be used by many threads at once.
+     */
+    private volatile boolean concurrent;
+
+    /**
+     * the maximum number of entities to keep loaded, 0 if unbounded.
+     */
+    private transient int entityBudget;
+
+    /**
+     * When bounded, the entities which are kept in memory ordered from least to most recently loaded,
+     * read entities are moved to the end when they get a second chance on eviction.
+     * All other entities are only weakly referenced.
+     */
+    private transient LinkedHashMap<Entity, EntityInfo> recentlyLoaded;
 
     public Entities(boolean allowGarbageCollection) {
         this.allowGarbageCollection = allowGarbageCollection;
         this.collectionPreventingGarbageCollection = new HashSet<Entity>();
         this.entityReferenceQueue = new ReferenceQueue<>();
-        this.entityInfos = new WeakHashMap<>();
         this.entityByUuid = new HashMap<>();
-        this.entityByPk = new HashMap<>();
         this.entitiesByType = new HashMap<>();
     }
 
@@ -85,35 +100,71 @@ public final class Entities implements Iterable<Entity>, Serializable {
         return allowGarbageCollection;
     }
 
-    public void add(Entity entity, QueryObject<?> optionalQuery) {
+    /**
+     * Switches the lookups to concurrent maps, so that they can be used by many threads at once.<br/>
+     * Lookups by UUID do not lock. Lookups by key, iteration and modifications synchronize on this object,
+     * as the entity type indexes are plain maps.
+     *
+     * @param concurrent
+     */
+    public synchronized void setConcurrent(boolean concurrent) {
+        if (this.concurrent == concurrent) {
+            return;
+        }
+        this.concurrent = concurrent;
+        if (concurrent) {
+            entityByUuid = new ConcurrentHashMap<>(entityByUuid);
+            entitiesByType = new ConcurrentHashMap<>(entitiesByType);
+            collectionPreventingGarbageCollection = Collections.synchronizedSet(new HashSet<>(collectionPreventingGarbageCollection));
+        }
+        else {
+            entityByUuid = new HashMap<>(entityByUuid);
+            entitiesByType = new HashMap<>(entitiesByType);
+            collectionPreventingGarbageCollection = new HashSet<>(collectionPreventingGarbageCollection);
+        }
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * @return the entity info of the entity or null.
+     */
+    private EntityInfo getEntityInfo(Entity entity) {
+        EntityInfo entityInfo = entityByUuid.get(entity.getUuid());
+        return entityInfo != null && entityInfo.get() == entity ? entityInfo : null;
+    }
+
+    public synchronized void add(Entity entity, QueryObject<?> optionalQuery) {
         pollForCollectedEntities();
-        EntityInfo entityInfo = entityInfos.get(entity);
+        EntityInfo entityInfo = getEntityInfo(entity);
         if (entityInfo == null) {
             entityInfo = new EntityInfo(entity, entityReferenceQueue, optionalQuery);
-            entityInfos.put(entity, entityInfo);
             addEntityByType(entityInfo);
             entityByUuid.put(entity.getUuid(), entityInfo);
-            if (entity.getKey().getValue() != null) {
-                entityByPk.put(new EntityPkKey(entity), entityInfo);
+            if (recentlyLoaded != null) {
+                recentlyLoaded.put(entity, entityInfo);
             }
-            if (!allowGarbageCollection) {
+            else if (!allowGarbageCollection) {
                 collectionPreventingGarbageCollection.add(entity);
             }
         }
     }
 
-    public void remove(Entity entity) {
+    public synchronized void remove(Entity entity) {
         pollForCollectedEntities();
-        final Object pk = entity.getKey().getValue();
-        if (pk != null) {
-            entityByPk.remove( new EntityPkKey(entity) );
+        EntityInfo entityInfo = getEntityInfo(entity);
+        if (entityInfo != null) {
+            entityByUuid.remove( entity.getUuid() );
+            removeEntityByType(entityInfo);
         }
-        entityByUuid.remove( entity.getUuid() );
-        EntityInfo entityInfo = entityInfos.remove(entity);
-        removeEntityByType(entityInfo);
         if (!collectionPreventingGarbageCollection.isEmpty()) {
             collectionPreventingGarbageCollection.remove(entity);
         }
+        if (recentlyLoaded != null) {
+            recentlyLoaded.remove(entity);
+        }
     }
 
     public EntityInfo getByUuid(UUID uuid, boolean mustExist) {
@@ -130,84 +181,215 @@ public final class Entities implements Iterable<Entity>, Serializable {
 
     public EntityInfo getByKey(EntityType entityType, Object key) {
         pollForCollectedEntities();
-        final EntityPkKey pkKey = new EntityPkKey(entityType.getInterfaceName(), key);
-        return entityByPk.get(pkKey);
+        EntityTypeIndex index = entitiesByType.get(entityType.getInterfaceName());
+        if (index == null) {
+            return null;
+        }
+        if (concurrent) {
+            //the index is modified under the same lock
+            synchronized(this) {
+                return index.get(key);
+            }
+        }
+        return index.get(key);
     }
 
-    public EntityInfo keyChanged(Entity entity, Object origKey) {
+    /**
+     * Looks up the entities which refer to the given entity using the reverse FK index.
+     *
+     * @param entityType the type of the referring entities
+     * @param nodeName the name of the FK node of the referring entities
+     * @param refType the type of the referenced entity
+     * @param refKey the key of the referenced entity
+     * @return the referring entities
+     * @throws NullPointerException if the referenced entity is not in the context
+     */
+    public List<Entity> getReferencingEntities(EntityType entityType, String nodeName, EntityType refType, Object refKey) {
+        EntityInfo entityInfo = getByKey(refType, refKey);
+        if (entityInfo == null) {
+            throw new NullPointerException("No entity info for " + refType + " " + refKey);
+        }
+        return entityInfo.getReferencingEntities(entityType, nodeName);
+    }
+
+    public synchronized EntityInfo keyChanged(Entity entity, Object origKey) {
         LOG.trace("Key changed from {} for entity {}", origKey, entity);
-        final String iname = entity.getEntityType().getInterfaceName();
         final Object key = entity.getKey().getValue();
-        EntityInfo entityInfo = entityByUuid.get(entity.getUuid());
-        if (origKey == null && key != null) {
-            entityByPk.put(new EntityPkKey(iname, key), entityInfo);
-            entityInfo.setPrimaryKey(entity.getKey().getValue());
-        }
-        else if (origKey != null && key == null) {
-            entityByPk.remove(new EntityPkKey(iname, origKey));
-            entityInfo.setPrimaryKey(null);
-        }
-        else {
+        if ((origKey == null) == (key == null)) {
             throw new IllegalStateException("Primary keys cannot be changed.");
         }
+        EntityInfo entityInfo = entityByUuid.get(entity.getUuid());
+        EntityTypeIndex index = entitiesByType.get(entityInfo.getEntityType().getInterfaceName());
+        index.remove(entityInfo);
+        entityInfo.setPrimaryKey(key);
+        index.add(entityInfo);
         return entityInfo;
     }
 
     public Collection<Entity> getEntitiesByType(EntityType entityType) {
-        Collection<EntityInfo> infos = entitiesByType.get(entityType);
-        if (infos == null) {
+        EntityTypeIndex index = entitiesByType.get(entityType.getInterfaceName());
+        if (index == null) {
             return Collections.emptyList();
         }
-        Collection<Entity> result = new ArrayList<>(infos.size());
-        for (EntityInfo entityInfo: infos) {
-            Entity entity = entityInfo.getEntity(false);
-            if (entity != null) {
-                result.add( entity );
-            }
+        synchronized(this) {
+            Collection<Entity> result = new ArrayList<>(index.size());
+            index.collectEntities(result);
+            return result;
         }
-        return result;
     }
 
-    public void setAllowGarbageCollection(boolean allow) {
+    public synchronized void setAllowGarbageCollection(boolean allow) {
         if (allow) {
             this.allowGarbageCollection = allow;
             collectionPreventingGarbageCollection.clear();
         }
         else {
             this.allowGarbageCollection = allow;
+            if (recentlyLoaded == null) {
+                for (Entity entity: safe()) {
+                    collectionPreventingGarbageCollection.add(entity);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bounds the number of entities which are kept in memory.<br/>
+     * <br/>
+     * When bounded the entities are kept in the order they were added or loaded. Reading an entity marks it
+     * as accessed, which gives it a second chance on eviction (CLOCK), so that frequently read entities are
+     * kept even if they were loaded long ago. The least recently used entities over the budget
+     * are only weakly referenced, the allow garbage collection setting then has no effect.
+     *
+     * @param entityBudget the maximum number of entities to keep, 0 for unbounded.
+     */
+    public synchronized void setEntityBudget(int entityBudget) {
+        if (entityBudget < 0) {
+            throw new IllegalArgumentException("The entity budget cannot be negative.");
+        }
+        this.entityBudget = entityBudget;
+        if (entityBudget == 0) {
+            if (recentlyLoaded != null) {
+                recentlyLoaded = null;
+                setAllowGarbageCollection(allowGarbageCollection);
+            }
+        }
+        else if (recentlyLoaded == null) {
+            recentlyLoaded = new LinkedHashMap<>(16, 0.75f, true);
             for (Entity entity: safe()) {
-                collectionPreventingGarbageCollection.add(entity);
+                recentlyLoaded.put(entity, getEntityInfo(entity));
             }
+            collectionPreventingGarbageCollection.clear();
         }
     }
 
+    public int getEntityBudget() {
+        return entityBudget;
+    }
+
+    /**
+     * @return the number of entities kept in memory when bounded, otherwise the size.
+     */
+    public synchronized int getRetainedSize() {
+        return recentlyLoaded != null ? recentlyLoaded.size() : size();
+    }
+
+    /**
+     * Marks the entity as the most recently loaded when bounded.
+     *
+     * @param entity the entity which was loaded
+     * @return true if the entity was evicted before and has now been loaded again.
+     */
+    public synchronized boolean loaded(Entity entity) {
+        if (recentlyLoaded == null) {
+            return false;
+        }
+        EntityInfo entityInfo = getEntityInfo(entity);
+        if (entityInfo == null) {
+            return false;
+        }
+        boolean refetched = entityInfo.isEvicted();
+        entityInfo.setEvicted(false);
+        recentlyLoaded.put(entity, entityInfo);
+        return refetched;
+    }
+
+    /**
+     * Removes the least recently used entities which are over the budget from the entities
+     * kept in memory. Only loaded entities without modifications are removed, new and modified
+     * entities are always kept.<br/>
+     * <br/>
+     * An entity which was read since it was loaded or last checked is not removed, it's accessed
+     * flag is cleared and it is moved to the end instead (CLOCK). If every candidate was read, a
+     * second pass evicts the least recently loaded of them.
+     *
+     * @return the entities to evict, the caller must unload them.
+     */
+    public synchronized List<Entity> evictOverBudget() {
+        if (recentlyLoaded == null || recentlyLoaded.size() <= entityBudget) {
+            return Collections.emptyList();
+        }
+        List<Entity> evicted = new ArrayList<>();
+        List<Entity> kept = new ArrayList<>();
+        int excess = recentlyLoaded.size() - entityBudget;
+        for (int pass = 0; pass < 2 && evicted.size() < excess; pass++) {
+            for (Iterator<Map.Entry<Entity, EntityInfo>> i = recentlyLoaded.entrySet().iterator(); i.hasNext() && evicted.size() < excess;) {
+                Map.Entry<Entity, EntityInfo> entry = i.next();
+                Entity entity = entry.getKey();
+                if (entity.clearAccessed()) {
+                    //second chance
+                    kept.add(entity);
+                }
+                else if (entity.isLoaded() && entity.getKey().getValue() != null && !entity.isDirty()) {
+                    i.remove();
+                    entry.getValue().setEvicted(true);
+                    evicted.add(entity);
+                }
+                else {
+                    kept.add(entity);
+                }
+            }
+            /*
+             * move the entities which were read or cannot be evicted to the end, so that they are
+             * not checked again before the others.
+             */
+            for (Entity entity: kept) {
+                recentlyLoaded.get(entity);
+            }
+            kept.clear();
+        }
+        if (evicted.size() < excess) {
+            GC_LOG.debug("Entity budget of {} exceeded by {} new or modified entities", entityBudget, excess - evicted.size());
+        }
+        return evicted;
+    }
+
 
     @Override
     public Iterator<Entity> iterator() {
         //wrap in a list so there is no garbage collection during the course
         //of the iteration.
-        return new ArrayList<>(entityInfos.keySet()).iterator();
+        return safe().iterator();
     }
 
-    public Collection<Entity> safe() {
-        return new ArrayList<>(entityInfos.keySet());
+    public synchronized Collection<Entity> safe() {
+        List<Entity> result = new ArrayList<>(entityByUuid.size());
+        for (EntityTypeIndex index : entitiesByType.values()) {
+            index.collectEntities(result);
+        }
+        return result;
     }
 
-    public void clear() {
-        entityInfos.clear();
-        entityByPk.clear();
+    public synchronized void clear() {
         entityByUuid.clear();
         entitiesByType.clear();
         collectionPreventingGarbageCollection.clear();
+        if (recentlyLoaded != null) {
+            recentlyLoaded.clear();
+        }
     }
 
     public boolean isCompletelyEmpty() {
-        if (!entityInfos.isEmpty()) {
-            return false;
-        }
-        if (!entityByPk.isEmpty()) {
-            return false;
-        }
         if (!entityByUuid.isEmpty()) {
             return false;
         }
@@ -222,28 +404,24 @@ public final class Entities implements Iterable<Entity>, Serializable {
 
     public int size() {
         pollForCollectedEntities();
-        return entityInfos.size();
+        return entityByUuid.size();
     }
 
     private void pollForCollectedEntities() {
         EntityInfo entityInfo = null;
         while((entityInfo = (EntityInfo)entityReferenceQueue.poll()) != null) {
-            if (entityInfo.getPrimaryKey() != null) {
-                if (entityByPk.remove(new EntityPkKey(entityInfo)) == null) {
-                    GC_LOG.debug("Failed to remove EntityInfo from primary key lookup for {}", entityInfo);
-                }
-            }
-            if (entityByUuid.remove(entityInfo.getUuid()) == null) {
-                GC_LOG.debug("Failed to remove EntityInfo from UUID lookup for {}", entityInfo);
-            }
-            if (!removeEntityByType(entityInfo)) {
-                GC_LOG.debug("Failed to remove EntityInfo from set of entities by type {}", entityInfo);
-            }
-            //calling size on WeakHashMap will force any stale references to be cleared.
-            //this is required for our EnityInfo which is stored as a map value.
-            entityInfos.size();
-            GC_LOG.debug("Removed entity info " + entityInfo + " for garbage collected entity");
+            removeCollected(entityInfo);
+        }
+    }
+
+    private synchronized void removeCollected(EntityInfo entityInfo) {
+        if (!entityByUuid.remove(entityInfo.getUuid(), entityInfo)) {
+            GC_LOG.debug("Failed to remove EntityInfo from UUID lookup for {}", entityInfo);
+        }
+        if (!removeEntityByType(entityInfo)) {
+            GC_LOG.debug("Failed to remove EntityInfo from the entity type index {}", entityInfo);
         }
+        GC_LOG.debug("Removed entity info " + entityInfo + " for garbage collected entity");
     }
 
     private void addEntityByType(EntityInfo entityInfo) {
@@ -255,12 +433,12 @@ public final class Entities implements Iterable<Entity>, Serializable {
         if (entity == null) {
             return;
         }
-        final EntityType entityType = entity.getEntityType();
-        Set<EntityInfo> infos = entitiesByType.get(entityType);
-        if (infos == null) {
-            entitiesByType.put(entityType, infos = new HashSet<>());
+        final String interfaceName = entity.getEntityType().getInterfaceName();
+        EntityTypeIndex index = entitiesByType.get(interfaceName);
+        if (index == null) {
+            entitiesByType.put(interfaceName, index = new EntityTypeIndex());
         }
-        infos.add(entityInfo);
+        index.add(entityInfo);
     }
 
     /**
@@ -269,15 +447,16 @@ public final class Entities implements Iterable<Entity>, Serializable {
      * @return true if the entity was removed,.
      */
     private boolean removeEntityByType(EntityInfo entityInfo) {
-        Set<EntityInfo> set = entitiesByType.get(entityInfo.getEntityType());
-        if (set != null) {
-            boolean modified = set.remove(entityInfo);
+        final String interfaceName = entityInfo.getEntityType().getInterfaceName();
+        EntityTypeIndex index = entitiesByType.get(interfaceName);
+        if (index != null) {
+            boolean modified = index.remove(entityInfo);
             /*
-             * We also remove the set if it is empty, allows entitiesByType.isEmpty() to
+             * We also remove the index if it is empty, allows entitiesByType.isEmpty() to
              * be more accurate.
              */
-            if (set.isEmpty()) {
-                entitiesByType.remove(entityInfo.getEntityType());
+            if (index.isEmpty()) {
+                entitiesByType.remove(interfaceName);
             }
             return modified;
         }
@@ -285,12 +464,12 @@ public final class Entities implements Iterable<Entity>, Serializable {
     }
 
 	public QueryObject<?> getAssociatedQuery(Entity entity) {
-		EntityInfo ei = entityInfos.get(entity);
+		EntityInfo ei = getEntityInfo(entity);
 		return ei != null ? ei.getFromQuery() : null;
 	}
 
 	public void setAssociatedQuery(Entity entity, QueryObject<?> query) {
-		EntityInfo ei = entityInfos.get(entity);
+		EntityInfo ei = getEntityInfo(entity);
 		if (ei != null) {
 			ei.setFromQuery(query);
 		}
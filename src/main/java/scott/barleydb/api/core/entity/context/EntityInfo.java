@@ -24,7 +24,12 @@ package scott.barleydb.api.core.entity.context;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.WeakHashMap;
@@ -52,32 +57,36 @@ public final class EntityInfo extends WeakReference<Entity>  {
     private final EntityType entityType;
 
     /*
-     * Tracking of FK references to the entity
-     * The values in this HashMap should always be null, as it is used as a weak hash set.
+     * Tracking of FK references to the entity, indexed by the name of the FK node
+     * so that the entities of a to many relation can be resolved without scanning all references.
+     * The values in the WeakHashMaps should always be null, as they are used as weak hash sets.
+     * Created on the first reference, as most entities are not referred to by others.
+     * Access is synchronized, as the entity context can be shared by threads.
      */
-    private final WeakHashMap<RefNode,Object> fkReferences;
+    private Map<String, WeakHashMap<RefNode,Object>> fkReferences;
 
     private final UUID uuid;
 
     private Object primaryKey;
-
-    private String primaryKeyName;
     
     /**
      * The query object responsible for loading the entity (if loaded from a query).
      */
     private QueryObject<?> fromQuery;
+
+    /**
+     * set when the entity was unloaded to keep the entity context within it's budget.
+     */
+    private boolean evicted;
     
     public EntityInfo(Entity entity, ReferenceQueue<Entity> entityReferenceQueue, QueryObject<?> fromQuery) {
         super(entity, entityReferenceQueue);
         this.entityType = entity.getEntityType();
-        this.fkReferences = new WeakHashMap<>();
         this.uuid = entity.getUuid();
         /*
          * PK may be null at this point, if so it gets set later
          */
         this.primaryKey = entity.getKey().getValue();
-        this.primaryKeyName  = entity.getKey().getName();
         this.fromQuery = fromQuery;
     }
 
@@ -101,11 +110,18 @@ public final class EntityInfo extends WeakReference<Entity>  {
         return entityType;
     }
 
-    public void clearCollectedRefs() {
+    public synchronized void clearCollectedRefs() {
+        if (fkReferences == null) {
+            return;
+        }
         /*
          * The size method of the WeakHashMap expunges stale references.
          */
-        fkReferences.size();
+        for (Iterator<WeakHashMap<RefNode,Object>> i = fkReferences.values().iterator(); i.hasNext();) {
+            if (i.next().size() == 0) {
+                i.remove();
+            }
+        }
     }
 
     /**
@@ -123,24 +139,60 @@ public final class EntityInfo extends WeakReference<Entity>  {
         return entity;
     }
 
-    public void addAssociation(RefNode refNode) {
-        fkReferences.put(refNode, null);
+    public synchronized void addAssociation(RefNode refNode) {
+        if (fkReferences == null) {
+            fkReferences = new HashMap<>(4);
+        }
+        WeakHashMap<RefNode,Object> refNodes = fkReferences.get(refNode.getName());
+        if (refNodes == null) {
+            fkReferences.put(refNode.getName(), refNodes = new WeakHashMap<>());
+        }
+        refNodes.put(refNode, null);
         LOG.trace("Added association from {} to {}", get(), refNode.getParent());
     }
 
-    public void removeAssociation(RefNode refNode) {
-        fkReferences.remove(refNode);
+    public synchronized void removeAssociation(RefNode refNode) {
+        WeakHashMap<RefNode,Object> refNodes = fkReferences != null ? fkReferences.get(refNode.getName()) : null;
+        if (refNodes != null) {
+            refNodes.remove(refNode);
+        }
         LOG.trace("Removed association from {} to {}", get(), refNode.getParent());
     }
 
-    public Set<RefNode> getFkReferences() {
-        return new HashSet<RefNode>(fkReferences.keySet());
+    public synchronized Set<RefNode> getFkReferences() {
+        Set<RefNode> result = new HashSet<RefNode>();
+        if (fkReferences == null) {
+            return result;
+        }
+        for (WeakHashMap<RefNode,Object> refNodes : fkReferences.values()) {
+            result.addAll(refNodes.keySet());
+        }
+        return result;
+    }
+
+    /**
+     * @param nodeName the name of the FK node
+     * @return the entities of the given type which refer to this entity from the given FK node.
+     */
+    public synchronized List<Entity> getReferencingEntities(EntityType entityType, String nodeName) {
+        WeakHashMap<RefNode,Object> refNodes = fkReferences != null ? fkReferences.get(nodeName) : null;
+        if (refNodes == null) {
+            return new ArrayList<Entity>(0);
+        }
+        List<Entity> result = new ArrayList<Entity>(refNodes.size());
+        for (RefNode refNode : refNodes.keySet()) {
+            Entity refEntity = refNode.getParent();
+            if (refEntity.isOfType(entityType)) {
+                result.add(refEntity);
+            }
+        }
+        return result;
     }
 
     @Override
     public String toString() {
         if (primaryKey != null) {
-            return getEntityType().getInterfaceShortName() + " [" + primaryKeyName + "=" + primaryKey + "]";
+            return getEntityType().getInterfaceShortName() + " [" + entityType.getKeyNodeName() + "=" + primaryKey + "]";
         }
         else {
             return getEntityType().getInterfaceShortName() + " [uuid=" + getUuid().toString().substring(0, 7) + "..]";
@@ -151,5 +203,13 @@ public final class EntityInfo extends WeakReference<Entity>  {
 		this.fromQuery = query;
 	}
 
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    public void setEvicted(boolean evicted) {
+        this.evicted = evicted;
+    }
+
 }
 
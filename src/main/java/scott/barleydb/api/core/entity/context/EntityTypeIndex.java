@@ -0,0 +1,201 @@
+package scott.barleydb.api.core.entity.context;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import scott.barleydb.api.core.entity.Entity;
+
+/**
+ * Indexes the entities of one entity type.<br/>
+ * <br/>
+ * Entities with a primary key are stored in an open addressing table with linear probing,
+ * the key is read from the {@link EntityInfo} itself so a lookup does not allocate any objects.
+ * Entities without a primary key are kept in a separate set until they get a key.<br/>
+ * <br/>
+ * Not thread safe, access is synchronized by {@link Entities}.
+ *
+ * @author scott
+ *
+ */
+final class EntityTypeIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * the entity infos with a primary key, the table is at most half full.
+     */
+    private EntityInfo table[] = new EntityInfo[INITIAL_CAPACITY];
+
+    private int numberWithKey;
+
+    /**
+     * the entity infos without a primary key, created when required.
+     */
+    private Set<EntityInfo> withoutKey;
+
+    public int size() {
+        return numberWithKey + (withoutKey != null ? withoutKey.size() : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public EntityInfo get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        final EntityInfo tab[] = table;
+        final int mask = tab.length - 1;
+        for (int i = slot(key, mask);; i = (i + 1) & mask) {
+            EntityInfo entityInfo = tab[i];
+            if (entityInfo == null) {
+                return null;
+            }
+            if (key.equals(entityInfo.getPrimaryKey())) {
+                return entityInfo;
+            }
+        }
+    }
+
+    /**
+     * Adds the entity info using it's current primary key, replacing any entity info with the same key.
+     */
+    public void add(EntityInfo entityInfo) {
+        final Object key = entityInfo.getPrimaryKey();
+        if (key == null) {
+            if (withoutKey == null) {
+                withoutKey = new HashSet<>();
+            }
+            withoutKey.add(entityInfo);
+            return;
+        }
+        if ((numberWithKey + 1) * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        final int mask = table.length - 1;
+        for (int i = slot(key, mask);; i = (i + 1) & mask) {
+            EntityInfo existing = table[i];
+            if (existing == null) {
+                table[i] = entityInfo;
+                numberWithKey++;
+                return;
+            }
+            if (key.equals(existing.getPrimaryKey())) {
+                table[i] = entityInfo;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the entity info using it's current primary key.
+     * @return true if the entity info was removed.
+     */
+    public boolean remove(EntityInfo entityInfo) {
+        final Object key = entityInfo.getPrimaryKey();
+        if (key == null) {
+            return withoutKey != null && withoutKey.remove(entityInfo);
+        }
+        final int mask = table.length - 1;
+        int i = slot(key, mask);
+        while (table[i] != entityInfo) {
+            if (table[i] == null) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = null;
+        numberWithKey--;
+        /*
+         * shift back the following entries which can no longer be reached from their slot.
+         */
+        for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+            int k = slot(table[j].getPrimaryKey(), mask);
+            boolean reachable = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!reachable) {
+                table[i] = table[j];
+                table[j] = null;
+                i = j;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the entities which are not yet garbage collected to the collection.
+     */
+    public void collectEntities(Collection<Entity> result) {
+        for (EntityInfo entityInfo : table) {
+            addEntity(entityInfo, result);
+        }
+        if (withoutKey != null) {
+            for (EntityInfo entityInfo : withoutKey) {
+                addEntity(entityInfo, result);
+            }
+        }
+    }
+
+    public List<EntityInfo> getEntityInfos() {
+        List<EntityInfo> result = new ArrayList<>(size());
+        for (EntityInfo entityInfo : table) {
+            if (entityInfo != null) {
+                result.add(entityInfo);
+            }
+        }
+        if (withoutKey != null) {
+            result.addAll(withoutKey);
+        }
+        return result;
+    }
+
+    private static void addEntity(EntityInfo entityInfo, Collection<Entity> result) {
+        if (entityInfo != null) {
+            Entity entity = entityInfo.getEntity(false);
+            if (entity != null) {
+                result.add(entity);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        EntityInfo old[] = table;
+        table = new EntityInfo[capacity];
+        numberWithKey = 0;
+        for (EntityInfo entityInfo : old) {
+            if (entityInfo != null) {
+                add(entityInfo);
+            }
+        }
+    }
+
+    private static int slot(Object key, int mask) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+}
@@ -0,0 +1,104 @@
+package scott.barleydb.api.core.proxy;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.exception.model.ProxyCreationException;
+
+/**
+ * Creates JDK dynamic proxies for models which are interfaces.<br/>
+ * <br/>
+ * The model interfaces are looked up once and the proxies resolve each method once, see {@link EntityProxy}.
+ * Returns null for models which are not interfaces or which are not on the class path, so that it can be
+ * registered after the generated proxy factories.
+ *
+ * @author scott
+ *
+ */
+public class DynamicProxyFactory implements ProxyFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(DynamicProxyFactory.class);
+
+    /**
+     * the model interface by interface name, models which are not interfaces or cannot be loaded are stored as the factory class.
+     */
+    private transient Map<String, Class<?>> modelInterfaces;
+
+    private transient ClassLoader classLoader;
+
+    public DynamicProxyFactory() {
+        this(null);
+    }
+
+    /**
+     * @param classLoader the class loader of the model interfaces, or null for the class loader of the factory.
+     */
+    public DynamicProxyFactory(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+        this.modelInterfaces = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public <T> T newProxy(Entity entity) throws ProxyCreationException {
+        Class<?> modelInterface = getModelInterface(entity.getEntityType().getInterfaceName());
+        if (modelInterface == null) {
+            return null;
+        }
+        return EntityProxy.generateProxy(getClassLoader(), modelInterface, entity);
+    }
+
+    private Class<?> getModelInterface(String interfaceName) {
+        Map<String, Class<?>> cache = modelInterfaces;
+        if (cache == null) {
+            //after deserialization
+            modelInterfaces = cache = new ConcurrentHashMap<>();
+        }
+        Class<?> modelInterface = cache.get(interfaceName);
+        if (modelInterface == null) {
+            try {
+                modelInterface = Class.forName(interfaceName, true, getClassLoader());
+            }
+            catch (ClassNotFoundException x) {
+                LOG.debug("No model interface {} on the class path", interfaceName);
+                modelInterface = DynamicProxyFactory.class;
+            }
+            if (!modelInterface.isInterface()) {
+                modelInterface = DynamicProxyFactory.class;
+            }
+            cache.put(interfaceName, modelInterface);
+        }
+        return modelInterface != DynamicProxyFactory.class ? modelInterface : null;
+    }
+
+    private ClassLoader getClassLoader() {
+        return classLoader != null ? classLoader : getClass().getClassLoader();
+    }
+
+}
@@ -27,6 +27,8 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import scott.barleydb.api.config.EntityType;
 import scott.barleydb.api.core.entity.Entity;
@@ -36,17 +38,76 @@ import scott.barleydb.api.core.entity.RefNode;
 import scott.barleydb.api.core.entity.ToManyNode;
 import scott.barleydb.api.core.entity.ValueNode;
 
+/**
+ * Invocation handler for JDK dynamic proxies of interface based models.<br/>
+ * <br/>
+ * Each method of the model interface is resolved to an {@link Accessor} for the entity type the first time it is called.
+ * The accessor holds the index of the node, the proxy keeps the nodes of it's entity in slots by that index,
+ * so later calls go straight to the node without parsing the method name or looking the node up by name.
+ */
 public class EntityProxy implements InvocationHandler, Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    @SuppressWarnings("unchecked")
+    /**
+     * what a method of the model interface does.
+     */
+    private enum Kind {
+        TO_STRING, HASH_CODE, EQUALS, GET_ENTITY, SET_ENTITY,
+        GET_VALUE, SET_VALUE, GET_REF, SET_REF, GET_TO_MANY, SET_TO_MANY
+    }
+
+    private static final class Accessor {
+        private final Kind kind;
+        private final String nodeName;
+        /**
+         * the index of the node in the entity type, -1 if the accessor has no node.
+         */
+        private final int nodeIndex;
+
+        Accessor(Kind kind) {
+            this(kind, null, -1);
+        }
+
+        Accessor(Kind kind, String nodeName, int nodeIndex) {
+            this.kind = kind;
+            this.nodeName = nodeName;
+            this.nodeIndex = nodeIndex;
+        }
+    }
+
+    /**
+     * The resolved accessors per declaring class and entity type, a ClassValue so that model classes can still be unloaded.<br/>
+     * The same method can map to different nodes in different entity types, for example when declared by a common super interface.
+     */
+    private static final ClassValue<Map<EntityType, Map<Method, Accessor>>> ACCESSORS = new ClassValue<Map<EntityType, Map<Method, Accessor>>>() {
+        @Override
+        protected Map<EntityType, Map<Method, Accessor>> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
     public static <K> K generateProxy(ClassLoader cl, Entity entity) throws ClassNotFoundException {
-        return (K) Proxy.newProxyInstance(cl, new Class[] { ProxyController.class, Class.forName(entity.getEntityType().getInterfaceName(), true, cl) }, new EntityProxy(entity));
+        return generateProxy(cl, Class.forName(entity.getEntityType().getInterfaceName(), true, cl), entity);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K> K generateProxy(ClassLoader cl, Class<?> modelInterface, Entity entity) {
+        return (K) Proxy.newProxyInstance(cl, new Class[] { ProxyController.class, modelInterface }, new EntityProxy(entity));
     }
 
     private Entity entity;
 
+    /**
+     * the nodes of the entity by node index, filled as they are accessed.
+     */
+    private transient Node nodes[];
+
+    /**
+     * the entity type which the nodes were resolved for, a downcast changes the nodes of the entity.
+     */
+    private transient EntityType nodesEntityType;
+
     public EntityProxy(Entity entity) {
         this.entity = entity;
     }
@@ -56,71 +117,41 @@ public class EntityProxy implements InvocationHandler, Serializable {
     }
 
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        final String methodName = method.getName();
-        if (methodName.equals("toString")) {
-            return entity.toString();
-        }
-        else if (methodName.equals("hashCode")) {
-            return entity.hashCode();
-        }
-        else if (methodName.equals("equals")) {
-            if (args[0] == null) {
-                return false;
-            }
-            if (args[0] instanceof ProxyController) {
-                return entity.equals(((ProxyController) args[0]).getEntity());
-            }
-            else {
-                return entity.equals(args[0]);
-            }
-        }
-        else if (methodName.equals("setEntity")) {
-            this.entity = (Entity) args[0];
-            return null;
+        final EntityType entityType = entity.getEntityType();
+        Map<Method, Accessor> accessors = ACCESSORS.get(method.getDeclaringClass()).computeIfAbsent(entityType, t -> new ConcurrentHashMap<>());
+        Accessor accessor = accessors.get(method);
+        if (accessor == null) {
+            accessor = resolve(method);
+            accessors.put(method, accessor);
         }
-        else if (methodName.equals("getEntity")) {
-            return entity;
-        }
-
-        boolean set = methodName.startsWith("set");
-        final String nodeName;
-        if (set || methodName.startsWith("get")) {
-            nodeName = Character.toLowerCase(methodName.charAt(3)) + methodName.substring(4);
-        }
-        else if (methodName.startsWith("is")) {
-            nodeName = Character.toLowerCase(methodName.charAt(2)) + methodName.substring(3);
-        }
-        else {
-            throw new IllegalStateException("Child node does not exist " + methodName);
-        }
-
-        Node node = entity.getChild(nodeName, Node.class);
-        if (node == null) {
-            throw new IllegalStateException("No such property '" + nodeName + "'");
-        }
-        else if (node instanceof ValueNode) {
-            if (set) {
-                ((ValueNode) node).setValue(args[0]);
-                return null;
-            }
-            else {
-                return ((ValueNode) node).getValue();
-            }
-        }
-        else if (node instanceof RefNode) {
-            if (set) {
-                ProxyController entityModel = (ProxyController) args[0];
-                if (entityModel == null) {
-                    ((RefNode) node).setReference(null);
+        switch (accessor.kind) {
+            case TO_STRING:
+                return entity.toString();
+            case HASH_CODE:
+                return entity.hashCode();
+            case EQUALS:
+                if (args[0] == null) {
+                    return false;
+                }
+                if (args[0] instanceof ProxyController) {
+                    return entity.equals(((ProxyController) args[0]).getEntity());
                 }
                 else {
-                    Entity en = entityModel.getEntity();
-                    ((RefNode) node).setReference(en);
+                    return entity.equals(args[0]);
                 }
+            case SET_ENTITY:
+                this.entity = (Entity) args[0];
+                this.nodes = null;
                 return null;
-            }
-            else {
-                final Entity en = ((RefNode) node).getReference();
+            case GET_ENTITY:
+                return entity;
+            case GET_VALUE:
+                return ((ValueNode) node(accessor)).getValue();
+            case SET_VALUE:
+                ((ValueNode) node(accessor)).setValue(args[0]);
+                return null;
+            case GET_REF: {
+                final Entity en = ((RefNode) node(accessor)).getReference();
                 if (en == null) {
                     return null;
                 }
@@ -128,10 +159,25 @@ public class EntityProxy implements InvocationHandler, Serializable {
                     return entity.getEntityContext().getProxy(en);
                 }
             }
-        }
-        else if (node instanceof ToManyNode) {
-            if (set) {
-                ToManyNode tmnode = ((ToManyNode) node);
+            case SET_REF: {
+                ProxyController entityModel = (ProxyController) args[0];
+                RefNode refNode = ((RefNode) node(accessor));
+                if (entityModel == null) {
+                    refNode.setReference(null);
+                }
+                else {
+                    refNode.setReference(entityModel.getEntity());
+                }
+                return null;
+            }
+            case GET_TO_MANY:
+                //each node context must belong to a session
+                //and each session must track it's proxies
+                //rather than creating new ones each time.
+                //we always resolve the tomany node based on it's owning entity
+                return new ToManyProxy<Object>(((ToManyNode) node(accessor)));
+            case SET_TO_MANY: {
+                ToManyNode tmnode = ((ToManyNode) node(accessor));
                 tmnode.getList().clear();
                 List<?> list = (List<?>) args[0];
                 /*
@@ -153,16 +199,78 @@ public class EntityProxy implements InvocationHandler, Serializable {
                 }
                 return null;
             }
-            else {
-                //each node context must belong to a session
-                //and each session must track it's proxies
-                //rather than creating new ones each time.
-                //we always resolve the tomany node based on it's owning entity
-                return new ToManyProxy<Object>(entity.getChild(nodeName, ToManyNode.class));
-            }
+            default:
+                throw new IllegalStateException("Unknown accessor " + accessor.kind);
+        }
+    }
+
+    /**
+     * @return the node of the accessor from it's slot, resolving it by name the first time.
+     */
+    private Node node(Accessor accessor) {
+        final EntityType entityType = entity.getEntityType();
+        Node slots[] = nodes;
+        if (slots == null || nodesEntityType != entityType) {
+            nodes = slots = new Node[entityType.getNodeTypes().size()];
+            nodesEntityType = entityType;
+        }
+        Node node = slots[accessor.nodeIndex];
+        if (node == null) {
+            slots[accessor.nodeIndex] = node = entity.getChild(accessor.nodeName);
+        }
+        return node;
+    }
+
+    /**
+     * Works out what the method does from it's name and the node it refers to.
+     */
+    private Accessor resolve(Method method) {
+        final String methodName = method.getName();
+        final int numberOfParameters = method.getParameterCount();
+        if (methodName.equals("toString") && numberOfParameters == 0) {
+            return new Accessor(Kind.TO_STRING);
+        }
+        else if (methodName.equals("hashCode") && numberOfParameters == 0) {
+            return new Accessor(Kind.HASH_CODE);
+        }
+        else if (methodName.equals("equals") && numberOfParameters == 1) {
+            return new Accessor(Kind.EQUALS);
+        }
+        else if (methodName.equals("setEntity")) {
+            return new Accessor(Kind.SET_ENTITY);
+        }
+        else if (methodName.equals("getEntity")) {
+            return new Accessor(Kind.GET_ENTITY);
+        }
+
+        boolean set = methodName.startsWith("set");
+        final String nodeName;
+        if (set || methodName.startsWith("get")) {
+            nodeName = Character.toLowerCase(methodName.charAt(3)) + methodName.substring(4);
+        }
+        else if (methodName.startsWith("is")) {
+            nodeName = Character.toLowerCase(methodName.charAt(2)) + methodName.substring(3);
+        }
+        else {
+            throw new IllegalStateException("Child node does not exist " + methodName);
+        }
+
+        Node node = entity.getChild(nodeName, Node.class);
+        if (node == null) {
+            throw new IllegalStateException("No such property '" + nodeName + "'");
+        }
+        final int nodeIndex = node.getNodeType().getIndex();
+        if (node instanceof ValueNode) {
+            return new Accessor(set ? Kind.SET_VALUE : Kind.GET_VALUE, nodeName, nodeIndex);
+        }
+        else if (node instanceof RefNode) {
+            return new Accessor(set ? Kind.SET_REF : Kind.GET_REF, nodeName, nodeIndex);
+        }
+        else if (node instanceof ToManyNode) {
+            return new Accessor(set ? Kind.SET_TO_MANY : Kind.GET_TO_MANY, nodeName, nodeIndex);
         }
         else {
-            throw new Exception("woopsy1 " + node);
+            throw new IllegalStateException("woopsy1 " + node);
         }
     }
 
@@ -27,10 +27,20 @@ package scott.barleydb.api.core.util;
  * #L%
  */
 
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 import java.util.function.Predicate;
 
 public class CollectionUtil {
 
+    /**
+     * the maximum number of keys to bind to a single query or statement.
+     */
+    public static final int MAX_KEYS_PER_QUERY = 500;
+
     public static <T> Predicate<T> truePredicate() {
         return new Predicate<T>() {
             @Override
@@ -40,4 +50,20 @@ public class CollectionUtil {
         };
     }
 
+    /**
+     * Splits the keys into chunks of at most {@link #MAX_KEYS_PER_QUERY} keys, keeping their order.
+     */
+    public static <T> List<Set<T>> toKeyChunks(Collection<T> keys) {
+        List<Set<T>> chunks = new LinkedList<>();
+        Set<T> chunk = null;
+        for (T key : keys) {
+            if (chunk == null || chunk.size() == MAX_KEYS_PER_QUERY) {
+                chunk = new LinkedHashSet<>();
+                chunks.add(chunk);
+            }
+            chunk.add(key);
+        }
+        return chunks;
+    }
+
 }
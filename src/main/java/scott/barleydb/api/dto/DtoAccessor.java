@@ -0,0 +1,57 @@
+package scott.barleydb.api.dto;
+
+/*-
+ * #%L
+ * BarleyDB
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2014 - 2017 Scott Sinclair
+ *       <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import scott.barleydb.api.exception.BarleyDBRuntimeException;
+
+/**
+ * Direct access to the properties of a DTO class without reflection.<br/>
+ * <br/>
+ * Generated by GenerateDtoModels as the DTO class name + "Accessor", the accessor of a DTO which extends
+ * another DTO extends the accessor of that DTO. {@link DtoHelper} finds the accessor by it's name or through
+ * {@link DtoConverter#registerAccessor(Class, DtoAccessor)} and falls back to reflection when there is none.
+ *
+ * @author scott
+ *
+ */
+public abstract class DtoAccessor {
+
+  public abstract BaseDto newDto();
+
+  /**
+   * @param dto
+   * @param propertyName the node name
+   * @return the property value
+   */
+  public Object getProperty(BaseDto dto, String propertyName) {
+    throw new BarleyDBRuntimeException("Could not find property for nodeType '" + propertyName + "'");
+  }
+
+  public void setProperty(BaseDto dto, String propertyName, Object value) {
+    throw new BarleyDBRuntimeException("Could not find property for nodeType '" + propertyName + "'");
+  }
+
+}
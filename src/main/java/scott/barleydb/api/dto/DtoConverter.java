@@ -91,6 +91,13 @@ public class DtoConverter {
     this.ctx = ctx;
   }
 
+  /**
+   * Registers the accessor to use for a DTO class instead of the generated accessor or reflection.
+   */
+  public static void registerAccessor(Class<? extends BaseDto> dtoClass, DtoAccessor accessor) {
+    DtoHelper.registerAccessor(dtoClass, accessor);
+  }
+
   public EntityContext getEntityContext() {
     return ctx;
   }
@@ -209,9 +216,11 @@ public class DtoConverter {
   }
 
   private void importDtosAsEntities() throws SortServiceProviderException, BarleyDBQueryException {
+    IdentityHashMap<BaseDto, Map<String,Object>> cache = new IdentityHashMap<>();
     for (BaseDto dto: dtos.values()) {
       EntityType et = env.getDefinitions(namespace).getEntityTypeForDtoClass(dto.getClass(), true);
       Map<String,Object> properties = helper.getProperties(dto);
+      cache.put(dto, properties);
       Object key = properties.get(et.getKeyColumn());
       Entity e = ctx.getEntityByUuid(dto.getBaseDtoUuid(), false);
       if (e == null) {
@@ -230,16 +239,13 @@ public class DtoConverter {
       }
     }
 
-    IdentityHashMap<BaseDto, Map<String,Object>> cache = new IdentityHashMap<>();
     for (BaseDto dto: dtos.values()) {
       Entity entity = ctx.getEntityByUuid(dto.getBaseDtoUuid(), true);
       entity.setEntityState(dto.getEntityState());
       if (LOG.isTraceEnabled()) {
         LOG.trace("{}:  Copying {} entity state from DTO", entity.getUuidFirst7(), entity.getEntityState());
       }
-      Map<String,Object> propValues = helper.getProperties(dto);
-      cache.put(dto, propValues);
-      copyValues(propValues, entity);
+      copyValues(cache.get(dto), entity);
     }
     for (BaseDto dto: dtos.values()) {
       Map<String,Object> propValues = cache.get(dto);
@@ -354,16 +360,9 @@ public class DtoConverter {
   }
 
   private BaseDto createNewDto(Entity entity) {
-    String dtoClassName = entity.getEntityType().getDtoClassName();
-    BaseDto dto;
-    try {
-      dto = (BaseDto)(getClass().getClassLoader().loadClass(dtoClassName)).newInstance();
-      dto.setBaseDtoUuid( entity.getUuid() );
-      return dto;
-    }
-    catch (InstantiationException | IllegalAccessException | ClassNotFoundException e) {
-       throw new BarleyDBRuntimeException("Could not instantiate DTO", e);
-    }
+    BaseDto dto = helper.newDto(entity.getEntityType());
+    dto.setBaseDtoUuid( entity.getUuid() );
+    return dto;
   }
 
   /**
@@ -29,6 +29,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import scott.barleydb.api.config.EntityType;
 import scott.barleydb.api.config.NodeType;
@@ -36,14 +37,44 @@ import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.exception.BarleyDBRuntimeException;
 
 /**
- * Helper methods for DTO reflection
+ * Helper methods for DTO reflection.<br/>
+ * <br/>
+ * Uses the {@link DtoAccessor} of the DTO class when there is one.
  * @author scott
  *
  */
 public class DtoHelper {
+  private static final Map<Class<?>, DtoAccessor> registeredAccessors = new ConcurrentHashMap<>();
+
+  /**
+   * the generated accessor of a DTO class or null.
+   */
+  private static final ClassValue<DtoAccessor> generatedAccessors = new ClassValue<DtoAccessor>() {
+    @Override
+    protected DtoAccessor computeValue(Class<?> dtoClass) {
+      Class<?> accessorClass;
+      try {
+        accessorClass = Class.forName(dtoClass.getName() + "Accessor", true, dtoClass.getClassLoader());
+      }
+      catch (ClassNotFoundException x) {
+        return null;
+      }
+      if (!DtoAccessor.class.isAssignableFrom(accessorClass)) {
+        return null;
+      }
+      try {
+        return (DtoAccessor)accessorClass.getDeclaredConstructor().newInstance();
+      }
+      catch (ReflectiveOperationException x) {
+        throw new BarleyDBRuntimeException("Could not create DTO accessor '" + accessorClass.getName() + "'", x);
+      }
+    }
+  };
+
   private final Environment env;
   private final String namespace;
   private final Map<ProperyKey,Method> methodCache = new HashMap<>();
+  private final Map<String,Class<?>> dtoClasses = new HashMap<>();
 
 
   public DtoHelper(Environment env, String namespace) {
@@ -51,12 +82,25 @@ public class DtoHelper {
     this.namespace = namespace;
   }
 
+  static void registerAccessor(Class<? extends BaseDto> dtoClass, DtoAccessor accessor) {
+    registeredAccessors.put(dtoClass, accessor);
+  }
+
+  /**
+   * @return the registered or generated accessor for the DTO class or null.
+   */
+  static DtoAccessor getAccessor(Class<?> dtoClass) {
+    DtoAccessor accessor = registeredAccessors.get(dtoClass);
+    return accessor != null ? accessor : generatedAccessors.get(dtoClass);
+  }
+
   public Map<String,Object> getProperties(BaseDto dto) {
     Map<String,Object> result = new HashMap<String, Object>();
     EntityType entityType = env.getDefinitions(namespace).getEntityTypeForDtoClass(dto.getClass(), true);
+    DtoAccessor accessor = getAccessor(dto.getClass());
     for (NodeType nodeType: entityType.getNodeTypes()) {
       if (!nodeType.isSuppressedFromDto()) {
-        Object value = callPropertyGetter(dto, nodeType);
+        Object value = accessor != null ? accessor.getProperty(dto, nodeType.getName()) : callPropertyGetter(dto, nodeType);
         result.put(nodeType.getName(), value);
       }
     }
@@ -65,10 +109,36 @@ public class DtoHelper {
 
   @SuppressWarnings("unchecked")
   public <T> T callPropertyGetter(BaseDto dto, NodeType nodeType) {
+    DtoAccessor accessor = getAccessor(dto.getClass());
+    if (accessor != null) {
+      return (T)accessor.getProperty(dto, nodeType.getName());
+    }
     Method method = findMethod(dto, nodeType, true);
     return (T)invoke(method, dto);
   }
 
+  /**
+   * Creates a new DTO for the entity type.
+   */
+  public BaseDto newDto(EntityType entityType) {
+    String dtoClassName = entityType.getDtoClassName();
+    try {
+      Class<?> dtoClass = dtoClasses.get(dtoClassName);
+      if (dtoClass == null) {
+        dtoClass = getClass().getClassLoader().loadClass(dtoClassName);
+        dtoClasses.put(dtoClassName, dtoClass);
+      }
+      DtoAccessor accessor = getAccessor(dtoClass);
+      if (accessor != null) {
+        return accessor.newDto();
+      }
+      return (BaseDto)dtoClass.getDeclaredConstructor().newInstance();
+    }
+    catch (ReflectiveOperationException e) {
+      throw new BarleyDBRuntimeException("Could not instantiate DTO", e);
+    }
+  }
+
   private Object invoke(Method method, BaseDto dto, Object ...args) {
     try {
       return method.invoke(dto, args);
@@ -107,6 +177,11 @@ public class DtoHelper {
   }
 
   public void setProperty(BaseDto dto, NodeType nodeType, Object value) {
+    DtoAccessor accessor = getAccessor(dto.getClass());
+    if (accessor != null) {
+      accessor.setProperty(dto, nodeType.getName(), value);
+      return;
+    }
     Method method = findMethod(dto, nodeType, false);
     invoke(method, dto, value);
   }
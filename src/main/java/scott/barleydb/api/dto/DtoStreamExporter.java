@@ -0,0 +1,225 @@
+package scott.barleydb.api.dto;
+
+/*-
+ * #%L
+ * BarleyDB
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2014 - 2017 Scott Sinclair
+ *       <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.entity.EntityContextState;
+import scott.barleydb.api.core.entity.ProxyController;
+import scott.barleydb.api.core.entity.RefNode;
+import scott.barleydb.api.core.entity.ToManyNode;
+import scott.barleydb.api.core.entity.ValueNode;
+import scott.barleydb.api.core.entity.context.EntityId;
+import scott.barleydb.api.stream.DataStream;
+import scott.barleydb.api.stream.EntityStreamException;
+import scott.barleydb.api.stream.QueryEntityDataInputStream;
+import scott.barleydb.api.stream.QueryEntityInputStream;
+
+/**
+ * Converts a stream of entity graphs into a stream of DTO graphs, one DTO graph per root object.<br/>
+ * <br/>
+ * Only the entities reachable from each root are converted, nothing is fetched. The DTOs of loaded entities which were
+ * already emitted are remembered by entity type and key in a window of limited size, so that a DTO referenced by
+ * several roots (e.g. a user) is the same instance while it is in the window.<br/>
+ * <br/>
+ * No references to the entities are kept once the DTO graph is returned. To keep the memory flat the source
+ * should load each root into a new entity context, see {@link EntityContext#streamObjectQuery(scott.barleydb.api.query.QueryObject, boolean)}.
+ *
+ * @author scott
+ *
+ */
+public class DtoStreamExporter<D extends BaseDto> implements DataStream<D> {
+
+  public static final int DEFAULT_WINDOW_SIZE = 1000;
+
+  private final DataStream<?> in;
+  private final Map<EntityId, BaseDto> window;
+  private DtoHelper helper;
+  private long numberOfDtos;
+
+  /**
+   * @param in a stream of entities or entity proxies.
+   */
+  public DtoStreamExporter(DataStream<?> in) {
+    this(in, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param in a stream of entities or entity proxies.
+   * @param windowSize the number of emitted DTOs which are remembered by key.
+   */
+  public DtoStreamExporter(DataStream<?> in, final int windowSize) {
+    this.in = in;
+    this.window = new LinkedHashMap<EntityId, BaseDto>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<EntityId, BaseDto> eldest) {
+        return size() > windowSize;
+      }
+    };
+  }
+
+  /**
+   * Loads each query result item into a new entity context which is dropped once it's DTOs are emitted.
+   */
+  public DtoStreamExporter(QueryEntityDataInputStream in, EntityContext ctx, int windowSize) {
+    this(new QueryEntityInputStream(in, ctx, true), windowSize);
+  }
+
+  /**
+   * @return the root DTO of the next DTO graph or null if the end of the stream is reached.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public D read() throws EntityStreamException {
+    Object object = in.read();
+    if (object == null) {
+      return null;
+    }
+    Entity root = object instanceof ProxyController ? ((ProxyController)object).getEntity() : (Entity)object;
+    EntityContext ctx = root.getEntityContext();
+    if (helper == null) {
+      helper = new DtoHelper(ctx.getEnv(), ctx.getNamespace());
+    }
+    EntityContextState prev = ctx.switchToInternalMode();
+    try {
+      return (D)export(root);
+    }
+    finally {
+      ctx.switchToMode(prev);
+    }
+  }
+
+  /**
+   * @return the number of DTOs created so far.
+   */
+  public long getNumberOfDtos() {
+    return numberOfDtos;
+  }
+
+  @Override
+  public void close() throws EntityStreamException {
+    in.close();
+  }
+
+  private BaseDto export(Entity root) {
+    Map<Entity, BaseDto> dtos = new IdentityHashMap<>();
+    List<Entity> created = new ArrayList<>();
+    collect(root, dtos, created);
+    for (Entity entity: created) {
+      BaseDto dto = dtos.get(entity);
+      dto.setEntityState(entity.getEntityState());
+      for (ValueNode node: entity.getChildren(ValueNode.class)) {
+        if (!node.getNodeType().isSuppressedFromDto()) {
+          helper.setProperty(dto, node.getNodeType(), node.getValueNoFetch());
+        }
+      }
+    }
+    for (Entity entity: created) {
+      BaseDto dto = dtos.get(entity);
+      for (RefNode node: entity.getChildren(RefNode.class)) {
+        if (!node.getNodeType().isSuppressedFromDto() && node.getReference(false) != null) {
+          helper.setProperty(dto, node.getNodeType(), dtos.get(node.getReference(false)));
+        }
+      }
+    }
+    for (Entity entity: created) {
+      BaseDto dto = dtos.get(entity);
+      for (ToManyNode node: entity.getChildren(ToManyNode.class)) {
+        if (node.getNodeType().isSuppressedFromDto()) {
+          continue;
+        }
+        helper.clearCollection(dto, node.getNodeType(), dto);
+        String joinProperty = node.getNodeType().getJoinProperty();
+        for (Entity reffedEntity: node.getList()) {
+          if (joinProperty != null) {
+            reffedEntity = reffedEntity.getChild(joinProperty, RefNode.class).getReference(false);
+          }
+          helper.addToCollection(dto, node.getNodeType(), dtos.get(reffedEntity));
+        }
+        helper.setCollectionFetched(dto, node.getNodeType(), node.isFetched());
+      }
+    }
+    return dtos.get(root);
+  }
+
+  /**
+   * Finds the DTO of each entity in the graph, either from the window or by creating it.
+   * The entities of the DTOs which were created are added to created.<br/>
+   * <br/>
+   * The graph is walked with a work stack rather than by recursion so that deep graphs (e.g. long chains of
+   * references) cannot overflow the thread stack.
+   */
+  private void collect(Entity root, Map<Entity, BaseDto> dtos, List<Entity> created) {
+    Deque<Entity> stack = new ArrayDeque<>();
+    stack.push(root);
+    while (!stack.isEmpty()) {
+      Entity entity = stack.pop();
+      if (dtos.containsKey(entity)) {
+        continue;
+      }
+      Object key = entity.getKey().getValueNoFetch();
+      //only the DTOs of loaded entities are complete enough to be reused
+      EntityId id = key != null && entity.isLoaded() ? new EntityId(entity.getEntityType(), key) : null;
+      BaseDto dto = id != null ? window.get(id) : null;
+      if (dto != null) {
+        //already emitted with it's graph
+        dtos.put(entity, dto);
+        continue;
+      }
+      dto = helper.newDto(entity.getEntityType());
+      dto.setBaseDtoUuid(entity.getUuid());
+      dtos.put(entity, dto);
+      created.add(entity);
+      numberOfDtos++;
+      if (id != null) {
+        window.put(id, dto);
+      }
+      for (RefNode node: entity.getChildren(RefNode.class)) {
+        Entity reffedEntity = node.getReference(false);
+        if (reffedEntity != null && !dtos.containsKey(reffedEntity)) {
+          stack.push(reffedEntity);
+        }
+      }
+      for (ToManyNode node: entity.getChildren(ToManyNode.class)) {
+        for (Entity reffedEntity: node.getList()) {
+          if (!dtos.containsKey(reffedEntity)) {
+            stack.push(reffedEntity);
+          }
+        }
+      }
+    }
+  }
+
+}
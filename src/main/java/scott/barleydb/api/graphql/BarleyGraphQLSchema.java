@@ -2,9 +2,12 @@ package scott.barleydb.api.graphql;
 
 import static graphql.schema.idl.RuntimeWiring.newRuntimeWiring;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -17,7 +20,10 @@ import org.slf4j.LoggerFactory;
 import graphql.ExecutionInput;
 import graphql.ExecutionResult;
 import graphql.GraphQL;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
 import graphql.schema.GraphQLSchema;
+import org.dataloader.DataLoaderRegistry;
 
 /*-
  * #%L
@@ -51,6 +57,7 @@ import graphql.schema.idl.TypeDefinitionRegistry;
 import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.graphql.GraphQLJsonWriter.StreamedField;
 import scott.barleydb.api.query.QJoin;
 import scott.barleydb.api.query.QueryObject;
 import scott.barleydb.api.specification.DefinitionsSpec;
@@ -68,6 +75,8 @@ public class BarleyGraphQLSchema {
 	private final GraphQLSchema graphQLSchema;
 	private final String sdlString;
 	private final GraphQLQueryCustomizations queryCustomizations;
+	private boolean dataLoaderEnabled;
+	private GraphQLQueryPlanCache queryPlanCache = new GraphQLQueryPlanCache(1000);
 	
 	public BarleyGraphQLSchema(SpecRegistry specRegistry, Environment env, String namespace, CustomQueries customQueries) {
 		this.specRegistry = specRegistry;
@@ -110,6 +119,28 @@ public class BarleyGraphQLSchema {
 		return sdlString;
 	}
 
+	/**
+	 * The default for new contexts, see {@link GraphQLContext#setDataLoaderEnabled(boolean)}.
+	 */
+	public void setDataLoaderEnabled(boolean dataLoaderEnabled) {
+		this.dataLoaderEnabled = dataLoaderEnabled;
+	}
+
+	public boolean isDataLoaderEnabled() {
+		return dataLoaderEnabled;
+	}
+
+	public GraphQLQueryPlanCache getQueryPlanCache() {
+		return queryPlanCache;
+	}
+
+	/**
+	 * Sets the cache used by new contexts, null disables caching.
+	 */
+	public void setQueryPlanCache(GraphQLQueryPlanCache queryPlanCache) {
+		this.queryPlanCache = queryPlanCache;
+	}
+
 	public GraphQLContext newContext() {
 		return new BarleyGraphQLContext();
 	}
@@ -121,13 +152,25 @@ public class BarleyGraphQLSchema {
 		private final Set<QJoin> joinBreaks = new HashSet<>();
 		private final Map<String, Object> attributes = new HashMap<>();
 		private boolean batchFetchEnabled = true;
+		private boolean dataLoaderEnabled = BarleyGraphQLSchema.this.dataLoaderEnabled;
 
 		private List<Entity> rootEntities = new LinkedList<>();
 
 		private EntityContext entityContext;
 
+		private final GraphQLQueryPlanCache queryPlanCache;
+
+		private String currentQuery;
+
+		private Map<String, StreamedField> streamedFields;
+
 		public BarleyGraphQLContext() {
-			this.graphql = GraphQL.newGraphQL(graphQLSchema).build();
+			this.queryPlanCache = BarleyGraphQLSchema.this.queryPlanCache;
+			GraphQL.Builder builder = GraphQL.newGraphQL(graphQLSchema);
+			if (queryPlanCache != null) {
+				builder.preparsedDocumentProvider(queryPlanCache);
+			}
+			this.graphql = builder.build();
 			this.queryCustomizations = BarleyGraphQLSchema.this.queryCustomizations.copy();
 		}
 
@@ -141,43 +184,78 @@ public class BarleyGraphQLSchema {
 
 		@Override
 		public <T> T execute(String body) {
-			ExecutionResult result = graphql.execute(ExecutionInput.newExecutionInput()
-	                .query(body)
-	                .context(this)
-	                .build());
-			
-			if (!result.getErrors().isEmpty()) {
-				throw new GraphQLExecutionException(result.getErrors());
-			}
-			return result.getData();
+			return executeQuery(body).getData();
 		}
 
 		public List<Entity> executeAndGetEntities(String body) {
-			ExecutionResult result = graphql.execute(ExecutionInput.newExecutionInput()
-																					 .query(body)
-																					 .context(this)
-																					 .build());
-
-			if (!result.getErrors().isEmpty()) {
-				throw new GraphQLExecutionException(result.getErrors());
-			}
+			executeQuery(body);
 			return rootEntities;
 		}
 
 		public <T> List<T> executeAndGetProxies(String body) {
+			executeQuery(body);
+			List<T> proxies = new LinkedList<>();
+			for (Entity e: rootEntities) {
+				proxies.add(e.getEntityContext().getProxy(e));
+			}
+			return proxies;
+		}
+
+		/**
+		 * Executes the query and writes the JSON response to the output stream.<br/>
+		 * <br/>
+		 * The entities of the root queries are written directly to the output stream, graphql-java only resolves the root queries.
+		 */
+		public void executeAndWriteJson(String body, OutputStream out) throws IOException {
+			streamedFields = new LinkedHashMap<>();
+			try {
+				ExecutionResult result = executeQuery(body);
+				new GraphQLJsonWriter(this, out).write(result.getData(), streamedFields);
+			}
+			finally {
+				streamedFields = null;
+			}
+		}
+
+		boolean isStreaming() {
+			return streamedFields != null;
+		}
+
+		void addStreamedField(List<Field> fields, Map<String, FragmentDefinition> fragments, Map<String, Object> variables, Object value) {
+			Field field = fields.get(0);
+			streamedFields.put(field.getAlias() != null ? field.getAlias() : field.getName(), new StreamedField(fields, fragments, variables, value));
+		}
+
+		private ExecutionResult executeQuery(String body) {
+			this.currentQuery = body;
 			ExecutionResult result = graphql.execute(ExecutionInput.newExecutionInput()
-																					 .query(body)
-																					 .context(this)
-																					 .build());
+	                .query(body)
+	                .context(this)
+	                .dataLoaderRegistry(new DataLoaderRegistry())
+	                .build());
 
 			if (!result.getErrors().isEmpty()) {
 				throw new GraphQLExecutionException(result.getErrors());
 			}
-			List<T> proxies = new LinkedList<>();
-			for (Entity e: rootEntities) {
-				proxies.add(e.getEntityContext().getProxy(e));
+			return result;
+		}
+
+		/**
+		 * @return the graphql document which is being executed.
+		 */
+		String getCurrentQuery() {
+			return currentQuery;
+		}
+
+		/**
+		 * @return the query plan cache or null if the plans of this context cannot be shared.
+		 */
+		GraphQLQueryPlanCache getQueryPlanCache() {
+			if (queryCustomizations.getShouldBreakPredicate() != BarleyGraphQLSchema.this.queryCustomizations.getShouldBreakPredicate()) {
+				//the join breaks are part of the plan
+				return null;
 			}
-			return proxies;
+			return queryPlanCache;
 		}
 
 		@Override
@@ -230,6 +308,16 @@ public class BarleyGraphQLSchema {
 			return batchFetchEnabled;
 		}
 
+		@Override
+		public void setDataLoaderEnabled(boolean dataLoaderEnabled) {
+			this.dataLoaderEnabled = dataLoaderEnabled;
+		}
+
+		@Override
+		public boolean isDataLoaderEnabled() {
+			return dataLoaderEnabled;
+		}
+
 		public void setEntityContext(EntityContext ctx) {
 			this.entityContext = ctx;
 		}
@@ -67,10 +67,12 @@ public class DefaultQueryBreaker implements BiPredicate<QJoin, GraphQLContext> {
 
 	@Override
 	public boolean test(QJoin qjoin, GraphQLContext gctx) {
-	    Set<QJoin> joinsToBreak = gctx.get(DefaultQueryBreaker.class.getName());
+	    //a graphql document can have more than one root query
+	    String key = DefaultQueryBreaker.class.getName() + ":" + getRootQuery(qjoin).getUuid();
+	    Set<QJoin> joinsToBreak = gctx.get(key);
 	    if (joinsToBreak == null) {
 	    	joinsToBreak = calculateJoinsToBreak(qjoin);
-	    	gctx.put(DefaultQueryBreaker.class.getName(), joinsToBreak);
+	    	gctx.put(key, joinsToBreak);
 	    }
 	    return joinsToBreak.contains(qjoin);
 	}
@@ -109,16 +109,10 @@ public class EntityDataFetcher implements DataFetcher<Object> {
 				return ref;
 			}
 			LOG.debug("FK ref requires fetch {} {}", entity, fieldToFetch.getName());
-			QueryObject<Object> fetchQuery = getJoinAt(graphEnv, entity, fieldToFetch.getName());
-			Objects.requireNonNull(fetchQuery, () -> "fetch query must exist for entity " + entity + " and field " + fieldToFetch.getName());
-			ctx.register(fetchQuery);
-			try {
-				refNode.getReference().fetchIfRequiredAndAllowed();
-				return ref;
-			} finally {
-				// reset fetch query
-				ctx.register(new QueryObject<>(refNode.getEntityType().getInterfaceName()));
+			if (isDataLoaderEnabled(graphEnv)) {
+				return EntityDataLoaders.forReference(graphEnv.getDataLoaderRegistry(), ctx, fieldToFetch.getName(), getJoinAt(graphEnv.getContext(), entity, fieldToFetch.getName())).load(ref);
 			}
+			return fetchReference(graphEnv.getContext(), entity, refNode);
 		} else if (node instanceof ToManyNode) {
 			ToManyNode tmNode = (ToManyNode) node;
 			if (tmNode.isFetched()) {
@@ -126,25 +120,65 @@ public class EntityDataFetcher implements DataFetcher<Object> {
 				return tmNode.getList();
 			}
 			LOG.debug("1:N ref requires fetch {} {}", entity, fieldToFetch.getName());
-			QueryObject<Object> fetchQuery = getJoinAt(graphEnv, entity, fieldToFetch.getName());
-			Objects.requireNonNull(fetchQuery, () -> "fetch query must exist for entity " + entity + " and field " + fieldToFetch.getName());
-			ctx.register(fetchQuery);
-			try {
-				fetchIfNeeded(tmNode);
-				return tmNode.getList();
-			} finally {
-				// reset fetch query
-				ctx.register(new QueryObject<>(tmNode.getEntityType().getInterfaceName()));
+			if (isDataLoaderEnabled(graphEnv) && entity.getEntityState() != EntityState.LOADING) {
+				return EntityDataLoaders.forToMany(graphEnv.getDataLoaderRegistry(), ctx, fieldToFetch.getName(), getJoinAt(graphEnv.getContext(), entity, fieldToFetch.getName())).load(entity);
 			}
+			return fetchToMany(graphEnv.getContext(), entity, tmNode);
 		} else {
 			throw new IllegalStateException("Unknown node type " + node.getClass());
 		}
 	}
   
-	private QueryObject<Object> getJoinAt(DataFetchingEnvironment graphEnv, Entity entity, String property) {
+	private boolean isDataLoaderEnabled(DataFetchingEnvironment graphEnv) {
 		GraphQLContext gctx = graphEnv.getContext();
+		return gctx.isDataLoaderEnabled() && graphEnv.getDataLoaderRegistry() != null;
+	}
+
+	/**
+	 * Fetches the referenced entity using the query of the join break.
+	 * @return the referenced entity or null.
+	 */
+	static Entity fetchReference(GraphQLContext gctx, Entity entity, RefNode refNode) {
+		Entity ref = refNode.getReference();
+		if (ref == null || !ref.isFetchRequired()) {
+			return ref;
+		}
+		QueryObject<Object> fetchQuery = getJoinAt(gctx, entity, refNode.getName());
+		EntityContext ctx = entity.getEntityContext();
+		ctx.register(fetchQuery);
+		try {
+			ref.fetchIfRequiredAndAllowed();
+			return ref;
+		} finally {
+			// reset fetch query
+			ctx.register(new QueryObject<>(refNode.getEntityType().getInterfaceName()));
+		}
+	}
+
+	/**
+	 * Fetches the to many relation using the query of the join break.
+	 * @return the entities of the relation.
+	 */
+	static List<Entity> fetchToMany(GraphQLContext gctx, Entity entity, ToManyNode tmNode) {
+		if (tmNode.isFetched()) {
+			return tmNode.getList();
+		}
+		QueryObject<Object> fetchQuery = getJoinAt(gctx, entity, tmNode.getName());
+		EntityContext ctx = entity.getEntityContext();
+		ctx.register(fetchQuery);
+		try {
+			fetchIfNeeded(tmNode);
+			return tmNode.getList();
+		} finally {
+			// reset fetch query
+			ctx.register(new QueryObject<>(tmNode.getEntityType().getInterfaceName()));
+		}
+	}
+
+	private static QueryObject<Object> getJoinAt(GraphQLContext gctx, Entity entity, String property) {
 		QJoin join = gctx.getJoinBreakFor(entity, property);
-	    return (QueryObject<Object> )(join != null ? join.getTo() : null);
+		Objects.requireNonNull(join, () -> "fetch query must exist for entity " + entity + " and field " + property);
+	    return (QueryObject<Object>)join.getTo();
 	}
 
 	/**
@@ -160,7 +194,7 @@ public class EntityDataFetcher implements DataFetcher<Object> {
   }
 	 */
 
-  private void fetchIfNeeded(ToManyNode toManyNode) {
+  private static void fetchIfNeeded(ToManyNode toManyNode) {
       if (toManyNode.getParent().isClearlyNotInDatabase()) {
           return;
       }
@@ -0,0 +1,125 @@
+package scott.barleydb.api.graphql;
+
+/*-
+ * #%L
+ * BarleyDB
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2014 - 2019 Scott Sinclair
+ *       <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderFactory;
+import org.dataloader.DataLoaderRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.entity.ToManyNode;
+import scott.barleydb.api.query.QueryObject;
+
+/**
+ * Creates the data loaders which batch the fetching of references and to many relations.<br/>
+ * <br/>
+ * graphql-java dispatches the data loaders once per execution level, so all entities requested for a relation
+ * at the same level are fetched with one IN query. The data loaders are kept in the data loader registry of the
+ * request, so each entity is only fetched once per request.
+ *
+ * @author scott
+ *
+ */
+final class EntityDataLoaders {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EntityDataLoaders.class);
+
+	private EntityDataLoaders() {
+	}
+
+	/**
+	 * @param fetchQuery the query of the join break, which defines what is fetched with the referenced entities.
+	 * @return the data loader for the referenced entities of the given relation.
+	 */
+	static DataLoader<Entity, Entity> forReference(DataLoaderRegistry registry, EntityContext ctx, String nodeName, QueryObject<Object> fetchQuery) {
+		return registry.computeIfAbsent(loaderName(nodeName, fetchQuery), name -> DataLoaderFactory.<Entity, Entity>newDataLoader((List<Entity> refs) -> {
+			LOG.debug("Batch fetching {} references for {}", refs.size(), name);
+			ctx.register(fetchQuery);
+			try {
+				ctx.fetchEntities(refs);
+				return CompletableFuture.completedFuture(refs);
+			}
+			catch(Exception x) {
+				return failed(x);
+			}
+			finally {
+				// reset fetch query
+				ctx.register(new QueryObject<>(fetchQuery.getTypeName()));
+			}
+		}));
+	}
+
+	/**
+	 * @param fetchQuery the query of the join break, which defines what is fetched with the entities of the to many relation.
+	 * @return the data loader which takes the parent entities and loads the entity lists of the given relation.
+	 */
+	static DataLoader<Entity, List<Entity>> forToMany(DataLoaderRegistry registry, EntityContext ctx, String nodeName, QueryObject<Object> fetchQuery) {
+		return registry.computeIfAbsent(loaderName(nodeName, fetchQuery), name -> DataLoaderFactory.<Entity, List<Entity>>newDataLoader((List<Entity> parents) -> {
+			LOG.debug("Batch fetching {} for {} parents", name, parents.size());
+			List<ToManyNode> nodes = new ArrayList<>(parents.size());
+			for (Entity parent: parents) {
+				nodes.add(parent.getChild(nodeName, ToManyNode.class));
+			}
+			ctx.register(fetchQuery);
+			try {
+				ctx.fetchToManyNodes(nodes);
+				List<List<Entity>> result = new ArrayList<>(nodes.size());
+				for (ToManyNode node: nodes) {
+					result.add(node.getList());
+				}
+				return CompletableFuture.completedFuture(result);
+			}
+			catch(Exception x) {
+				return failed(x);
+			}
+			finally {
+				// reset fetch query
+				ctx.register(new QueryObject<>(fetchQuery.getTypeName()));
+			}
+		}));
+	}
+
+	/**
+	 * one data loader per join break, the uuid of the query identifies the join break.
+	 */
+	private static String loaderName(String nodeName, QueryObject<Object> fetchQuery) {
+		return nodeName + "@" + fetchQuery.getUuid();
+	}
+
+	private static <T> CompletableFuture<T> failed(Exception x) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(x);
+		return future;
+	}
+}
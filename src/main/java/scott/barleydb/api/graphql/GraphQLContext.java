@@ -46,4 +46,11 @@ public interface GraphQLContext {
 
 	boolean isBatchFetchEnabled();
 
+	/**
+	 * If enabled then join breaks are fetched with data loaders, one query per relation and execution level.
+	 */
+	void setDataLoaderEnabled(boolean dataLoaderEnabled);
+
+	boolean isDataLoaderEnabled();
+
 }
@@ -0,0 +1,325 @@
+package scott.barleydb.api.graphql;
+
+/*-
+ * #%L
+ * BarleyDB
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2014 - 2019 Scott Sinclair
+ *       <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import graphql.language.Argument;
+import graphql.language.BooleanValue;
+import graphql.language.Directive;
+import graphql.language.DirectivesContainer;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.FragmentSpread;
+import graphql.language.InlineFragment;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.language.Value;
+import graphql.language.VariableReference;
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.core.entity.Node;
+import scott.barleydb.api.core.entity.RefNode;
+import scott.barleydb.api.core.entity.ToManyNode;
+import scott.barleydb.api.core.entity.ValueNode;
+
+/**
+ * Writes the result of a graphql query as JSON directly from the entities, following the selection set of each field.<br/>
+ * <br/>
+ * The root queries are resolved as usual, but their entities are not completed by graphql-java, so no result maps are
+ * built. Relations which were broken out of the root query are fetched while writing, in the same way as {@link EntityDataFetcher}.<br/>
+ * <br/>
+ * Scalars are written like the graphql-java coercing would: numbers and booleans as JSON values, enums by name and everything
+ * else as a string.
+ *
+ * @author scott
+ *
+ */
+final class GraphQLJsonWriter {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+	/**
+	 * A root field whose value is written by the json writer.<br/>
+	 * <br/>
+	 * The selection plan is resolved when the field is created, so an unsupported selection fails the execution
+	 * before anything is written.
+	 */
+	static final class StreamedField {
+		private final SelectionPlan plan;
+		private final Object value;
+
+		StreamedField(List<Field> fields, Map<String, FragmentDefinition> fragments, Map<String, Object> variables, Object value) {
+			this.plan = SelectionPlan.of(fields, fragments, variables);
+			this.value = value;
+		}
+	}
+
+	/**
+	 * The merged sub fields of a selection with their own plans, built once and shared by every entity written
+	 * for the selection.
+	 */
+	static final class SelectionPlan {
+		private final String keys[];
+		private final String names[];
+		/**
+		 * null for fields without a selection set.
+		 */
+		private final SelectionPlan subPlans[];
+
+		private SelectionPlan(Map<String, List<Field>> subFields, Map<String, FragmentDefinition> fragments, Map<String, Object> variables) {
+			keys = new String[subFields.size()];
+			names = new String[keys.length];
+			subPlans = new SelectionPlan[keys.length];
+			int i = 0;
+			for (Map.Entry<String, List<Field>> entry: subFields.entrySet()) {
+				keys[i] = entry.getKey();
+				names[i] = entry.getValue().get(0).getName();
+				if (entry.getValue().get(0).getSelectionSet() != null) {
+					subPlans[i] = of(entry.getValue(), fragments, variables);
+				}
+				i++;
+			}
+		}
+
+		static SelectionPlan of(List<Field> fields, Map<String, FragmentDefinition> fragments, Map<String, Object> variables) {
+			Map<String, List<Field>> subFields = new LinkedHashMap<>();
+			for (Field field: fields) {
+				collectFields(field.getSelectionSet(), fragments, variables, subFields);
+			}
+			return new SelectionPlan(subFields, fragments, variables);
+		}
+	}
+
+	private final GraphQLContext gctx;
+	private final JsonGenerator gen;
+
+	GraphQLJsonWriter(GraphQLContext gctx, OutputStream out) throws IOException {
+		this.gctx = gctx;
+		this.gen = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+	}
+
+	/**
+	 * Writes the response, the fields in the data which were streamed are replaced by the streamed values.
+	 */
+	void write(Map<String, Object> data, Map<String, StreamedField> streamedFields) throws IOException {
+		gen.writeStartObject();
+		gen.writeFieldName("data");
+		if (data == null) {
+			gen.writeNull();
+		}
+		else {
+			gen.writeStartObject();
+			for (Map.Entry<String, Object> entry: data.entrySet()) {
+				gen.writeFieldName(entry.getKey());
+				StreamedField streamed = streamedFields.get(entry.getKey());
+				if (streamed != null) {
+					writeValue(streamed.value, streamed.plan);
+				}
+				else {
+					writeObject(entry.getValue());
+				}
+			}
+			gen.writeEndObject();
+		}
+		gen.writeEndObject();
+		gen.flush();
+	}
+
+	private void writeValue(Object value, SelectionPlan plan) throws IOException {
+		if (value == null) {
+			gen.writeNull();
+		}
+		else if (value instanceof List) {
+			gen.writeStartArray();
+			for (Object o: (List<?>)value) {
+				writeEntity((Entity)o, plan);
+			}
+			gen.writeEndArray();
+		}
+		else {
+			writeEntity((Entity)value, plan);
+		}
+	}
+
+	private void writeEntity(Entity entity, SelectionPlan plan) throws IOException {
+		gen.writeStartObject();
+		for (int i = 0; i < plan.keys.length; i++) {
+			String name = plan.names[i];
+			gen.writeFieldName(plan.keys[i]);
+			if (name.equals("__typename")) {
+				gen.writeString(entity.getEntityType().getInterfaceShortName());
+				continue;
+			}
+			Node node = entity.getChild(name);
+			if (node == null) {
+				throw new IllegalStateException("Could not find node matching graphql field: " + name);
+			}
+			if (node instanceof ValueNode) {
+				writeScalar(((ValueNode) node).getValue());
+			}
+			else if (node instanceof RefNode) {
+				Entity ref = EntityDataFetcher.fetchReference(gctx, entity, (RefNode) node);
+				if (ref == null) {
+					gen.writeNull();
+				}
+				else {
+					writeEntity(ref, plan.subPlans[i]);
+				}
+			}
+			else if (node instanceof ToManyNode) {
+				gen.writeStartArray();
+				for (Entity e: EntityDataFetcher.fetchToMany(gctx, entity, (ToManyNode) node)) {
+					writeEntity(e, plan.subPlans[i]);
+				}
+				gen.writeEndArray();
+			}
+			else {
+				throw new IllegalStateException("Unknown node type " + node.getClass());
+			}
+		}
+		gen.writeEndObject();
+	}
+
+	/**
+	 * collects the fields by result key, fields with the same key are merged by graphql.
+	 */
+	private static void collectFields(SelectionSet selectionSet, Map<String, FragmentDefinition> fragments, Map<String, Object> variables, Map<String, List<Field>> result) {
+		if (selectionSet == null) {
+			return;
+		}
+		for (Selection<?> selection: selectionSet.getSelections()) {
+			if (selection instanceof Field) {
+				Field field = (Field) selection;
+				if (isIncluded(field, variables)) {
+					String key = field.getAlias() != null ? field.getAlias() : field.getName();
+					result.computeIfAbsent(key, k -> new ArrayList<>()).add(field);
+				}
+			}
+			else if (selection instanceof InlineFragment) {
+				InlineFragment inline = (InlineFragment) selection;
+				if (isIncluded(inline, variables)) {
+					collectFields(inline.getSelectionSet(), fragments, variables, result);
+				}
+			}
+			else if (selection instanceof FragmentSpread) {
+				FragmentSpread spread = (FragmentSpread) selection;
+				FragmentDefinition fragment = fragments.get(spread.getName());
+				if (fragment != null && isIncluded(spread, variables)) {
+					collectFields(fragment.getSelectionSet(), fragments, variables, result);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param variables the coerced variables of the execution, which include the default values.
+	 */
+	private static boolean isIncluded(DirectivesContainer<?> selection, Map<String, Object> variables) {
+		return !isDirectiveTrue(selection, "skip", false, variables) && isDirectiveTrue(selection, "include", true, variables);
+	}
+
+	private static boolean isDirectiveTrue(DirectivesContainer<?> selection, String name, boolean defaultValue, Map<String, Object> variables) {
+		for (Directive directive: selection.getDirectives()) {
+			if (directive.getName().equals(name)) {
+				Argument argument = directive.getArgument("if");
+				Value<?> value = argument != null ? argument.getValue() : null;
+				if (value instanceof BooleanValue) {
+					return ((BooleanValue) value).isValue();
+				}
+				if (value instanceof VariableReference) {
+					Object variable = variables.get(((VariableReference) value).getName());
+					if (variable instanceof Boolean) {
+						return (Boolean) variable;
+					}
+				}
+				throw new IllegalStateException("Cannot resolve the condition of @" + name + ": " + directive);
+			}
+		}
+		return defaultValue;
+	}
+
+	private void writeScalar(Object value) throws IOException {
+		if (value == null) {
+			gen.writeNull();
+		}
+		else if (value instanceof String) {
+			gen.writeString((String) value);
+		}
+		else if (value instanceof BigDecimal) {
+			gen.writeNumber((BigDecimal) value);
+		}
+		else if (value instanceof Double || value instanceof Float) {
+			gen.writeNumber(((Number) value).doubleValue());
+		}
+		else if (value instanceof Number) {
+			gen.writeNumber(((Number) value).longValue());
+		}
+		else if (value instanceof Boolean) {
+			gen.writeBoolean((Boolean) value);
+		}
+		else if (value instanceof Enum) {
+			gen.writeString(((Enum<?>) value).name());
+		}
+		else {
+			gen.writeString(value.toString());
+		}
+	}
+
+	/**
+	 * writes values which were completed by graphql-java, like introspection results.
+	 */
+	private void writeObject(Object value) throws IOException {
+		if (value instanceof Map) {
+			gen.writeStartObject();
+			for (Map.Entry<?, ?> entry: ((Map<?, ?>) value).entrySet()) {
+				gen.writeFieldName(String.valueOf(entry.getKey()));
+				writeObject(entry.getValue());
+			}
+			gen.writeEndObject();
+		}
+		else if (value instanceof Iterable) {
+			gen.writeStartArray();
+			for (Object o: (Iterable<?>) value) {
+				writeObject(o);
+			}
+			gen.writeEndArray();
+		}
+		else {
+			writeScalar(value);
+		}
+	}
+}
@@ -45,6 +45,10 @@ public class GraphQLQueryCustomizations {
 		return shouldBreakPredicate.test(join, graphCtx);
 	}
 
+	public BiPredicate<QJoin, GraphQLContext> getShouldBreakPredicate() {
+		return shouldBreakPredicate;
+	}
+
 	public void setShouldBreakPredicate(BiPredicate<QJoin, GraphQLContext> shouldBreakPredicate) {
 		this.shouldBreakPredicate = shouldBreakPredicate;
 	}
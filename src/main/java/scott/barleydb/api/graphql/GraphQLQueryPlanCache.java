@@ -0,0 +1,243 @@
+package scott.barleydb.api.graphql;
+
+/*-
+ * #%L
+ * BarleyDB
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2014 - 2019 Scott Sinclair
+ *       <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+
+import static scott.barleydb.api.graphql.GraphQLTypeConversion.convertValue;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+import graphql.ExecutionInput;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.execution.preparsed.PreparsedDocumentProvider;
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.core.QueryRegistry;
+import scott.barleydb.api.query.QJoin;
+import scott.barleydb.api.query.QParameter;
+import scott.barleydb.api.query.QueryObject;
+import scott.barleydb.api.query.helper.CollectQParameters;
+
+/**
+ * Caches the parsed and validated graphql documents and the prepared query plans of a schema.<br/>
+ * <br/>
+ * A query plan is the projected and broken query for a root field of a graphql document, it is keyed by the
+ * document, the field and the names of the arguments. The arguments are bound to query parameters, so each request
+ * only has to clone the plan and set the parameter values.<br/>
+ * <br/>
+ * Documents and plans are both keyed by the normalized document, so documents which only differ in whitespace,
+ * commas or comments share their entries. Each cache holds at most maxSize documents and plans, the least recently
+ * used entries are evicted once it is full.
+ *
+ * @author scott
+ *
+ */
+public class GraphQLQueryPlanCache implements PreparsedDocumentProvider {
+
+	/**
+	 * A prepared query, the query and join breaks are never modified once the plan is built.
+	 */
+	static final class QueryPlan {
+		private final QueryObject<Object> query;
+		private final List<QJoin> joinBreaks;
+		/**
+		 * the node types of the arguments which are query conditions, other arguments are query parameters.
+		 */
+		private final Map<String, NodeType> conditionArguments;
+		private final BiPredicate<QJoin, GraphQLContext> breakPredicate;
+
+		QueryPlan(QueryObject<Object> query, List<QJoin> joinBreaks, Map<String, NodeType> conditionArguments, BiPredicate<QJoin, GraphQLContext> breakPredicate) {
+			this.query = query;
+			this.joinBreaks = Collections.unmodifiableList(joinBreaks);
+			this.conditionArguments = Collections.unmodifiableMap(conditionArguments);
+			this.breakPredicate = breakPredicate;
+		}
+
+		List<QJoin> getJoinBreaks() {
+			return joinBreaks;
+		}
+
+		BiPredicate<QJoin, GraphQLContext> getBreakPredicate() {
+			return breakPredicate;
+		}
+
+		/**
+		 * @return a copy of the planned query with the arguments set on the query parameters.
+		 */
+		QueryObject<Object> newQuery(Map<String, Object> arguments) {
+			QueryObject<Object> result = QueryRegistry.clone(query);
+			for (Map.Entry<String, Object> argument: arguments.entrySet()) {
+				QParameter<Object> param = CollectQParameters.forQuery(result, argument.getKey());
+				if (param == null) {
+					//a null condition, which is part of the plan
+					continue;
+				}
+				Object value = argument.getValue();
+				if (value != null) {
+					NodeType nodeType = conditionArguments.get(argument.getKey());
+					if (nodeType != null) {
+						value = convertValue(nodeType, value);
+					}
+					else if (param.getType() != null) {
+						/*
+						 * if the QParameter has a type then try type conversion (graphql layer type conversion)
+						 */
+						value = convertValue(value, param.getType());
+					}
+				}
+				param.setValue(value);
+			}
+			return result;
+		}
+	}
+
+	private final Map<String, PreparsedDocumentEntry> documents;
+	private final Map<String, QueryPlan> plans;
+
+	public GraphQLQueryPlanCache(int maxSize) {
+		this.documents = newLruMap(maxSize);
+		this.plans = newLruMap(maxSize);
+	}
+
+	private static <V> Map<String, V> newLruMap(final int maxSize) {
+		return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return size() > maxSize;
+			}
+		});
+	}
+
+	@Override
+	public PreparsedDocumentEntry getDocument(ExecutionInput executionInput, Function<ExecutionInput, PreparsedDocumentEntry> parseAndValidateFunction) {
+		String key = normalize(executionInput.getQuery());
+		PreparsedDocumentEntry entry = documents.get(key);
+		if (entry == null) {
+			entry = parseAndValidateFunction.apply(executionInput);
+			documents.put(key, entry);
+		}
+		return entry;
+	}
+
+	@Override
+	public CompletableFuture<PreparsedDocumentEntry> getDocumentAsync(ExecutionInput executionInput, Function<ExecutionInput, PreparsedDocumentEntry> parseAndValidateFunction) {
+		return CompletableFuture.completedFuture(getDocument(executionInput, parseAndValidateFunction));
+	}
+
+	QueryPlan getPlan(String key) {
+		return plans.get(key);
+	}
+
+	void putPlan(String key, QueryPlan plan) {
+		plans.put(key, plan);
+	}
+
+	public int getNumberOfDocuments() {
+		return documents.size();
+	}
+
+	public int getNumberOfPlans() {
+		return plans.size();
+	}
+
+	public void clear() {
+		documents.clear();
+		plans.clear();
+	}
+
+	/**
+	 * @return the document with all whitespace, commas and comments between tokens reduced to single spaces.
+	 * String values are kept as they are.
+	 */
+	static String normalize(String document) {
+		StringBuilder sb = new StringBuilder(document.length());
+		boolean space = false;
+		for (int i = 0; i < document.length(); i++) {
+			char c = document.charAt(i);
+			if (Character.isWhitespace(c) || c == ',') {
+				space = sb.length() > 0;
+				continue;
+			}
+			if (c == '#') {
+				//comments are ignored like whitespace
+				int end = document.indexOf('\n', i);
+				i = end == -1 ? document.length() : end;
+				space = sb.length() > 0;
+				continue;
+			}
+			if (space) {
+				sb.append(' ');
+				space = false;
+			}
+			if (c == '"') {
+				int end = document.startsWith("\"\"\"", i) ? endOfBlockString(document, i + 3) : endOfString(document, i + 1);
+				sb.append(document, i, end);
+				i = end - 1;
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the index after the closing quote of the string starting at from.
+	 */
+	private static int endOfString(String document, int from) {
+		for (int i = from; i < document.length(); i++) {
+			char c = document.charAt(i);
+			if (c == '\\') {
+				i++;
+			}
+			else if (c == '"' || c == '\n') {
+				return i + 1;
+			}
+		}
+		return document.length();
+	}
+
+	/**
+	 * @return the index after the closing triple quote of the block string starting at from.
+	 */
+	private static int endOfBlockString(String document, int from) {
+		for (int i = from; i < document.length(); i++) {
+			if (document.startsWith("\\\"\"\"", i)) {
+				i += 3;
+			}
+			else if (document.startsWith("\"\"\"", i)) {
+				return i + 3;
+			}
+		}
+		return document.length();
+	}
+}
@@ -31,8 +31,10 @@ import static scott.barleydb.api.graphql.GraphQLTypeConversion.convertValue;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import graphql.schema.GraphQLObjectType;
 import graphql.schema.GraphQLType;
@@ -49,6 +51,7 @@ import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
 import scott.barleydb.api.graphql.BarleyGraphQLSchema.BarleyGraphQLContext;
+import scott.barleydb.api.graphql.GraphQLQueryPlanCache.QueryPlan;
 import scott.barleydb.api.query.JoinType;
 import scott.barleydb.api.query.QJoin;
 import scott.barleydb.api.query.QMathOps;
@@ -86,42 +89,50 @@ public class QueryDataFetcher implements DataFetcher<Object> {
     ((BarleyGraphQLContext)graphEnv.getContext()).setEntityContext(ctx);
 
 
-    QueryObject<Object> query = null;
-    if (customQueries != null) {
-      query = (QueryObject<Object>)customQueries.getQuery(graphEnv.getField().getName());
+    BarleyGraphQLContext gctx = graphEnv.getContext();
+    GraphQLQueryPlanCache planCache = gctx.getQueryPlanCache();
+    String planKey = null;
+    QueryPlan plan = null;
+    if (planCache != null && gctx.getCurrentQuery() != null) {
+      planKey = getPlanKey(graphEnv, gctx.getCurrentQuery());
+      plan = planCache.getPlan(planKey);
+      if (plan != null && plan.getBreakPredicate() != gctx.getQueryCustomizations().getShouldBreakPredicate()) {
+        plan = null;
+      }
     }
-    if (query == null) {
-      EntityType entityType = getEntityTypeForQuery(graphEnv);
-      query = buildQuery(graphEnv, entityType);
+    if (plan == null) {
+      plan = buildPlan(graphEnv, ctx);
+      if (planKey != null) {
+        planCache.putPlan(planKey, plan);
+      }
     }
     else {
-      buildQuery(graphEnv, query);
+      LOG.debug("Using cached query plan for {}", graphEnv.getField().getName());
+    }
+    for (QJoin joinBreak: plan.getJoinBreaks()) {
+      gctx.registerJoinBreak(joinBreak);
     }
-    LOG.debug("Built full query which will be broken into chunks, query => {}", ctx.debugQueryString(query));
-    
-    breakQuery(graphEnv, query);
 
-    BarleyGraphQLContext gctx = graphEnv.getContext();
-    QueryResult<Object> queryResult = ctx.performQuery(query);
+    QueryResult<Object> queryResult = ctx.performQuery(plan.newQuery(graphEnv.getArguments()));
     
     List<Entity> result = queryResult.getEntityList();
     LOG.debug("Processed {} rows", ctx.getStatistics().getNumberOfRowsRead());
     if (graphEnv.getExecutionStepInfo().getType() instanceof GraphQLList) {
-      if (gctx.isBatchFetchEnabled()) {
+      if (shouldBatchFetchDescendants(gctx)) {
     	  ctx.batchFetchDescendants(result);
       }
       for (Entity e: result) {
         gctx.addRootEntity(e);
       }
-      return result; //Entity2Map.toListOfMaps(result);
+      return streamOrReturn(graphEnv, gctx, result); //Entity2Map.toListOfMaps(result);
     }
     else if (result.size() == 1) {
       Entity e = result.get(0);//Entity2Map.toMap(result.get(0));
-      if (gctx.isBatchFetchEnabled()) {
+      if (shouldBatchFetchDescendants(gctx)) {
         ctx.batchFetchDescendants(e);
       }
       gctx.addRootEntity(e);
-      return e;
+      return streamOrReturn(graphEnv, gctx, e);
     }
     else if (result.size() == 0) {
     	return null;
@@ -129,29 +140,87 @@ public class QueryDataFetcher implements DataFetcher<Object> {
     throw new IllegalStateException("too many results");
   }
 
-  private void breakQuery(DataFetchingEnvironment graphEnv, QueryObject<Object> query) {
+  /**
+   * The data loaders only batch the fields which graphql-java completes. Streamed values are written by the
+   * {@link GraphQLJsonWriter}, which fetches the broken relations through the batch fetch roots instead.
+   */
+  private static boolean shouldBatchFetchDescendants(BarleyGraphQLContext gctx) {
+    return gctx.isBatchFetchEnabled() && (gctx.isStreaming() || !gctx.isDataLoaderEnabled());
+  }
+
+  /**
+   * When streaming, the value is written by the {@link GraphQLJsonWriter} and graphql-java does not complete it.
+   */
+  private Object streamOrReturn(DataFetchingEnvironment graphEnv, BarleyGraphQLContext gctx, Object value) {
+    if (gctx.isStreaming()) {
+      gctx.addStreamedField(graphEnv.getMergedField().getFields(), graphEnv.getFragmentsByName(), graphEnv.getVariables(), value);
+      return null;
+    }
+    return value;
+  }
+
+  /**
+   * Builds the projected and broken query, the arguments are bound to query parameters so that the plan can be reused.
+   */
+  private QueryPlan buildPlan(DataFetchingEnvironment graphEnv, EntityContext ctx) {
+    Map<String, NodeType> conditionArguments = new HashMap<>();
+    QueryObject<Object> query = null;
+    if (customQueries != null) {
+      query = (QueryObject<Object>)customQueries.getQuery(graphEnv.getField().getName());
+    }
+    if (query == null) {
+      EntityType entityType = getEntityTypeForQuery(graphEnv);
+      query = buildQuery(graphEnv, entityType, conditionArguments);
+    }
+    else {
+      buildQuery(graphEnv, query, conditionArguments);
+    }
+    LOG.debug("Built full query which will be broken into chunks, query => {}", ctx.debugQueryString(query));
+
+    List<QJoin> joinBreaks = new ArrayList<>();
+    breakQuery(graphEnv, query, joinBreaks);
+    GraphQLContext gctx = graphEnv.getContext();
+    return new QueryPlan(query, joinBreaks, conditionArguments, gctx.getQueryCustomizations().getShouldBreakPredicate());
+  }
+
+  /**
+   * The plan depends on the document, the field being fetched and which arguments are given.
+   */
+  private String getPlanKey(DataFetchingEnvironment graphEnv, String document) {
+    StringBuilder sb = new StringBuilder(GraphQLQueryPlanCache.normalize(document));
+    sb.append('#');
+    sb.append(graphEnv.getOperationDefinition().getName());
+    sb.append('#');
+    sb.append(graphEnv.getExecutionStepInfo().getPath());
+    for (Map.Entry<String, Object> argument: new TreeMap<>(graphEnv.getArguments()).entrySet()) {
+      sb.append(argument.getValue() != null ? " " : " !");
+      sb.append(argument.getKey());
+    }
+    return sb.toString();
+  }
+
+  private void breakQuery(DataFetchingEnvironment graphEnv, QueryObject<Object> query, List<QJoin> joinBreaks) {
 	  GraphQLContext graphCtx = graphEnv.getContext();	  
 	  for (QJoin join: new ArrayList<>(query.getJoins())) {
 		  if (graphCtx.getQueryCustomizations().shouldBreakJoin(join, graphCtx)) {
 			  query.removeJoin(join);
-			  GraphQLContext gctx = graphEnv.getContext();
-			  gctx.registerJoinBreak(join);
+			  joinBreaks.add(join);
 		  }
-		breakQuery(graphEnv, (QueryObject<Object>)join.getTo());
+		breakQuery(graphEnv, (QueryObject<Object>)join.getTo(), joinBreaks);
 	  }
   }
 
-  private QueryObject<Object> buildQuery(DataFetchingEnvironment graphEnv, EntityType entityType) {
+  private QueryObject<Object> buildQuery(DataFetchingEnvironment graphEnv, EntityType entityType, Map<String, NodeType> conditionArguments) {
     QueryObject<Object> query = new QueryObject<>(entityType.getInterfaceName());
-    return buildQuery(graphEnv, query, entityType);
+    return buildQuery(graphEnv, query, entityType, conditionArguments);
   }
 
-  private QueryObject<Object> buildQuery(DataFetchingEnvironment graphEnv, QueryObject<Object> query) {
+  private QueryObject<Object> buildQuery(DataFetchingEnvironment graphEnv, QueryObject<Object> query, Map<String, NodeType> conditionArguments) {
     EntityType entityType = env.getDefinitionsSet().getFirstEntityTypeByInterfaceName(query.getTypeName());
-    return buildQuery(graphEnv, query, entityType);
+    return buildQuery(graphEnv, query, entityType, conditionArguments);
   }
 
-  private QueryObject<Object> buildQuery(DataFetchingEnvironment graphEnv, QueryObject<Object> query, EntityType entityType) {
+  private QueryObject<Object> buildQuery(DataFetchingEnvironment graphEnv, QueryObject<Object> query, EntityType entityType, Map<String, NodeType> conditionArguments) {
     /*
      * build the where clause
      */
@@ -162,21 +231,24 @@ public class QueryDataFetcher implements DataFetcher<Object> {
       QParameter<Object> param = findQueryParameter(query, argument.getKey());
       Object value = argument.getValue();
       if (param != null) {
-    	  if (param.getType() != null) {
-    		  /*
-    		   * if the QParameter has a type then try type conversion (graphql layer type conversion)
-    		   */
-    		  value = convertValue(value, param.getType());
-    	  }
-        param.setValue(value);
-        LOG.trace("Set query parameter {}", param.getName());
+    	  /*
+    	   * the value is set when the plan is executed
+    	   */
+        LOG.trace("Found query parameter {}", param.getName());
+      }
+      else if (value == null) {
+        QPropertyCondition qcond = createCondition(query, entityType, argument.getKey(), QMathOps.EQ, value);
+        query.and(qcond);
+        LOG.trace("Added query condition {}", qcond);
       }
       else {
     	  /*
     	   * otherwise the parameter must match exactly a node.
     	   */
-        QPropertyCondition qcond = createCondition(query, entityType, argument.getKey(), QMathOps.EQ, value);
+        NodeType nodeType = entityType.getNodeType(argument.getKey(), true);
+        QPropertyCondition qcond = createProperty(query, argument.getKey()).equalsParam(new QParameter<>(argument.getKey()));
         query.and(qcond);
+        conditionArguments.put(argument.getKey(), nodeType);
         LOG.trace("Added query condition {}", qcond);
       }
     }
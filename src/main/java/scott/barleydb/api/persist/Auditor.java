@@ -25,9 +25,30 @@ package scott.barleydb.api.persist;
  * #L%
  */
 
+import java.sql.Connection;
+
 import scott.barleydb.api.audit.AuditInformation;
 
 public interface Auditor {
 
   void saveAuditInformation(AuditInformation audit);
+
+  /**
+   * Saves the audit information of a persist which is using the given connection.
+   */
+  default void saveAuditInformation(AuditInformation audit, Connection connection) {
+    saveAuditInformation(audit);
+  }
+
+  /**
+   * Called once the connection has committed the persisted data.
+   */
+  default void afterCommit(Connection connection) {
+  }
+
+  /**
+   * Called once the connection has rolled back the persisted data.
+   */
+  default void afterRollback(Connection connection) {
+  }
 }
@@ -0,0 +1,86 @@
+package scott.barleydb.api.persist;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The result of a set based delete or update.<br/>
+ * <br/>
+ * Contains the number of rows affected for each entity type, in the order in which the statements were executed.
+ *
+ * @author scott
+ *
+ */
+public class BulkResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String entityTypeName;
+
+    private final Map<String, Integer> rowCounts = new LinkedHashMap<>();
+
+    public BulkResult(String entityTypeName) {
+        this.entityTypeName = entityTypeName;
+    }
+
+    public void addRowCount(String entityTypeName, int count) {
+        Integer current = rowCounts.get(entityTypeName);
+        rowCounts.put(entityTypeName, current != null ? current + count : count);
+    }
+
+    /**
+     * @return the interface name of the entity type which was queried.
+     */
+    public String getEntityTypeName() {
+        return entityTypeName;
+    }
+
+    /**
+     * @return the number of rows affected for the entity type which was queried.
+     */
+    public int getRowCount() {
+        return getRowCount(entityTypeName);
+    }
+
+    public int getRowCount(String entityTypeName) {
+        Integer count = rowCounts.get(entityTypeName);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @return the row counts keyed by entity type interface name
+     */
+    public Map<String, Integer> getRowCounts() {
+        return Collections.unmodifiableMap(rowCounts);
+    }
+
+    @Override
+    public String toString() {
+        return "BulkResult [entityTypeName=" + entityTypeName + ", rowCounts=" + rowCounts + "]";
+    }
+
+}
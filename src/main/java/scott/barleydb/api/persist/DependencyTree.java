@@ -48,6 +48,7 @@ import scott.barleydb.api.config.EntityType;
 import scott.barleydb.api.config.NodeType;
 import scott.barleydb.api.core.QueryBatcher;
 import scott.barleydb.api.core.entity.*;
+import scott.barleydb.api.core.util.CollectionUtil;
 import scott.barleydb.api.dependency.diagram.DependencyDiagram;
 import scott.barleydb.api.dependency.diagram.Link;
 import scott.barleydb.api.dependency.diagram.LinkType;
@@ -96,6 +97,11 @@ public class DependencyTree implements Serializable {
      */
     private final Map<Entity, OrphanCheck> orphanChecks = new HashMap<>();
 
+    /**
+     * the orphan checks which still have to be performed.
+     */
+    private final Map<Entity, OrphanCheck> pendingOrphanChecks = new LinkedHashMap<>();
+
     /**
      * if true the dependency order will try and ensure that entities of the same type will lie contiguously with one another.
      */
@@ -250,22 +256,22 @@ public class DependencyTree implements Serializable {
                 }
             }
 
-            while (pendingOrphanChecks()) {
+            while (!pendingOrphanChecks.isEmpty()) {
                 LOG.debug("- Processing pending orphan checks...");
 
                 /*
                  * query for the data as efficiently as possible
                  */
-                performOrphanChecks();
+                List<OrphanCheck> performedChecks = performOrphanChecks();
                 /*
                  * update loaded state of any entities
                  */
-                updateLoadedStateAfterOrphanChecks();
+                updateLoadedStateAfterOrphanChecks(performedChecks);
 
                 /*
                  * integrate into the dependency tree
                  */
-                integrateNewDeleteOperationsIntoDependencyTree();
+                integrateNewDeleteOperationsIntoDependencyTree(performedChecks);
             }
 
             allDependenciesBuilt = allNodesHaveDependenciesBuilt();
@@ -591,6 +597,12 @@ public class DependencyTree implements Serializable {
                  */
                 return;
             }
+            if (operation.isUpsert()) {
+                /*
+                 * upserts deliberately avoid loading the original entity from the database
+                 */
+                return;
+            }
             if (operation.isNone()) {
                 /*
                  * there is no operation being performed on this entity so it
@@ -986,82 +998,48 @@ public class DependencyTree implements Serializable {
         }
     }
 
-    private boolean pendingOrphanChecks() {
-        for (OrphanCheck oc : orphanChecks.values()) {
-            if (!oc.checkWasPerformed()) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
-     * Performs all pending orphan checks.
+     * Performs all pending orphan checks.<br/>
+     * <br/>
+     * The original entities are loaded with one keyed IN query per entity type, the data which they own
+     * is then loaded level by level with one keyed IN query per (owner type, relation).
+     * The number of database round trips is therefore proportional to the depth of the ownership tree
+     * and not to the number of entities.
      *
+     * @return the orphan checks which were performed
      * @throws SortServiceProviderException
      * @throws BarleyDBQueryException
      */
-    private void performOrphanChecks() throws SortServiceProviderException, BarleyDBQueryException {
+    private List<OrphanCheck> performOrphanChecks() throws SortServiceProviderException, BarleyDBQueryException {
         LOG.debug("-------------------------------------------------------------");
         LOG.debug("START Executing queries for all pending orphan checks");
         LOG.debug("-------------------------------------------------------------");
-        QueryBatcher qbatcher = new QueryBatcher();
+        List<OrphanCheck> checks = new ArrayList<>(pendingOrphanChecks.values());
+        pendingOrphanChecks.clear();
 
         Map<EntityId, OrphanCheck> lookup = new HashMap<>();
-
-        for (OrphanCheck orphCheck : new ArrayList<>(orphanChecks.values())) {
-            if (orphCheck.checkWasPerformed()) {
-                // LOG.debug("Already performed orphan check for {}",
-                // orphCheck.entity);
-                continue;
-            }
-            LOG.debug("- Creating query to load all data of type {} for orphan checking",
-                    orphCheck.entity.getEntityType().getInterfaceName());
-            LOG.debug("-------------------------------------------------------------");
-            /*
-             * at the top level of this loop we just need 1 orphCheck of each
-             * EntityType.
-             */
-            EntityId eid = new EntityId(orphCheck.entity.getEntityType(), orphCheck.entity.getKey().getValue());
-            /*
-             * create a query for the entity type, which includes all orphan
-             * checks of the same type
-             */
-            QueryObject<Object> query = createQueryForReferencesToDelete(orphCheck.entity);
+        Map<EntityType, Set<Object>> keysByType = new LinkedHashMap<>();
+        for (OrphanCheck orphCheck : checks) {
             orphCheck.setCheckWasPerformed(true);
-            lookup.put(eid, orphCheck);
-            int logNumberOfQueryConditions = 1;
-
-            //include any other entities of the same type which we need to load (from other orphan checks)
-            for (OrphanCheck sub : orphanChecks.values()) {
-                if (sub == orphCheck) {
-                    continue;
-                }
-                if (sub.checkWasPerformed()) {
-                    LOG.debug("Already performed orphan check for {}", sub.entity);
-                    continue;
-                }
-                if (sub.entity.getEntityType() != orphCheck.entity.getEntityType()) {
-                    continue;
-                }
-                EntityId eidSub = new EntityId(sub.entity.getEntityType(), sub.entity.getKey().getValue());
-                QProperty<Object> keyProp = new QProperty<>(query, sub.entity.getKey().getName());
-                query.or(keyProp.equal(sub.entity.getKey().getValue()));
-                logNumberOfQueryConditions++;
+            EntityType entityType = orphCheck.entity.getEntityType();
+            Object key = orphCheck.entity.getKey().getValue();
+            lookup.put(new EntityId(entityType, key), orphCheck);
+            keysByType.computeIfAbsent(entityType, et -> new LinkedHashSet<>()).add(key);
+        }
 
-                sub.setCheckWasPerformed(true);
-                lookup.put(eidSub, sub);
+        QueryBatcher qbatcher = new QueryBatcher();
+        for (Map.Entry<EntityType, Set<Object>> entry : keysByType.entrySet()) {
+            LOG.debug("- Creating query to load {} entities of type {} for orphan checking",
+                    entry.getValue().size(), entry.getKey().getInterfaceName());
+            for (Set<Object> keys : CollectionUtil.toKeyChunks(entry.getValue())) {
+                qbatcher.addQuery(createKeyQuery(entry.getKey(), entry.getKey().getKeyNodeName(), keys));
             }
-
-            LOG.debug("- Query of type {} created which performs {} checks.", query.getTypeName(),
-                    logNumberOfQueryConditions);
-            LOG.debug("-------------------------------------------------------------");
-            qbatcher.addQuery(query);
         }
 
         /*
          * perform the queries and hold the data for later integration
          */
+        Map<Entity, String> loaded = new LinkedHashMap<>();
         if (!qbatcher.getQueries().isEmpty()) {
             LOG.debug("- Executing all prepared queries");
             LOG.debug("-------------------------------------------------------------");
@@ -1072,24 +1050,163 @@ public class DependencyTree implements Serializable {
                             .get(new EntityId(entityResult.getEntityType(), entityResult.getKey().getValue()));
                     LOG.debug("Setting orphan check result {}", entityResult);
                     check.setResult(entityResult);
+                    loaded.put(entityResult, null);
                 }
             }
+            loadOwnedEntities(loaded);
         } else {
             LOG.debug("- No queries were pepared, orphan checks is completed.");
         }
         LOG.debug("-------------------------------------------------------------");
         LOG.debug("END Executing queries for all pending orphan checks");
         LOG.debug("-------------------------------------------------------------");
+        return checks;
+    }
+
+    /**
+     * Loads the data owned by the given entities into the delete context, one level of the ownership tree at a time.
+     *
+     * @param level
+     *            the entities to process, mapped to the join property which owns them (if they are N:M join entities).
+     * @throws SortServiceProviderException
+     * @throws BarleyDBQueryException
+     */
+    private void loadOwnedEntities(Map<Entity, String> level) throws SortServiceProviderException, BarleyDBQueryException {
+        Set<Entity> processed = new HashSet<>(level.keySet());
+        int depth = 1;
+        while (!level.isEmpty()) {
+            /*
+             * group the relations which need loading by (owner type, relation)
+             */
+            Map<NodeType, List<RefNode>> refsToLoad = new LinkedHashMap<>();
+            Map<NodeType, List<ToManyNode>> toManysToLoad = new LinkedHashMap<>();
+            for (Map.Entry<Entity, String> entry : level.entrySet()) {
+                for (RefNode refNode : getOwnedRefs(entry.getKey(), entry.getValue())) {
+                    Entity reffedEntity = refNode.getReference(false);
+                    if (reffedEntity != null && reffedEntity.isNotLoaded()) {
+                        refsToLoad.computeIfAbsent(refNode.getNodeType(), nt -> new LinkedList<>()).add(refNode);
+                    }
+                }
+                for (ToManyNode toManyNode : getOwnedToManys(entry.getKey())) {
+                    if (!toManyNode.isFetched()) {
+                        toManysToLoad.computeIfAbsent(toManyNode.getNodeType(), nt -> new LinkedList<>()).add(toManyNode);
+                    }
+                }
+            }
 
+            QueryBatcher qbatcher = new QueryBatcher();
+            for (List<RefNode> refNodes : refsToLoad.values()) {
+                EntityType reffedType = refNodes.get(0).getEntityType();
+                Set<Object> keys = new LinkedHashSet<>();
+                for (RefNode refNode : refNodes) {
+                    keys.add(refNode.getEntityKey());
+                }
+                for (Set<Object> chunk : CollectionUtil.toKeyChunks(keys)) {
+                    qbatcher.addQuery(createKeyQuery(reffedType, reffedType.getKeyNodeName(), chunk));
+                }
+            }
+            for (List<ToManyNode> toManyNodes : toManysToLoad.values()) {
+                ToManyNode first = toManyNodes.get(0);
+                Set<Object> keys = new LinkedHashSet<>();
+                for (ToManyNode toManyNode : toManyNodes) {
+                    keys.add(toManyNode.getParent().getKey().getValue());
+                }
+                String foreignNodeName = first.getNodeType().getForeignNodeName();
+                for (Set<Object> chunk : CollectionUtil.toKeyChunks(keys)) {
+                    if (foreignNodeName != null) {
+                        qbatcher.addQuery(createKeyQuery(first.getEntityType(), foreignNodeName, chunk));
+                    }
+                    else {
+                        /*
+                         * no FK on the N side, so we query from the owner side and join across
+                         */
+                        EntityType ownerType = first.getParent().getEntityType();
+                        QueryObject<Object> query = createKeyQuery(ownerType, ownerType.getKeyNodeName(), chunk);
+                        query.addLeftOuterJoin(dctx.getUnitQuery(first.getEntityType(), true), first.getName());
+                        qbatcher.addQuery(query);
+                    }
+                }
+            }
+
+            if (qbatcher.getQueries().isEmpty()) {
+                LOG.debug("- Owned data at depth {} is already loaded", depth);
+            }
+            else {
+                LOG.debug("- Loading owned data at depth {} with {} queries", depth, qbatcher.getQueries().size());
+                dctx.performQueries(qbatcher);
+                for (List<ToManyNode> toManyNodes : toManysToLoad.values()) {
+                    for (ToManyNode toManyNode : toManyNodes) {
+                        toManyNode.setFetched(true);
+                        toManyNode.refresh();
+                    }
+                }
+            }
+
+            /*
+             * the next level is everything owned by this level which we have not yet processed
+             */
+            Map<Entity, String> nextLevel = new LinkedHashMap<>();
+            for (Map.Entry<Entity, String> entry : level.entrySet()) {
+                for (RefNode refNode : getOwnedRefs(entry.getKey(), entry.getValue())) {
+                    Entity reffedEntity = refNode.getReference(false);
+                    if (reffedEntity != null && !reffedEntity.isNotLoaded() && processed.add(reffedEntity)) {
+                        nextLevel.put(reffedEntity, null);
+                    }
+                }
+                for (ToManyNode toManyNode : getOwnedToManys(entry.getKey())) {
+                    if (!toManyNode.isFetched()) {
+                        continue;
+                    }
+                    for (Entity e : toManyNode.getList()) {
+                        if (e != null && processed.add(e)) {
+                            nextLevel.put(e, toManyNode.getNodeType().getJoinProperty());
+                        }
+                    }
+                }
+            }
+            level = nextLevel;
+            depth++;
+        }
+    }
+
+    /**
+     * @param joinProperty
+     *            is set iff the Entity is a jointable entity which is owned by the ToManyNode which linked to the join table.
+     */
+    private List<RefNode> getOwnedRefs(Entity entity, String joinProperty) {
+        List<RefNode> result = new LinkedList<>();
+        for (RefNode refNode : entity.getChildren(RefNode.class)) {
+            if (refNode.getNodeType().isOwns() || refNode.getName().equals(joinProperty)) {
+                result.add(refNode);
+            }
+        }
+        return result;
+    }
+
+    private List<ToManyNode> getOwnedToManys(Entity entity) {
+        List<ToManyNode> result = new LinkedList<>();
+        for (ToManyNode toManyNode : entity.getChildren(ToManyNode.class)) {
+            if (toManyNode.getNodeType().isOwns()) {
+                result.add(toManyNode);
+            }
+        }
+        return result;
     }
 
+    private QueryObject<Object> createKeyQuery(EntityType entityType, String propertyName, Set<Object> keys) {
+        QueryObject<Object> query = dctx.getUnitQuery(entityType, true);
+        QProperty<Object> keyProp = new QProperty<>(query, propertyName);
+        query.where(keyProp.in(keys));
+        return query;
+    }
 
-    private void updateLoadedStateAfterOrphanChecks() {
+
+    private void updateLoadedStateAfterOrphanChecks(List<OrphanCheck> checks) {
         LOG.debug("-------------------------------------------------------------");
         LOG.debug("START Checking if we can update entity state based on the orphan check.");
         LOG.debug("-------------------------------------------------------------");
 
-        for (OrphanCheck oc : orphanChecks.values()) {
+        for (OrphanCheck oc : checks) {
             if (oc.entity.isUnclearIfInDatabase()) {
                 if (oc.result == null) {
                     LOG.debug("Entity {} is not in the database", oc.entity);
@@ -1122,11 +1239,11 @@ public class DependencyTree implements Serializable {
      * operation
      *
      */
-    private void integrateNewDeleteOperationsIntoDependencyTree() {
+    private void integrateNewDeleteOperationsIntoDependencyTree(List<OrphanCheck> checks) {
         LOG.debug("-------------------------------------------------------------");
         LOG.debug("START Checking if we need to integrate new delete operations into the depdendecy tree.");
 
-        for (OrphanCheck oc : orphanChecks.values()) {
+        for (OrphanCheck oc : checks) {
             if (oc.result == null) {
                 continue;
             }
@@ -1222,10 +1339,10 @@ public class DependencyTree implements Serializable {
                             + " for integrating into the dependency tree");
                 }
             }
+        }
 
-            for (Node node : nodes.values()) {
-                node.buildDependencies();
-            }
+        for (Node node : new ArrayList<>(nodes.values())) {
+            node.buildDependencies();
         }
 
         LOG.debug("-------------------------------------------------------------");
@@ -1430,64 +1547,14 @@ public class DependencyTree implements Serializable {
         return origFkRefValue != null && !origFkRefValue.equals(newFkRefValue);
     }
 
-    private QueryObject<Object> createQueryForReferencesToDelete(Entity entity) {
-        QueryObject<Object> query = dctx.getUnitQuery(entity.getEntityType(), true);
-
-        // filter on PK
-        final QProperty<Object> keyProp = new QProperty<Object>(query, entity.getKey().getName());
-        query.where(keyProp.equal(entity.getKey().getValue()));
-        LOG.trace("Added property {} to query {}", keyProp.getName(), query.getTypeName());
-
-        /*
-         * add joins to all owning relations
-         */
-        addJoinsForAllOwningRefs(entity.getEntityType(), query, new HashSet<NodeType>(), null);
-
-        return query;
-    }
-
-    private void addJoinsForAllOwningRefs(EntityType entityType, QueryObject<Object> query,
-            Set<NodeType> alreadyProcessed, String ownedByJoinProperty) {
-        /*
-         * add joins to all owning Refs
-         */
-        for (NodeType nodeType : entityType.getNodeTypes()) {
-            if (!nodeType.isOwns()) {
-                if (ownedByJoinProperty == null) {
-                    continue;
-                } else if (!nodeType.getName().equals(ownedByJoinProperty)) {
-                    continue;
-                } else {
-                    LOG.debug("Querying over join table for {}.{} " + entityType.getInterfaceShortName(),
-                            nodeType.getName());
-                }
-            }
-            /*
-             * at this point either the node type isowns or it matches the join
-             * property which is owned.
-             */
-            /*
-             * add left outer joins for owning relationships
-             */
-            if (alreadyProcessed.add(nodeType)) {
-                QueryObject<Object> to = new QueryObject<>(nodeType.getRelationInterfaceName());
-                query.addLeftOuterJoin(to, nodeType.getName());
-                LOG.trace("Added left outer join from {} with property {} to {}", query.getTypeName(),
-                        nodeType.getName(), nodeType.getRelationInterfaceName());
-
-                EntityType reffedEntityType = entityType.getDefinitions()
-                        .getEntityTypeMatchingInterface(nodeType.getRelationInterfaceName(), true);
-                addJoinsForAllOwningRefs(reffedEntityType, to, alreadyProcessed, nodeType.getJoinProperty());
-            }
-        }
-    }
-
     public Node getDependencyNode(Entity entity) {
         return nodes.get(entity);
     }
 
     public void addOrphanCheck(Entity entity) {
-        orphanChecks.put(entity, new OrphanCheck(entity));
+        OrphanCheck orphanCheck = new OrphanCheck(entity);
+        orphanChecks.put(entity, orphanCheck);
+        pendingOrphanChecks.put(entity, orphanCheck);
         LOG.debug("Adding orphan check  for {}", entity);
     }
 
@@ -38,6 +38,9 @@ public class LoggingAuditor implements Auditor {
 
   @Override
   public void saveAuditInformation(AuditInformation audit) {
+    if (!LOG.isDebugEnabled()) {
+      return;
+    }
     for (AuditRecord auditRecord : audit.getRecords()) {
       for (Change change : auditRecord.changes()) {
         LOG.debug( auditRecord.formatChange(change) );
@@ -61,6 +61,10 @@ public class Operation implements Serializable {
         return opType == OperationType.INSERT;
     }
 
+    public boolean isUpsert() {
+        return opType == OperationType.UPSERT;
+    }
+
     public boolean isUpdate() {
         return opType == OperationType.UPDATE || (opType == OperationType.SAVE && entity.isClearlyInDatabase());
     }
@@ -31,5 +31,6 @@ public enum OperationType {
     SAVE,
     DELETE,
     DEPENDS,
-    NONE
+    NONE,
+    UPSERT
 }
@@ -26,10 +26,13 @@ import static scott.barleydb.api.core.entity.EntityContextHelper.findEntites;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -65,6 +68,8 @@ public class PersistAnalyser implements Serializable {
 
     private final OperationGroup updateGroup;
 
+    private final OperationGroup upsertGroup;
+
     private final OperationGroup deleteGroup;
 
     private final OperationGroup dependsOnGroup;
@@ -79,19 +84,27 @@ public class PersistAnalyser implements Serializable {
 
     private final Set<Entity> analysing = new HashSet<>();
 
+    private final PersistReport report = new PersistReport();
+
+    /**
+     * the keys of the new entities before the persist, so they can be restored if the persist fails.
+     */
+    private transient Map<Entity, Object> originalKeys;
+
     public PersistAnalyser(EntityContext entityContext) {
-        this(entityContext, new OperationGroup(), new OperationGroup(), new OperationGroup(), new OperationGroup());
+        this(entityContext, new OperationGroup(), new OperationGroup(), new OperationGroup(), new OperationGroup(), new OperationGroup());
     }
 
-    private PersistAnalyser(EntityContext entityContext, OperationGroup createGroup, OperationGroup updateGroup, OperationGroup deleteGroup, OperationGroup dependsOnGroup) {
+    private PersistAnalyser(EntityContext entityContext, OperationGroup createGroup, OperationGroup updateGroup, OperationGroup upsertGroup, OperationGroup deleteGroup, OperationGroup dependsOnGroup) {
         this.entityContext = entityContext;
         this.analyserContext = entityContext.newEntityContextSharingTransaction();
         this.analyserContext.setAllowGarbageCollection(false);
         this.createGroup = createGroup;
         this.updateGroup = updateGroup;
+        this.upsertGroup = upsertGroup;
         this.deleteGroup = deleteGroup;
         this.dependsOnGroup = dependsOnGroup;
-        this.allGroups = new OperationGroup[] { createGroup, updateGroup, deleteGroup, dependsOnGroup };
+        this.allGroups = new OperationGroup[] { createGroup, updateGroup, upsertGroup, deleteGroup, dependsOnGroup };
         this.dependencyTree = new DependencyTree(entityContext, analyserContext, true);
     }
 
@@ -103,6 +116,10 @@ public class PersistAnalyser implements Serializable {
         return analyserContext;
     }
 
+    public PersistReport getReport() {
+        return report;
+    }
+
     /**
      * Clones the entity context and all the entities
      * @return
@@ -116,6 +133,7 @@ public class PersistAnalyser implements Serializable {
 
         copyEntityValues(createGroup, copyAnalyser.createGroup, newContext);
         copyEntityValues(updateGroup, copyAnalyser.updateGroup, newContext);
+        copyEntityValues(upsertGroup, copyAnalyser.upsertGroup, newContext);
         copyEntityValues(deleteGroup, copyAnalyser.deleteGroup, newContext);
         copyEntityValues(dependsOnGroup, copyAnalyser.dependsOnGroup, newContext);
         EntityContextHelper.copyRefStates(entityContext, newContext, newContext.getEntitiesSafeIterable(), new EntityContextHelper.EntityFilter() {
@@ -145,10 +163,39 @@ public class PersistAnalyser implements Serializable {
                 entityContext,
                 createGroup.optimizedForInsertCopy(),
                 updateGroup.optimizedForUpdateCopy(),
+                upsertGroup.optimizedForInsertCopy(),
                 deleteGroup.optimizedForDeleteCopy(),
                 dependsOnGroup);
     }
 
+    /**
+     * Records the keys of the new entities, when persisting without a copy this is the only state
+     * which is modified before the persist succeeds.
+     */
+    public void recordOriginalKeys() {
+        originalKeys = new HashMap<>();
+        for (Entity entity : createGroup.getEntities()) {
+            originalKeys.put(entity, entity.getKey().getValue());
+        }
+    }
+
+    /**
+     * Sets the keys of the new entities back to their values before the persist.
+     */
+    public void restoreOriginalKeys() {
+        if (originalKeys == null) {
+            return;
+        }
+        LOG.debug("Restoring the keys of {} new entities", originalKeys.size());
+        for (Map.Entry<Entity, Object> entry : originalKeys.entrySet()) {
+            Entity entity = entry.getKey();
+            if (!Objects.equals(entity.getKey().getValue(), entry.getValue())) {
+                entity.getKey().setValue(entry.getValue());
+            }
+        }
+        originalKeys = null;
+    }
+
     public OperationGroup getCreateGroup() {
         return createGroup;
     }
@@ -157,6 +204,10 @@ public class PersistAnalyser implements Serializable {
         return updateGroup;
     }
 
+    public OperationGroup getUpsertGroup() {
+        return upsertGroup;
+    }
+
     public OperationGroup getDeleteGroup() {
         return deleteGroup;
     }
@@ -171,6 +222,8 @@ public class PersistAnalyser implements Serializable {
         reportGroup(sb, createGroup);
         sb.append("\nUpdate Group ----------------\n");
         reportGroup(sb, updateGroup);
+        sb.append("\nUpsert Group ----------------\n");
+        reportGroup(sb, upsertGroup);
         sb.append("\nDelete Group ----------------\n");
         reportGroup(sb, deleteGroup);
         sb.append("\nDepends On Group ----------------\n");
@@ -220,6 +273,10 @@ public class PersistAnalyser implements Serializable {
                         updateGroup.add(operation.entity);
                         break;
                     }
+                    case UPSERT: {
+                        upsertGroup.add(operation.entity);
+                        break;
+                    }
                     case SAVE: {
                         if (operation.entity.isClearlyNotInDatabase()) {
                             createGroup.add( operation.entity );
@@ -255,6 +312,7 @@ public class PersistAnalyser implements Serializable {
                 switch(operation.opType) {
                     case INSERT:
                     case UPDATE:
+                    case UPSERT:
                     case SAVE:
                     case DEPENDS:
                     case NONE: break;
@@ -325,7 +383,7 @@ public class PersistAnalyser implements Serializable {
 
     public void applyChanges(final EntityContext otherContext) {
         LOG.debug("applying changes to other entity context");
-        OperationGroup changed = createGroup.mergedCopy(updateGroup).mergedCopy(deleteGroup);
+        OperationGroup changed = createGroup.mergedCopy(updateGroup).mergedCopy(upsertGroup).mergedCopy(deleteGroup);
 
         EntityContextHelper.EntityFilter filter = new EntityContextHelper.EntityFilter() {
             @Override
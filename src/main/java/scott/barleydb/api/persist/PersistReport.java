@@ -0,0 +1,219 @@
+package scott.barleydb.api.persist;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import scott.barleydb.api.core.entity.Entity;
+
+/**
+ * Timings and entity counts of a single persist.<br/>
+ * <br/>
+ * Contains the time spent in each phase of the persist and the number of entities per entity type and operation,
+ * together with the time spent executing JDBC batches for the entity type.
+ *
+ * @author scott
+ *
+ */
+public class PersistReport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static enum Phase {
+        ANALYSIS,
+        LOAD_DATASET,
+        SET_KEYS,
+        GENERATE_AUDIT,
+        ANALYSE_UPDATES,
+        ACCESS_CHECK,
+        INSERT,
+        UPDATE,
+        DELETE,
+        WRITE_AUDIT,
+        POST_PROCESS
+    }
+
+    public static class EntityTypeReport implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String entityTypeName;
+        private final Map<OperationType, Integer> counts = new EnumMap<>(OperationType.class);
+        private long jdbcNanos;
+
+        public EntityTypeReport(String entityTypeName) {
+            this.entityTypeName = entityTypeName;
+        }
+
+        public String getEntityTypeName() {
+            return entityTypeName;
+        }
+
+        public int getCount(OperationType operationType) {
+            Integer count = counts.get(operationType);
+            return count != null ? count : 0;
+        }
+
+        public long getJdbcNanos() {
+            return jdbcNanos;
+        }
+
+        @Override
+        public String toString() {
+            return entityTypeName + " " + counts + " jdbc=" + TimeUnit.NANOSECONDS.toMillis(jdbcNanos) + "ms";
+        }
+    }
+
+    /**
+     * An entity which failed and was left out of the persist.
+     */
+    public static class Failure implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String entityTypeName;
+        private final Object entityKey;
+        private final String message;
+
+        public Failure(String entityTypeName, Object entityKey, String message) {
+            this.entityTypeName = entityTypeName;
+            this.entityKey = entityKey;
+            this.message = message;
+        }
+
+        public String getEntityTypeName() {
+            return entityTypeName;
+        }
+
+        public Object getEntityKey() {
+            return entityKey;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "Failure [" + entityTypeName + " " + entityKey + ": " + message + "]";
+        }
+    }
+
+    private final Map<Phase, Long> phaseNanos = new EnumMap<>(Phase.class);
+
+    private final Map<Phase, Integer> phaseEntityCounts = new EnumMap<>(Phase.class);
+
+    private final Map<String, EntityTypeReport> entityTypes = new LinkedHashMap<>();
+
+    private final List<Failure> failures = new LinkedList<>();
+
+    /**
+     * Adds the time spent in a phase, a phase can be added more than once.
+     *
+     * @param phase
+     * @param nanos
+     * @param entityCount the number of entities processed by the phase.
+     */
+    public void addPhase(Phase phase, long nanos, int entityCount) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+        phaseEntityCounts.merge(phase, entityCount, Integer::sum);
+    }
+
+    public void addEntities(OperationType operationType, Collection<Entity> entities) {
+        for (Entity entity : entities) {
+            getEntityTypeReport(entity.getEntityType().getInterfaceName()).counts.merge(operationType, 1, Integer::sum);
+        }
+    }
+
+    public void addJdbcNanos(String entityTypeName, long nanos) {
+        getEntityTypeReport(entityTypeName).jdbcNanos += nanos;
+    }
+
+    public void addFailure(String entityTypeName, Object entityKey, String message) {
+        failures.add(new Failure(entityTypeName, entityKey, message));
+    }
+
+    /**
+     * @return the entities which failed when batch failures are isolated.
+     */
+    public List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    private EntityTypeReport getEntityTypeReport(String entityTypeName) {
+        return entityTypes.computeIfAbsent(entityTypeName, EntityTypeReport::new);
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        Long nanos = phaseNanos.get(phase);
+        return nanos != null ? nanos : 0;
+    }
+
+    public long getPhaseMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(getPhaseNanos(phase));
+    }
+
+    public int getPhaseEntityCount(Phase phase) {
+        Integer count = phaseEntityCounts.get(phase);
+        return count != null ? count : 0;
+    }
+
+    public long getTotalNanos() {
+        long total = 0;
+        for (long nanos : phaseNanos.values()) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    /**
+     * @return the reports per entity type keyed by interface name.
+     */
+    public Map<String, EntityTypeReport> getEntityTypes() {
+        return Collections.unmodifiableMap(entityTypes);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PersistReport [total=");
+        sb.append(TimeUnit.NANOSECONDS.toMillis(getTotalNanos())).append("ms");
+        for (Map.Entry<Phase, Long> entry : phaseNanos.entrySet()) {
+            sb.append(", ").append(entry.getKey()).append('=').append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append("ms");
+            sb.append('/').append(phaseEntityCounts.get(entry.getKey()));
+        }
+        for (EntityTypeReport typeReport : entityTypes.values()) {
+            sb.append(", ").append(typeReport);
+        }
+        if (!failures.isEmpty()) {
+            sb.append(", failures=").append(failures);
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+}
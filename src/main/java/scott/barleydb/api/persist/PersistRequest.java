@@ -69,6 +69,25 @@ public class PersistRequest implements Serializable {
         return this;
     }
 
+    /**
+     * Inserts or updates the entities in a single statement without first checking if they exist in the database.<br/>
+     * <br/>
+     * Entities without a key are simply inserted.<br/>
+     * No orphan checks are performed for upserted entities.
+     */
+    public PersistRequest upsert(Object ...objects) {
+        for (Object object: objects) {
+            Entity entity = verifyArg(object, "upsert");
+            if (entity.getKey().getValue() == null) {
+                operations.add( new Operation(entity, OperationType.INSERT) );
+            }
+            else {
+                operations.add( new Operation(entity, OperationType.UPSERT) );
+            }
+        }
+        return this;
+    }
+
     public PersistRequest delete(Object ...objects) {
         for (Object object: objects) {
             operations.add( new Operation(verifyArg(object, "delete"), OperationType.DELETE) );
@@ -23,6 +23,10 @@ package scott.barleydb.api.query;
  */
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import scott.barleydb.api.persist.BatchFailureListener;
 
 /**
  * Runtime properties for a query execution.<br/>
@@ -46,6 +50,23 @@ public class RuntimeProperties implements Serializable {
         UPDATABLE
     }
 
+    /**
+     * How updated, deleted and depended on entities are verified against the database
+     * before a persist.
+     */
+    public static enum PersistVerification {
+        /**
+         * The original rows are loaded before the persist, existence and optimistic locks are
+         * checked up front and the audit records are a diff against the loaded data.
+         */
+        FULL,
+        /**
+         * No original rows are loaded, the update and delete counts of the keyed and optimistic locked
+         * where clauses are relied on to detect missing entities and optimistic lock mismatches.
+         */
+        KEYS_AND_LOCKS_ONLY
+    }
+
     private static final long serialVersionUID = 1L;
 
     private Integer fetchSize;
@@ -56,6 +77,24 @@ public class RuntimeProperties implements Serializable {
 
     private Boolean executeInSameContext;
 
+    private Boolean zeroCopyPersist;
+
+    private Boolean updateChangedColumnsOnly;
+
+    private PersistVerification persistVerification;
+
+    private Boolean isolateBatchFailures;
+
+    /**
+     * only usable in the same JVM as the persist.
+     */
+    private transient BatchFailureListener batchFailureListener;
+
+    /**
+     * entity interface name to persist verification
+     */
+    private Map<String, PersistVerification> persistVerificationByType;
+
     public RuntimeProperties fetchSize(int fetchSize) {
         this.fetchSize = fetchSize;
         return this;
@@ -65,8 +104,22 @@ public class RuntimeProperties implements Serializable {
         RuntimeProperties rp = new RuntimeProperties();
         rp.fetchSize = fetchSize != null ? fetchSize : props.fetchSize;
         rp.executeInSameContext = executeInSameContext != null ? executeInSameContext : props.executeInSameContext;
+        rp.zeroCopyPersist = zeroCopyPersist != null ? zeroCopyPersist : props.zeroCopyPersist;
         rp.scrollType = scrollType != null ? scrollType : props.scrollType;
         rp.concurrency = concurrency != null ? concurrency : props.concurrency;
+        rp.updateChangedColumnsOnly = updateChangedColumnsOnly != null ? updateChangedColumnsOnly : props.updateChangedColumnsOnly;
+        rp.persistVerification = persistVerification != null ? persistVerification : props.persistVerification;
+        rp.isolateBatchFailures = isolateBatchFailures != null ? isolateBatchFailures : props.isolateBatchFailures;
+        rp.batchFailureListener = batchFailureListener != null ? batchFailureListener : props.batchFailureListener;
+        if (persistVerificationByType != null || props.persistVerificationByType != null) {
+            rp.persistVerificationByType = new HashMap<>();
+            if (props.persistVerificationByType != null) {
+                rp.persistVerificationByType.putAll(props.persistVerificationByType);
+            }
+            if (persistVerificationByType != null) {
+                rp.persistVerificationByType.putAll(persistVerificationByType);
+            }
+        }
         return rp;
     }
 
@@ -75,6 +128,17 @@ public class RuntimeProperties implements Serializable {
         return this;
     }
 
+    /**
+     * Persists the entities of the entity context directly, without copying them into a separate context first.<br/>
+     * <br/>
+     * Only the keys of the new entities are recorded, if the persist fails they are restored.
+     * The original data loaded during the analysis is read in place when verifying the persist.
+     */
+    public RuntimeProperties zeroCopyPersist(boolean zeroCopyPersist) {
+        this.zeroCopyPersist = zeroCopyPersist;
+        return this;
+    }
+
     public RuntimeProperties scrollType(ScrollType scrollType) {
         this.scrollType = scrollType;
         return this;
@@ -85,6 +149,48 @@ public class RuntimeProperties implements Serializable {
         return this;
     }
 
+    /**
+     * If true, update statements only set the columns which changed instead of every column.
+     */
+    public RuntimeProperties updateChangedColumnsOnly(boolean updateChangedColumnsOnly) {
+        this.updateChangedColumnsOnly = updateChangedColumnsOnly;
+        return this;
+    }
+
+    /**
+     * Brackets each JDBC batch of a persist in a savepoint. If the batch fails, it is rolled back to the savepoint
+     * and bisected to find the failing entities, which are left out of the persist. The rest of the persist continues.<br/>
+     * <br/>
+     * The failing entities are passed to the listener and are listed in the persist report.
+     * Requires a transaction and a database which supports savepoints, otherwise the persist fails as normal.
+     *
+     * @param listener can be null.
+     */
+    public RuntimeProperties isolateBatchFailures(BatchFailureListener listener) {
+        this.isolateBatchFailures = true;
+        this.batchFailureListener = listener;
+        return this;
+    }
+
+    public RuntimeProperties persistVerification(PersistVerification persistVerification) {
+        this.persistVerification = persistVerification;
+        return this;
+    }
+
+    /**
+     * Sets the persist verification for a specific entity type, this takes precedence over
+     * the general persist verification.
+     *
+     * @param entityInterfaceName the interface name of the entity type
+     */
+    public RuntimeProperties persistVerification(String entityInterfaceName, PersistVerification persistVerification) {
+        if (persistVerificationByType == null) {
+            persistVerificationByType = new HashMap<>();
+        }
+        persistVerificationByType.put(entityInterfaceName, persistVerification);
+        return this;
+    }
+
     public Integer getFetchSize() {
         return fetchSize;
     }
@@ -93,6 +199,10 @@ public class RuntimeProperties implements Serializable {
         return executeInSameContext;
     }
 
+    public Boolean getZeroCopyPersist() {
+        return zeroCopyPersist;
+    }
+
     public ScrollType getScrollType() {
         return scrollType;
     }
@@ -100,4 +210,34 @@ public class RuntimeProperties implements Serializable {
     public Concurrency getConcurrency() {
         return concurrency;
     }
+
+    public Boolean getUpdateChangedColumnsOnly() {
+        return updateChangedColumnsOnly;
+    }
+
+    public Boolean getIsolateBatchFailures() {
+        return isolateBatchFailures;
+    }
+
+    public BatchFailureListener getBatchFailureListener() {
+        return batchFailureListener;
+    }
+
+    public PersistVerification getPersistVerification() {
+        return persistVerification;
+    }
+
+    /**
+     * @param entityInterfaceName the interface name of the entity type
+     * @return the persist verification for the entity type, FULL if nothing was specified.
+     */
+    public PersistVerification getPersistVerification(String entityInterfaceName) {
+        if (persistVerificationByType != null) {
+            PersistVerification pv = persistVerificationByType.get(entityInterfaceName);
+            if (pv != null) {
+                return pv;
+            }
+        }
+        return persistVerification != null ? persistVerification : PersistVerification.FULL;
+    }
 }
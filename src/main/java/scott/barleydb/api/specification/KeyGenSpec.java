@@ -27,5 +27,10 @@ package scott.barleydb.api.specification;
 
 public enum KeyGenSpec {
 	CLIENT,
-	FRAMEWORK
+	FRAMEWORK,
+	/**
+	 * The key is generated by a database identity / auto increment column
+	 * and read back after the insert using JDBC generated keys.
+	 */
+	IDENTITY
 }
@@ -46,9 +46,11 @@ import org.springframework.test.jdbc.JdbcTestUtils;
 
 import scott.barleydb.api.config.Definitions;
 import scott.barleydb.api.core.Environment;
+import scott.barleydb.api.core.proxy.DynamicProxyFactory;
 import scott.barleydb.api.core.proxy.ProxyFactory;
 import scott.barleydb.api.persist.AccessRightsChecker;
 import scott.barleydb.api.persist.Auditor;
+import scott.barleydb.api.persist.PersistMetrics;
 import scott.barleydb.api.query.QueryObject;
 import scott.barleydb.api.query.RuntimeProperties;
 import scott.barleydb.api.query.RuntimeProperties.Concurrency;
@@ -94,6 +96,7 @@ public class EnvironmentDef {
     private Class<? extends SequenceGenerator> sequenceGeneratorType;
     private AccessRightsChecker accessRightsChecker;
     private Auditor auditor;
+    private PersistMetrics persistMetrics;
 
     //resources created during the create() method..
     private JdbcEntityContextServices services;
@@ -169,6 +172,11 @@ public class EnvironmentDef {
       return this;
     }
 
+    public EnvironmentDef withPersistMetrics(PersistMetrics persistMetrics) {
+      this.persistMetrics = persistMetrics;
+      return this;
+    }
+
     protected JdbcEntityContextServices createEntityContextServices(DataSource dataSource) {
         return new JdbcEntityContextServices(dataSource);
     }
@@ -289,6 +297,13 @@ public class EnvironmentDef {
                 }
             }
 
+            /*
+             * there are no generated proxy classes, models which are interfaces get dynamic proxies
+             */
+            for (DefinitionsSpec spec: allSpecs) {
+                env.getDefinitions(spec.getNamespace()).registerProxyFactory(new DynamicProxyFactory());
+            }
+
         }
 
         if (dropSchema) {
@@ -308,6 +323,9 @@ public class EnvironmentDef {
         if (auditor != null) {
           env.setAuditor(auditor);
         }
+        if (persistMetrics != null) {
+          env.setPersistMetrics(persistMetrics);
+        }
 
         return env;
     }
@@ -69,6 +69,7 @@ import scott.barleydb.api.core.types.Nullable;
 import scott.barleydb.api.specification.DefinitionsSpec;
 import scott.barleydb.api.specification.EntitySpec;
 import scott.barleydb.api.specification.JoinTypeSpec;
+import scott.barleydb.api.specification.KeyGenSpec;
 import scott.barleydb.api.specification.NodeSpec;
 import scott.barleydb.api.specification.RelationSpec;
 import scott.barleydb.api.specification.SpecRegistry;
@@ -367,6 +368,9 @@ public class FromDatabaseSchemaToSpecification {
         nodeSpec.setName( getNodeName( column ));
         if (isPrimaryKey(table, column)) {
             nodeSpec.setPrimaryKey(true);
+            if (column.isAutoIncremented()) {
+                nodeSpec.setKeyGenSpec(KeyGenSpec.IDENTITY);
+            }
         }
         nodeSpec.setColumnName( column.getName());
         nodeSpec.setJdbcType( getNodeJdbcType( column ));
@@ -37,6 +37,7 @@ import java.util.Set;
 
 import scott.barleydb.api.specification.DefinitionsSpec;
 import scott.barleydb.api.specification.EntitySpec;
+import scott.barleydb.api.specification.KeyGenSpec;
 import scott.barleydb.api.specification.NodeSpec;
 import scott.barleydb.api.specification.constraint.ForeignKeyConstraintSpec;
 import scott.barleydb.api.specification.constraint.PrimaryKeyConstraintSpec;
@@ -362,6 +363,10 @@ public abstract class GenerateDatabaseScript {
         sb.append(' ');
         generateColumnType(nodeSpec, sb);
         sb.append(' ');
+        if (nodeSpec.getKeyGenSpec() == KeyGenSpec.IDENTITY) {
+            generateIdentity(nodeSpec, sb);
+            sb.append(' ');
+        }
         Objects.requireNonNull(nodeSpec.getNullable(), "Nullable should not be null for " + nodeSpec);
         switch (nodeSpec.getNullable()) {
             case NOT_NULL:
@@ -377,6 +382,13 @@ public abstract class GenerateDatabaseScript {
 
     protected abstract void generateColumnType(NodeSpec nodeSpec, StringBuilder sb);
 
+    /**
+     * Generates the clause which makes the column a database generated identity column.
+     */
+    protected void generateIdentity(NodeSpec nodeSpec, StringBuilder sb) {
+        sb.append("GENERATED BY DEFAULT AS IDENTITY");
+    }
+
     protected void generateLength(NodeSpec nodeSpec, StringBuilder sb) {
         if (nodeSpec.getLength() != null) {
             sb.append('(');
@@ -74,4 +74,9 @@ public class GenerateMySqlDatabaseScript extends GenerateDatabaseScript {
         }
     }
 
+    @Override
+    protected void generateIdentity(NodeSpec nodeSpec, StringBuilder sb) {
+        sb.append("AUTO_INCREMENT");
+    }
+
 }
@@ -26,8 +26,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
@@ -44,6 +46,113 @@ public class GenerateDtoModels extends GenerateModelsHelper {
     public void generateDtoModels(String path, DefinitionsSpec definitions) throws IOException {
         for (EntitySpec entitySpec: definitions.getEntitySpecs()) {
             generateDto(path, definitions, entitySpec);
+            generateDtoAccessor(path, definitions, entitySpec);
+        }
+    }
+
+    /**
+     * Generates the DtoAccessor which calls the getters and setters of the DTO directly.
+     */
+    private void generateDtoAccessor(String path, DefinitionsSpec definitions, EntitySpec entitySpec) throws IOException {
+        File classFile = toFile(path, getDtoClassName(entitySpec) + "Accessor");
+        classFile.getParentFile().mkdirs();
+        try (Writer out = new FileWriter(classFile); ) {
+            out.write("package ");
+            out.write(getDtoPackageName(entitySpec));
+            out.write(";\n");
+            out.write("\n");
+            out.write("import scott.barleydb.api.dto.BaseDto;\n");
+            if (entitySpec.getParentEntity() == null) {
+                out.write("import scott.barleydb.api.dto.DtoAccessor;\n");
+            }
+            writeDtoImports(definitions, entitySpec, out);
+            if (entitySpec.getParentEntity() != null && hasDifferentModelPackage(entitySpec, entitySpec.getParentEntity())) {
+                out.write("import ");
+                out.write(getDtoClassName(entitySpec.getParentEntity()));
+                out.write("Accessor;\n");
+            }
+            out.write("\n");
+            writeClassJavaDoc(out, entitySpec);
+            String dtoSimpleClassName = getDtoSimpleClassName(entitySpec);
+            out.write("public class ");
+            out.write(dtoSimpleClassName);
+            out.write("Accessor extends ");
+            if (entitySpec.getParentEntity() != null) {
+                out.write(getDtoSimpleClassName(entitySpec.getParentEntity()));
+                out.write("Accessor");
+            }
+            else {
+                out.write("DtoAccessor");
+            }
+            out.write(" {\n");
+            out.write("\n");
+            out.write("  @Override\n");
+            out.write("  public BaseDto newDto() {\n");
+            out.write("    return new ");
+            out.write(dtoSimpleClassName);
+            out.write("();\n");
+            out.write("  }\n");
+
+            List<NodeSpec> getters = new ArrayList<>();
+            List<NodeSpec> setters = new ArrayList<>();
+            for (NodeSpec nodeSpec: entitySpec.getNodeSpecs()) {
+                if (isCompletelySuppressed(nodeSpec) || nodeSpec.getSuppression() == SuppressionSpec.DTO) {
+                    continue;
+                }
+                if (nodeSpec.getColumnName() != null) {
+                    getters.add(nodeSpec);
+                    setters.add(nodeSpec);
+                }
+                else if (nodeSpec.getRelation() != null) {
+                    getters.add(nodeSpec);
+                }
+            }
+            if (!getters.isEmpty()) {
+                out.write("\n");
+                out.write("  @Override\n");
+                out.write("  public Object getProperty(BaseDto dto, String propertyName) {\n");
+                out.write("    switch (propertyName) {\n");
+                for (NodeSpec nodeSpec: getters) {
+                    out.write("      case \"");
+                    out.write(nodeSpec.getName());
+                    out.write("\":\n");
+                    out.write("        return ((");
+                    out.write(dtoSimpleClassName);
+                    out.write(")dto).");
+                    out.write(toGetterName(nodeSpec));
+                    out.write("();\n");
+                }
+                out.write("      default:\n");
+                out.write("        return super.getProperty(dto, propertyName);\n");
+                out.write("    }\n");
+                out.write("  }\n");
+            }
+            if (!setters.isEmpty()) {
+                out.write("\n");
+                out.write("  @Override\n");
+                out.write("  public void setProperty(BaseDto dto, String propertyName, Object value) {\n");
+                out.write("    switch (propertyName) {\n");
+                for (NodeSpec nodeSpec: setters) {
+                    out.write("      case \"");
+                    out.write(nodeSpec.getName());
+                    out.write("\":\n");
+                    out.write("        ((");
+                    out.write(dtoSimpleClassName);
+                    out.write(")dto).");
+                    out.write(toSetterName(nodeSpec));
+                    out.write("((");
+                    //the simple name, the type is imported by writeDtoImports
+                    out.write(calcNodeType(nodeSpec));
+                    out.write(")value);\n");
+                    out.write("        return;\n");
+                }
+                out.write("      default:\n");
+                out.write("        super.setProperty(dto, propertyName, value);\n");
+                out.write("    }\n");
+                out.write("  }\n");
+            }
+            out.write("}\n");
+            out.flush();
         }
     }
 
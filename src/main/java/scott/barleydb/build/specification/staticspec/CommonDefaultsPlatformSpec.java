@@ -99,6 +99,12 @@ public abstract class CommonDefaultsPlatformSpec extends StaticDefinitions {
         return spec;
     }
 
+    public static NodeSpec longIdentityPrimaryKey() {
+        NodeSpec spec = longPrimaryKey();
+        spec.setKeyGenSpec(KeyGenSpec.IDENTITY);
+        return spec;
+    }
+
     public static NodeSpec uuidPrimaryKey() {
         NodeSpec spec = new NodeSpec();
         spec.setKeyGenSpec(KeyGenSpec.CLIENT);
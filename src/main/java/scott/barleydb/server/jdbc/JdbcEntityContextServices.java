@@ -63,7 +63,9 @@ import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
 import scott.barleydb.api.exception.execution.persist.IllegalPersistStateException;
 import scott.barleydb.api.exception.execution.persist.SortPersistException;
 import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
+import scott.barleydb.api.persist.BulkResult;
 import scott.barleydb.api.persist.PersistAnalyser;
+import scott.barleydb.api.persist.PersistReport.Phase;
 import scott.barleydb.api.persist.PersistRequest;
 import scott.barleydb.api.query.QueryObject;
 import scott.barleydb.api.query.RuntimeProperties;
@@ -73,6 +75,7 @@ import scott.barleydb.api.stream.ObjectGraph.NodeId;
 import scott.barleydb.api.stream.QueryEntityDataInputStream;
 import scott.barleydb.api.stream.QueryResultItem;
 import scott.barleydb.server.jdbc.converter.TypeConverter;
+import scott.barleydb.server.jdbc.persist.BulkPersister;
 import scott.barleydb.server.jdbc.persist.Persister;
 import scott.barleydb.server.jdbc.persist.SequenceGenerator;
 import scott.barleydb.server.jdbc.query.QueryExecuter;
@@ -182,6 +185,7 @@ public class JdbcEntityContextServices implements IEntityContextServices {
              * If we are setting autocommit to true, then we can release the connection
              */
             if (value) {
+                env.getAuditor().afterCommit(conRes.getConnection());
                 try {
                     LOG.debug("Releasing the jdbc connection as auto commit set to true");
                     conRes.close();
@@ -226,6 +230,7 @@ public class JdbcEntityContextServices implements IEntityContextServices {
             catch (SQLException x) {
                 throw new RollbackException("SQLException while performing rollback", x);
             }
+            env.getAuditor().afterRollback(conRes.getConnection());
         }
     }
 
@@ -244,6 +249,7 @@ public class JdbcEntityContextServices implements IEntityContextServices {
             try {
                 LOG.debug("Comitting jdbc connection");
                 conRes.getConnection().commit();
+                env.getAuditor().afterCommit(conRes.getConnection());
                 /*
                  * We assume that we can release the connection
                  * once we have comitted it.
@@ -266,6 +272,8 @@ public class JdbcEntityContextServices implements IEntityContextServices {
     public void close(EntityContext entityContext) throws SortServiceProviderException {
         ConnectionResources conRes = ConnectionResources.get(entityContext);
         if (conRes != null) {
+            //anything not committed by now is lost with the connection, so are its audit rows
+            env.getAuditor().afterRollback(conRes.getConnection());
             try {
                 conRes.close();
             }
@@ -365,7 +373,7 @@ public class JdbcEntityContextServices implements IEntityContextServices {
          * We can optionally copy the data to  be persisted to a new context
          * This way we only apply the changes back if the whole persist succeeds.
          */
-        if (runtimeProperties.getExecuteInSameContext() == null || !runtimeProperties.getExecuteInSameContext()) {
+        if (!isZeroCopyPersist(runtimeProperties) && (runtimeProperties.getExecuteInSameContext() == null || !runtimeProperties.getExecuteInSameContext())) {
             analyser = analyser.deepCopy();
         }
         if (LOG_PERSIST_REPORT.isDebugEnabled()) {
@@ -397,6 +405,7 @@ public class JdbcEntityContextServices implements IEntityContextServices {
         LOG.debug("STARTING PERSIST REQUEST EXECUTION                                                          .");
         LOG.debug(".............................................................................................");
         LOG.debug("");
+        long start = System.nanoTime();
         PersistAnalyser analyser = new PersistAnalyser(persistRequest.getEntityContext());
         try (OptionalyClosingResources con = newOptionallyClosingConnection(persistRequest.getEntityContext())) {
             analyser.analyse(persistRequest);
@@ -405,9 +414,10 @@ public class JdbcEntityContextServices implements IEntityContextServices {
          * We can optionally copy the data to  be persisted to a new context
          * This way we only apply the changes back if the whole persist succeeds.
          */
-        if (runtimeProperties.getExecuteInSameContext() == null || !runtimeProperties.getExecuteInSameContext()) {
+        if (!isZeroCopyPersist(runtimeProperties) && (runtimeProperties.getExecuteInSameContext() == null || !runtimeProperties.getExecuteInSameContext())) {
             analyser = analyser.deepCopy();
         }
+        analyser.getReport().addPhase(Phase.ANALYSIS, System.nanoTime() - start, persistRequest.getOperations().size());
         if (LOG_PERSIST_REPORT.isDebugEnabled()) {
             LOG_PERSIST_REPORT.debug(analyser.report());
         }
@@ -418,17 +428,107 @@ public class JdbcEntityContextServices implements IEntityContextServices {
             throw new IllegalPersistStateException("EntityContext must be set to internal.");
         }
 
+        if (isZeroCopyPersist(runtimeProperties)) {
+            analyser.recordOriginalKeys();
+        }
         try (OptionalyClosingResources con = newOptionallyClosingConnection(entityContext)) {
+            boolean persisted = false;
             try {
-                persister.persist(analyser);
-                return analyser;
+                persister.persist(analyser, runtimeProperties);
+                persisted = true;
             }
-            catch(SortPersistException x) {
+            catch(SortPersistException | RuntimeException x) {
               if (!getAutoCommit(entityContext)) {
                 rollback(con.getConnection(), "Error rolling back the persist request");
               }
               throw x;
             }
+            finally {
+              if (!persisted) {
+                  //keys allocated for a failed zero copy persist must not stay on the callers entities
+                  analyser.restoreOriginalKeys();
+                  //the audit rows of a failed persist must never be written
+                  env.getAuditor().afterRollback(con.getConnection());
+              }
+            }
+            if (getAutoCommit(entityContext)) {
+                env.getAuditor().afterCommit(con.getConnection());
+            }
+            env.getPersistMetrics().record(analyser.getReport());
+            return analyser;
+        }
+    }
+
+    private static boolean isZeroCopyPersist(RuntimeProperties runtimeProperties) {
+        return runtimeProperties.getZeroCopyPersist() != null && runtimeProperties.getZeroCopyPersist();
+    }
+
+    protected BulkPersister newBulkPersister(Environment env, String namespace) {
+        return new BulkPersister(env, namespace, this);
+    }
+
+    @Override
+    public BulkResult deleteWhere(final EntityContext entityContext, final QueryObject<?> query, RuntimeProperties runtimeProperties) throws SortJdbcException, SortPersistException {
+        env.preProcess(query, entityContext.getDefinitions());
+        final BulkPersister bulkPersister = newBulkPersister(env, entityContext.getNamespace());
+        return executeBulkOperation(entityContext, new BulkOperation() {
+            @Override
+            public BulkResult execute() throws SortPersistException {
+                return bulkPersister.deleteWhere(entityContext, query);
+            }
+        });
+    }
+
+    @Override
+    public BulkResult updateWhere(final EntityContext entityContext, final QueryObject<?> query, final Map<String, Object> assignments, RuntimeProperties runtimeProperties) throws SortJdbcException, SortPersistException {
+        env.preProcess(query, entityContext.getDefinitions());
+        final BulkPersister bulkPersister = newBulkPersister(env, entityContext.getNamespace());
+        return executeBulkOperation(entityContext, new BulkOperation() {
+            @Override
+            public BulkResult execute() throws SortPersistException {
+                return bulkPersister.updateWhere(entityContext, query, assignments);
+            }
+        });
+    }
+
+    private interface BulkOperation {
+        BulkResult execute() throws SortPersistException;
+    }
+
+    /**
+     * Executes the set based operation in the transaction of the entity context.<br/>
+     * If there is none then a transaction is started just for the operation, so that cascaded deletes are atomic.
+     */
+    private BulkResult executeBulkOperation(EntityContext entityContext, BulkOperation operation) throws SortJdbcException, SortPersistException {
+        ConnectionResources conRes = ConnectionResources.get(entityContext);
+        if (conRes != null) {
+            try {
+                return operation.execute();
+            }
+            catch(SortPersistException x) {
+                if (!getAutoCommit(entityContext)) {
+                    rollback(conRes.getConnection(), "Error rolling back the set based operation");
+                }
+                throw x;
+            }
+        }
+        conRes = newConnectionResources(entityContext, false);
+        try (OptionalyClosingResources con = new OptionalyClosingResources(conRes, true)) {
+            BulkResult result;
+            try {
+                result = operation.execute();
+            }
+            catch(SortPersistException x) {
+                rollback(con.getConnection(), "Error rolling back the set based operation");
+                throw x;
+            }
+            try {
+                con.getConnection().commit();
+            }
+            catch (SQLException x) {
+                throw new CommitException("SQLException while performing commit", x);
+            }
+            return result;
         }
     }
 
@@ -24,7 +24,10 @@ package scott.barleydb.server.jdbc.helper;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -36,17 +39,29 @@ import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
 import scott.barleydb.api.core.entity.Node;
 import scott.barleydb.api.core.entity.ToManyNode;
+import scott.barleydb.api.core.entity.ValueNode;
 import scott.barleydb.api.exception.BarleyDBException;
 import scott.barleydb.api.exception.execution.jdbc.ClosingStatementException;
+import scott.barleydb.api.specification.KeyGenSpec;
 import scott.barleydb.server.jdbc.resources.ConnectionResources;
+import scott.barleydb.server.jdbc.vendor.Database;
+import scott.barleydb.server.jdbc.vendor.UpsertStatement;
 
 public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends BarleyDBException, CONNECTION_REQ_EX extends BarleyDBException> implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(PreparedStatementCache.class);
 
     private final Map<EntityType, PreparedStatement> inserts = new HashMap<>();
+    private final Map<EntityType, PreparedStatement> identityInserts = new HashMap<>();
     private final Map<EntityType, PreparedStatement> updates = new HashMap<>();
+    private final Map<EntityType, Map<BitSet, PreparedStatement>> partialUpdates = new HashMap<>();
     private final Map<EntityType, PreparedStatement> deletes = new HashMap<>();
+    private final Map<EntityType, PreparedStatement> upserts = new HashMap<>();
+    private final Map<EntityType, PreparedStatement> lockedUpserts = new HashMap<>();
+    /**
+     * the number of parameters which bind the expected optimistic lock of each upsert statement.
+     */
+    private final Map<PreparedStatement, Integer> upsertLockParameters = new HashMap<>();
 
     private final PreparedStatementHelper<PREPARING_PERSIST_EX> helper;
 
@@ -55,6 +70,9 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
     }
 
     public PreparedStatement prepareInsertStatement(Entity entity, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX, CONNECTION_REQ_EX {
+        if (isIdentityInsert(entity)) {
+            return prepareIdentityInsertStatement(entity, newOptimisticLockTime);
+        }
         PreparedStatement ps = inserts.get(entity.getEntityType());
         if (ps == null) {
             ConnectionResources conRes = getConnectionResources(entity.getEntityContext());
@@ -70,19 +88,78 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
         return ps;
     }
 
+    /**
+     * Prepares an insert which leaves out the key column so that the database identity column generates it.<br/>
+     * The statement is prepared to return the generated key.
+     */
+    private PreparedStatement prepareIdentityInsertStatement(Entity entity, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX, CONNECTION_REQ_EX {
+        PreparedStatement ps = identityInserts.get(entity.getEntityType());
+        if (ps == null) {
+            ConnectionResources conRes = getConnectionResources(entity.getEntityContext());
+            try {
+                ps = conRes.getConnection().prepareStatement(generateInsertSql(entity), new String[]{ entity.getEntityType().getKeyColumn() });
+            }
+            catch (SQLException x) {
+                throw helper.newPreparingStatementException("SQLException preparing statement", x);
+            }
+            identityInserts.put(entity.getEntityType(), ps);
+        }
+        setInsertParameters(ps, entity, newOptimisticLockTime);
+        return ps;
+    }
+
+    /**
+     * @return true if the key of the entity will be generated by the database during the insert.
+     */
+    public static boolean isIdentityInsert(Entity entity) {
+        return entity.getEntityType().getKeyGenSpec() == KeyGenSpec.IDENTITY && entity.getKey().getValue() == null;
+    }
+
     public PreparedStatement prepareUpdateStatement(Entity entity, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX, CONNECTION_REQ_EX {
         PreparedStatement ps = updates.get(entity.getEntityType());
         if (ps == null) {
             ConnectionResources conRes = getConnectionResources(entity.getEntityContext());
             try {
-                ps = conRes.getConnection().prepareStatement(generateUpdateSql(entity));
+                ps = conRes.getConnection().prepareStatement(generateUpdateSql(entity, null));
                 updates.put(entity.getEntityType(), ps);
             }
             catch(SQLException x) {
                 throw helper.newPreparingStatementException("SQLException preparing statement", x);
             }
         }
-        setUpdateParameters(ps, entity, newOptimisticLockTime);
+        setUpdateParameters(ps, entity, newOptimisticLockTime, null);
+        return ps;
+    }
+
+    /**
+     * Prepares an update which only sets the given columns, the optimistic lock column is always set.<br/>
+     * The statements are cached per entity type and column set, so entities with the same changes are still batched together.
+     *
+     * @param columns the indexes of the node types to set
+     */
+    public PreparedStatement prepareUpdateStatement(Entity entity, Long newOptimisticLockTime, BitSet columns) throws PREPARING_PERSIST_EX, CONNECTION_REQ_EX {
+        ValueNode olNode = entity.getOptimisticLock();
+        if (olNode != null && !columns.get(olNode.getNodeType().getIndex())) {
+            columns = (BitSet)columns.clone();
+            columns.set(olNode.getNodeType().getIndex());
+        }
+        Map<BitSet, PreparedStatement> byColumns = partialUpdates.get(entity.getEntityType());
+        if (byColumns == null) {
+            byColumns = new HashMap<>();
+            partialUpdates.put(entity.getEntityType(), byColumns);
+        }
+        PreparedStatement ps = byColumns.get(columns);
+        if (ps == null) {
+            ConnectionResources conRes = getConnectionResources(entity.getEntityContext());
+            try {
+                ps = conRes.getConnection().prepareStatement(generateUpdateSql(entity, columns));
+                byColumns.put(columns, ps);
+            }
+            catch(SQLException x) {
+                throw helper.newPreparingStatementException("SQLException preparing statement", x);
+            }
+        }
+        setUpdateParameters(ps, entity, newOptimisticLockTime, columns);
         return ps;
     }
 
@@ -102,6 +179,37 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
         return ps;
     }
 
+    /**
+     * Prepares an upsert which inserts the entity or updates the existing row with the same key.<br/>
+     * If the entity has an optimistic lock value then an existing row is only updated if it has the same optimistic lock.
+     */
+    public PreparedStatement prepareUpsertStatement(Entity entity, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX, CONNECTION_REQ_EX {
+        final boolean checkLock = isLockedUpsert(entity);
+        Map<EntityType, PreparedStatement> cache = checkLock ? lockedUpserts : upserts;
+        PreparedStatement ps = cache.get(entity.getEntityType());
+        if (ps == null) {
+            ConnectionResources conRes = getConnectionResources(entity.getEntityContext());
+            UpsertStatement upsert = generateUpsertStatement(conRes.getDatabase(), entity, checkLock);
+            try {
+                ps = conRes.getConnection().prepareStatement(upsert.getSql());
+            }
+            catch (SQLException x) {
+                throw helper.newPreparingStatementException("SQLException preparing statement", x);
+            }
+            cache.put(entity.getEntityType(), ps);
+            upsertLockParameters.put(ps, upsert.getOptimisticLockParameters());
+        }
+        setUpsertParameters(ps, entity, newOptimisticLockTime, upsertLockParameters.get(ps));
+        return ps;
+    }
+
+    /**
+     * @return true if the upsert of the entity will only update a row with the same optimistic lock.
+     */
+    public static boolean isLockedUpsert(Entity entity) {
+        return entity.getEntityType().supportsOptimisticLocking() && entity.getOptimisticLock().getValue() != null;
+    }
+
     protected abstract ConnectionResources getConnectionResources(EntityContext entityContetx) throws CONNECTION_REQ_EX;
 
     @Override
@@ -117,6 +225,16 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
               }
             }
         }
+        for (PreparedStatement ps : identityInserts.values()) {
+            try {
+                ps.close();
+            }
+            catch (SQLException e) {
+                if (x == null) {
+                    x = new ClosingStatementException("SQLException closing prepared statement", e);
+                }
+            }
+        }
         for (PreparedStatement ps : updates.values()) {
             try {
                 ps.close();
@@ -127,6 +245,18 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
                 }
             }
         }
+        for (Map<BitSet, PreparedStatement> byColumns : partialUpdates.values()) {
+            for (PreparedStatement ps : byColumns.values()) {
+                try {
+                    ps.close();
+                }
+                catch (SQLException e) {
+                    if (x == null) {
+                        x = new ClosingStatementException("SQLException closing prepared statement", e);
+                    }
+                }
+            }
+        }
         for (PreparedStatement ps : deletes.values()) {
             try {
                 ps.close();
@@ -137,12 +267,23 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
                 }
             }
         }
+        for (PreparedStatement ps : upsertLockParameters.keySet()) {
+            try {
+                ps.close();
+            }
+            catch (SQLException e) {
+                if (x == null) {
+                    x = new ClosingStatementException("SQLException closing prepared statement", e);
+                }
+            }
+        }
         if (x != null) {
             throw x;
         }
     }
 
     private String generateInsertSql(Entity entity) {
+        final boolean identityInsert = isIdentityInsert(entity);
         StringBuilder sb = new StringBuilder("insert into ");
         sb.append(entity.getEntityType().getTableName());
         sb.append(' ');
@@ -151,6 +292,9 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
             if (child instanceof ToManyNode) {
                 continue;
             }
+            if (identityInsert && child == entity.getKey()) {
+                continue;
+            }
             final NodeType nd = entity.getEntityType().getNodeType(child.getName(), true);
             sb.append(nd.getColumnName());
             sb.append(',');
@@ -161,6 +305,9 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
             if (child instanceof ToManyNode) {
                 continue;
             }
+            if (identityInsert && child == entity.getKey()) {
+                continue;
+            }
             sb.append("?,");
         }
         sb.setCharAt(sb.length() - 1, ')');
@@ -168,7 +315,10 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
         return sb.toString();
     }
 
-    private String generateUpdateSql(Entity entity) {
+    /**
+     * @param columns the indexes of the node types to set or null for all columns.
+     */
+    private String generateUpdateSql(Entity entity, BitSet columns) {
         StringBuilder sb = new StringBuilder("update ");
         sb.append(entity.getEntityType().getTableName());
         sb.append(" set ");
@@ -177,7 +327,7 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
                 continue;
             }
             final NodeType nd = entity.getEntityType().getNodeType(child.getName(), true);
-            if (!nd.isPrimaryKey()) {
+            if (!nd.isPrimaryKey() && (columns == null || columns.get(nd.getIndex()))) {
                 sb.append(nd.getColumnName());
                 sb.append(" = ?,");
             }
@@ -188,6 +338,30 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
         return sb.toString();
     }
 
+    private UpsertStatement generateUpsertStatement(Database database, Entity entity, boolean checkLock) throws PREPARING_PERSIST_EX {
+        UpsertStatement upsert = database.generateUpsertStatement(
+                entity.getEntityType().getTableName(),
+                entity.getEntityType().getKeyColumn(),
+                getUpsertColumns(entity),
+                checkLock ? entity.getOptimisticLock().getNodeType().getColumnName() : null);
+        if (upsert == null) {
+            throw helper.newPreparingStatementException("Upsert is not supported by database " + database.getInfo());
+        }
+        LOG.debug(upsert.getSql());
+        return upsert;
+    }
+
+    private List<String> getUpsertColumns(Entity entity) {
+        List<String> columns = new LinkedList<>();
+        for (Node child : entity.getChildren()) {
+            if (child instanceof ToManyNode) {
+                continue;
+            }
+            columns.add(entity.getEntityType().getNodeType(child.getName(), true).getColumnName());
+        }
+        return columns;
+    }
+
     private String generateDeleteSql(Entity entity) {
         StringBuilder sb = new StringBuilder("delete from ");
         sb.append(entity.getEntityType().getTableName());
@@ -208,11 +382,15 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
     }
 
     private void setInsertParameters(PreparedStatement ps, Entity entity, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX {
+        final boolean identityInsert = isIdentityInsert(entity);
         int i = 1;
         for (final Node child : entity.getChildren()) {
             if (child instanceof ToManyNode) {
                 continue;
             }
+            if (identityInsert && child == entity.getKey()) {
+                continue;
+            }
             if (child.getNodeType().isOptimisticLock()) {
                 //we set the new optimistic lock value, the OL node still contains the old value
                 helper.setParameter(ps, i++, child, newOptimisticLockTime);
@@ -223,14 +401,14 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
         }
     }
 
-    private void setUpdateParameters(PreparedStatement ps, Entity entity, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX {
+    private void setUpdateParameters(PreparedStatement ps, Entity entity, Long newOptimisticLockTime, BitSet columns) throws PREPARING_PERSIST_EX {
         int i = 1;
         for (final Node child : entity.getChildren()) {
             if (child instanceof ToManyNode) {
                 continue;
             }
             final NodeType nd = entity.getEntityType().getNodeType(child.getName(), true);
-            if (!nd.isPrimaryKey()) {
+            if (!nd.isPrimaryKey() && (columns == null || columns.get(nd.getIndex()))) {
                 if (nd.isOptimisticLock()) {
                     //we set the new optimistic lock value, the OL node still contains the old value
                     helper.setParameter(ps, i++, child, newOptimisticLockTime);
@@ -246,6 +424,25 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
         }
     }
 
+    private void setUpsertParameters(PreparedStatement ps, Entity entity, Long newOptimisticLockTime, int lockParameters) throws PREPARING_PERSIST_EX {
+        int i = 1;
+        for (final Node child : entity.getChildren()) {
+            if (child instanceof ToManyNode) {
+                continue;
+            }
+            if (child.getNodeType().isOptimisticLock()) {
+                //we set the new optimistic lock value, the OL node still contains the old value
+                helper.setParameter(ps, i++, child, newOptimisticLockTime);
+            }
+            else {
+                helper.setParameter(ps, i++, child);
+            }
+        }
+        for (int l = 0; l < lockParameters; l++) {
+            helper.setParameter(ps, i++, entity.getOptimisticLock());
+        }
+    }
+
     private void setDeleteParameters(PreparedStatement ps, Entity entity) throws PREPARING_PERSIST_EX {
         helper.setParameter(ps, 1, entity.getKey());
         Node olNode = entity.getOptimisticLock();
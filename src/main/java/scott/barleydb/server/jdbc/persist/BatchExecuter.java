@@ -22,10 +22,17 @@ package scott.barleydb.server.jdbc.persist;
  * #L%
  */
 
+import java.math.BigDecimal;
 import java.sql.BatchUpdateException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -35,11 +42,14 @@ import org.slf4j.LoggerFactory;
 import scott.barleydb.api.config.Definitions;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.entity.RefNode;
+import scott.barleydb.api.core.types.JavaType;
 import scott.barleydb.api.exception.execution.jdbc.AddBatchException;
 import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
 import scott.barleydb.api.exception.execution.persist.IllegalPersistStateException;
 import scott.barleydb.api.exception.execution.persist.PreparingPersistStatementException;
 import scott.barleydb.api.exception.execution.persist.SortPersistException;
+import scott.barleydb.api.persist.PersistReport;
 import scott.barleydb.server.jdbc.JdbcEntityContextServices;
 import scott.barleydb.server.jdbc.vendor.Database;
 
@@ -56,11 +66,18 @@ abstract class BatchExecuter {
     private final OperationGroup group;
     private final String operationName;
     private final Database database;
+    private final PersistReport report;
+    private final BatchFailureIsolation isolation;
 
-    public BatchExecuter(OperationGroup group, String operationName, Database database) {
+    /**
+     * @param isolation isolates failing entities of a batch using savepoints, null if not required.
+     */
+    public BatchExecuter(OperationGroup group, String operationName, Database database, PersistReport report, BatchFailureIsolation isolation) {
         this.group = group;
         this.operationName = operationName;
         this.database = database;
+        this.report = report;
+        this.isolation = isolation;
     }
 
     public void execute(JdbcEntityContextServices jdbcEntityContextServices, Definitions definitions) throws PreparingPersistStatementException, SortPersistException, SortJdbcException {
@@ -70,11 +87,32 @@ abstract class BatchExecuter {
         try ( PreparedStatementPersistCache psCache = new PreparedStatementPersistCache(jdbcEntityContextServices, definitions);) {
             PreparedStatement psLast = null;
             List<Entity> entities = new LinkedList<>();
+            boolean pendingGeneratedKeys = false;
             for (Entity entity : group.getEntities()) {
+                if (isolation != null && refersToFailedEntity(entity)) {
+                    isolation.failed(entity, new SQLException(entity + " refers to an entity which failed to persist"));
+                    continue;
+                }
+                if (pendingGeneratedKeys && refersToEntityWithoutKey(entity)) {
+                    /*
+                     * the entity has a FK to an entity whose key is generated by the batch which is still pending
+                     * so the batch must be executed first, to know the FK value.
+                     */
+                    executeBatch(psCache, psLast, entities);
+                    entities.clear();
+                    psLast = null;
+                    pendingGeneratedKeys = false;
+                }
                 PreparedStatement ps = prepareStatement(psCache, entity);
                 if (psLast != null && psLast != ps) {
-                    executeBatch(psLast, entities);
+                    executeBatch(psCache, psLast, entities);
                     entities.clear();
+                    pendingGeneratedKeys = false;
+                }
+                if (returnsGeneratedKeys(entity) && !database.supportsBatchGeneratedKeys()) {
+                    executeSingle(ps, entity);
+                    psLast = null;
+                    continue;
                 }
                 try {
                     ps.addBatch();
@@ -84,49 +122,234 @@ abstract class BatchExecuter {
 
                 }
                 entities.add(entity);
+                pendingGeneratedKeys |= returnsGeneratedKeys(entity);
                 psLast = ps;
             }
-            executeBatch(psLast, entities);
+            if (!entities.isEmpty()) {
+                executeBatch(psCache, psLast, entities);
+            }
         }
     }
 
-    private void executeBatch(PreparedStatement ps, List<Entity> entities) throws SortPersistException  {
+    /**
+     *
+     * @param entity
+     * @return true if the entity has a reference to an entity which does not have a key yet.
+     */
+    private boolean refersToEntityWithoutKey(Entity entity) {
+        for (RefNode refNode : entity.getChildren(RefNode.class)) {
+            Entity reference = refNode.getReference(false);
+            if (reference != null && reference.getKey().getValue() == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean refersToFailedEntity(Entity entity) {
+        for (RefNode refNode : entity.getChildren(RefNode.class)) {
+            Entity reference = refNode.getReference(false);
+            if (reference != null && isolation.isFailed(reference)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Executes the statement directly for a single entity, used when the database cannot
+     * return generated keys for a batch.
+     */
+    private void executeSingle(PreparedStatement ps, Entity entity) throws SortPersistException {
+        List<Entity> entities = Collections.singletonList(entity);
+        updateStats(entity.getEntityContext(), entities);
+        LOG.debug("executing " + operationName + " for " + entity.getEntityType() + " without batching");
+        Savepoint savepoint = setSavepoint(ps);
+        try {
+            long start = System.nanoTime();
+            int count = ps.executeUpdate();
+            report.addJdbcNanos(entity.getEntityType().getInterfaceName(), System.nanoTime() - start);
+            if (count == 0) {
+                handleNoop(entity, null);
+            }
+            harvestGeneratedKeys(ps, entities);
+            releaseSavepoint(ps, savepoint);
+        }
+        catch(SQLException x) {
+            //the statement failed, so there is no generated key to read
+            if (savepoint == null) {
+                handleFailure(entity, x);
+            }
+            else {
+                rollbackToSavepoint(ps, savepoint);
+                isolation.failed(entity, x);
+            }
+        }
+    }
+
+    /**
+     * Reads the keys which the database generated and sets them on the entities.<br/>
+     * The keys are returned in the same order as the rows of the batch.<br/>
+     * <br/>
+     * Setting the key updates the key lookup of the entity context and any RefNode
+     * referring to the entity will now resolve the new key value.
+     *
+     * @param ps
+     * @param entities
+     * @throws SortPersistException
+     */
+    private void harvestGeneratedKeys(PreparedStatement ps, List<Entity> entities) throws SortPersistException {
+        if (!returnsGeneratedKeys(entities.get(0))) {
+            return;
+        }
+        try (ResultSet rs = ps.getGeneratedKeys()) {
+            Iterator<Entity> i = entities.iterator();
+            while(rs.next()) {
+                if (!i.hasNext()) {
+                    throw new IllegalPersistStateException("More generated keys were returned than entities in the batch for " + entities.get(0).getEntityType());
+                }
+                Entity entity = i.next();
+                Object key = toKeyValue(entity, rs.getObject(1));
+                LOG.debug("Setting generated key for " + entity + " to " + key);
+                entity.getKey().setValue(key);
+            }
+            if (i.hasNext()) {
+                throw new IllegalPersistStateException("Database " + database.getInfo() + " returned less generated keys than entities in the batch for " + entities.get(0).getEntityType());
+            }
+        }
+        catch(SQLException x) {
+            throw new SortPersistException("SQLException reading generated keys for " + entities.get(0).getEntityType(), x);
+        }
+    }
+
+    private Object toKeyValue(Entity entity, Object value) throws IllegalPersistStateException {
+        if (!(value instanceof Number)) {
+            throw new IllegalPersistStateException("Generated key '" + value + "' for " + entity.getEntityType() + " is not a number");
+        }
+        Number number = (Number)value;
+        JavaType javaType = entity.getKey().getNodeType().getJavaType();
+        switch(javaType) {
+            case LONG: return number.longValue();
+            case INTEGER: return number.intValue();
+            case SHORT: return number.shortValue();
+            case BIGDECIMAL: return value instanceof BigDecimal ? value : new BigDecimal(number.toString());
+            default: throw new IllegalPersistStateException("Java type " + javaType + " is not supported for generated keys of " + entity.getEntityType());
+        }
+    }
+
+    private void executeBatch(PreparedStatementPersistCache psCache, PreparedStatement ps, List<Entity> entities) throws SortPersistException  {
+        Savepoint savepoint = setSavepoint(ps);
+        if (savepoint != null) {
+            executeBatchIsolated(psCache, ps, entities, savepoint);
+        }
+        else {
+            executeBatch(ps, entities);
+        }
+    }
+
+    /**
+     * Executes the batch inside a savepoint, if the batch fails then the work is rolled back to the savepoint
+     * and the batch is split in two and each half is executed again, until the failing entities are found.<br/>
+     * <br/>
+     * The failing entities are passed to the {@link BatchFailureIsolation}, the rest of the batch is persisted.
+     */
+    private void executeBatchIsolated(PreparedStatementPersistCache psCache, PreparedStatement ps, List<Entity> entities, Savepoint savepoint) throws SortPersistException  {
         updateStats(entities.get(0).getEntityContext(), entities);
-        final String contextInfo = "executing " + operationName + " batch for " + entities.get(0).getEntityType() + " of size " + entities.size();
+        final String contextInfo = "executing " + operationName + " batch for " + entities.get(0).getEntityType() + " of size " + entities.size() + " in a savepoint";
         LOG.debug(contextInfo);
         try {
+            long start = System.nanoTime();
             int counts[] = ps.executeBatch();
-            if (counts.length != entities.size()) {
-                throw new SortPersistException("The number update counts returned, does not match the size of the batch counts=" + counts.length + ", entities=" + entities.size() );
-            }
-            int totalMods = 0;
-            for (int i = 0; i < counts.length; i++) {
-                if (counts[i] == Statement.SUCCESS_NO_INFO) {
-                    if (database.supportsBatchUpdateCounts())  {
-                        throw new IllegalPersistStateException("Received SUCCESS_NO_INFO from database: " + database + " which should support batch update counts.");
-                    }
-                }
-                else if (counts[i] == Statement.EXECUTE_FAILED) {
-                    /*
-                     * This makes no sense, a batch update exception should have been thrown.
-                     *
-                     */
-                    handleFailure(entities.get(i), null);
-                }
-                else if (counts[i] == 0) {
-                   handleNoop(entities.get(i), null);
-                }
-                else {
-                    totalMods += counts[i];
-                }
+            report.addJdbcNanos(entities.get(0).getEntityType().getInterfaceName(), System.nanoTime() - start);
+            //the counts and generated keys are processed while the savepoint still covers the batch
+            processUpdateCounts(ps, counts, entities);
+            releaseSavepoint(ps, savepoint);
+        }
+        catch (BatchUpdateException x) {
+            rollbackToSavepoint(ps, savepoint);
+            try {
+                ps.clearBatch();
             }
-            if (database.supportsBatchUpdateCounts())  {
-                LOG.debug(totalMods + " rows were modified in total");
+            catch(SQLException x2) {
+                throw new SortPersistException("SQLException clearing the failed batch when " + contextInfo, x2);
             }
-            else {
-                LOG.debug(database.getInfo() + " does not support batch update counts, pemissistic locking was used to guarantee optimistic lock.");
+            if (entities.size() == 1) {
+                isolation.failed(entities.get(0), x);
+                return;
+            }
+            LOG.debug("Batch failed, splitting the batch to isolate the failing entities");
+            int half = entities.size() / 2;
+            executeBatchAgain(psCache, ps, entities.subList(0, half));
+            executeBatchAgain(psCache, ps, entities.subList(half, entities.size()));
+        }
+        catch(SQLException x) {
+            throw new SortPersistException("SQLException when " + contextInfo, x);
+        }
+    }
+
+    private void executeBatchAgain(PreparedStatementPersistCache psCache, PreparedStatement ps, List<Entity> entities) throws SortPersistException {
+        for (Entity entity : entities) {
+            if (prepareStatement(psCache, entity) != ps) {
+                throw new IllegalPersistStateException("Expected the same prepared statement when batching " + entity + " again");
+            }
+            try {
+                ps.addBatch();
+            }
+            catch(SQLException x) {
+                throw new SortPersistException("SQLException adding batch", x);
             }
         }
+        executeBatch(psCache, ps, new ArrayList<>(entities));
+    }
+
+    /**
+     * @return the savepoint if batch failures should be isolated and the connection supports it, otherwise null.
+     */
+    private Savepoint setSavepoint(PreparedStatement ps) throws SortPersistException {
+        if (isolation == null) {
+            return null;
+        }
+        try {
+            return isolation.setSavepoint(ps.getConnection());
+        }
+        catch(SQLException x) {
+            throw new SortPersistException("SQLException setting savepoint", x);
+        }
+    }
+
+    private void releaseSavepoint(PreparedStatement ps, Savepoint savepoint) throws SortPersistException {
+        if (savepoint == null) {
+            return;
+        }
+        try {
+            ps.getConnection().releaseSavepoint(savepoint);
+        }
+        catch(SQLException x) {
+            throw new SortPersistException("SQLException releasing savepoint", x);
+        }
+    }
+
+    private void rollbackToSavepoint(PreparedStatement ps, Savepoint savepoint) throws SortPersistException {
+        try {
+            Connection connection = ps.getConnection();
+            connection.rollback(savepoint);
+            connection.releaseSavepoint(savepoint);
+        }
+        catch(SQLException x) {
+            throw new SortPersistException("SQLException rolling back to savepoint", x);
+        }
+    }
+
+    private void executeBatch(PreparedStatement ps, List<Entity> entities) throws SortPersistException  {
+        updateStats(entities.get(0).getEntityContext(), entities);
+        final String contextInfo = "executing " + operationName + " batch for " + entities.get(0).getEntityType() + " of size " + entities.size();
+        LOG.debug(contextInfo);
+        try {
+            long start = System.nanoTime();
+            int counts[] = ps.executeBatch();
+            report.addJdbcNanos(entities.get(0).getEntityType().getInterfaceName(), System.nanoTime() - start);
+            processUpdateCounts(ps, counts, entities);
+        }
         catch (BatchUpdateException x) {
             int counts[] = x.getUpdateCounts();
             if (counts.length < entities.size()) {
@@ -157,6 +380,40 @@ abstract class BatchExecuter {
 
     }
 
+    private void processUpdateCounts(PreparedStatement ps, int counts[], List<Entity> entities) throws SortPersistException {
+        if (counts.length != entities.size()) {
+            throw new SortPersistException("The number update counts returned, does not match the size of the batch counts=" + counts.length + ", entities=" + entities.size() );
+        }
+        int totalMods = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                if (database.supportsBatchUpdateCounts())  {
+                    throw new IllegalPersistStateException("Received SUCCESS_NO_INFO from database: " + database + " which should support batch update counts.");
+                }
+            }
+            else if (counts[i] == Statement.EXECUTE_FAILED) {
+                /*
+                 * This makes no sense, a batch update exception should have been thrown.
+                 *
+                 */
+                handleFailure(entities.get(i), null);
+            }
+            else if (counts[i] == 0) {
+               handleNoop(entities.get(i), null);
+            }
+            else {
+                totalMods += counts[i];
+            }
+        }
+        harvestGeneratedKeys(ps, entities);
+        if (database.supportsBatchUpdateCounts())  {
+            LOG.debug(totalMods + " rows were modified in total");
+        }
+        else {
+            LOG.debug(database.getInfo() + " does not support batch update counts, pemissistic locking was used to guarantee optimistic lock.");
+        }
+    }
+
     protected abstract void updateStats(EntityContext entityContext, List<Entity> entities);
 
     protected abstract void handleFailure(Entity entity, Throwable throwable) throws SortPersistException;
@@ -169,5 +426,13 @@ abstract class BatchExecuter {
      */
     protected abstract void handleNoop(Entity entity, Throwable throwable) throws SortPersistException;
 
+    /**
+     * @param entity
+     * @return true if the database generates the key of the entity as part of the operation.
+     */
+    protected boolean returnsGeneratedKeys(Entity entity) {
+        return false;
+    }
+
     protected abstract PreparedStatement prepareStatement(PreparedStatementPersistCache psCache, Entity entity) throws SortPersistException;
 }
@@ -0,0 +1,84 @@
+package scott.barleydb.server.jdbc.persist;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.persist.BatchFailureListener;
+import scott.barleydb.api.persist.PersistReport;
+
+/**
+ * Collects the entities which failed in a JDBC batch when batch failures are isolated with savepoints.
+ * @author scott
+ *
+ */
+class BatchFailureIsolation {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchFailureIsolation.class);
+
+    private final BatchFailureListener listener;
+    private final PersistReport report;
+    private final Set<Entity> failedEntities = new LinkedHashSet<>();
+
+    public BatchFailureIsolation(BatchFailureListener listener, PersistReport report) {
+        this.listener = listener;
+        this.report = report;
+    }
+
+    /**
+     * @return a savepoint or null if the connection cannot provide one.
+     */
+    public Savepoint setSavepoint(Connection connection) throws SQLException {
+        if (connection.getAutoCommit() || !connection.getMetaData().supportsSavepoints()) {
+            LOG.debug("Savepoints are not available, batch failures will not be isolated");
+            return null;
+        }
+        return connection.setSavepoint();
+    }
+
+    public void failed(Entity entity, Throwable cause) {
+        LOG.warn("Isolated failing entity {}: {}", entity, cause.getMessage());
+        failedEntities.add(entity);
+        report.addFailure(entity.getEntityType().getInterfaceName(), entity.getKey().getValue(), cause.getMessage());
+        if (listener != null) {
+            listener.entityFailed(entity, cause);
+        }
+    }
+
+    public boolean isFailed(Entity entity) {
+        return failedEntities.contains(entity);
+    }
+
+    public Set<Entity> getFailedEntities() {
+        return Collections.unmodifiableSet(failedEntities);
+    }
+}
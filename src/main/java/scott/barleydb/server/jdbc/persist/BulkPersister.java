@@ -0,0 +1,403 @@
+package scott.barleydb.server.jdbc.persist;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scott.barleydb.api.config.Definitions;
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.core.Environment;
+import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.util.CollectionUtil;
+import scott.barleydb.api.exception.execution.persist.SortPersistException;
+import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
+import scott.barleydb.api.exception.execution.query.ForUpdateNotSupportedException;
+import scott.barleydb.api.exception.execution.query.IllegalQueryStateException;
+import scott.barleydb.api.persist.BulkResult;
+import scott.barleydb.api.query.ConditionVisitor;
+import scott.barleydb.api.query.QExists;
+import scott.barleydb.api.query.QLogicalOp;
+import scott.barleydb.api.query.QPropertyCondition;
+import scott.barleydb.api.query.QueryObject;
+import scott.barleydb.server.jdbc.JdbcEntityContextServices;
+import scott.barleydb.server.jdbc.query.Projection;
+import scott.barleydb.server.jdbc.query.QueryGenerator;
+import scott.barleydb.server.jdbc.query.QueryGenerator.Param;
+import scott.barleydb.server.jdbc.resources.ConnectionResources;
+import scott.barleydb.server.jdbc.vendor.Database;
+
+/**
+ * Performs set based deletes and updates of the rows matching a query, without loading any entities.<br/>
+ * <br/>
+ * Deletes cascade to the owned relations, the owned to many relations are deleted first with
+ * statements selecting on the keys of their owners, the owned references are deleted after their owners.<br/>
+ * <br/>
+ * No audit records are generated and no access rights are checked.
+ *
+ * @author scott
+ *
+ */
+public class BulkPersister {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkPersister.class);
+
+    /**
+     * The keys of the rows to process, either a sub-query or a list of parameters.
+     */
+    private static class KeySelection {
+        private final String sql;
+        private final List<Param> params;
+        private final boolean subQuery;
+
+        public KeySelection(String sql, List<Param> params, boolean subQuery) {
+            this.sql = sql;
+            this.params = params;
+            this.subQuery = subQuery;
+        }
+    }
+
+    private final Environment env;
+    private final String namespace;
+    private final JdbcEntityContextServices entityContextServices;
+
+    public BulkPersister(Environment env, String namespace, JdbcEntityContextServices entityContextServices) {
+        this.env = env;
+        this.namespace = namespace;
+        this.entityContextServices = entityContextServices;
+    }
+
+    /**
+     * Deletes the rows matching the query, including the rows of owned relations.
+     */
+    public BulkResult deleteWhere(EntityContext entityContext, QueryObject<?> query) throws SortPersistException {
+        ConnectionResources conRes = ConnectionResources.getMandatoryForPersist(entityContext);
+        Definitions definitions = env.getDefinitions(namespace);
+        EntityType entityType = definitions.getEntityTypeMatchingInterface(query.getTypeName(), true);
+        BulkResult result = new BulkResult(entityType.getInterfaceName());
+
+        KeySelection keys = selectKeys(conRes.getDatabase(), definitions, query);
+        if (referencesOtherTables(query) && hasOwnedToManyRelations(entityType)) {
+            /*
+             * the condition could depend on the rows of the owned relations which we delete first
+             * so we read the keys up front.
+             */
+            LOG.debug("Reading the keys of {} up front as the condition refers to other tables", entityType.getInterfaceName());
+            deleteByKeys(entityContext, conRes, definitions, entityType, readKeys(entityContext, conRes, definitions, keys.sql, keys.params), result);
+        }
+        else {
+            Set<EntityType> path = new HashSet<>();
+            path.add(entityType);
+            delete(entityContext, conRes, definitions, entityType, keys, path, result);
+        }
+        return result;
+    }
+
+    /**
+     * Updates the rows matching the query.<br/>
+     * The optimistic lock is set to the current time.
+     *
+     * @param assignments the values keyed by property name, references are set by key value.
+     */
+    public BulkResult updateWhere(EntityContext entityContext, QueryObject<?> query, Map<String, Object> assignments) throws SortPersistException {
+        ConnectionResources conRes = ConnectionResources.getMandatoryForPersist(entityContext);
+        Database database = conRes.getDatabase();
+        Definitions definitions = env.getDefinitions(namespace);
+        EntityType entityType = definitions.getEntityTypeMatchingInterface(query.getTypeName(), true);
+        BulkResult result = new BulkResult(entityType.getInterfaceName());
+        if (assignments.isEmpty()) {
+            return result;
+        }
+
+        List<Param> params = new LinkedList<>();
+        StringBuilder sb = new StringBuilder("update ");
+        sb.append(database.formatTableName(entityType.getTableName()));
+        sb.append(" set ");
+        for (Map.Entry<String, Object> assignment : assignments.entrySet()) {
+            NodeType nodeType = entityType.getNodeType(assignment.getKey(), true);
+            if (nodeType.getColumnName() == null || nodeType.isPrimaryKey() || nodeType.isOptimisticLock()) {
+                throw new SortPersistException("Property '" + assignment.getKey() + "' of " + entityType.getInterfaceShortName() + " cannot be updated");
+            }
+            sb.append(nodeType.getColumnName());
+            sb.append(" = ?, ");
+            params.add(new Param(nodeType, assignment.getValue()));
+        }
+        for (NodeType nodeType : entityType.getNodeTypes()) {
+            if (nodeType.isOptimisticLock()) {
+                sb.append(nodeType.getColumnName());
+                sb.append(" = ?, ");
+                params.add(new Param(nodeType, System.currentTimeMillis()));
+            }
+        }
+        sb.setLength(sb.length() - 2);
+
+        KeySelection keys = selectKeys(database, definitions, query);
+        appendKeyCondition(sb, entityType, keys);
+        params.addAll(keys.params);
+
+        int count = executeUpdate(entityContext, conRes, definitions, sb.toString(), params);
+        entityContext.getStatistics().addNumberOfRecordUpdates(count);
+        result.addRowCount(entityType.getInterfaceName(), count);
+        return result;
+    }
+
+    private void delete(EntityContext entityContext, ConnectionResources conRes, Definitions definitions, EntityType entityType, KeySelection keys, Set<EntityType> path, BulkResult result) throws SortPersistException {
+        Database database = conRes.getDatabase();
+        /*
+         * the owned to many relations refer to us, so they must be deleted first
+         */
+        for (NodeType nodeType : entityType.getNodeTypes()) {
+            if (!nodeType.isOwns() || !nodeType.isOneToManyRelation()) {
+                continue;
+            }
+            EntityType childType = definitions.getEntityTypeMatchingInterface(nodeType.getRelationInterfaceName(), true);
+            String alias = "k" + path.size();
+            StringBuilder sb = new StringBuilder("select ");
+            sb.append(alias);
+            sb.append('.');
+            sb.append(childType.getKeyColumn());
+            sb.append(" from ");
+            sb.append(database.formatTableName(childType.getTableName()));
+            sb.append(' ');
+            sb.append(alias);
+            sb.append(" where ");
+            sb.append(alias);
+            sb.append('.');
+            sb.append(childType.getNodeType(nodeType.getForeignNodeName(), true).getColumnName());
+            sb.append(" in (");
+            sb.append(keys.sql);
+            sb.append(')');
+            if (path.contains(childType)) {
+                /*
+                 * the ownership is recursive, we cannot nest the sub-queries without end, so we read the keys
+                 * and continue until there are none left.
+                 */
+                deleteByKeys(entityContext, conRes, definitions, childType, readKeys(entityContext, conRes, definitions, sb.toString(), keys.params), result);
+            }
+            else {
+                Set<EntityType> childPath = new HashSet<>(path);
+                childPath.add(childType);
+                delete(entityContext, conRes, definitions, childType, new KeySelection(sb.toString(), keys.params, true), childPath, result);
+            }
+        }
+        /*
+         * we refer to the owned references, so they can only be found before we are deleted.
+         */
+        List<EntityType> ownedTypes = new LinkedList<>();
+        List<Collection<Object>> ownedKeys = new LinkedList<>();
+        for (NodeType nodeType : entityType.getNodeTypes()) {
+            if (!nodeType.isOwns() || !nodeType.isForeignKey()) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder("select r.");
+            sb.append(nodeType.getColumnName());
+            sb.append(" from ");
+            sb.append(database.formatTableName(entityType.getTableName()));
+            sb.append(" r where r.");
+            sb.append(nodeType.getColumnName());
+            sb.append(" is not null and r.");
+            sb.append(entityType.getKeyColumn());
+            sb.append(" in (");
+            sb.append(keys.sql);
+            sb.append(')');
+            ownedTypes.add(definitions.getEntityTypeMatchingInterface(nodeType.getRelationInterfaceName(), true));
+            ownedKeys.add(readKeys(entityContext, conRes, definitions, sb.toString(), keys.params));
+        }
+
+        StringBuilder sb = new StringBuilder("delete from ");
+        sb.append(database.formatTableName(entityType.getTableName()));
+        appendKeyCondition(sb, entityType, keys);
+        int count = executeUpdate(entityContext, conRes, definitions, sb.toString(), keys.params);
+        entityContext.getStatistics().addNumberOfRecordDeletes(count);
+        result.addRowCount(entityType.getInterfaceName(), count);
+
+        Iterator<Collection<Object>> i = ownedKeys.iterator();
+        for (EntityType ownedType : ownedTypes) {
+            deleteByKeys(entityContext, conRes, definitions, ownedType, i.next(), result);
+        }
+    }
+
+    /**
+     * Deletes the entities with the given keys, binding at most CollectionUtil.MAX_KEYS_PER_QUERY keys per statement.
+     */
+    private void deleteByKeys(EntityContext entityContext, ConnectionResources conRes, Definitions definitions, EntityType entityType, Collection<Object> keys, BulkResult result) throws SortPersistException {
+        for (Set<Object> chunk : CollectionUtil.toKeyChunks(keys)) {
+            StringBuilder sb = new StringBuilder();
+            List<Param> params = new ArrayList<>(chunk.size());
+            for (Object key : chunk) {
+                sb.append("?,");
+                params.add(new Param(null, key));
+            }
+            sb.setLength(sb.length() - 1);
+            Set<EntityType> path = new HashSet<>();
+            path.add(entityType);
+            delete(entityContext, conRes, definitions, entityType, new KeySelection(sb.toString(), params, false), path, result);
+        }
+    }
+
+    /**
+     * Generates the query selecting only the keys of the matching rows.
+     */
+    private KeySelection selectKeys(Database database, Definitions definitions, QueryObject<?> query) throws SortPersistException {
+        if (!query.getOrderBy().isEmpty() || query.getForUpdate() != null) {
+            throw new SortPersistException("Order by and for update are not supported for set based operations");
+        }
+        EntityType entityType = definitions.getEntityTypeMatchingInterface(query.getTypeName(), true);
+        Projection projection = new Projection(definitions);
+        projection.add(query, entityType.getNodeType(entityType.getKeyNodeName(), true));
+        List<Param> params = new LinkedList<>();
+        try {
+            String sql = new QueryGenerator(database, query, definitions).generateSQL(projection, params);
+            return new KeySelection(sql, params, true);
+        }
+        catch (IllegalQueryStateException | ForUpdateNotSupportedException x) {
+            throw new SortPersistException("Could not generate the key query for " + entityType.getInterfaceShortName(), x);
+        }
+    }
+
+    /**
+     * Appends where key in (...).<br/>
+     * Sub-queries are wrapped in a derived table as some databases do not allow a statement
+     * to select from the table which it modifies.
+     */
+    private void appendKeyCondition(StringBuilder sb, EntityType entityType, KeySelection keys) {
+        sb.append(" where ");
+        sb.append(entityType.getKeyColumn());
+        sb.append(" in (");
+        if (keys.subQuery) {
+            sb.append("select d.");
+            sb.append(entityType.getKeyColumn());
+            sb.append(" from (");
+            sb.append(keys.sql);
+            sb.append(") d");
+        }
+        else {
+            sb.append(keys.sql);
+        }
+        sb.append(')');
+    }
+
+    private Collection<Object> readKeys(EntityContext entityContext, ConnectionResources conRes, Definitions definitions, String sql, List<Param> params) throws SortPersistException {
+        LOG.debug(sql);
+        Collection<Object> keys = new LinkedHashSet<>();
+        try (PreparedStatement ps = conRes.getConnection().prepareStatement(sql)) {
+            setParameters(ps, definitions, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                while(rs.next()) {
+                    keys.add(rs.getObject(1));
+                }
+            }
+        }
+        catch (SQLException x) {
+            throw new SortPersistException("Error reading keys for set based operation: " + sql, x);
+        }
+        return keys;
+    }
+
+    private int executeUpdate(EntityContext entityContext, ConnectionResources conRes, Definitions definitions, String sql, List<Param> params) throws SortPersistException {
+        LOG.debug(sql);
+        try (PreparedStatement ps = conRes.getConnection().prepareStatement(sql)) {
+            setParameters(ps, definitions, params);
+            int count = ps.executeUpdate();
+            LOG.debug("{} rows were modified", count);
+            return count;
+        }
+        catch (SQLException x) {
+            throw new SortPersistException("Error executing set based operation: " + sql, x);
+        }
+    }
+
+    /**
+     * Parameters without a node type are keys which were read from the database and are bound as is.
+     */
+    private void setParameters(PreparedStatement ps, Definitions definitions, List<Param> params) throws SortPersistException, SQLException {
+        PersistPreparedStatementHelper helper = new PersistPreparedStatementHelper(entityContextServices, definitions);
+        int i = 1;
+        for (Param param : params) {
+            if (param.getNodeType() == null) {
+                ps.setObject(i++, param.getValue());
+            }
+            else {
+                helper.setParameter(ps, i++, param.getNodeType(), param.getValue());
+            }
+        }
+    }
+
+    private boolean hasOwnedToManyRelations(EntityType entityType) {
+        for (NodeType nodeType : entityType.getNodeTypes()) {
+            if (nodeType.isOwns() && nodeType.isOneToManyRelation()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the query joins or has sub-queries.
+     */
+    private static boolean referencesOtherTables(QueryObject<?> query) throws SortPersistException {
+        if (!query.getJoins().isEmpty()) {
+            return true;
+        }
+        if (query.getCondition() == null) {
+            return false;
+        }
+        final boolean found[] = new boolean[1];
+        try {
+            query.getCondition().visit(new ConditionVisitor() {
+                @Override
+                public void visitPropertyCondition(QPropertyCondition qpc) {}
+
+                @Override
+                public void visitLogicalOp(QLogicalOp qlo) throws IllegalQueryStateException, ForUpdateNotSupportedException {
+                    qlo.getLeft().visit(this);
+                    qlo.getRight().visit(this);
+                }
+
+                @Override
+                public void visitExists(QExists exists) {
+                    found[0] = true;
+                }
+            });
+        }
+        catch (BarleyDBQueryException x) {
+            throw new SortPersistException("Could not analyse the query condition", x);
+        }
+        return found[0];
+    }
+
+}
@@ -33,6 +33,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
 import scott.barleydb.api.core.QueryBatcher;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
@@ -70,13 +71,18 @@ public class DatabaseDataSet {
     private final boolean loadKeysOnly;
     private final EntityContext myentityContext;
 
+    /**
+     * entities which were already loaded elsewhere and are read in place, can be null.
+     */
+    private EntityContext loadedEntityContext;
+
     public DatabaseDataSet(EntityContext entityContext) {
         this(entityContext, false);
     }
 
     /**
      * @param entityContext the entity context to share a transaction with
-     * @param loadKeysOnly if only the keys should be loaded.
+     * @param loadKeysOnly if only the keys and optimistic locks should be loaded.
      */
     public DatabaseDataSet(EntityContext entityContext, boolean loadKeysOnly) {
         myentityContext = entityContext.newEntityContextSharingTransaction();
@@ -94,12 +100,28 @@ public class DatabaseDataSet {
         });
     }
 
+    /**
+     * Uses the entities already loaded in the other context without copying them, see {@link #prepopulate(EntityContext)}
+     * @param other
+     */
+    public void readInPlace(EntityContext other) {
+        this.loadedEntityContext = other;
+    }
+
     public EntityContext getOwnEntityContext() {
         return myentityContext;
     }
 
     public Entity getEntity(EntityType entityType, Object key) {
-        return myentityContext.getEntity(entityType, key, false);
+        Entity entity = myentityContext.getEntity(entityType, key, false);
+        if (entity == null && loadedEntityContext != null) {
+            entity = loadedEntityContext.getEntity(entityType, key, false);
+        }
+        return entity;
+    }
+
+    private boolean isLoaded(Entity entity) {
+        return myentityContext.containsKey(entity) || (loadedEntityContext != null && loadedEntityContext.containsKey(entity));
     }
 
     public void loadEntities(Collection<Entity> toSave) throws SortServiceProviderException, BarleyDBQueryException {
@@ -176,7 +198,7 @@ public class DatabaseDataSet {
 
         public void addEntities(List<Entity> entities) {
             for (Entity entity : entities) {
-                if (!myentityContext.containsKey(entity)) {
+                if (!isLoaded(entity)) {
                     addKeyCondition(entity);
                 }
             }
@@ -233,8 +255,7 @@ public class DatabaseDataSet {
                 queries = new LinkedList<>();
                 QueryObject<Object> qo = new QueryObject<>(entityType.getInterfaceName());
                 if (loadKeysOnly) {
-                    QProperty<?> keyProp = new QProperty<>(qo, entityType.getKeyNodeName());
-                    qo.select(keyProp);
+                    selectKeyAndOptimisticLock(entityType, qo);
                 }
                 queries.add(qo);
                 map.put(entityType, queries);
@@ -244,8 +265,7 @@ public class DatabaseDataSet {
                 if (newQueryIfMaxSizeReached && countPropertyConditions(qo) >= MAX_QUERY_SIZE) {
                     qo = new QueryObject<>(entityType.getInterfaceName());
                     if (loadKeysOnly) {
-                        QProperty<?> keyProp = new QProperty<>(qo, entityType.getKeyNodeName());
-                        qo.select(keyProp);
+                        selectKeyAndOptimisticLock(entityType, qo);
                     }
                     queries.add(qo);
                 }
@@ -253,6 +273,17 @@ public class DatabaseDataSet {
             return queries.get(queries.size()-1);
         }
 
+        private void selectKeyAndOptimisticLock(EntityType entityType, QueryObject<Object> qo) {
+            List<QProperty<?>> props = new LinkedList<>();
+            props.add(new QProperty<>(qo, entityType.getKeyNodeName()));
+            for (NodeType nodeType : entityType.getNodeTypes()) {
+                if (nodeType.isOptimisticLock()) {
+                    props.add(new QProperty<>(qo, nodeType.getName()));
+                }
+            }
+            qo.select(props.toArray(new QProperty<?>[props.size()]));
+        }
+
         private int countPropertyConditions(QueryObject<?> query) {
             PropertyConditionCounter counter = new PropertyConditionCounter();
             try { query.getCondition().visit(counter); }
@@ -0,0 +1,424 @@
+package scott.barleydb.server.jdbc.persist;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scott.barleydb.api.audit.AuditInformation;
+import scott.barleydb.api.audit.AuditRecord;
+import scott.barleydb.api.audit.Change;
+import scott.barleydb.api.persist.Auditor;
+
+/**
+ * Writes the audit information to an audit table using JDBC batch inserts.<br/>
+ * <br/>
+ * With {@link Durability#IN_TRANSACTION} the audit rows are inserted using the connection of the persist,
+ * so they are committed or rolled back together with the data.<br/>
+ * <br/>
+ * With {@link Durability#AFTER_COMMIT} the audit rows are held back until the connection commits and are then handed
+ * over a bounded queue to a background writer which inserts them with it's own connection. The persist does not
+ * wait for the audit to be written. If the queue is full or the writer fails, the rows are spilled to disk
+ * and can be loaded later with {@link #recoverSpilledRows()}.
+ *
+ * @author scott
+ *
+ */
+public class JdbcAuditor implements Auditor, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcAuditor.class);
+
+    private static final int MAX_VALUE_LENGTH = 4000;
+
+    public static enum Durability {
+        IN_TRANSACTION,
+        AFTER_COMMIT
+    }
+
+    /**
+     * A single changed column, the values are converted to strings so that no entities are held on to.
+     */
+    private static final class AuditRow {
+        private final long auditTime;
+        private final String tableName;
+        private final String entityKey;
+        private final String columnName;
+        private final String oldValue;
+        private final String newValue;
+
+        public AuditRow(long auditTime, String tableName, String entityKey, String columnName, String oldValue, String newValue) {
+            this.auditTime = auditTime;
+            this.tableName = tableName;
+            this.entityKey = entityKey;
+            this.columnName = columnName;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+    }
+
+    private final DataSource dataSource;
+    private final String tableName;
+    private final Durability durability;
+    private final int batchSize;
+    private final File spillFile;
+
+    /**
+     * audit rows waiting for their connection to commit.
+     */
+    private final Map<Connection, List<AuditRow>> pendingCommit = Collections.synchronizedMap(new IdentityHashMap<Connection, List<AuditRow>>());
+    private final BlockingQueue<List<AuditRow>> queue;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Creates an auditor which writes in the persist transaction.
+     */
+    public JdbcAuditor(DataSource dataSource, String tableName) {
+        this(dataSource, tableName, Durability.IN_TRANSACTION, 100, 0, null);
+    }
+
+    /**
+     *
+     * @param dataSource used to create the audit table and for writing after commit.
+     * @param tableName the audit table.
+     * @param durability
+     * @param batchSize the maximum number of rows per JDBC batch.
+     * @param queueCapacity the maximum number of committed audits waiting to be written (AFTER_COMMIT only).
+     * @param spillFile where rows are written if they cannot be inserted (AFTER_COMMIT only).
+     */
+    public JdbcAuditor(DataSource dataSource, String tableName, Durability durability, int batchSize, int queueCapacity, File spillFile) {
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+        this.durability = durability;
+        this.batchSize = batchSize;
+        this.spillFile = spillFile;
+        if (durability == Durability.AFTER_COMMIT) {
+            if (spillFile == null) {
+                throw new IllegalArgumentException("A spill file is required for durability " + durability);
+            }
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.writer = new Thread(this::writeQueuedRows, "barleydb-audit-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+        else {
+            this.queue = null;
+            this.writer = null;
+        }
+    }
+
+    public String getCreateTableSql() {
+        return "create table " + tableName + " ("
+                + "AUDIT_TIME BIGINT NOT NULL, "
+                + "TABLE_NAME VARCHAR(255) NOT NULL, "
+                + "ENTITY_KEY VARCHAR(255) NOT NULL, "
+                + "COLUMN_NAME VARCHAR(255), "
+                + "OLD_VALUE VARCHAR(" + MAX_VALUE_LENGTH + "), "
+                + "NEW_VALUE VARCHAR(" + MAX_VALUE_LENGTH + "))";
+    }
+
+    /**
+     * Creates the audit table if it does not exist yet.
+     * @throws SQLException
+     */
+    public void createTable() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            if (tableExists(connection)) {
+                return;
+            }
+            try (PreparedStatement stmt = connection.prepareStatement(getCreateTableSql())) {
+                stmt.execute();
+            }
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+        }
+    }
+
+    private boolean tableExists(Connection connection) throws SQLException {
+        for (String name : new String[] { tableName, tableName.toUpperCase(), tableName.toLowerCase() }) {
+            try (ResultSet rs = connection.getMetaData().getTables(null, null, name, null)) {
+                if (rs.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves audit information which is not associated with a persist connection.
+     */
+    @Override
+    public void saveAuditInformation(AuditInformation audit) {
+        List<AuditRow> rows = toRows(audit);
+        if (rows.isEmpty()) {
+            return;
+        }
+        if (durability == Durability.AFTER_COMMIT) {
+            enqueue(rows);
+            return;
+        }
+        try {
+            writeInOwnTransaction(rows);
+        }
+        catch (SQLException x) {
+            throw new IllegalStateException("Could not insert audit rows into " + tableName, x);
+        }
+    }
+
+    @Override
+    public void saveAuditInformation(AuditInformation audit, Connection connection) {
+        List<AuditRow> rows = toRows(audit);
+        if (rows.isEmpty()) {
+            return;
+        }
+        if (durability == Durability.IN_TRANSACTION) {
+            try {
+                insert(connection, rows);
+            }
+            catch (SQLException x) {
+                throw new IllegalStateException("Could not insert audit rows into " + tableName, x);
+            }
+            return;
+        }
+        synchronized (pendingCommit) {
+            pendingCommit.computeIfAbsent(connection, c -> new ArrayList<>()).addAll(rows);
+        }
+    }
+
+    @Override
+    public void afterCommit(Connection connection) {
+        List<AuditRow> rows = pendingCommit.remove(connection);
+        if (rows != null) {
+            enqueue(rows);
+        }
+    }
+
+    private void enqueue(List<AuditRow> rows) {
+        if (closed || !queue.offer(rows)) {
+            LOG.warn("Audit queue is full, spilling {} audit rows to {}", rows.size(), spillFile);
+            spill(rows);
+        }
+    }
+
+    @Override
+    public void afterRollback(Connection connection) {
+        List<AuditRow> rows = pendingCommit.remove(connection);
+        if (rows != null) {
+            LOG.debug("Discarding {} audit rows due to rollback", rows.size());
+        }
+    }
+
+    private List<AuditRow> toRows(AuditInformation audit) {
+        long auditTime = System.currentTimeMillis();
+        List<AuditRow> rows = new ArrayList<>();
+        for (AuditRecord auditRecord : audit.getRecords()) {
+            String entityKey = String.valueOf(auditRecord.getEntityKey());
+            String table = auditRecord.getEntityType().getTableName();
+            for (Change change : auditRecord.changes()) {
+                rows.add(new AuditRow(auditTime, table, entityKey, change.node.getColumnName(), toString(change.oldValue), toString(change.newValue)));
+            }
+        }
+        return rows;
+    }
+
+    private static String toString(Object value) {
+        if (value == null) {
+            return null;
+        }
+        String string = value instanceof byte[] ? "[" + ((byte[])value).length + " bytes]" : value.toString();
+        return string.length() > MAX_VALUE_LENGTH ? string.substring(0, MAX_VALUE_LENGTH) : string;
+    }
+
+    private void insert(Connection connection, List<AuditRow> rows) throws SQLException {
+        String sql = "insert into " + tableName + " (AUDIT_TIME, TABLE_NAME, ENTITY_KEY, COLUMN_NAME, OLD_VALUE, NEW_VALUE) values (?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            int count = 0;
+            for (AuditRow row : rows) {
+                stmt.setLong(1, row.auditTime);
+                stmt.setString(2, row.tableName);
+                stmt.setString(3, row.entityKey);
+                setString(stmt, 4, row.columnName);
+                setString(stmt, 5, row.oldValue);
+                setString(stmt, 6, row.newValue);
+                stmt.addBatch();
+                if (++count % batchSize == 0) {
+                    stmt.executeBatch();
+                }
+            }
+            if (count % batchSize != 0) {
+                stmt.executeBatch();
+            }
+        }
+    }
+
+    private static void setString(PreparedStatement stmt, int index, String value) throws SQLException {
+        if (value == null) {
+            stmt.setNull(index, Types.VARCHAR);
+        }
+        else {
+            stmt.setString(index, value);
+        }
+    }
+
+    /**
+     * Background writer, combines queued audits into batches of upto batchSize rows.
+     */
+    private void writeQueuedRows() {
+        while (!closed || !queue.isEmpty()) {
+            List<AuditRow> rows;
+            try {
+                rows = queue.poll(100, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (rows == null) {
+                continue;
+            }
+            List<AuditRow> batch = new ArrayList<>(rows);
+            while (batch.size() < batchSize && (rows = queue.poll()) != null) {
+                batch.addAll(rows);
+            }
+            try {
+                writeInOwnTransaction(batch);
+            }
+            catch (SQLException x) {
+                LOG.error("Could not write " + batch.size() + " audit rows, spilling them to " + spillFile, x);
+                spill(batch);
+            }
+        }
+    }
+
+    private void writeInOwnTransaction(List<AuditRow> rows) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                insert(connection, rows);
+                connection.commit();
+            }
+            catch (SQLException x) {
+                connection.rollback();
+                throw x;
+            }
+        }
+    }
+
+    private synchronized void spill(List<AuditRow> rows) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)))) {
+            for (AuditRow row : rows) {
+                out.writeLong(row.auditTime);
+                out.writeUTF(row.tableName);
+                out.writeUTF(row.entityKey);
+                writeNullable(out, row.columnName);
+                writeNullable(out, row.oldValue);
+                writeNullable(out, row.newValue);
+            }
+        }
+        catch (IOException x) {
+            LOG.error("Could not spill " + rows.size() + " audit rows to " + spillFile + ", they are lost", x);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Inserts the rows which were spilled to disk and removes the spill file.
+     *
+     * @return the number of rows recovered.
+     * @throws IOException
+     * @throws SQLException
+     */
+    public synchronized int recoverSpilledRows() throws IOException, SQLException {
+        if (spillFile == null || !spillFile.exists()) {
+            return 0;
+        }
+        List<AuditRow> rows = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)))) {
+            while (true) {
+                long auditTime;
+                try {
+                    auditTime = in.readLong();
+                }
+                catch (EOFException x) {
+                    break;
+                }
+                rows.add(new AuditRow(auditTime, in.readUTF(), in.readUTF(), readNullable(in), readNullable(in), readNullable(in)));
+            }
+        }
+        if (!rows.isEmpty()) {
+            writeInOwnTransaction(rows);
+        }
+        if (!spillFile.delete()) {
+            throw new IOException("Could not delete spill file " + spillFile);
+        }
+        return rows.size();
+    }
+
+    /**
+     * Stops accepting new audits and waits until the queued audits are written.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        if (writer != null) {
+            writer.join();
+        }
+    }
+}
@@ -25,8 +25,10 @@ package scott.barleydb.server.jdbc.persist;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -96,6 +98,60 @@ public class OperationGroup implements Serializable {
         return ogm;
     }
 
+    /**
+     * Returns a new OperationGroup containing the entities which are not in the given OperationGroup.
+     * @param og
+     * @return the new OperationGroup
+     */
+    public OperationGroup subtract(OperationGroup og) {
+        OperationGroup ogs = new OperationGroup();
+        if (og.entities.isEmpty()) {
+            ogs.entities.addAll(entities);
+            return ogs;
+        }
+        Set<Entity> toRemove = new HashSet<>(og.entities);
+        for (Entity entity : entities) {
+            if (!toRemove.contains(entity)) {
+                ogs.entities.add(entity);
+            }
+        }
+        return ogs;
+    }
+
+    /**
+     * Returns a new OperationGroup containing the entities from both OperationGroups, where each entity
+     * comes after the entities it has a FK reference to.<br/>
+     * Otherwise the entities of this group come first, keeping their order.
+     * @param og
+     * @return the new OperationGroup
+     */
+    public OperationGroup mergedInDependencyOrder(OperationGroup og) {
+        Set<Entity> members = new HashSet<>(entities);
+        members.addAll(og.entities);
+        Set<Entity> visited = new HashSet<>();
+        OperationGroup ogm = new OperationGroup();
+        for (Entity entity : entities) {
+            addAfterDependencies(entity, members, visited, ogm.entities);
+        }
+        for (Entity entity : og.entities) {
+            addAfterDependencies(entity, members, visited, ogm.entities);
+        }
+        return ogm;
+    }
+
+    private static void addAfterDependencies(Entity entity, Set<Entity> members, Set<Entity> visited, List<Entity> ordered) {
+        if (!visited.add(entity)) {
+            return;
+        }
+        for (RefNode refNode : entity.getChildren(RefNode.class)) {
+            Entity reference = refNode.getReference(false);
+            if (reference != null && members.contains(reference)) {
+                addAfterDependencies(reference, members, visited, ordered);
+            }
+        }
+        ordered.add(entity);
+    }
+
     /**
      *
      * @return an Operation group where the entity order has been optimized for insert
@@ -22,11 +22,15 @@ package scott.barleydb.server.jdbc.persist;
  * #L%
  */
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
@@ -36,11 +40,13 @@ import org.slf4j.LoggerFactory;
 import scott.barleydb.api.audit.AuditInformation;
 import scott.barleydb.api.audit.AuditRecord;
 import scott.barleydb.api.audit.Change;
+import scott.barleydb.api.config.EntityType;
 import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
 import scott.barleydb.api.core.entity.EntityState;
 import scott.barleydb.api.core.entity.Node;
+import scott.barleydb.api.core.entity.NotLoaded;
 import scott.barleydb.api.core.entity.RefNode;
 import scott.barleydb.api.core.entity.ToManyNode;
 import scott.barleydb.api.core.entity.ValueNode;
@@ -54,9 +60,15 @@ import scott.barleydb.api.exception.execution.persist.PrimaryKeyExistsException;
 import scott.barleydb.api.exception.execution.persist.SortPersistException;
 import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
 import scott.barleydb.api.persist.AccessRightsChecker;
+import scott.barleydb.api.persist.OperationType;
 import scott.barleydb.api.persist.PersistAnalyser;
+import scott.barleydb.api.persist.PersistReport;
+import scott.barleydb.api.persist.PersistReport.Phase;
+import scott.barleydb.api.query.RuntimeProperties;
+import scott.barleydb.api.query.RuntimeProperties.PersistVerification;
 import scott.barleydb.api.specification.KeyGenSpec;
 import scott.barleydb.server.jdbc.JdbcEntityContextServices;
+import scott.barleydb.server.jdbc.helper.PreparedStatementCache;
 import scott.barleydb.server.jdbc.resources.ConnectionResources;
 import scott.barleydb.server.jdbc.vendor.Database;
 
@@ -92,19 +104,76 @@ public class Persister {
     }
 
     public void persist(PersistAnalyser analyser) throws SortPersistException {
+        persist(analyser, new RuntimeProperties());
+    }
+
+    public void persist(PersistAnalyser analyser, RuntimeProperties runtimeProperties) throws SortPersistException {
         if (analyser.getEntityContext().isUser()) {
             throw new IllegalPersistStateException("EntityContext must be set to internal.");
         }
         Database database = ConnectionResources.getMandatoryForPersist(analyser.getEntityContext()).getDatabase();
+        PersistReport report = analyser.getReport();
+        BatchFailureIsolation isolation = null;
+        if (runtimeProperties.getIsolateBatchFailures() != null && runtimeProperties.getIsolateBatchFailures()) {
+            isolation = new BatchFailureIsolation(runtimeProperties.getBatchFailureListener(), report);
+        }
+
+        long start = System.nanoTime();
+        /*
+         * Only the entities with full verification have their original data loaded,
+         * the rest rely on the update and delete counts of the batch execution.
+         */
+        OperationGroup verifiedUpdateGroup = fullyVerified(analyser.getUpdateGroup(), runtimeProperties, database);
+        OperationGroup verifiedDeleteGroup = fullyVerified(analyser.getDeleteGroup(), runtimeProperties, database);
+        OperationGroup verifiedDependsOnGroup = fullyVerified(analyser.getDependsOnGroup(), runtimeProperties, database);
+
         DatabaseDataSet databaseDataSet = new DatabaseDataSet(analyser.getEntityContext());
-        databaseDataSet.prepopulate(analyser.getAnalyserContext());
-        try {
-            loadAndValidate(databaseDataSet, analyser.getUpdateGroup(), analyser.getDeleteGroup(), analyser.getDependsOnGroup());
-        } catch (SortServiceProviderException x) {
-            throw new SortPersistException("Error loading original data", x);
+        if (!verifiedUpdateGroup.getEntities().isEmpty() || !verifiedDeleteGroup.getEntities().isEmpty() || !verifiedDependsOnGroup.getEntities().isEmpty()) {
+            if (runtimeProperties.getZeroCopyPersist() != null && runtimeProperties.getZeroCopyPersist()) {
+                databaseDataSet.readInPlace(analyser.getAnalyserContext());
+            }
+            else {
+                databaseDataSet.prepopulate(analyser.getAnalyserContext());
+            }
+            try {
+                loadAndValidate(databaseDataSet, verifiedUpdateGroup, verifiedDeleteGroup, verifiedDependsOnGroup);
+            } catch (SortServiceProviderException x) {
+                throw new SortPersistException("Error loading original data", x);
+            }
+        }
+        else {
+            logStep("Skipping the loading of the dataset from the database, only keys and optimistic locks are verified");
         }
+        /*
+         * depends on entities are not part of any batch, so there are no update counts to verify them,
+         * instead their keys and optimistic locks are loaded.
+         */
+        verifyKeysAndLocks(analyser.getEntityContext(), analyser.getDependsOnGroup().subtract(verifiedDependsOnGroup));
 
+        if (!database.supportsBatchUpdateCounts()) {
+            loadAndValidateUpserts(analyser.getEntityContext(), analyser.getUpsertGroup());
+        }
+        report.addPhase(Phase.LOAD_DATASET, System.nanoTime() - start, size(verifiedUpdateGroup, verifiedDeleteGroup, verifiedDependsOnGroup));
+
+        start = System.nanoTime();
         setPrimaryKeys(analyser.getCreateGroup());
+        report.addPhase(Phase.SET_KEYS, System.nanoTime() - start, size(analyser.getCreateGroup()));
+
+        /*
+         * Entities with database generated keys only get their key after the insert
+         * so we audit them afterwards (audit records are looked up by key).
+         */
+        start = System.nanoTime();
+        OperationGroup identityCreateGroup = new OperationGroup();
+        OperationGroup keyedCreateGroup = new OperationGroup();
+        for (Entity entity : analyser.getCreateGroup().getEntities()) {
+            if (PreparedStatementCache.isIdentityInsert(entity)) {
+                identityCreateGroup.add(entity);
+            }
+            else {
+                keyedCreateGroup.add(entity);
+            }
+        }
 
         Long newOptimisticLockTime = System.currentTimeMillis();
 
@@ -118,9 +187,13 @@ public class Persister {
          */
         logStep("Generating audit logs");
         AuditInformation audit = new AuditInformation();
-        audit.add(auditCreate(analyser.getCreateGroup()));
-        audit.add(auditUpdate(databaseDataSet, analyser.getUpdateGroup()));
-        audit.add(auditDelete(databaseDataSet, analyser.getDeleteGroup()));
+        audit.add(auditCreate(keyedCreateGroup));
+        audit.add(auditUpdate(databaseDataSet, verifiedUpdateGroup));
+        audit.add(auditUpdateWithoutOriginal(analyser.getUpdateGroup().subtract(verifiedUpdateGroup), true));
+        audit.add(auditUpdateWithoutOriginal(analyser.getUpsertGroup(), false));
+        audit.add(auditDelete(databaseDataSet, verifiedDeleteGroup));
+        audit.add(auditDeleteWithoutOriginal(analyser.getDeleteGroup().subtract(verifiedDeleteGroup)));
+        report.addPhase(Phase.GENERATE_AUDIT, System.nanoTime() - start, size(keyedCreateGroup, analyser.getUpdateGroup(), analyser.getUpsertGroup(), analyser.getDeleteGroup()));
 
         /*
          * analyse what entities require an update based on the audit information we just gathered
@@ -128,10 +201,12 @@ public class Persister {
          * ie a syntax OL should be updated if it's mapping changes since a syntax own's it's mapping and mappings
          * don't have optimistic locks.
          */
+        start = System.nanoTime();
         Set<Entity> updateRequired = analyseRequiredUpdates(audit, analyser.getUpdateGroup());
 
         logStep("Filter out entities which won't change from the update batch group");
         filterOutUnchangedEntities(updateRequired, analyser.getUpdateGroup());
+        report.addPhase(Phase.ANALYSE_UPDATES, System.nanoTime() - start, size(analyser.getUpdateGroup()));
 
         if (LOG_PERSIST_REPORT.isDebugEnabled()) {
             LOG_PERSIST_REPORT.debug("Persist report after filtering...");
@@ -144,10 +219,13 @@ public class Persister {
          * in the update and delete statements.
          * This is why we have to manually apply the OL audit information, it was not automatically detected.
          */
-        setNewOptimisticLockOnAuditRecords(audit, analyser.getCreateGroup(), analyser.getUpdateGroup(), newOptimisticLockTime);
-
+        start = System.nanoTime();
+        setNewOptimisticLockOnAuditRecords(audit, keyedCreateGroup.mergedCopy(analyser.getUpsertGroup()), analyser.getUpdateGroup(), newOptimisticLockTime);
+        report.addPhase(Phase.GENERATE_AUDIT, System.nanoTime() - start, 0);
 
-        verifyAccessRights(analyser.getEntityContext(), analyser.getCreateGroup(), analyser.getUpdateGroup(), analyser.getDeleteGroup());
+        start = System.nanoTime();
+        verifyAccessRights(analyser.getEntityContext(), analyser.getCreateGroup(), analyser.getUpdateGroup(), analyser.getUpsertGroup(), analyser.getDeleteGroup());
+        report.addPhase(Phase.ACCESS_CHECK, System.nanoTime() - start, size(analyser.getCreateGroup(), analyser.getUpdateGroup(), analyser.getUpsertGroup(), analyser.getDeleteGroup()));
 
         /*
          * helpful for testing
@@ -156,37 +234,64 @@ public class Persister {
 
         /*
          * We always insert before we update, in-case a pending update depends on a created record
+         * Upserts are performed together with the inserts, as they can also create records.
          */
+        start = System.nanoTime();
         try {
-            insert(analyser.getCreateGroup(), newOptimisticLockTime, database);
+            insert(analyser.getCreateGroup(), analyser.getUpsertGroup(), newOptimisticLockTime, database, report, isolation);
         }
         catch (SortJdbcException x) {
             throw new SortPersistException("Error during insert", x);
         }
+        removeFailedEntities(isolation, audit, analyser.getCreateGroup(), analyser.getUpsertGroup(), identityCreateGroup);
+        report.addPhase(Phase.INSERT, System.nanoTime() - start, size(analyser.getCreateGroup(), analyser.getUpsertGroup()));
+
+        if (!identityCreateGroup.getEntities().isEmpty()) {
+            start = System.nanoTime();
+            logStep("Generating audit logs for entities with generated keys");
+            audit.add(auditCreate(identityCreateGroup));
+            setNewOptimisticLockOnAuditRecords(audit, identityCreateGroup, new OperationGroup(), newOptimisticLockTime);
+            report.addPhase(Phase.GENERATE_AUDIT, System.nanoTime() - start, size(identityCreateGroup));
+        }
 
         /*
          * We always update before we delete, in-case a delete depends on a FK removal.
          */
+        start = System.nanoTime();
         try {
-            update(analyser.getUpdateGroup(), newOptimisticLockTime, database);
+            boolean changedColumnsOnly = runtimeProperties.getUpdateChangedColumnsOnly() != null && runtimeProperties.getUpdateChangedColumnsOnly();
+            update(analyser.getUpdateGroup(), newOptimisticLockTime, database, changedColumnsOnly ? audit : null, report, isolation);
         }
         catch (SortJdbcException x) {
             throw new SortPersistException("Error during update", x);
         }
+        report.addPhase(Phase.UPDATE, System.nanoTime() - start, size(analyser.getUpdateGroup()));
 
+        start = System.nanoTime();
         try {
-            delete(analyser.getDeleteGroup(), database);
+            delete(analyser.getDeleteGroup(), database, report, isolation);
         }
         catch (SortJdbcException x) {
             throw new SortPersistException("Error during delete", x);
         }
+        removeFailedEntities(isolation, audit, analyser.getUpdateGroup(), analyser.getDeleteGroup());
+        report.addPhase(Phase.DELETE, System.nanoTime() - start, size(analyser.getDeleteGroup()));
 
-        insert(audit);
+        start = System.nanoTime();
+        insert(audit, ConnectionResources.getMandatoryForPersist(analyser.getEntityContext()).getConnection());
+        report.addPhase(Phase.WRITE_AUDIT, System.nanoTime() - start, audit.getRecords().size());
+
+        report.addEntities(OperationType.INSERT, analyser.getCreateGroup().getEntities());
+        report.addEntities(OperationType.UPSERT, analyser.getUpsertGroup().getEntities());
+        report.addEntities(OperationType.UPDATE, analyser.getUpdateGroup().getEntities());
+        report.addEntities(OperationType.DELETE, analyser.getDeleteGroup().getEntities());
+
+        start = System.nanoTime();
 
         /*
          * updates the optimistic lock nodes for all created and updated entities
          */
-        updateOptimisticLocks(newOptimisticLockTime, analyser.getCreateGroup(), analyser.getUpdateGroup());
+        updateOptimisticLocks(newOptimisticLockTime, analyser.getCreateGroup().mergedCopy(analyser.getUpsertGroup()), analyser.getUpdateGroup());
 
         /*
          * Clear out the deleted items
@@ -204,11 +309,46 @@ public class Persister {
          */
         setLoadedAndFetchedForCreatedEntities(analyser.getCreateGroup());
 
-        for (Entity e: analyser.getCreateGroup().mergedCopy(analyser.getUpdateGroup()).getEntities()) {
+        /*
+         * Upserted entities are now in the database, but we know nothing about their to many relations
+         */
+        setLoadedForUpsertedEntities(analyser.getUpsertGroup());
+
+        /*
+         * The created, updated and upserted entities now match the database
+         */
+        resetDirtyTracking(analyser.getCreateGroup().mergedCopy(analyser.getUpsertGroup()), analyser.getUpdateGroup(), analyser.getDeleteGroup());
+
+        for (Entity e: analyser.getCreateGroup().mergedCopy(analyser.getUpdateGroup(), analyser.getUpsertGroup()).getEntities()) {
             if (e.getConstraints().isSaveRequired()) {
                 e.getConstraints().setSaveRequired(false);
             }
         }
+        report.addPhase(Phase.POST_PROCESS, System.nanoTime() - start, size(analyser.getCreateGroup(), analyser.getUpdateGroup(), analyser.getUpsertGroup(), analyser.getDeleteGroup()));
+    }
+
+    /**
+     * Entities which failed when batch failures are isolated, were not persisted.
+     * They are removed from the operation groups and the audit, so that they are left as they were.
+     */
+    private void removeFailedEntities(BatchFailureIsolation isolation, AuditInformation audit, OperationGroup... groups) {
+        if (isolation == null || isolation.getFailedEntities().isEmpty()) {
+            return;
+        }
+        for (OperationGroup group : groups) {
+            group.getEntities().removeAll(isolation.getFailedEntities());
+        }
+        for (Entity entity : isolation.getFailedEntities()) {
+            audit.remove(entity);
+        }
+    }
+
+    private static int size(OperationGroup... groups) {
+        int size = 0;
+        for (OperationGroup group : groups) {
+            size += group.getEntities().size();
+        }
+        return size;
     }
 
     protected void preJdbcWorkHook() {}
@@ -218,6 +358,28 @@ public class Persister {
         LOG.debug(message + "...");
     }
 
+    /**
+     * Selects the entities which have full verification, ie which require their original data to be loaded.
+     * Databases which don't support batch update counts always require full verification, as the
+     * pessimistic lock taken on loading is what guarantees the optimistic lock.
+     * @param group
+     * @param runtimeProperties
+     * @param database
+     * @return
+     */
+    private OperationGroup fullyVerified(OperationGroup group, RuntimeProperties runtimeProperties, Database database) {
+        if (!database.supportsBatchUpdateCounts()) {
+            return group;
+        }
+        List<Entity> entities = new LinkedList<>();
+        for (Entity entity : group.getEntities()) {
+            if (runtimeProperties.getPersistVerification(entity.getEntityType().getInterfaceName()) == PersistVerification.FULL) {
+                entities.add(entity);
+            }
+        }
+        return entities.size() == group.getEntities().size() ? group : new OperationGroup(entities);
+    }
+
     /**
      * Loads update and delete entities fresh from the data from the database.
      * Each entity must exist and have the correct optimistic lock.
@@ -245,6 +407,67 @@ public class Persister {
         }
     }
 
+    /**
+     * Loads only the keys and optimistic locks of the given entities, to verify that
+     * they exist and have the correct optimistic lock.
+     * @param entityContext
+     * @param group
+     * @throws SortPersistException
+     */
+    private void verifyKeysAndLocks(EntityContext entityContext, OperationGroup group) throws SortPersistException {
+        if (group.getEntities().isEmpty()) {
+            return;
+        }
+        logStep("Loading keys and optimistic locks from database");
+        DatabaseDataSet keysDataSet = new DatabaseDataSet(entityContext, true);
+        try {
+            keysDataSet.loadEntities(group.getEntities());
+        }
+        catch (SortServiceProviderException | BarleyDBQueryException x) {
+            throw new SortPersistException("Could not load keys and optimistic locks for validation", x);
+        }
+        for (Entity entity : group.getEntities()) {
+            Entity databaseEntity = keysDataSet.getEntity(entity.getEntityType(), entity.getKey().getValue());
+            if (databaseEntity == null) {
+                throw new EntityMissingException(entity.getEntityType(), entity.getKey().getValue());
+            }
+            verifyOptimisticLock(entity, databaseEntity);
+        }
+    }
+
+    /**
+     * Upserts are not loaded before they are executed, so for databases which don't report batch update counts
+     * the existing rows are loaded to verify their optimistic lock, this also locks them until the upsert is performed.
+     * @param entityContext
+     * @param upsertGroup
+     * @throws SortPersistException
+     */
+    private void loadAndValidateUpserts(EntityContext entityContext, OperationGroup upsertGroup) throws SortPersistException {
+        List<Entity> lockedUpserts = new LinkedList<>();
+        for (Entity entity : upsertGroup.getEntities()) {
+            if (PreparedStatementCache.isLockedUpsert(entity)) {
+                lockedUpserts.add(entity);
+            }
+        }
+        if (lockedUpserts.isEmpty()) {
+            return;
+        }
+        logStep("Loading existing upsert entities from database");
+        DatabaseDataSet upsertDataSet = new DatabaseDataSet(entityContext);
+        try {
+            upsertDataSet.loadEntities(lockedUpserts);
+        }
+        catch (SortServiceProviderException | BarleyDBQueryException x) {
+            throw new SortPersistException("Could not load entities for upsert validation", x);
+        }
+        for (Entity entity : lockedUpserts) {
+            Entity databaseEntity = upsertDataSet.getEntity(entity.getEntityType(), entity.getKey().getValue());
+            if (databaseEntity != null) {
+                verifyOptimisticLock(entity, databaseEntity);
+            }
+        }
+    }
+
     /**
      * Add audit records for create entities
      * We only audit changes, so from null to some value
@@ -296,7 +519,12 @@ public class Persister {
         for (Entity entity : updateGroup.getEntities()) {
             AuditRecord auditRecord = null;
             Entity originalEntity = databaseDataSet.getEntity(entity.getEntityType(), entity.getKey().getValue());
-            for (Node node : entity.getChildren()) {
+            /*
+             * The verified optimistic lock guarantees that the clean nodes still match the database,
+             * so only the dirty nodes need comparing.
+             */
+            Iterable<Node> nodes = entity.getEntityType().supportsOptimisticLocking() ? entity.getDirtyChildren() : entity.getChildren();
+            for (Node node : nodes) {
                 if (node instanceof ValueNode) {
                     ValueNode updatedNode = (ValueNode) node;
                     ValueNode origNode = originalEntity.getChild(node.getName(), ValueNode.class);
@@ -332,6 +560,91 @@ public class Persister {
         return records;
     }
 
+    /**
+     * Audit entities which are updated without having loaded their original data.
+     * The original values are unknown, so every loaded property is audited with an old value of NotLoaded.
+     * The key and optimistic lock are not audited, they are part of the where clause.
+     * @param updateGroup
+     * @param dirtyOnly if true, only the dirty properties are audited
+     * @return
+     * @throws IllegalPersistStateException
+     */
+    private List<AuditRecord> auditUpdateWithoutOriginal(OperationGroup updateGroup, boolean dirtyOnly) throws IllegalPersistStateException {
+        List<AuditRecord> records = new LinkedList<>();
+        for (Entity entity : updateGroup.getEntities()) {
+            AuditRecord auditRecord = null;
+            for (Node node : dirtyOnly ? entity.getDirtyChildren() : entity.getChildren()) {
+                if (node == entity.getKey() || node.getNodeType().isOptimisticLock()) {
+                    continue;
+                }
+                if (node instanceof ValueNode) {
+                    ValueNode updatedNode = (ValueNode) node;
+                    if (updatedNode.isLoaded()) {
+                        if (auditRecord == null) {
+                            //lazy init of audit record
+                            auditRecord = new AuditRecord(entity.getEntityType(), entity.getKey().getValue());
+                        }
+                        auditRecord.addChange(node, NotLoaded.VALUE, updatedNode.getValue());
+                    }
+                }
+                else if (node instanceof RefNode) {
+                    RefNode updatedNode = (RefNode) node;
+                    if (updatedNode.isLoaded()) {
+                        if (auditRecord == null) {
+                            //lazy init of audit record
+                            auditRecord = new AuditRecord(entity.getEntityType(), entity.getKey().getValue());
+                        }
+                        auditRecord.addChange(node, NotLoaded.VALUE, updatedNode.getEntityKey());
+                    }
+                }
+            }
+            if (auditRecord != null) {
+                records.add(auditRecord);
+                LOG.debug("Unverified changes for " + entity);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Audit entities which are deleted without having loaded their original data.
+     * Only the properties which are already loaded are audited, nothing is fetched.
+     * @param deleteGroup
+     * @return
+     * @throws IllegalPersistStateException
+     */
+    private List<AuditRecord> auditDeleteWithoutOriginal(OperationGroup deleteGroup) throws IllegalPersistStateException {
+        List<AuditRecord> records = new LinkedList<>();
+        for (Entity entity : deleteGroup.getEntities()) {
+            AuditRecord auditRecord = null;
+            for (Node node : entity.getChildren()) {
+                if (node instanceof ValueNode) {
+                    ValueNode deletedNode = (ValueNode) node;
+                    if (deletedNode.isLoaded() && deletedNode.getValueNoFetch() != null) {
+                        if (auditRecord == null) {//lazy init
+                            auditRecord = new AuditRecord(entity.getEntityType(), entity.getKey().getValue());
+                        }
+                        auditRecord.addChange(node, deletedNode.getValueNoFetch(), null);
+                    }
+                }
+                else if (node instanceof RefNode) {
+                    RefNode deletedNode = (RefNode) node;
+                    if (deletedNode.isLoaded() && deletedNode.getEntityKey() != null) {
+                        if (auditRecord == null) {//lazy init
+                            auditRecord = new AuditRecord(entity.getEntityType(), entity.getKey().getValue());
+                        }
+                        auditRecord.addChange(node, deletedNode.getEntityKey(), null);
+                    }
+                }
+            }
+            if (auditRecord != null) {
+                LOG.debug("Unverified changes for " + entity);
+                records.add(auditRecord);
+            }
+        }
+        return records;
+    }
+
     /**
      * Only changes are audited, so fields which were null are not included
      * @param databaseDataSet
@@ -545,9 +858,10 @@ public class Persister {
      * Verifies the access rights for the operation groups.
      * @param createGroup
      * @param updateGroup
+     * @param upsertGroup
      * @param deleteGroup
      */
-    private void verifyAccessRights(EntityContext ctx, OperationGroup createGroup, OperationGroup updateGroup, OperationGroup deleteGroup) {
+    private void verifyAccessRights(EntityContext ctx, OperationGroup createGroup, OperationGroup updateGroup, OperationGroup upsertGroup, OperationGroup deleteGroup) {
         logStep("Verifying access rights");
         AccessRightsChecker checker = env.getAccessRightsChecker();
         for (Entity entity : createGroup.getEntities()) {
@@ -556,44 +870,86 @@ public class Persister {
         for (Entity entity : updateGroup.getEntities()) {
           checker.verifyUpdateRight(ctx, entity);
         }
+        for (Entity entity : upsertGroup.getEntities()) {
+          checker.verifyCreateRight(ctx, entity);
+          checker.verifyUpdateRight(ctx, entity);
+        }
         for (Entity entity : deleteGroup.getEntities()) {
           checker.verifyDeleteRight(ctx, entity);
         }
     }
 
-    private void insert(OperationGroup createGroup, final Long optimisticLockTime, final Database database) throws SortPersistException, SortJdbcException  {
-        logStep("Performing inserts");
-        BatchExecuter batchExecuter = new BatchExecuter(createGroup, "insert", database) {
+    /**
+     * Performs the inserts and upserts, an upsert can create a record which an insert refers to and vice versa
+     * so they are performed together in FK dependency order.
+     */
+    private void insert(OperationGroup createGroup, OperationGroup upsertGroup, final Long optimisticLockTime, final Database database, PersistReport report, BatchFailureIsolation isolation) throws SortPersistException, SortJdbcException  {
+        logStep(upsertGroup.getEntities().isEmpty() ? "Performing inserts" : "Performing inserts and upserts");
+        final Set<Entity> upserts = new HashSet<>(upsertGroup.getEntities());
+        OperationGroup group = upserts.isEmpty() ? createGroup : createGroup.mergedInDependencyOrder(upsertGroup).optimizedForInsertCopy();
+        BatchExecuter batchExecuter = new BatchExecuter(group, upserts.isEmpty() ? "insert" : "insert or upsert", database, report, isolation) {
             @Override
             protected PreparedStatement prepareStatement(PreparedStatementPersistCache psCache, Entity entity) throws SortPersistException {
+                if (upserts.contains(entity)) {
+                    return psCache.prepareUpsertStatement(entity, optimisticLockTime);
+                }
                 return psCache.prepareInsertStatement(entity, optimisticLockTime);
             }
 
+            @Override
+            protected boolean returnsGeneratedKeys(Entity entity) {
+                return !upserts.contains(entity) && PreparedStatementCache.isIdentityInsert(entity);
+            }
+
             @Override
             protected void handleNoop(Entity entity, Throwable throwable) throws SortPersistException {
-                throw new IllegalPersistStateException("No update count from insert operation for entity " + entity);
+                if (upserts.contains(entity)) {
+                    handleUpsertNoop(entity);
+                }
+                else {
+                    throw new IllegalPersistStateException("No update count from insert operation for entity " + entity);
+                }
             }
 
             @Override
             protected void handleFailure(Entity entity, Throwable throwable) throws SortPersistException {
+                if (upserts.contains(entity)) {
+                    throw new SortPersistException("Could not upsert entity: " + entity, throwable);
+                }
                 handleInsertFailure(entity, throwable);
             }
 
             @Override
             protected void updateStats(EntityContext entityContext, List<Entity> entities) {
-              entityContext.getStatistics().addNumberOfBatchInserts(1);
-              entityContext.getStatistics().addNumberOfRecordInserts(entities.size());
+              if (upserts.contains(entities.get(0))) {
+                  entityContext.getStatistics().addNumberOfBatchUpdates(1);
+                  entityContext.getStatistics().addNumberOfRecordUpdates(entities.size());
+              }
+              else {
+                  entityContext.getStatistics().addNumberOfBatchInserts(1);
+                  entityContext.getStatistics().addNumberOfRecordInserts(entities.size());
+              }
             }
 
         };
         batchExecuter.execute(entityContextServices, env.getDefinitions(namespace));
     }
 
-    private void update(OperationGroup updateGroup, final Long newOptimisticLockTime, final Database database) throws PreparingPersistStatementException, SortJdbcException, SortPersistException {
+    /**
+     * @param audit if not null, only the columns with audited changes are updated
+     */
+    private void update(OperationGroup updateGroup, final Long newOptimisticLockTime, final Database database, final AuditInformation audit, PersistReport report, BatchFailureIsolation isolation) throws PreparingPersistStatementException, SortJdbcException, SortPersistException {
         logStep("Performing updates");
-        BatchExecuter batchExecuter = new BatchExecuter(updateGroup, "update", database) {
+        if (audit != null) {
+            updateGroup = groupedByChangedColumns(updateGroup, audit);
+        }
+        BatchExecuter batchExecuter = new BatchExecuter(updateGroup, "update", database, report, isolation) {
             @Override
             protected PreparedStatement prepareStatement(PreparedStatementPersistCache psCache, Entity entity) throws SortPersistException {
+                BitSet columns = audit != null ? getChangedColumns(audit, entity) : null;
+                if (columns != null) {
+                    return psCache.prepareUpdateStatement(entity, newOptimisticLockTime, columns);
+                }
                 return psCache.prepareUpdateStatement(entity, newOptimisticLockTime);
             }
             @Override
@@ -613,9 +969,55 @@ public class Persister {
         batchExecuter.execute(entityContextServices, env.getDefinitions(namespace));
     }
 
-    private void delete(OperationGroup deleteGroup, final Database database) throws PreparingPersistStatementException, SortPersistException, SortJdbcException {
+    /**
+     * Reorders the update group so that entities of the same type with the same changed columns follow each other
+     * and therefore share a batch. The order of updates does not matter.
+     */
+    private OperationGroup groupedByChangedColumns(OperationGroup updateGroup, AuditInformation audit) {
+        Map<EntityType, Map<BitSet, List<Entity>>> byTypeAndColumns = new LinkedHashMap<>();
+        for (Entity entity : updateGroup.getEntities()) {
+            Map<BitSet, List<Entity>> byColumns = byTypeAndColumns.get(entity.getEntityType());
+            if (byColumns == null) {
+                byColumns = new LinkedHashMap<>();
+                byTypeAndColumns.put(entity.getEntityType(), byColumns);
+            }
+            BitSet columns = getChangedColumns(audit, entity);
+            List<Entity> entities = byColumns.get(columns);
+            if (entities == null) {
+                entities = new LinkedList<>();
+                byColumns.put(columns, entities);
+            }
+            entities.add(entity);
+        }
+        List<Entity> ordered = new LinkedList<>();
+        for (Map<BitSet, List<Entity>> byColumns : byTypeAndColumns.values()) {
+            for (List<Entity> entities : byColumns.values()) {
+                ordered.addAll(entities);
+            }
+        }
+        return new OperationGroup(ordered);
+    }
+
+    /**
+     * @return the indexes of the changed node types according to the audit record, or null if there are none.
+     */
+    private BitSet getChangedColumns(AuditInformation audit, Entity entity) {
+        AuditRecord auditRecord = audit.getAuditRecord(entity);
+        if (auditRecord == null) {
+            return null;
+        }
+        BitSet columns = new BitSet();
+        for (Change change : auditRecord.changes()) {
+            if (!change.node.isPrimaryKey()) {
+                columns.set(change.node.getIndex());
+            }
+        }
+        return columns.isEmpty() ? null : columns;
+    }
+
+    private void delete(OperationGroup deleteGroup, final Database database, PersistReport report, BatchFailureIsolation isolation) throws PreparingPersistStatementException, SortPersistException, SortJdbcException {
         logStep("Performing deletes");
-        BatchExecuter batchExecuter = new BatchExecuter(deleteGroup, "delete", database) {
+        BatchExecuter batchExecuter = new BatchExecuter(deleteGroup, "delete", database, report, isolation) {
             @Override
             protected PreparedStatement prepareStatement(PreparedStatementPersistCache psCache, Entity entity) throws SortPersistException {
                 return psCache.prepareDeleteStatement(entity);
@@ -637,9 +1039,9 @@ public class Persister {
         batchExecuter.execute(entityContextServices, env.getDefinitions(namespace));
     }
 
-    private void insert(AuditInformation audit) {
+    private void insert(AuditInformation audit, Connection connection) {
       logStep("Performing audit using " + env.getAuditor().getClass().getSimpleName());
-      env.getAuditor().saveAuditInformation(audit);
+      env.getAuditor().saveAuditInformation(audit, connection);
     }
 
     private void verifyOptimisticLock(Entity entity, Entity databaseEntity) throws OptimisticLockMismatchException {
@@ -682,6 +1084,31 @@ public class Persister {
         }
     }
 
+    /**
+     * Upserted entities are now in the database.<br/>
+     * Unlike created entities their to many relations are not considered fetched, as the database
+     * record may have already existed.
+     * @param upsertGroup
+     */
+    private void setLoadedForUpsertedEntities(OperationGroup upsertGroup) {
+        logStep("Setting upserted entities to loaded");
+        for (Entity en : upsertGroup.getEntities()) {
+            en.getConstraints().setMustExistInDatabase();
+            en.setEntityState(EntityState.LOADED);
+            en.clear();
+        }
+    }
+
+    private void resetDirtyTracking(OperationGroup createGroup, OperationGroup updateGroup, OperationGroup deleteGroup) {
+        logStep("Resetting dirty tracking");
+        for (Entity en : createGroup.mergedCopy(updateGroup).getEntities()) {
+            en.startDirtyTracking();
+        }
+        for (Entity en : deleteGroup.getEntities()) {
+            en.stopDirtyTracking();
+        }
+    }
+
     /**
      * The RefNode updated state can be cleared
      * The ToMany node updated state can be clear
@@ -769,7 +1196,7 @@ public class Persister {
         if (loadedEntity == null) {
             throw new EntityMissingException(entity.getEntityType(), entity.getKey().getValue());
         }
-        else if (!Objects.equals(loadedEntity.getOptimisticLock().getValue(), entity.getOptimisticLock().getValue())) {
+        else if (loadedEntity.getOptimisticLock() != null && !Objects.equals(loadedEntity.getOptimisticLock().getValue(), entity.getOptimisticLock().getValue())) {
             throw new OptimisticLockMismatchException(entity, loadedEntity);
         }
         else {
@@ -777,6 +1204,20 @@ public class Persister {
         }
     }
 
+    /**
+     * An upsert without an optimistic lock check can still report 0 rows, for example MySql
+     * does this when the existing record already has the same values.
+     * @param entity
+     * @throws SortPersistException
+     */
+    private void handleUpsertNoop(Entity entity) throws SortPersistException {
+        if (!PreparedStatementCache.isLockedUpsert(entity)) {
+            LOG.debug("Upsert did not modify the existing record for {}", entity);
+            return;
+        }
+        handleUpdateNoop(entity);
+    }
+
     private void handleDeleteNoop(Entity entity) throws SortPersistException {
         /*
          * The tempCtx takes a fresh entity context with it's own transaction.
@@ -792,7 +1233,7 @@ public class Persister {
         if (loadedEntity == null) {
             throw new EntityMissingException(entity.getEntityType(), entity.getKey().getValue());
         }
-        else if (!Objects.equals(loadedEntity.getOptimisticLock().getValue(), entity.getOptimisticLock().getValue())) {
+        else if (loadedEntity.getOptimisticLock() != null && !Objects.equals(loadedEntity.getOptimisticLock().getValue(), entity.getOptimisticLock().getValue())) {
             throw new OptimisticLockMismatchException(entity, loadedEntity);
         }
         else {
@@ -71,6 +71,13 @@ public class Projection implements Iterable<ProjectionColumn> {
         }
     }
 
+    /**
+     * Adds a single column for the query object, used when only specific columns are selected.
+     */
+    public void add(QueryObject<?> query, NodeType nodeType) {
+        columns.add(new ProjectionColumn(this, query, query.getJoined(), nodeType));
+    }
+
     int indexOf(ProjectionColumn column) throws IllegalQueryStateException {
         int i = columns.indexOf(column);
         if (i == -1) {
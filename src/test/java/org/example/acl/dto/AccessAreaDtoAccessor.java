@@ -0,0 +1,80 @@
+package org.example.acl.dto;
+
+/*-
+ * #%L
+ * BarleyDB
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2014 - 2017 Scott Sinclair
+ *       <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import scott.barleydb.api.dto.BaseDto;
+import scott.barleydb.api.dto.DtoAccessor;
+
+/**
+ * Generated from Entity Specification
+ *
+ * @author scott
+ */
+public class AccessAreaDtoAccessor extends DtoAccessor {
+
+  @Override
+  public BaseDto newDto() {
+    return new AccessAreaDto();
+  }
+
+  @Override
+  public Object getProperty(BaseDto dto, String propertyName) {
+    switch (propertyName) {
+      case "id":
+        return ((AccessAreaDto)dto).getId();
+      case "name":
+        return ((AccessAreaDto)dto).getName();
+      case "modifiedAt":
+        return ((AccessAreaDto)dto).getModifiedAt();
+      case "parent":
+        return ((AccessAreaDto)dto).getParent();
+      case "children":
+        return ((AccessAreaDto)dto).getChildren();
+      default:
+        return super.getProperty(dto, propertyName);
+    }
+  }
+
+  @Override
+  public void setProperty(BaseDto dto, String propertyName, Object value) {
+    switch (propertyName) {
+      case "id":
+        ((AccessAreaDto)dto).setId((Long)value);
+        return;
+      case "name":
+        ((AccessAreaDto)dto).setName((String)value);
+        return;
+      case "modifiedAt":
+        ((AccessAreaDto)dto).setModifiedAt((Long)value);
+        return;
+      case "parent":
+        ((AccessAreaDto)dto).setParent((AccessAreaDto)value);
+        return;
+      default:
+        super.setProperty(dto, propertyName, value);
+    }
+  }
+}
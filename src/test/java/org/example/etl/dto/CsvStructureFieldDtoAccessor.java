@@ -0,0 +1,83 @@
+package org.example.etl.dto;
+
+/*-
+ * #%L
+ * BarleyDB
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2014 - 2017 Scott Sinclair
+ *       <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import scott.barleydb.api.dto.BaseDto;
+import scott.barleydb.api.dto.DtoAccessor;
+
+/**
+ * Generated from Entity Specification
+ *
+ * @author scott
+ */
+public class CsvStructureFieldDtoAccessor extends DtoAccessor {
+
+  @Override
+  public BaseDto newDto() {
+    return new CsvStructureFieldDto();
+  }
+
+  @Override
+  public Object getProperty(BaseDto dto, String propertyName) {
+    switch (propertyName) {
+      case "id":
+        return ((CsvStructureFieldDto)dto).getId();
+      case "name":
+        return ((CsvStructureFieldDto)dto).getName();
+      case "structure":
+        return ((CsvStructureFieldDto)dto).getStructure();
+      case "columnIndex":
+        return ((CsvStructureFieldDto)dto).getColumnIndex();
+      case "optional":
+        return ((CsvStructureFieldDto)dto).getOptional();
+      default:
+        return super.getProperty(dto, propertyName);
+    }
+  }
+
+  @Override
+  public void setProperty(BaseDto dto, String propertyName, Object value) {
+    switch (propertyName) {
+      case "id":
+        ((CsvStructureFieldDto)dto).setId((Long)value);
+        return;
+      case "name":
+        ((CsvStructureFieldDto)dto).setName((String)value);
+        return;
+      case "structure":
+        ((CsvStructureFieldDto)dto).setStructure((CsvStructureDto)value);
+        return;
+      case "columnIndex":
+        ((CsvStructureFieldDto)dto).setColumnIndex((Integer)value);
+        return;
+      case "optional":
+        ((CsvStructureFieldDto)dto).setOptional((Boolean)value);
+        return;
+      default:
+        super.setProperty(dto, propertyName, value);
+    }
+  }
+}
@@ -30,6 +30,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +50,7 @@ import scott.barleydb.api.exception.execution.jdbc.RollbackWithoutTransactionExc
 import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
 import scott.barleydb.api.exception.execution.persist.SortPersistException;
 import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
+import scott.barleydb.api.persist.BulkResult;
 import scott.barleydb.api.persist.PersistAnalyser;
 import scott.barleydb.api.persist.PersistRequest;
 import scott.barleydb.api.query.QueryObject;
@@ -302,6 +305,81 @@ public class RemoteClientEntityContextServices implements IEntityContextServices
         }
     }
 
+    @Override
+    public BulkResult deleteWhere(EntityContext entityContext, QueryObject<?> query, RuntimeProperties runtimeProperties) throws SortServiceProviderException, SortPersistException {
+        return executeBulk(entityContext, query, null, runtimeProperties);
+    }
+
+    @Override
+    public BulkResult updateWhere(EntityContext entityContext, QueryObject<?> query, Map<String, Object> assignments, RuntimeProperties runtimeProperties) throws SortServiceProviderException, SortPersistException {
+        return executeBulk(entityContext, query, new LinkedHashMap<>(assignments), runtimeProperties);
+    }
+
+    /**
+     * @param assignments null for a delete
+     */
+    @SuppressWarnings("unchecked")
+    private BulkResult executeBulk(EntityContext entityContext, QueryObject<?> query, LinkedHashMap<String, Object> assignments, RuntimeProperties runtimeProperties) throws SortServiceProviderException, SortPersistException {
+        LOG.info("Executing on server via serialization/de-serialization");
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ObjectOutputStream oot = new ObjectOutputStream(bout);
+            oot.writeObject(entityContext);
+            oot.writeObject(query);
+            oot.writeObject(assignments);
+            oot.writeObject(runtimeProperties);
+            oot.flush();
+            oot.close();
+
+            EnvironmentAccessor.set( serverEnvironment );
+
+            ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+            entityContext = (EntityContext)oin.readObject();
+            query = (QueryObject<?>)oin.readObject();
+            assignments = (LinkedHashMap<String, Object>)oin.readObject();
+            runtimeProperties = (RuntimeProperties)oin.readObject();
+            oin.close();
+
+            BulkResult result;
+            if (assignments == null) {
+                result = serverEntityContextServices.deleteWhere(entityContext, query, runtimeProperties);
+            }
+            else {
+                result = serverEntityContextServices.updateWhere(entityContext, query, assignments, runtimeProperties);
+            }
+            LOG.info("Sending result back via serialization/de-serialization");
+
+            bout = new ByteArrayOutputStream();
+            oot = new ObjectOutputStream(bout);
+            oot.writeObject(result);
+            oot.flush();
+            oot.close();
+
+            EnvironmentAccessor.set( clientEnvironment );
+
+            oin = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+            result = (BulkResult)oin.readObject();
+            oin.close();
+
+            return result;
+        }
+        catch(SortServiceProviderException x) {
+            throw serialize(x);
+        }
+        catch(SortPersistException x) {
+            throw serialize(x);
+        }
+        catch(IOException x) {
+            throw new IllegalStateException("Serialization error", x);
+        }
+        catch(ClassNotFoundException x) {
+            throw new IllegalStateException("Serialization error", x);
+        }
+        finally {
+            EnvironmentAccessor.remove();
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private <T extends Throwable> T serialize(T exception)  {
         EnvironmentAccessor.set( clientEnvironment );
@@ -25,22 +25,31 @@ package scott.barleydb.test;
  * #L%
  */
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.example.acl.dto.AccessAreaDto;
 import org.example.acl.dto.UserDto;
 import org.example.etl.EtlServices;
 import org.example.etl.dto.BusinessTypeDto;
 import org.example.etl.dto.TemplateDto;
 import org.example.etl.dto.XmlMappingDto;
+import org.example.etl.dto.XmlMappingDtoAccessor;
 import org.example.etl.dto.XmlStructureDto;
 import org.example.etl.dto.XmlSyntaxModelDto;
 import org.example.etl.model.SyntaxType;
+import org.example.etl.model.XmlMapping;
+import org.example.etl.model.XmlSyntaxModel;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import junit.framework.Assert;
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
 import scott.barleydb.api.core.entity.Statistics;
+import scott.barleydb.api.dto.BaseDto;
+import scott.barleydb.api.dto.DtoHelper;
 import scott.barleydb.api.exception.execution.SortServiceProviderException;
 import scott.barleydb.api.exception.execution.persist.SortPersistException;
 import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
@@ -273,4 +282,73 @@ public class TestDtoServices extends TestBase {
     //TODO:assert that the join table data was not affected by the resave.
   }
 
+  /**
+   * Found by DtoHelper through the naming convention, like the generated accessors.
+   */
+  public static class CountingXmlMappingDto extends XmlMappingDto {
+    private static final long serialVersionUID = 1L;
+  }
+
+  public static class CountingXmlMappingDtoAccessor extends XmlMappingDtoAccessor {
+    private static final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public BaseDto newDto() {
+      return new CountingXmlMappingDto();
+    }
+
+    @Override
+    public Object getProperty(BaseDto dto, String propertyName) {
+      calls.incrementAndGet();
+      return super.getProperty(dto, propertyName);
+    }
+
+    @Override
+    public void setProperty(BaseDto dto, String propertyName, Object value) {
+      calls.incrementAndGet();
+      super.setProperty(dto, propertyName, value);
+    }
+  }
+
+  /**
+   * Has no accessor, so it's properties are accessed by reflection.
+   */
+  public static class PlainXmlMappingDto extends XmlMappingDto {
+    private static final long serialVersionUID = 1L;
+  }
+
+  @Test
+  public void testDtoAccessorIsUsed() {
+    DtoHelper helper = new DtoHelper(env, namespace);
+    NodeType xpath = env.getDefinitions(namespace).getEntityTypeMatchingInterface(XmlMapping.class.getName(), true).getNodeType("xpath", true);
+
+    CountingXmlMappingDtoAccessor.calls.set(0);
+    CountingXmlMappingDto dto = new CountingXmlMappingDto();
+    helper.setProperty(dto, xpath, "/accessor");
+    Assert.assertEquals("/accessor", helper.callPropertyGetter(dto, xpath));
+    Assert.assertEquals("/accessor", dto.getXpath());
+    Assert.assertEquals(2, CountingXmlMappingDtoAccessor.calls.get());
+
+    //the generated accessors of the example DTOs, including enum properties
+    EntityType syntaxType = env.getDefinitions(namespace).getEntityTypeMatchingInterface(XmlSyntaxModel.class.getName(), true);
+    BaseDto syntax = helper.newDto(syntaxType);
+    Assert.assertTrue(syntax instanceof XmlSyntaxModelDto);
+    helper.setProperty(syntax, syntaxType.getNodeType("syntaxType", true), SyntaxType.SUBSYNTAX);
+    Assert.assertEquals(SyntaxType.SUBSYNTAX, ((XmlSyntaxModelDto)syntax).getSyntaxType());
+    Assert.assertEquals(SyntaxType.SUBSYNTAX, helper.getProperties(syntax).get("syntaxType"));
+  }
+
+  @Test
+  public void testReflectiveDtoAccessWithoutAccessor() {
+    DtoHelper helper = new DtoHelper(env, namespace);
+    NodeType xpath = env.getDefinitions(namespace).getEntityTypeMatchingInterface(XmlMapping.class.getName(), true).getNodeType("xpath", true);
+
+    CountingXmlMappingDtoAccessor.calls.set(0);
+    PlainXmlMappingDto dto = new PlainXmlMappingDto();
+    helper.setProperty(dto, xpath, "/reflection");
+    Assert.assertEquals("/reflection", dto.getXpath());
+    Assert.assertEquals("/reflection", helper.callPropertyGetter(dto, xpath));
+    Assert.assertEquals(0, CountingXmlMappingDtoAccessor.calls.get());
+  }
+
 }
@@ -22,6 +22,11 @@ package scott.barleydb.test;
  * #L%
  */
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import graphql.ExecutionInput;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.parser.Parser;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.example.etl.EtlEntityContext;
@@ -29,15 +34,18 @@ import org.example.etl.model.XmlMapping;
 import org.example.etl.model.XmlSyntaxModel;
 import org.example.etl.query.QXmlStructure;
 import org.example.etl.query.QXmlSyntaxModel;
+import org.junit.Assert;
 import org.junit.Test;
 import scott.barleydb.api.config.EntityType;
 import scott.barleydb.api.core.entity.ProxyController;
+import scott.barleydb.api.core.entity.ToManyNode;
 import scott.barleydb.api.core.types.JavaType;
 import scott.barleydb.api.exception.execution.SortServiceProviderException;
 import scott.barleydb.api.exception.execution.persist.SortPersistException;
 import scott.barleydb.api.graphql.BarleyGraphQLSchema;
 import scott.barleydb.api.graphql.BarleyGraphQLSchema.BarleyGraphQLContext;
 import scott.barleydb.api.graphql.GraphQLContext;
+import scott.barleydb.api.graphql.GraphQLQueryPlanCache;
 import scott.barleydb.api.graphql.QueryDataFetcher;
 import scott.barleydb.api.persist.PersistRequest;
 import scott.barleydb.api.query.QJoin;
@@ -45,9 +53,12 @@ import scott.barleydb.api.query.QParameter;
 import scott.barleydb.build.specification.graphql.CustomQueries;
 import scott.barleydb.server.jdbc.query.QueryExecuter;
 
+import java.io.ByteArrayOutputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Tests various types of queries in a server environment and a remote client environment.
@@ -185,6 +196,159 @@ public class TestGraphQLQuery extends TestRemoteClientBase {
 		 }
     }
 
+    @Test
+    public void testGraphQLQueryWithDataLoader() throws SortServiceProviderException, SortPersistException {
+    	EtlEntityContext ctx = new EtlEntityContext(env);
+    	ctx.persist(new PersistRequest().insert(TestPersistence.buildSyntax(ctx)));
+
+    	//break every join so that all relations are fetched by the data loaders
+    	gContext.getQueryCustomizations().setShouldBreakPredicate((qjoin, gctx) -> true);
+    	gContext.setDataLoaderEnabled(true);
+
+		 List<XmlSyntaxModel> result = ((BarleyGraphQLContext)gContext).executeAndGetProxies("{xmlSyntaxModels {" +
+    	" id \n " +
+    	" name \n " +
+    	 "user { id \n " +
+    	        "name } \n" +
+    	 " mappings {" +
+    	             " id \n " +
+    	             "targetFieldName \n" +
+    	             " subSyntax { " +
+    	                   "id \n" +
+    	                    "name \n" +
+		    	               	 "user { id \n " +
+		    	     	        "name } } }}}");
+
+    	Assert.assertEquals(2, result.size());
+    	//the root query, then one query for the users and one for the mappings of both syntaxes
+    	//the sub syntaxes and their users are already loaded by then
+    	Assert.assertEquals(3, ((ProxyController)result.get(0)).getEntity().getEntityContext().getStatistics().getNumberOfQueryDatabseCalls());
+		 for (XmlSyntaxModel sm: result) {
+			 Assert.assertTrue(((ProxyController)sm).getEntity().getChild("mappings", ToManyNode.class).isFetched());
+			 Assert.assertEquals("Jimmy", sm.getUser().getName());
+			 for (XmlMapping m: sm.getMappings()) {
+				 if (m.getTargetFieldName().equals("target2")) {
+					 Assert.assertEquals("SubSyntaxModel - ooooh", m.getSubSyntax().getName());
+					 Assert.assertEquals("Jimmy", m.getSubSyntax().getUser().getName());
+				 }
+			 }
+		 }
+    }
+
+    @Test
+    public void testGraphQLQueryPlanCache() throws SortServiceProviderException, SortPersistException {
+    	System.out.println("-----------------------------------------------------------------------------------------");
+
+    	EtlEntityContext ctx = new EtlEntityContext(env);
+    	ctx.persist(new PersistRequest().insert(TestPersistence.buildSyntax(ctx)));
+
+    	String query = "{xmlSyntaxModels(name: \"%s\") {" +
+    	" id \n " +
+    	" name \n " +
+    	 "user { id \n " +
+    	        "name } \n" +
+    	 " mappings {" +
+    	             " id \n " +
+    	             "targetFieldName } }}";
+
+    	for (int i=0; i<3; i++) {
+    		List<XmlSyntaxModel> result = ((BarleyGraphQLContext)schema.newContext()).executeAndGetProxies(String.format(query, "Scott's SyntaxModel"));
+    		Assert.assertEquals(1, result.size());
+    		Assert.assertEquals("Scott's SyntaxModel", result.get(0).getName());
+    		Assert.assertEquals(3, result.get(0).getMappings().size());
+    	}
+    	//whitespace and comments do not change the cache keys
+    	((BarleyGraphQLContext)schema.newContext()).executeAndGetProxies(String.format(query, "Scott's SyntaxModel").replace("\n", " # comment\n\n"));
+    	Assert.assertEquals(1, schema.getQueryPlanCache().getNumberOfDocuments());
+    	Assert.assertEquals(1, schema.getQueryPlanCache().getNumberOfPlans());
+
+    	//a different argument value must not use the values of the cached plan
+    	List<XmlSyntaxModel> result = ((BarleyGraphQLContext)schema.newContext()).executeAndGetProxies(String.format(query, "SubSyntaxModel - ooooh"));
+    	Assert.assertEquals(1, result.size());
+    	Assert.assertEquals("SubSyntaxModel - ooooh", result.get(0).getName());
+    	Assert.assertEquals(2, result.get(0).getMappings().size());
+    }
+
+    @Test
+    public void testGraphQLQueryPlanCacheEvictsLeastRecentlyUsed() {
+    	GraphQLQueryPlanCache cache = new GraphQLQueryPlanCache(2);
+    	AtomicInteger parses = new AtomicInteger();
+    	Function<ExecutionInput, PreparsedDocumentEntry> parse = input -> {
+    		parses.incrementAndGet();
+    		return new PreparsedDocumentEntry(Parser.parse(input.getQuery()));
+    	};
+    	cache.getDocument(ExecutionInput.newExecutionInput("{a}").build(), parse);
+    	cache.getDocument(ExecutionInput.newExecutionInput("{b}").build(), parse);
+    	cache.getDocument(ExecutionInput.newExecutionInput(" {a}\n").build(), parse);
+    	Assert.assertEquals(2, parses.get());
+
+    	//b is the least recently used
+    	cache.getDocument(ExecutionInput.newExecutionInput("{c}").build(), parse);
+    	Assert.assertEquals(2, cache.getNumberOfDocuments());
+    	cache.getDocument(ExecutionInput.newExecutionInput("{a}").build(), parse);
+    	Assert.assertEquals(3, parses.get());
+    	cache.getDocument(ExecutionInput.newExecutionInput("{b}").build(), parse);
+    	Assert.assertEquals(4, parses.get());
+    }
+
+    @Test
+    public void testGraphQLWriteJson() throws Exception {
+    	System.out.println("-----------------------------------------------------------------------------------------");
+
+    	EtlEntityContext ctx = new EtlEntityContext(env);
+    	ctx.persist(new PersistRequest().insert(TestPersistence.buildSyntax(ctx)));
+
+    	String query = "{syntaxes: xmlSyntaxModels {" +
+    	" ...syntaxFields \n " +
+    	 "user { id \n " +
+    	        "name } \n" +
+    	 " mappings {" +
+    	             " id \n " +
+    	             "targetFieldName \n" +
+    	             " subSyntax { " +
+    	                   "id \n" +
+    	                    " name } } }}" +
+    	" fragment syntaxFields on XmlSyntaxModel { id \n name \n structureType }";
+
+    	//break every join and enable the data loaders, the streamed relations must still be batch fetched
+    	BarleyGraphQLContext streamingContext = (BarleyGraphQLContext)schema.newContext();
+    	streamingContext.getQueryCustomizations().setShouldBreakPredicate((qjoin, gctx) -> true);
+    	streamingContext.setDataLoaderEnabled(true);
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	streamingContext.executeAndWriteJson(query, out);
+    	String json = out.toString("UTF-8");
+    	//the root query, then one query for the users and one for the mappings of both syntaxes
+    	//the sub syntaxes are already loaded by then
+    	Assert.assertEquals(3, streamingContext.getEntityContext().getStatistics().getNumberOfQueryDatabseCalls());
+
+    	ObjectMapper mapper = new ObjectMapper();
+    	Map<String, Object> expected = schema.newContext().execute(query);
+    	Assert.assertEquals(mapper.valueToTree(expected), mapper.readTree(json).get("data"));
+    }
+
+    @Test
+    public void testGraphQLWriteJsonVariableDirectives() throws Exception {
+    	EtlEntityContext ctx = new EtlEntityContext(env);
+    	ctx.persist(new PersistRequest().insert(TestPersistence.buildSyntax(ctx)));
+
+    	ObjectMapper mapper = new ObjectMapper();
+    	for (String withName: new String[]{"true", "false"}) {
+    		//the default values of the variables are applied by graphql-java
+    		String query = "query withName($withName: Boolean = " + withName + ") {xmlSyntaxModels {" +
+    		" id \n " +
+    		" name @include(if: $withName) \n" +
+    		" structureType @skip(if: $withName) }}";
+    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+    		((BarleyGraphQLContext)schema.newContext()).executeAndWriteJson(query, out);
+
+    		Map<String, Object> expected = schema.newContext().execute(query);
+    		JsonNode syntaxes = mapper.readTree(out.toString("UTF-8")).get("data").get("xmlSyntaxModels");
+    		Assert.assertEquals(mapper.valueToTree(expected).get("xmlSyntaxModels"), syntaxes);
+    		Assert.assertEquals(Boolean.valueOf(withName), syntaxes.get(0).has("name"));
+    		Assert.assertEquals(!Boolean.valueOf(withName), syntaxes.get(0).has("structureType"));
+    	}
+    }
+
     @Test
     public void testGraphQLQueryList() {
     	System.out.println("-----------------------------------------------------------------------------------------");
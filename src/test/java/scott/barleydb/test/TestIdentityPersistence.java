@@ -0,0 +1,313 @@
+package scott.barleydb.test;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static scott.barleydb.api.specification.CoreSpec.mandatoryRefersTo;
+import static scott.barleydb.api.specification.CoreSpec.optionallyRefersTo;
+import static scott.barleydb.api.specification.CoreSpec.ownsMany;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.example.identity.model.IdChild;
+import org.example.identity.model.IdParent;
+import org.junit.Before;
+import org.junit.Test;
+
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.core.Environment;
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.entity.RefNode;
+import scott.barleydb.api.core.entity.ToManyNode;
+import scott.barleydb.api.core.entity.ValueNode;
+import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
+import scott.barleydb.api.persist.PersistRequest;
+import scott.barleydb.api.query.QueryObject;
+import scott.barleydb.api.specification.NodeSpec;
+import scott.barleydb.bootstrap.EnvironmentDef;
+import scott.barleydb.build.specification.staticspec.CommonDefaultsPlatformSpec;
+import scott.barleydb.server.jdbc.JdbcEntityContextServices;
+import scott.barleydb.server.jdbc.vendor.Database;
+import scott.barleydb.server.jdbc.vendor.HsqlDatabase;
+
+/**
+ * Tests persisting entities whose primary keys are generated by the database (IDENTITY columns).
+ *
+ * @author scott
+ *
+ */
+public class TestIdentityPersistence {
+
+    private static final String namespace = "org.example.identity";
+
+    public static class IdentitySpec extends CommonDefaultsPlatformSpec {
+
+        public IdentitySpec() {
+            super(TestIdentityPersistence.namespace);
+        }
+
+        @scott.barleydb.build.specification.staticspec.Entity("ID_PARENT")
+        public static class IdParent {
+            public static NodeSpec id = longIdentityPrimaryKey();
+
+            public static NodeSpec name = name();
+
+            public static NodeSpec parent = optionallyRefersTo(IdParent.class, "PARENT_ID");
+
+            public static NodeSpec children = ownsMany(IdChild.class, IdChild.parent);
+        }
+
+        @scott.barleydb.build.specification.staticspec.Entity("ID_CHILD")
+        public static class IdChild {
+            public static NodeSpec id = longIdentityPrimaryKey();
+
+            public static NodeSpec name = name();
+
+            public static NodeSpec parent = mandatoryRefersTo(IdParent.class);
+        }
+    }
+
+    /**
+     * Entity context services which can pretend that the database cannot return
+     * generated keys from a batch, to exercise the single statement fallback.
+     */
+    private static class IdentityEntityContextServices extends JdbcEntityContextServices {
+
+        private volatile boolean batchGeneratedKeys = true;
+
+        private volatile int databaseLookups;
+
+        public IdentityEntityContextServices(DataSource dataSource) {
+            super(dataSource);
+        }
+
+        @Override
+        public Database getDatabaseInfo(Connection connection) throws SortJdbcException {
+            Database database = super.getDatabaseInfo(connection);
+            if (batchGeneratedKeys || !(database instanceof HsqlDatabase)) {
+                return database;
+            }
+            databaseLookups++;
+            try {
+                return new HsqlDatabase(connection.getMetaData()) {
+                    @Override
+                    public boolean supportsBatchGeneratedKeys() {
+                        return false;
+                    }
+                };
+            }
+            catch(SQLException x) {
+                throw new SortJdbcException("Could not get database metadata", x);
+            }
+        }
+    }
+
+    private static Environment env;
+    private static IdentityEntityContextServices services;
+    private static DataSource dataSource;
+
+    private EntityType parentType;
+    private EntityType childType;
+
+    @Before
+    public void setup() throws Exception {
+        if (env == null) {
+            EnvironmentDef envDef = new EnvironmentDef() {
+                @Override
+                protected JdbcEntityContextServices createEntityContextServices(DataSource dataSource) {
+                    return services = new IdentityEntityContextServices(dataSource);
+                }
+            };
+            envDef.withDataSource()
+                .withDriver("org.hsqldb.jdbcDriver")
+                .withUser("sa")
+                .withPassword("")
+                .withUrl("jdbc:hsqldb:mem:identitydb;hsqldb.tx=MVCC")
+                .end()
+             .withSpecs(IdentitySpec.class)
+             .withNoClasses()
+             .withDroppingSchema(true)
+             .withSchemaCreation(true);
+
+            env = envDef.create();
+            dataSource = envDef.getDataSource();
+        }
+        try (Connection connection = dataSource.getConnection();
+                Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("delete from ID_CHILD");
+            stmt.executeUpdate("update ID_PARENT set PARENT_ID = null");
+            stmt.executeUpdate("delete from ID_PARENT");
+        }
+        services.batchGeneratedKeys = true;
+        services.databaseLookups = 0;
+        parentType = env.getDefinitions(namespace).getEntityTypeMatchingInterface(namespace + ".model.IdParent", true);
+        childType = env.getDefinitions(namespace).getEntityTypeMatchingInterface(namespace + ".model.IdChild", true);
+    }
+
+    @Test
+    public void testInsertHarvestsGeneratedKeys() throws Exception {
+        EntityContext ctx = new EntityContext(env, namespace);
+        Entity p1 = newParent(ctx, "one");
+        Entity p2 = newParent(ctx, "two");
+        Entity p3 = newParent(ctx, "three");
+
+        ctx.persist(new PersistRequest().insert(p1, p2, p3));
+
+        assertNotNull(p1.getKey().getValue());
+        assertNotNull(p2.getKey().getValue());
+        assertNotNull(p3.getKey().getValue());
+        assertNotEquals(p1.getKey().getValue(), p2.getKey().getValue());
+        assertNotEquals(p2.getKey().getValue(), p3.getKey().getValue());
+        assertNotEquals(p1.getKey().getValue(), p3.getKey().getValue());
+
+        Map<Object,String> names = loadNames(parentType);
+        assertEquals(3, names.size());
+        assertEquals("one", names.get(p1.getKey().getValue()));
+        assertEquals("two", names.get(p2.getKey().getValue()));
+        assertEquals("three", names.get(p3.getKey().getValue()));
+    }
+
+    @Test
+    public void testInsertDependentsUseGeneratedKeys() throws Exception {
+        insertAndVerifyDependents();
+    }
+
+    @Test
+    public void testInsertDependentsWithoutBatchGeneratedKeys() throws Exception {
+        services.batchGeneratedKeys = false;
+        insertAndVerifyDependents();
+        assertTrue("the database without batch generated keys was not used", services.databaseLookups > 0);
+    }
+
+    @Test
+    public void testDynamicProxies() throws Exception {
+        EntityContext ctx = new EntityContext(env, namespace);
+        IdParent top = ctx.newModel(IdParent.class);
+        top.setName("top");
+        IdParent parent = ctx.newModel(IdParent.class);
+        parent.setName("parent");
+        parent.setParent(top);
+        IdChild child = ctx.newModel(IdChild.class);
+        child.setName("child");
+        child.setParent(parent);
+        parent.getChildren().add(child);
+        assertTrue(Proxy.isProxyClass(parent.getClass()));
+        assertEquals("parent", parent.getName());
+        assertSame(top.getEntity(), parent.getParent().getEntity());
+        assertNull(top.getParent());
+
+        ctx.persist(new PersistRequest().insert(parent, top));
+        assertNotNull(parent.getId());
+
+        EntityContext readCtx = new EntityContext(env, namespace);
+        IdParent loaded = readCtx.getModelOrLoadModel(IdParent.class, parent.getId(), true);
+        assertEquals("parent", loaded.getName());
+        assertEquals("top", loaded.getParent().getName());
+        assertEquals(1, loaded.getChildren().size());
+        IdChild loadedChild = loaded.getChildren().get(0);
+        assertEquals("child", loadedChild.getName());
+        assertSame(loaded.getEntity(), loadedChild.getParent().getEntity());
+
+        loaded.setChildren(new ArrayList<IdChild>());
+        assertTrue(loaded.getChildren().isEmpty());
+    }
+
+    /**
+     * Inserts a parent which refers to another new parent and owns new children, all with database generated keys,
+     * then verifies that every foreign key was set from the key generated for the referenced entity.
+     */
+    private void insertAndVerifyDependents() throws Exception {
+        EntityContext ctx = new EntityContext(env, namespace);
+        Entity top = newParent(ctx, "top");
+        Entity parent = newParent(ctx, "parent");
+        parent.getChild("parent", RefNode.class).setReference(top);
+        Entity c1 = newChild(ctx, parent, "c1");
+        Entity c2 = newChild(ctx, parent, "c2");
+
+        ctx.persist(new PersistRequest().insert(parent, top));
+
+        Object topKey = top.getKey().getValue();
+        Object parentKey = parent.getKey().getValue();
+        assertNotNull(topKey);
+        assertNotNull(parentKey);
+        assertNotNull(c1.getKey().getValue());
+        assertNotNull(c2.getKey().getValue());
+
+        EntityContext readCtx = new EntityContext(env, namespace);
+        for (Entity e: readCtx.performQuery(new QueryObject<Object>(parentType.getInterfaceName())).getEntityList()) {
+            RefNode ref = e.getChild("parent", RefNode.class);
+            if (e.getKey().getValue().equals(parentKey)) {
+                assertEquals(topKey, ref.getEntityKey());
+            }
+            else {
+                assertEquals(topKey, e.getKey().getValue());
+                assertEquals(null, ref.getEntityKey());
+            }
+        }
+        List<Entity> children = readCtx.performQuery(new QueryObject<Object>(childType.getInterfaceName())).getEntityList();
+        assertEquals(2, children.size());
+        for (Entity child: children) {
+            assertEquals(parentKey, child.getChild("parent", RefNode.class).getEntityKey());
+        }
+    }
+
+    private Entity newParent(EntityContext ctx, String name) {
+        Entity parent = ctx.newEntity(parentType);
+        parent.getChild("name", ValueNode.class).setValue(name);
+        return parent;
+    }
+
+    private Entity newChild(EntityContext ctx, Entity parent, String name) {
+        Entity child = ctx.newEntity(childType);
+        child.getChild("name", ValueNode.class).setValue(name);
+        child.getChild("parent", RefNode.class).setReference(parent);
+        parent.getChild("children", ToManyNode.class).add(child);
+        return child;
+    }
+
+    private Map<Object,String> loadNames(EntityType entityType) throws Exception {
+        EntityContext ctx = new EntityContext(env, namespace);
+        Map<Object,String> names = new HashMap<>();
+        for (Entity e: ctx.performQuery(new QueryObject<Object>(entityType.getInterfaceName())).getEntityList()) {
+            names.put(e.getKey().getValue(), e.getChild("name", ValueNode.class).getValue());
+        }
+        return names;
+    }
+
+}
@@ -0,0 +1,231 @@
+package scott.barleydb.test;
+
+/*
+ * #%L
+ * BarleyDB
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2014 - 2016 Scott Sinclair
+ * 			<scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.example.acl.model.AccessArea;
+import org.example.acl.model.User;
+import org.example.etl.model.SyntaxType;
+import org.example.etl.model.XmlMapping;
+import org.example.etl.model.XmlStructure;
+import org.example.etl.model.XmlSyntaxModel;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.entity.EntityGraphReader;
+import scott.barleydb.api.core.entity.EntityGraphWriter;
+import scott.barleydb.api.core.util.EnvironmentAccessor;
+import scott.barleydb.api.persist.PersistRequest;
+import scott.barleydb.api.query.RuntimeProperties;
+import scott.barleydb.api.query.RuntimeProperties.PersistVerification;
+
+/**
+ * Measures the latency and the allocated memory of persisting large requests and the footprint of the entity context.<br/>
+ * <br/>
+ * Ignored by default, run it by hand to compare the different persist modes.
+ *
+ * @author scott
+ *
+ */
+public class TestPersistBenchmark extends TestBase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TestPersistBenchmark.class);
+
+    private static final int MAPPINGS = 20000;
+
+    private static final int RUNS = 5;
+
+    @Ignore
+    @Test
+    public void benchmarkPersistWithCopy() throws Exception {
+        benchmark("copy", new RuntimeProperties().executeInSameContext(false).zeroCopyPersist(false));
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkPersistZeroCopy() throws Exception {
+        benchmark("zero-copy", new RuntimeProperties().zeroCopyPersist(true));
+    }
+
+    /**
+     * Prints the heap used per entity in the entity context, including the entities themselves.
+     */
+    @Ignore
+    @Test
+    public void benchmarkContextFootprint() throws Exception {
+        final int numberOfEntities = 1000000;
+        EntityContext ctx = serverEntityContext.newEntityContext();
+        ctx.setAllowGarbageCollection(false);
+        EntityType entityType = ctx.getDefinitions().getEntityTypeMatchingInterface(XmlMapping.class.getName(), true);
+        long before = usedHeap();
+        for (long i = 0; i < numberOfEntities; i++) {
+            ctx.newEntity(entityType, i);
+        }
+        long after = usedHeap();
+        long start = System.nanoTime();
+        for (long i = 0; i < numberOfEntities; i++) {
+            ctx.getEntity(entityType, i, true);
+        }
+        long lookupMillis = (System.nanoTime() - start) / 1000000;
+        LOG.info(String.format("%d entities: %d bytes per entity, %d ms for the key lookups",
+                ctx.size(), (after - before) / numberOfEntities, lookupMillis));
+    }
+
+    /**
+     * Compares the size and the encode / decode times of java serialization and the binary entity graph format.
+     */
+    @Ignore
+    @Test
+    public void benchmarkEntityGraphSerialization() throws Exception {
+        buildLargeSyntax(MAPPINGS);
+        List<Entity> entities = new ArrayList<>();
+        for (Entity entity : serverEntityContext.getEntitiesSafeIterable()) {
+            entities.add(entity);
+        }
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bout)) {
+                out.writeObject(entities);
+            }
+            long encodeMillis = (System.nanoTime() - start) / 1000000;
+            byte javaBytes[] = bout.toByteArray();
+            start = System.nanoTime();
+            EnvironmentAccessor.set(env);
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(javaBytes))) {
+                in.readObject();
+            }
+            finally {
+                EnvironmentAccessor.remove();
+            }
+            long decodeMillis = (System.nanoTime() - start) / 1000000;
+            LOG.info(String.format("java serialization: %d entities, %d bytes, encode %d ms, decode %d ms",
+                    entities.size(), javaBytes.length, encodeMillis, decodeMillis));
+
+            start = System.nanoTime();
+            bout = new ByteArrayOutputStream();
+            try (EntityGraphWriter writer = new EntityGraphWriter(bout, serverEntityContext.getNamespace())) {
+                writer.writeAll(entities);
+            }
+            encodeMillis = (System.nanoTime() - start) / 1000000;
+            byte graphBytes[] = bout.toByteArray();
+            start = System.nanoTime();
+            EntityGraphReader.read(serverEntityContext.newEntityContext(), new ByteArrayInputStream(graphBytes));
+            decodeMillis = (System.nanoTime() - start) / 1000000;
+            LOG.info(String.format("entity graph: %d entities, %d bytes, encode %d ms, decode %d ms",
+                    entities.size(), graphBytes.length, encodeMillis, decodeMillis));
+        }
+    }
+
+    private void benchmark(String name, RuntimeProperties props) throws Exception {
+        //warm up
+        persist(name, props);
+        serverEntityContext.clear();
+        for (int i = 0; i < RUNS; i++) {
+            persist(name, props);
+            serverEntityContext.clear();
+        }
+    }
+
+    private void persist(String name, RuntimeProperties props) throws Exception {
+        XmlSyntaxModel syntaxModel = buildLargeSyntax(MAPPINGS);
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        serverEntityContext.persist(new PersistRequest().save(syntaxModel), props);
+        long insertMillis = (System.nanoTime() - start) / 1000000;
+        long insertAllocated = allocatedBytes() - allocated;
+
+        for (XmlMapping mapping : syntaxModel.getMappings()) {
+            mapping.setXpath(mapping.getXpath() + "/updated");
+        }
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+        serverEntityContext.persist(new PersistRequest().save(syntaxModel), new RuntimeProperties().persistVerification(PersistVerification.FULL).override(props));
+        long updateMillis = (System.nanoTime() - start) / 1000000;
+        long updateAllocated = allocatedBytes() - allocated;
+
+        LOG.info(String.format("%-10s %d mappings: insert %5d ms %6d MB, update %5d ms %6d MB",
+                name, MAPPINGS, insertMillis, insertAllocated / (1024 * 1024), updateMillis, updateAllocated / (1024 * 1024)));
+    }
+
+    private XmlSyntaxModel buildLargeSyntax(int numberOfMappings) {
+        AccessArea root = serverEntityContext.newModel(AccessArea.class);
+        root.setName("root");
+
+        User user = serverEntityContext.newModel(User.class);
+        user.setName("Jimmy");
+        user.setAccessArea(root);
+        user.setUuid("");
+
+        XmlStructure structure = serverEntityContext.newModel(XmlStructure.class);
+        structure.setName("structure");
+        structure.setAccessArea(root);
+        structure.setUuid("");
+
+        XmlSyntaxModel syntaxModel = serverEntityContext.newModel(XmlSyntaxModel.class);
+        syntaxModel.setName("large syntax");
+        syntaxModel.setSyntaxType(SyntaxType.ROOT);
+        syntaxModel.setAccessArea(root);
+        syntaxModel.setUuid("");
+        syntaxModel.setUser(user);
+        syntaxModel.setStructure(structure);
+
+        for (int i = 0; i < numberOfMappings; i++) {
+            XmlMapping mapping = serverEntityContext.newModel(XmlMapping.class);
+            mapping.setSyntax(syntaxModel);
+            mapping.setXpath("/root" + i);
+            mapping.setTargetFieldName("target" + i);
+            syntaxModel.getMappings().add(mapping);
+        }
+        return syntaxModel;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
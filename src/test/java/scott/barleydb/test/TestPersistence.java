@@ -25,13 +25,23 @@ package scott.barleydb.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.example.acl.model.AccessArea;
 import org.example.acl.model.User;
@@ -48,6 +58,8 @@ import org.example.etl.model.XmlStructure;
 import org.example.etl.model.XmlSyntaxModel;
 import org.example.etl.query.QRawData;
 import org.example.etl.query.QTemplate;
+import org.example.etl.query.QXmlMapping;
+import org.example.etl.query.QXmlStructure;
 import org.example.etl.query.QXmlSyntaxModel;
 import org.junit.Assert;
 import org.junit.Test;
@@ -59,10 +71,20 @@ import org.slf4j.LoggerFactory;
 
 import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.entity.*;
+import scott.barleydb.api.core.util.CollectionUtil;
 import scott.barleydb.api.exception.BarleyDBException;
 import scott.barleydb.api.exception.execution.persist.EntityMissingException;
 import scott.barleydb.api.exception.execution.persist.OptimisticLockMismatchException;
+import scott.barleydb.api.exception.execution.persist.SortPersistException;
+import scott.barleydb.api.persist.BulkResult;
+import scott.barleydb.api.persist.LoggingAuditor;
+import scott.barleydb.api.persist.OperationType;
+import scott.barleydb.api.persist.PersistReport;
 import scott.barleydb.api.persist.PersistRequest;
+import scott.barleydb.api.query.QProperty;
+import scott.barleydb.api.query.RuntimeProperties;
+import scott.barleydb.api.query.RuntimeProperties.PersistVerification;
+import scott.barleydb.server.jdbc.persist.JdbcAuditor;
 import scott.barleydb.server.jdbc.persist.Persister;
 import scott.barleydb.server.jdbc.resources.ConnectionResources;
 import scott.barleydb.test.TestEntityContextServices.PersisterFactory;
@@ -290,6 +312,491 @@ public class TestPersistence extends TestRemoteClientBase {
         print("", syntax);
     }
 
+    /**
+     * Tests that only the changed columns are updated.<br/>
+     * The target field name of the mapping is changed directly in the database just before the update is executed,
+     * an update which sets every column would overwrite it.
+     * @throws Exception
+     */
+    @Test
+    public void testUpdateSyntaxChangedColumnsOnly() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        final Long mappingId = syntaxModel.getMappings().get(0).getId();
+        entityContextServices.setPersisterFactory(new PersisterFactory() {
+            @Override
+            public Persister newPersister(Environment env, String namespace) {
+                return new Persister(env, namespace, entityContextServices) {
+                    @Override
+                    protected void preJdbcWorkHook() {
+                        try (Connection connection = dataSource.getConnection();
+                             PreparedStatement ps = connection.prepareStatement("update SS_XML_MAPPING set TARGET_FIELD_NAME = ? where ID = ?")) {
+                            connection.setAutoCommit(true);
+                            ps.setString(1, "changed-in-database");
+                            ps.setLong(2, mappingId);
+                            assertEquals(1, ps.executeUpdate());
+                        }
+                        catch (Exception x) {
+                            throw new IllegalStateException("Error in test harness, updating the mapping in the database", x);
+                        }
+                    }
+                };
+            }
+        });
+
+        syntaxModel.setName(syntaxModel.getName() + " - updated");
+        syntaxModel.getMappings().get(0).setXpath("/updated-mapping");
+        try {
+            theEntityContext.persist(new PersistRequest().save(syntaxModel), new RuntimeProperties().updateChangedColumnsOnly(true));
+        }
+        finally {
+            entityContextServices.setPersisterFactory(null);
+        }
+
+        theEntityContext.clear();
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.joinToMappings();
+        qsyntax.where(qsyntax.name().equal("Scott's SyntaxModel - updated"));
+        XmlSyntaxModel syntax = theEntityContext.performQuery(qsyntax).getList().get(0);
+        assertNotNull(syntax.getStructure());
+        XmlMapping updatedMapping = null;
+        for (XmlMapping mapping : syntax.getMappings()) {
+            if (mappingId.equals(mapping.getId())) {
+                updatedMapping = mapping;
+            }
+        }
+        assertNotNull(updatedMapping);
+        assertEquals("/updated-mapping", updatedMapping.getXpath());
+        assertEquals("changed-in-database", updatedMapping.getTargetFieldName());
+    }
+
+    @Test
+    public void testUpsertSyntax() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        EntityContext otherUser = theEntityContext.newEntityContextSharingTransaction();
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.name().equal("Scott's SyntaxModel"));
+        XmlSyntaxModel otherSyntax = otherUser.performQuery(qsyntax).getList().get(0);
+        otherSyntax.setName("Scott's SyntaxModel - upserted");
+        otherUser.persist(new PersistRequest().upsert(otherSyntax));
+
+        theEntityContext.clear();
+        qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.name().equal("Scott's SyntaxModel - upserted"));
+        XmlSyntaxModel syntax = theEntityContext.performQuery(qsyntax).getList().get(0);
+        assertEquals(otherSyntax.getId(), syntax.getId());
+        assertEquals(otherSyntax.getModifiedAt(), syntax.getModifiedAt());
+    }
+
+    /**
+     * Tests that an upsert of an entity with a key which is not in the database inserts it.
+     * @throws Exception
+     */
+    @Test
+    public void testUpsertInsertsMissingStructure() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        final Long newKey = 1000000L;
+        XmlStructure structure = theEntityContext.newModel(XmlStructure.class, newKey);
+        structure.setName("upserted structure");
+        structure.setAccessArea(syntaxModel.getAccessArea());
+        structure.setUuid("");
+        theEntityContext.persist(new PersistRequest().upsert(structure));
+        assertNotNull(structure.getModifiedAt());
+
+        EntityContext otherUser = theEntityContext.newEntityContextSharingTransaction();
+        QXmlStructure qstructure = new QXmlStructure();
+        qstructure.where(qstructure.id().equal(newKey));
+        List<XmlStructure> structures = otherUser.performQuery(qstructure).getList();
+        assertEquals(1, structures.size());
+        assertEquals("upserted structure", structures.get(0).getName());
+        assertEquals(structure.getModifiedAt(), structures.get(0).getModifiedAt());
+    }
+
+    @Test
+    public void testDeleteWhereCascadesToOwnedRelations() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.name().equal("Scott's SyntaxModel"));
+        BulkResult result = theEntityContext.deleteWhere(qsyntax);
+        //the syntax and it's sub-syntax
+        assertEquals(2, result.getRowCount());
+
+        EntityContext otherUser = theEntityContext.newEntityContextSharingTransaction();
+        assertTrue(otherUser.performQuery(new QXmlSyntaxModel()).getList().isEmpty());
+        assertTrue(otherUser.performQuery(new QXmlMapping()).getList().isEmpty());
+    }
+
+    @Test
+    public void testUpdateWhere() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        QXmlMapping qmapping = new QXmlMapping();
+        qmapping.where(qmapping.xpath().equal("/root1"));
+        Map<QProperty<?>, Object> assignments = new HashMap<>();
+        assignments.put(qmapping.targetFieldName(), "updated-target");
+        BulkResult result = theEntityContext.updateWhere(qmapping, assignments);
+        assertEquals(1, result.getRowCount());
+
+        for (XmlMapping mapping : syntaxModel.getMappings()) {
+            if (mapping.getXpath().equals("/root1")) {
+                assertEquals("updated-target", mapping.getTargetFieldName());
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedBatchPersist() throws Exception {
+        if (getter.testingRemoteClient()) {
+            return;
+        }
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+        if (!theEntityContext.getAutocommit()) {
+            theEntityContext.commit();
+        }
+
+        PipelinedBatchPersister.Result result = theEntityContext.pipelinedBatchPersister()
+                .batchSize(2)
+                .workers(2)
+                .queueCapacity(1)
+                .operationType(OperationType.SAVE)
+                .processor(ctx -> {
+                    for (XmlMapping mapping : ctx.getByType(XmlMapping.class)) {
+                        mapping.setTargetFieldName("pipelined");
+                    }
+                })
+                .persist(theEntityContext.streamQueryEntityData(new QXmlMapping(), null));
+
+        //5 mappings in batches of 2
+        assertEquals(3, result.getBatchesPersisted());
+        assertEquals(5, result.getEntitiesPersisted());
+
+        EntityContext otherUser = theEntityContext.newEntityContext();
+        for (XmlMapping mapping : otherUser.performQuery(new QXmlMapping()).getList()) {
+            assertEquals("pipelined", mapping.getTargetFieldName());
+        }
+    }
+
+    @Test
+    public void testJdbcAuditorWritesInTransaction() throws Exception {
+        JdbcAuditor auditor = new JdbcAuditor(dataSource, "BDB_AUDIT");
+        auditor.createTable();
+        env.setAuditor(auditor);
+        try {
+            XmlSyntaxModel syntaxModel = buildSyntax();
+            theEntityContext.persist(new PersistRequest().save(syntaxModel));
+            if (!theEntityContext.getAutocommit()) {
+                theEntityContext.commit();
+            }
+            //5 mappings each with more than 1 column
+            assertTrue(countMappingAuditRows() > 5);
+        }
+        finally {
+            env.setAuditor(new LoggingAuditor());
+            dropAuditTable();
+        }
+    }
+
+    @Test
+    public void testJdbcAuditorWritesAfterCommit() throws Exception {
+        File spillFile = File.createTempFile("bdb-audit", ".spill");
+        spillFile.delete();
+        JdbcAuditor auditor = new JdbcAuditor(dataSource, "BDB_AUDIT", JdbcAuditor.Durability.AFTER_COMMIT, 2, 10, spillFile);
+        auditor.createTable();
+        env.setAuditor(auditor);
+        try {
+            XmlSyntaxModel syntaxModel = buildSyntax();
+            theEntityContext.persist(new PersistRequest().save(syntaxModel));
+            if (!theEntityContext.getAutocommit()) {
+                theEntityContext.commit();
+            }
+            //waits for the background writer to drain the queue
+            auditor.close();
+            assertTrue(countMappingAuditRows() > 5);
+            assertFalse(spillFile.exists());
+        }
+        finally {
+            auditor.close();
+            env.setAuditor(new LoggingAuditor());
+            spillFile.delete();
+            dropAuditTable();
+        }
+    }
+
+    @Test
+    public void testJdbcAuditorDiscardsRowsOfFailedPersist() throws Exception {
+        File spillFile = File.createTempFile("bdb-audit", ".spill");
+        spillFile.delete();
+        JdbcAuditor auditor = new JdbcAuditor(dataSource, "BDB_AUDIT", JdbcAuditor.Durability.AFTER_COMMIT, 100, 10, spillFile);
+        auditor.createTable();
+        env.setAuditor(auditor);
+        entityContextServices.setPersisterFactory(new PersisterFactory() {
+            @Override
+            public Persister newPersister(Environment env, String namespace) {
+                return new Persister(env, namespace, entityContextServices) {
+                    @Override
+                    protected void preJdbcWorkHook() {
+                        throw new IllegalStateException("Failing the persist after it was audited");
+                    }
+                };
+            }
+        });
+        try {
+            try {
+                theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+                fail("Expected the persist to fail");
+            }
+            catch (Exception x) {
+                //expected
+            }
+            finally {
+                entityContextServices.setPersisterFactory(null);
+            }
+            /*
+             * a successful persist and commit must not write the audit rows of the failed one
+             */
+            AccessArea accessArea = theEntityContext.newModel(AccessArea.class);
+            accessArea.setName("audited area");
+            XmlStructure structure = theEntityContext.newModel(XmlStructure.class);
+            structure.setName("audited structure");
+            structure.setAccessArea(accessArea);
+            structure.setUuid("");
+            theEntityContext.persist(new PersistRequest().save(structure));
+            if (!theEntityContext.getAutocommit()) {
+                theEntityContext.commit();
+            }
+            auditor.close();
+            assertEquals(0, countMappingAuditRows());
+            assertFalse(spillFile.exists());
+        }
+        finally {
+            auditor.close();
+            env.setAuditor(new LoggingAuditor());
+            spillFile.delete();
+            dropAuditTable();
+        }
+    }
+
+    @Test
+    public void testJdbcAuditorSpillsAndRecoversRows() throws Exception {
+        File spillFile = File.createTempFile("bdb-audit", ".spill");
+        spillFile.delete();
+        JdbcAuditor auditor = new JdbcAuditor(dataSource, "BDB_AUDIT", JdbcAuditor.Durability.AFTER_COMMIT, 100, 10, spillFile);
+        auditor.createTable();
+        //a closed auditor no longer queues, it spills everything to disk
+        auditor.close();
+        env.setAuditor(auditor);
+        try {
+            XmlSyntaxModel syntaxModel = buildSyntax();
+            theEntityContext.persist(new PersistRequest().save(syntaxModel));
+            if (!theEntityContext.getAutocommit()) {
+                theEntityContext.commit();
+            }
+            assertEquals(0, countMappingAuditRows());
+            assertTrue(spillFile.exists());
+
+            int recovered = auditor.recoverSpilledRows();
+            assertTrue(recovered > 5);
+            assertTrue(countMappingAuditRows() > 5);
+            assertFalse(spillFile.exists());
+            assertEquals(0, auditor.recoverSpilledRows());
+        }
+        finally {
+            env.setAuditor(new LoggingAuditor());
+            spillFile.delete();
+            dropAuditTable();
+        }
+    }
+
+    @Test
+    public void testPersistReport() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        PersistReport report = theEntityContext.persistWithReport(new PersistRequest().save(syntaxModel));
+
+        assertEquals(5, report.getEntityTypes().get(XmlMapping.class.getName()).getCount(OperationType.INSERT));
+        assertEquals(2, report.getEntityTypes().get(XmlSyntaxModel.class.getName()).getCount(OperationType.INSERT));
+        assertTrue(report.getPhaseEntityCount(PersistReport.Phase.INSERT) >= 7);
+        assertTrue(report.getPhaseNanos(PersistReport.Phase.INSERT) > 0);
+        assertTrue(report.getTotalNanos() >= report.getPhaseNanos(PersistReport.Phase.INSERT));
+    }
+
+    @Test
+    public void testIsolateBatchFailures() throws Exception {
+        if (getter.testingRemoteClient()) {
+            //the listener can only be used in the same JVM as the persist
+            return;
+        }
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        boolean autocommit = theEntityContext.getAutocommit();
+        theEntityContext.setAutocommit(false);
+        try {
+            List<XmlMapping> mappings = new LinkedList<>();
+            for (int i = 0; i < 4; i++) {
+                XmlMapping mapping = theEntityContext.newModel(XmlMapping.class);
+                mapping.setSyntax(syntaxModel);
+                mapping.setTargetFieldName("batch" + i);
+                mapping.setXpath("/batch" + i);
+                mappings.add(mapping);
+            }
+            //too long for the XPATH column
+            StringBuilder xpath = new StringBuilder();
+            while(xpath.length() <= 150) {
+                xpath.append("/toolong");
+            }
+            mappings.get(2).setXpath(xpath.toString());
+
+            final List<Entity> failed = new LinkedList<>();
+            PersistRequest request = new PersistRequest();
+            for (XmlMapping mapping : mappings) {
+                request.insert(mapping);
+            }
+            PersistReport report = theEntityContext.persistWithReport(request, new RuntimeProperties().isolateBatchFailures((entity, cause) -> failed.add(entity)));
+            theEntityContext.commit();
+
+            assertEquals(1, failed.size());
+            assertEquals(mappings.get(2).getId(), failed.get(0).getKey().getValue());
+            assertEquals(1, report.getFailures().size());
+            assertEquals(3, report.getEntityTypes().get(XmlMapping.class.getName()).getCount(OperationType.INSERT));
+        }
+        finally {
+            theEntityContext.setAutocommit(autocommit);
+        }
+
+        try (Connection c = dataSource.getConnection();
+                ResultSet rs = c.createStatement().executeQuery("select count(*) from SS_XML_MAPPING where TARGET_FIELD_NAME like 'batch%'")) {
+            rs.next();
+            assertEquals(3, rs.getInt(1));
+        }
+    }
+
+    @Test
+    public void testZeroCopyPersist() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel), new RuntimeProperties().zeroCopyPersist(true));
+        assertNotNull(syntaxModel.getId());
+        assertNotNull(syntaxModel.getMappings().get(0).getId());
+
+        syntaxModel.getMappings().get(0).setXpath("/updated");
+        theEntityContext.persist(new PersistRequest().save(syntaxModel), new RuntimeProperties().zeroCopyPersist(true).persistVerification(PersistVerification.FULL));
+        assertEquals("/updated", syntaxModel.getMappings().get(0).getXpath());
+
+        XmlMapping mapping = theEntityContext.newModel(XmlMapping.class);
+        mapping.setSyntax(syntaxModel);
+        mapping.setTargetFieldName("failing");
+        StringBuilder xpath = new StringBuilder();
+        while(xpath.length() <= 150) {
+            xpath.append("/toolong");
+        }
+        mapping.setXpath(xpath.toString());
+        try {
+            theEntityContext.persist(new PersistRequest().insert(mapping), new RuntimeProperties().zeroCopyPersist(true));
+            fail("expected SortPersistException");
+        }
+        catch(SortPersistException x) {
+            //the key which was set during the failed persist was restored
+            assertNull(mapping.getId());
+        }
+    }
+
+    @Test
+    public void testToManyRefreshKeepsSortOrder() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        List<XmlMapping> mappings = new LinkedList<>();
+        for (int i = 20; i > 0; i--) {
+            XmlMapping mapping = theEntityContext.newModel(XmlMapping.class);
+            mapping.setSyntax(syntaxModel);
+            mapping.setTargetFieldName("field" + i);
+            mapping.setXpath("/sorted" + (char)('a' + i));
+            mappings.add(mapping);
+        }
+        theEntityContext.persist(new PersistRequest().insert(mappings.toArray()));
+        theEntityContext.refresh();
+        assertMappingsSortedByXpath(syntaxModel);
+
+        //a single new mapping is inserted into the already sorted list
+        XmlMapping mapping = theEntityContext.newModel(XmlMapping.class);
+        mapping.setSyntax(syntaxModel);
+        mapping.setTargetFieldName("field");
+        mapping.setXpath("/sortedk1");
+        theEntityContext.persist(new PersistRequest().insert(mapping));
+        theEntityContext.refresh();
+        assertTrue(syntaxModel.getMappings().contains(mapping));
+        assertMappingsSortedByXpath(syntaxModel);
+    }
+
+    private static void assertMappingsSortedByXpath(XmlSyntaxModel syntaxModel) {
+        String previous = null;
+        for (XmlMapping mapping : syntaxModel.getMappings()) {
+            if (previous != null && mapping.getXpath() != null) {
+                assertTrue(previous + " <= " + mapping.getXpath(), previous.compareTo(mapping.getXpath()) <= 0);
+            }
+            if (mapping.getXpath() != null) {
+                previous = mapping.getXpath();
+            }
+        }
+    }
+
+    /**
+     * Tests that an Error in a worker stops the reader and is passed to the caller.
+     * The queue capacity of 1 would block the reader forever if the failure was not seen.
+     * @throws Exception
+     */
+    @Test
+    public void testPipelinedBatchPersistWorkerError() throws Exception {
+        if (getter.testingRemoteClient()) {
+            return;
+        }
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+        if (!theEntityContext.getAutocommit()) {
+            theEntityContext.commit();
+        }
+
+        final Error workerError = new Error("worker died");
+        Error thrown = null;
+        try {
+            theEntityContext.pipelinedBatchPersister()
+                .batchSize(1)
+                .workers(1)
+                .queueCapacity(1)
+                .processor(ctx -> {
+                    throw workerError;
+                })
+                .persist(theEntityContext.streamQueryEntityData(new QXmlMapping(), null));
+        }
+        catch (Error x) {
+            thrown = x;
+        }
+        assertSame(workerError, thrown);
+    }
+
+    private int countMappingAuditRows() throws SQLException {
+        try (Connection c = dataSource.getConnection();
+                ResultSet rs = c.createStatement().executeQuery("select count(*) from BDB_AUDIT where TABLE_NAME = 'SS_XML_MAPPING'")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private void dropAuditTable() throws SQLException {
+        try (Connection c = dataSource.getConnection()) {
+            c.setAutoCommit(true);
+            c.createStatement().executeUpdate("drop table BDB_AUDIT");
+        }
+    }
+
     @Test
     public void testEntityModifiedByAnotherUserDetected() throws Exception {
         /*
@@ -341,6 +848,35 @@ public class TestPersistence extends TestRemoteClientBase {
         }
     }
 
+    /**
+     * Tests that an optimistic lock violation is still detected when the original data is not loaded
+     * and only the keys and optimistic locks are verified by the update.
+     * @throws Exception
+     */
+    @Test
+    public void testEntityModifiedByAnotherUserDetectedWithKeysAndLocksOnlyVerification() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.name().equal("Scott's SyntaxModel"));
+
+        EntityContext otherUser = theEntityContext.newEntityContextSharingTransaction();
+        XmlSyntaxModel otherSyntax = otherUser.performQuery(qsyntax).getList().get(0);
+        otherSyntax.setName("Other user's SyntaxModel");
+        otherUser.persist(new PersistRequest().save(otherSyntax));
+
+        RuntimeProperties props = new RuntimeProperties().persistVerification(PersistVerification.KEYS_AND_LOCKS_ONLY);
+        syntaxModel.setName("Scott's SyntaxModel - updated");
+        try {
+            theEntityContext.persist(new PersistRequest().save(syntaxModel), props);
+            fail("expected OptimisticLockMismatchException");
+        } catch (OptimisticLockMismatchException x) {
+            //expected
+            System.out.println("Correctly detected optimistic lock violation:" + x.getMessage());
+        }
+    }
+
     /**
      * Tests that optimistic locking respects the depends on relationship
      * @throws Exception
@@ -391,6 +927,37 @@ public class TestPersistence extends TestRemoteClientBase {
         }
     }
 
+    /**
+     * Tests that optimistic locking respects the depends on relationship when only keys and locks are verified,
+     * the depends on entities are not updated so there are no update counts which could detect it.
+     * @throws Exception
+     */
+    @Test
+    public void testStructureModifiedByAnotherUserDetectedWithKeysAndLocksOnlyVerification() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.joinToStructure();
+        qsyntax.where(qsyntax.name().equal("Scott's SyntaxModel"));
+
+        EntityContext otherUser = theEntityContext.newEntityContextSharingTransaction();
+        XmlSyntaxModel otherSyntax = otherUser.performQuery(qsyntax).getList().get(0);
+        otherSyntax.getStructure().setName("updated-structure-name");
+        otherUser.persist(new PersistRequest().save(otherSyntax.getStructure()));
+
+        XmlSyntaxModel subSyntax = syntaxModel.getMappings().get(1).getSubSyntax();
+        subSyntax.getMappings().get(0).setXpath("/updated-submapping");
+
+        RuntimeProperties props = new RuntimeProperties().persistVerification(PersistVerification.KEYS_AND_LOCKS_ONLY);
+        try {
+            theEntityContext.persist(new PersistRequest().save(syntaxModel), props);
+            fail("expected OptimisticLockMismatchException");
+        } catch (OptimisticLockMismatchException x) {
+            //expected
+        }
+    }
+
     /**
      * Tests the exception when you try and update something that was deleted
      * @throws Exception
@@ -652,6 +1219,31 @@ public class TestPersistence extends TestRemoteClientBase {
         Assert.assertEquals(expectedOptimisticLock, actualOptimisticLock);
     }
 
+    @Test
+    public void testSavingAnUnmodifiedSyntaxWithKeysAndLocksOnlyVerificationDoesNothing() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+
+        Entity syntaxEntity = ((ProxyController) syntaxModel).getEntity();
+        assertTrue(syntaxEntity.isDirtyTracked());
+        assertFalse(syntaxEntity.isDirty());
+
+        Long expectedOptimisticLock = getOptimisticLock(syntaxModel);
+
+        RuntimeProperties props = new RuntimeProperties().persistVerification(PersistVerification.KEYS_AND_LOCKS_ONLY);
+        theEntityContext.persist(new PersistRequest().save(syntaxModel), props);
+        Assert.assertEquals(expectedOptimisticLock, getOptimisticLock(syntaxModel));
+
+        syntaxModel.setName(syntaxModel.getName() + " - updated");
+        assertTrue(syntaxEntity.isDirty());
+        assertTrue(syntaxEntity.isDirty(syntaxEntity.getChild("name")));
+        assertFalse(syntaxEntity.isDirty(syntaxEntity.getChild("structure")));
+
+        theEntityContext.persist(new PersistRequest().save(syntaxModel), props);
+        assertTrue(expectedOptimisticLock < getOptimisticLock(syntaxModel));
+        assertFalse(syntaxEntity.isDirty());
+    }
+
     private static Long getOptimisticLock(Object object) {
         return (Long) ((ProxyController) object).getEntity().getOptimisticLock().getValue();
     }
@@ -733,6 +1325,57 @@ public class TestPersistence extends TestRemoteClientBase {
         }
     }
 
+    /**
+     * deletes so many syntaxes with only the root syntax records in memory that the orphan checks
+     * of each level of the ownership tree span more than one key chunk.
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteSyntaxesWithOrphansOverManyKeyChunks() throws Exception {
+        final int numberOfSyntaxes = CollectionUtil.MAX_KEYS_PER_QUERY + 100;
+        XmlSyntaxModel template = buildSyntax();
+        List<XmlSyntaxModel> syntaxes = new LinkedList<>();
+        for (int i = 0; i < numberOfSyntaxes; i++) {
+            XmlSyntaxModel syntax = theEntityContext.newModel(XmlSyntaxModel.class);
+            syntax.setName("bulk syntax " + i);
+            syntax.setSyntaxType(SyntaxType.ROOT);
+            syntax.setAccessArea(template.getAccessArea());
+            syntax.setUser(template.getUser());
+            syntax.setStructure(template.getStructure());
+            syntax.setUuid("");
+            for (int m = 0; m < 2; m++) {
+                XmlSyntaxModel subSyntax = theEntityContext.newModel(XmlSyntaxModel.class);
+                subSyntax.setName("bulk sub syntax " + i + "-" + m);
+                subSyntax.setSyntaxType(SyntaxType.SUBSYNTAX);
+                subSyntax.setAccessArea(template.getAccessArea());
+                subSyntax.setUser(template.getUser());
+                subSyntax.setStructure(template.getStructure());
+                subSyntax.setUuid("");
+
+                XmlMapping mapping = theEntityContext.newModel(XmlMapping.class);
+                mapping.setSyntax(syntax);
+                mapping.setXpath("/bulk" + m);
+                mapping.setTargetFieldName("bulktarget" + m);
+                mapping.setSubSyntax(subSyntax);
+                syntax.getMappings().add(mapping);
+            }
+            syntaxes.add(syntax);
+        }
+        theEntityContext.persist(new PersistRequest().save(template).save(syntaxes.toArray()));
+
+        theEntityContext.clear();
+
+        QXmlSyntaxModel qs = new QXmlSyntaxModel();
+        qs.where(qs.syntaxType().equal( SyntaxType.ROOT ));
+        List<XmlSyntaxModel> loaded = theEntityContext.performQuery(qs).getList();
+        assertEquals(numberOfSyntaxes + 1, loaded.size());
+
+        theEntityContext.persist(new PersistRequest().delete(loaded.toArray()));
+
+        assertTrue(theEntityContext.performQuery(new QXmlSyntaxModel()).getList().isEmpty());
+        assertTrue(theEntityContext.performQuery(new QXmlMapping()).getList().isEmpty());
+    }
+
     @Test
     public void testDeleteSyntax2() throws Exception {
         /*
@@ -914,6 +1557,25 @@ public class TestPersistence extends TestRemoteClientBase {
         }
    }
 
+    @Test
+    public void testFrozenByteArraysAreCopied() throws Exception {
+        RawData rd = buildRawData("rawdata");
+        theEntityContext.persist(new PersistRequest().save(rd));
+        RawData loaded = theEntityContext.performQuery(new QRawData()).getList().get(0);
+
+        EntitySnapshot snapshot = theEntityContext.freeze();
+        //modifying the original after the freeze does not change the snapshot
+        loaded.getData()[0] = 'X';
+
+        RawData copy1 = snapshot.newChildContext().getModelOrLoadModel(RawData.class, loaded.getId(), true);
+        assertEquals("rawdata", new String(copy1.getData(), "UTF-8"));
+        //modifying the copy of one child does not change the snapshot
+        copy1.getData()[0] = 'Y';
+
+        RawData copy2 = snapshot.newChildContext().getModelOrLoadModel(RawData.class, loaded.getId(), true);
+        assertEquals("rawdata", new String(copy2.getData(), "UTF-8"));
+    }
+
     @Test
     public void testSaveSyntaxWithMappingWhichIsPerhapsInTheDatabaseAndIsNot1() throws BarleyDBException {
         //first create a syntax with 2 mappings
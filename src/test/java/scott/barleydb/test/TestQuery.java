@@ -22,27 +22,56 @@ package scott.barleydb.test;
  * #L%
  */
 
+import org.example.acl.dto.UserDto;
 import org.example.acl.query.QUser;
+import org.example.etl.dto.XmlSyntaxModelDto;
 import org.example.etl.model.*;
 import org.example.etl.query.*;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
+import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.QueryBatcher;
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.core.entity.EntityConstraint;
 import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.entity.EntityGraphReader;
+import scott.barleydb.api.core.entity.EntityGraphWriter;
+import scott.barleydb.api.core.entity.EntityIdentityGenerator;
+import scott.barleydb.api.core.entity.EntitySnapshot;
+import scott.barleydb.api.core.entity.EntityState;
+import scott.barleydb.api.core.entity.ProxyController;
+import scott.barleydb.api.core.entity.RefNode;
+import scott.barleydb.api.core.entity.TimeOrderedEntityIdentityGenerator;
+import scott.barleydb.api.core.entity.ValueNode;
+import scott.barleydb.api.dto.DtoStreamExporter;
 import scott.barleydb.api.stream.DataStream;
 import scott.barleydb.api.stream.ObjectInputStream;
 import scott.barleydb.server.jdbc.query.QueryResult;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static scott.barleydb.api.query.JoinType.INNER;
 import static scott.barleydb.api.query.JoinType.LEFT_OUTER;
 
@@ -494,6 +523,358 @@ public class TestQuery extends TestRemoteClientBase {
         assertEquals(autoCommitMode, serverEntityContext.getAutocommit());
     }
 
+    @Test
+    public void testConcurrentEntityContext() throws Exception {
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.syntaxType().equal(SyntaxType.ROOT));
+        final List<XmlSyntaxModel> syntaxModels = theEntityContext.performQuery(qsyntax).getList();
+        assertTrue(syntaxModels.size() > 0);
+
+        theEntityContext.setConcurrent(true);
+        try {
+            final int numberOfThreads = 8;
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < numberOfThreads; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        StringBuilder sb = new StringBuilder();
+                        //lazily fetches the users and the mappings
+                        for (XmlSyntaxModel syntaxModel : syntaxModels) {
+                            if (syntaxModel.getUser() != null) {
+                                sb.append(syntaxModel.getUser().getName());
+                            }
+                            for (XmlMapping mapping : syntaxModel.getMappings()) {
+                                sb.append(' ').append(mapping.getXpath());
+                            }
+                            sb.append('|');
+                        }
+                        results.add(sb.toString());
+                    }
+                    catch(Throwable x) {
+                        errors.add(x);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(Collections.emptyList(), errors);
+            assertEquals(numberOfThreads, results.size());
+            for (String result : results) {
+                assertEquals(results.get(0), result);
+            }
+        }
+        finally {
+            theEntityContext.setConcurrent(false);
+        }
+        assertTrue(theEntityContext.isUser());
+    }
+
+    @Test
+    public void testFreezeEntityContext() throws Exception {
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.joinToUser();
+        qsyntax.joinToMappings();
+        qsyntax.where(qsyntax.syntaxType().equal(SyntaxType.ROOT));
+        List<XmlSyntaxModel> syntaxModels = theEntityContext.performQuery(qsyntax).getList();
+        assertTrue(syntaxModels.size() > 0);
+
+        EntitySnapshot snapshot = theEntityContext.freeze();
+        assertTrue(snapshot.size() > 0);
+
+        EntityContext child1 = snapshot.newChildContext();
+        EntityContext child2 = snapshot.newChildContext();
+        for (XmlSyntaxModel syntaxModel : syntaxModels) {
+            XmlSyntaxModel copy = child1.getModelOrLoadModel(XmlSyntaxModel.class, syntaxModel.getId(), true);
+            assertEquals(syntaxModel.getName(), copy.getName());
+            if (syntaxModel.getUser() != null) {
+                assertEquals(syntaxModel.getUser().getName(), copy.getUser().getName());
+            }
+            assertEquals(syntaxModel.getMappings().size(), copy.getMappings().size());
+            for (int i = 0; i < syntaxModel.getMappings().size(); i++) {
+                assertEquals(syntaxModel.getMappings().get(i).getXpath(), copy.getMappings().get(i).getXpath());
+            }
+        }
+        if (!getter.testingRemoteClient()) {
+            //everything came from the snapshot
+            assertEquals(0, child1.getStatistics().getNumberOfQueries());
+        }
+
+        /*
+         * modifying the copy in one child does not affect the snapshot or other children
+         */
+        XmlSyntaxModel syntaxModel = syntaxModels.get(0);
+        XmlSyntaxModel copy1 = child1.getModelOrLoadModel(XmlSyntaxModel.class, syntaxModel.getId(), true);
+        copy1.setName("changed in child");
+        XmlSyntaxModel copy2 = child2.getModelOrLoadModel(XmlSyntaxModel.class, syntaxModel.getId(), true);
+        assertEquals(syntaxModel.getName(), copy2.getName());
+        EntityContext child3 = snapshot.newChildContext();
+        assertEquals(syntaxModel.getName(), child3.getModelOrLoadModel(XmlSyntaxModel.class, syntaxModel.getId(), true).getName());
+    }
+
+    @Test
+    public void testEntityGraphRoundTrip() throws Exception {
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.joinToUser();
+        qsyntax.joinToMappings();
+        qsyntax.where(qsyntax.syntaxType().equal(SyntaxType.ROOT));
+        List<XmlSyntaxModel> syntaxModels = theEntityContext.performQuery(qsyntax).getList();
+        assertTrue(syntaxModels.size() > 0);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        EntityGraphWriter.write(theEntityContext, bout);
+
+        EntityContext copyContext = theEntityContext.newEntityContext();
+        List<Entity> copied = EntityGraphReader.read(copyContext, new ByteArrayInputStream(bout.toByteArray()));
+        assertTrue(copied.size() > syntaxModels.size());
+        for (XmlSyntaxModel syntaxModel : syntaxModels) {
+            XmlSyntaxModel copy = copyContext.getModel(XmlSyntaxModel.class, syntaxModel.getId(), true);
+            assertEquals(syntaxModel.getEntity().getUuid(), copy.getEntity().getUuid());
+            assertEquals(syntaxModel.getEntity().getEntityState(), copy.getEntity().getEntityState());
+            assertEquals(syntaxModel.getName(), copy.getName());
+            assertEquals(syntaxModel.getSyntaxType(), copy.getSyntaxType());
+            if (syntaxModel.getUser() != null) {
+                assertEquals(syntaxModel.getUser().getName(), copy.getUser().getName());
+            }
+            assertEquals(syntaxModel.getMappings().size(), copy.getMappings().size());
+            for (int i = 0; i < syntaxModel.getMappings().size(); i++) {
+                assertEquals(syntaxModel.getMappings().get(i).getXpath(), copy.getMappings().get(i).getXpath());
+                assertSame(copy, copy.getMappings().get(i).getSyntax());
+            }
+        }
+        //everything was in the stream
+        assertEquals(0, copyContext.getStatistics().getNumberOfQueries());
+    }
+
+    @Test
+    public void testEntityGraphForwardReferenceAndIncrementalRead() throws Exception {
+        EntityContext ctx = theEntityContext.newEntityContext();
+        XmlSyntaxModel syntax = ctx.newModel(XmlSyntaxModel.class);
+        syntax.setName("forward");
+        XmlMapping mapping = ctx.newModel(XmlMapping.class);
+        mapping.setXpath("/forward");
+        mapping.setSyntax(syntax);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (EntityGraphWriter writer = new EntityGraphWriter(bout, ctx.getNamespace())) {
+            //the mapping refers to the syntax before the syntax is written
+            writer.write(mapping.getEntity());
+            writer.write(syntax.getEntity());
+        }
+
+        EntityContext copyContext = theEntityContext.newEntityContext();
+        try (EntityGraphReader reader = new EntityGraphReader(new ByteArrayInputStream(bout.toByteArray()), copyContext)) {
+            Entity mappingCopy = reader.read();
+            assertEquals(mapping.getEntity().getUuid(), mappingCopy.getUuid());
+            assertEquals("/forward", mappingCopy.getChild("xpath", ValueNode.class).getValueNoFetch());
+            Entity placeHolder = mappingCopy.getChild("syntax", RefNode.class).getReference(false);
+            assertEquals(syntax.getEntity().getUuid(), placeHolder.getUuid());
+            assertEquals(EntityState.NOTLOADED, placeHolder.getEntityState());
+
+            Entity syntaxCopy = reader.read();
+            assertSame(placeHolder, syntaxCopy);
+            assertEquals(syntax.getEntity().getEntityState(), syntaxCopy.getEntityState());
+            assertEquals("forward", syntaxCopy.getChild("name", ValueNode.class).getValueNoFetch());
+
+            assertNull(reader.read());
+            assertNull(reader.read());
+        }
+    }
+
+    @Test
+    public void testEntityGraphValues() throws Exception {
+        EntityContext ctx = theEntityContext.newEntityContext();
+        //only the key of the entity is known, it's values are not loaded
+        XmlSyntaxModel notLoaded = ctx.newModel(XmlSyntaxModel.class, 999999L, EntityConstraint.mustExistInDatabase());
+        XmlSyntaxModel syntax = ctx.newModel(XmlSyntaxModel.class);
+        syntax.setName("values");
+        //a value which does not match the java type of it's node falls back to java serialization
+        ValueNode modifiedAt = syntax.getEntity().getChild("modifiedAt", ValueNode.class);
+        modifiedAt.setValueNoEvent(Integer.valueOf(42));
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (EntityGraphWriter writer = new EntityGraphWriter(bout, ctx.getNamespace())) {
+            writer.write(notLoaded.getEntity());
+            writer.write(syntax.getEntity());
+        }
+        List<Entity> copies = EntityGraphReader.read(theEntityContext.newEntityContext(), new ByteArrayInputStream(bout.toByteArray()));
+        assertEquals(2, copies.size());
+        assertEquals(EntityState.NOTLOADED, copies.get(0).getEntityState());
+        assertEquals(Long.valueOf(999999L), copies.get(0).getKey().getValue());
+        assertFalse(copies.get(0).getChild("name", ValueNode.class).isLoaded());
+        assertEquals(Integer.valueOf(42), copies.get(1).getChild("modifiedAt", ValueNode.class).getValueNoFetch());
+
+        //serialized values of classes outside of the JDK are rejected
+        modifiedAt.setValueNoEvent(new java.io.File("rejected"));
+        bout = new ByteArrayOutputStream();
+        try (EntityGraphWriter writer = new EntityGraphWriter(bout, ctx.getNamespace())) {
+            writer.write(syntax.getEntity());
+        }
+        try {
+            EntityGraphReader.read(theEntityContext.newEntityContext(), new ByteArrayInputStream(bout.toByteArray()));
+            fail("Expected the serialized value to be rejected");
+        }
+        catch (IOException x) {
+            //expected
+        }
+
+        //a negative entity handle from a corrupt stream
+        bout = new ByteArrayOutputStream();
+        new EntityGraphWriter(bout, ctx.getNamespace()).close();
+        byte header[] = Arrays.copyOf(bout.toByteArray(), bout.size() - 1);
+        ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+        corrupt.write(header);
+        //an entity tag followed by the varint of -1
+        corrupt.write(new byte[]{1, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F});
+        try {
+            EntityGraphReader.read(theEntityContext.newEntityContext(), new ByteArrayInputStream(corrupt.toByteArray()));
+            fail("Expected the negative handle to be rejected");
+        }
+        catch (StreamCorruptedException x) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testTimeOrderedEntityIdentity() throws Exception {
+        Environment environment = theEntityContext.getEnv();
+        EntityIdentityGenerator original = environment.getEntityIdentityGenerator();
+        environment.setEntityIdentityGenerator(new TimeOrderedEntityIdentityGenerator());
+        try {
+            XmlMapping mapping1 = theEntityContext.newModel(XmlMapping.class);
+            XmlMapping mapping2 = theEntityContext.newModel(XmlMapping.class);
+            UUID uuid1 = mapping1.getEntity().getUuid();
+            UUID uuid2 = mapping2.getEntity().getUuid();
+            assertEquals(7, uuid1.version());
+            assertEquals(2, uuid1.variant());
+            assertTrue(!uuid1.equals(uuid2));
+            assertTrue(uuid1.getMostSignificantBits() >>> 16 <= uuid2.getMostSignificantBits() >>> 16);
+
+            List<XmlMapping> mappings = theEntityContext.performQuery(new QXmlMapping()).getList();
+            assertTrue(mappings.size() > 0);
+            if (!getter.testingRemoteClient()) {
+                //the remote client entities were created on the server
+                for (XmlMapping mapping : mappings) {
+                    assertEquals(7, mapping.getEntity().getUuid().version());
+                }
+            }
+        }
+        finally {
+            environment.setEntityIdentityGenerator(original);
+        }
+    }
+
+    @Test
+    public void testStreamDtoExport() throws Exception {
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.joinToUser();
+        qsyntax.joinToMappings();
+        qsyntax.where(qsyntax.syntaxType().equal(SyntaxType.ROOT));
+        qsyntax.orderBy(qsyntax.id(), true);
+        List<XmlSyntaxModel> syntaxModels = theEntityContext.performQuery(qsyntax).getList();
+        assertTrue(syntaxModels.size() > 0);
+
+        QXmlSyntaxModel qstream = new QXmlSyntaxModel();
+        qstream.joinToUser();
+        qstream.joinToMappings();
+        qstream.where(qstream.syntaxType().equal(SyntaxType.ROOT));
+        qstream.orderBy(qstream.id(), true);
+        try (DtoStreamExporter<XmlSyntaxModelDto> exporter = new DtoStreamExporter<>(theEntityContext.streamObjectQuery(qstream, true), 10)) {
+            List<XmlSyntaxModelDto> dtos = new ArrayList<>();
+            XmlSyntaxModelDto dto;
+            while((dto = exporter.read()) != null) {
+                dtos.add(dto);
+            }
+            assertEquals(syntaxModels.size(), dtos.size());
+            Map<Long, UserDto> users = new HashMap<>();
+            for (int i = 0; i < dtos.size(); i++) {
+                XmlSyntaxModel syntaxModel = syntaxModels.get(i);
+                dto = dtos.get(i);
+                assertEquals(syntaxModel.getId(), dto.getId());
+                assertEquals(syntaxModel.getName(), dto.getName());
+                assertEquals(syntaxModel.getMappings().size(), dto.getMappings().size());
+                assertTrue(dto.getMappings().isFetched());
+                for (int j = 0; j < dto.getMappings().size(); j++) {
+                    assertEquals(syntaxModel.getMappings().get(j).getXpath(), dto.getMappings().get(j).getXpath());
+                    assertSame(dto, dto.getMappings().get(j).getSyntax());
+                }
+                if (dto.getUser() != null) {
+                    //the same user is the same DTO while it is in the window
+                    UserDto user = users.get(dto.getUser().getId());
+                    if (user != null) {
+                        assertSame(user, dto.getUser());
+                    }
+                    users.put(dto.getUser().getId(), dto.getUser());
+                }
+            }
+        }
+        catch(UnsupportedOperationException x) {
+            assertTrue("Remote streaming is not supported", getter.client);
+        }
+    }
+
+    @Test
+    public void testEntityBudget() throws Exception {
+        theEntityContext.setEntityBudget(2);
+        QXmlMapping qmapping = new QXmlMapping();
+        List<XmlMapping> mappings = theEntityContext.performQuery(qmapping).getList();
+        assertTrue(mappings.size() > 2);
+        List<String> xpaths = new ArrayList<>();
+        for (XmlMapping mapping : mappings) {
+            xpaths.add(mapping.getXpath());
+        }
+
+        //the mappings are evicted before the next query
+        int retainedBefore = theEntityContext.getRetainedSize();
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.name().equal("no such syntax"));
+        assertTrue(theEntityContext.performQuery(qsyntax).getList().isEmpty());
+        int evictions = theEntityContext.getStatistics().getNumberOfEvictions();
+        assertTrue(evictions > 0);
+        assertEquals(retainedBefore - evictions, theEntityContext.getRetainedSize());
+
+        //and fetched again when accessed
+        for (int i = 0; i < mappings.size(); i++) {
+            assertEquals(xpaths.get(i), mappings.get(i).getXpath());
+        }
+        assertTrue(theEntityContext.getStatistics().getNumberOfRefetches() > 0);
+    }
+
+    @Test
+    public void testEntityBudgetKeepsReadEntities() throws Exception {
+        theEntityContext.setEntityBudget(1000);
+        List<XmlMapping> mappings = theEntityContext.performQuery(new QXmlMapping()).getList();
+        assertFalse(mappings.isEmpty());
+        //the syntaxes are loaded after the mappings
+        List<XmlSyntaxModel> syntaxes = theEntityContext.performQuery(new QXmlSyntaxModel()).getList();
+        assertFalse(syntaxes.isEmpty());
+
+        //the oldest loaded entities are read
+        for (XmlMapping mapping : mappings) {
+            mapping.getXpath();
+        }
+
+        theEntityContext.setEntityBudget(theEntityContext.getRetainedSize() - 1);
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.name().equal("no such syntax"));
+        assertTrue(theEntityContext.performQuery(qsyntax).getList().isEmpty());
+        assertEquals(1, theEntityContext.getStatistics().getNumberOfEvictions());
+
+        //the read mappings got a second chance, a syntax was evicted instead
+        for (XmlMapping mapping : mappings) {
+            assertTrue(((ProxyController)mapping).getEntity().isLoaded());
+            mapping.getXpath();
+        }
+        assertEquals(0, theEntityContext.getStatistics().getNumberOfRefetches());
+    }
+
     @Test
     public void testQueryTemplateAndDatatypeEagerLoading() throws Exception {
         /*